@@ -507,6 +507,28 @@ public class ChanConfiguration implements ChanManager.Linked
 	{
 		return mBumpLimitMode;
 	}
+	
+	private long mRequestInterval = 0;
+	private int mRequestBurst = 1;
+	
+	// Requests to every chan host are paced to this rate, burst is the number of requests allowed without delay
+	public final void setRequestRate(float requestsPerSecond, int burst)
+	{
+		checkInit();
+		if (requestsPerSecond < 0f || burst < 1) throw new IllegalArgumentException();
+		mRequestInterval = requestsPerSecond > 0f ? (long) (1000f / requestsPerSecond) : 0;
+		mRequestBurst = burst;
+	}
+	
+	public final long getRequestInterval()
+	{
+		return mRequestInterval;
+	}
+	
+	public final int getRequestBurst()
+	{
+		return mRequestBurst;
+	}
 
 	private HashMap<String, Integer> mPagesCountMap;
 	
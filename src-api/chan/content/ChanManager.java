@@ -488,6 +488,11 @@ public class ChanManager
 		return mChanItems.values();
 	}
 	
+	public ExtensionItem getChanItem(String chanName)
+	{
+		return mChanItems.get(chanName);
+	}
+	
 	public Collection<ExtensionItem> getLibItems()
 	{
 		return mLibItems.values();
@@ -374,18 +374,28 @@ public class ChanMarkup implements ChanManager.Linked, HtmlParser.Markup
 				if (markupItem.cssClassTagItems != null)
 				{
 					String fullCssClass = attributes.getValue("", "class");
-					String[] cssClasses = fullCssClass != null ? fullCssClass.split(" +") : null;
-					if (cssClasses != null)
+					if (fullCssClass != null)
 					{
-						for (String cssClass : cssClasses)
+						// Classes are separated manually to avoid regular expression split for every tag
+						int length = fullCssClass.length();
+						int start = 0;
+						while (start < length)
 						{
-							TagItem preferredTagItem = markupItem.cssClassTagItems.get(cssClass);
-							if (preferredTagItem != null && preferredTagItem.isMorePreferredThanParent())
+							int end = fullCssClass.indexOf(' ', start);
+							if (end < 0) end = length;
+							if (end > start)
 							{
-								tagItem = preferredTagItem;
-								preferredTagItemFound = true;
-								break;
+								String cssClass = end - start == length ? fullCssClass
+										: fullCssClass.substring(start, end);
+								TagItem preferredTagItem = markupItem.cssClassTagItems.get(cssClass);
+								if (preferredTagItem != null && preferredTagItem.isMorePreferredThanParent())
+								{
+									tagItem = preferredTagItem;
+									preferredTagItemFound = true;
+									break;
+								}
 							}
+							start = end + 1;
 						}
 					}
 				}
@@ -135,6 +135,13 @@ public class ChanPerformer implements ChanManager.Linked
 		throw new UnsupportedOperationException();
 	}
 	
+	// Can be overridden
+	public ReadPostsCountsResult onReadPostsCounts(ReadPostsCountsData data) throws HttpException,
+			InvalidResponseException
+	{
+		throw new UnsupportedOperationException();
+	}
+	
 	// Can be overridden
 	public ReadContentResult onReadContent(ReadContentData data) throws HttpException, InvalidResponseException
 	{
@@ -186,7 +193,7 @@ public class ChanPerformer implements ChanManager.Linked
 		throw new UnsupportedOperationException();
 	}
 	
-	public static class ReadThreadsData implements HttpRequest.Preset
+	public static class ReadThreadsData implements HttpRequest.CachePreset
 	{
 		public static final int PAGE_NUMBER_CATALOG = -1;
 		
@@ -207,6 +214,12 @@ public class ChanPerformer implements ChanManager.Linked
 		{
 			return pageNumber == PAGE_NUMBER_CATALOG;
 		}
+		
+		@Override
+		public int getCacheMode()
+		{
+			return HttpRequest.CACHE_REVALIDATE;
+		}
 	}
 	
 	public static class ReadThreadsResult
@@ -236,7 +249,7 @@ public class ChanPerformer implements ChanManager.Linked
 		}
 	}
 	
-	public static class ReadPostsData implements HttpRequest.Preset
+	public static class ReadPostsData implements HttpRequest.CachePreset
 	{
 		public final String boardName;
 		public final String threadNumber;
@@ -257,6 +270,12 @@ public class ChanPerformer implements ChanManager.Linked
 			this.holder = holder;
 			this.validator = validator;
 		}
+		
+		@Override
+		public int getCacheMode()
+		{
+			return HttpRequest.CACHE_REVALIDATE;
+		}
 	}
 	
 	public static class ReadPostsResult
@@ -492,6 +511,50 @@ public class ChanPerformer implements ChanManager.Linked
 		}
 	}
 	
+	public static class ReadPostsCountsData implements HttpRequest.TimeoutsPreset
+	{
+		public final String boardName;
+		public final String[] threadNumbers;
+		public final int connectTimeout;
+		public final int readTimeout;
+		public final HttpHolder holder;
+		
+		public ReadPostsCountsData(String boardName, String[] threadNumbers, int connectTimeout, int readTimeout,
+				HttpHolder holder)
+		{
+			this.boardName = boardName;
+			this.threadNumbers = threadNumbers;
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+			this.holder = holder;
+		}
+		
+		@Override
+		public int getConnectTimeout()
+		{
+			return connectTimeout;
+		}
+		
+		@Override
+		public int getReadTimeout()
+		{
+			return readTimeout;
+		}
+	}
+	
+	public static class ReadPostsCountsResult
+	{
+		public static final int POSTS_COUNT_UNKNOWN = -1;
+		
+		// Posts count for every thread number in the same order, unknown counts will be requested one by one
+		public final int[] postsCounts;
+		
+		public ReadPostsCountsResult(int[] postsCounts)
+		{
+			this.postsCounts = postsCounts;
+		}
+	}
+	
 	public static class ReadContentData implements HttpRequest.TimeoutsPreset, HttpRequest.InputListenerPreset,
 			HttpRequest.OutputStreamPreset
 	{
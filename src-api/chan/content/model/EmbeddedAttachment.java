@@ -16,6 +16,7 @@
 
 package chan.content.model;
 
+import java.io.IOException;
 import java.util.HashMap;
 
 import org.json.JSONObject;
@@ -61,6 +62,17 @@ public final class EmbeddedAttachment implements Attachment
 		mForcedName = forcedName;
 	}
 	
+	private EmbeddedAttachment(String fileUriString, String thumbnailUriString, String embeddedType,
+			ContentType contentType, boolean canDownload, String forcedName)
+	{
+		mFileUriString = fileUriString;
+		mThumbnailUriString = thumbnailUriString;
+		mEmbeddedType = embeddedType;
+		mContentType = contentType;
+		mCanDownload = canDownload;
+		mForcedName = forcedName;
+	}
+	
 	public String getFileUriString()
 	{
 		return mFileUriString;
@@ -199,6 +211,36 @@ public final class EmbeddedAttachment implements Attachment
 		return uri;
 	}
 	
+	void write(ModelCodec.Writer writer) throws IOException
+	{
+		writer.writeString(mFileUriString);
+		writer.writeString(mThumbnailUriString);
+		writer.writeString(mEmbeddedType);
+		writer.writeByte(mContentType.ordinal());
+		writer.writeBoolean(mCanDownload);
+		writer.writeString(mForcedName);
+		writer.writeString(mTitle);
+	}
+	
+	static EmbeddedAttachment read(ModelCodec.Reader reader) throws IOException
+	{
+		String fileUriString = reader.readString();
+		String thumbnailUriString = reader.readString();
+		String embeddedType = reader.readString();
+		int contentTypeOrdinal = reader.readByte();
+		ContentType[] contentTypes = ContentType.values();
+		if (contentTypeOrdinal < 0 || contentTypeOrdinal >= contentTypes.length)
+		{
+			throw new IOException("Unknown content type " + contentTypeOrdinal);
+		}
+		boolean canDownload = reader.readBoolean();
+		String forcedName = reader.readString();
+		EmbeddedAttachment attachment = new EmbeddedAttachment(fileUriString, thumbnailUriString, embeddedType,
+				contentTypes[contentTypeOrdinal], canDownload, forcedName);
+		attachment.mTitle = reader.readString();
+		return attachment;
+	}
+	
 	public boolean contentEquals(EmbeddedAttachment o)
 	{
 		return StringUtils.equals(mFileUriString, o.mFileUriString) && StringUtils.equals(mThumbnailUriString,
@@ -16,6 +16,7 @@
 
 package chan.content.model;
 
+import java.io.IOException;
 import java.util.Locale;
 
 import android.net.Uri;
@@ -158,6 +159,30 @@ public final class FileAttachment implements Attachment
 		return this;
 	}
 	
+	void write(ModelCodec.Writer writer) throws IOException
+	{
+		writer.writeString(mFileUriString);
+		writer.writeString(mThumbnailUriString);
+		writer.writeString(mOriginalName);
+		writer.writeInt(mSize);
+		writer.writeVarInt(mWidth);
+		writer.writeVarInt(mHeight);
+		writer.writeBoolean(mSpoiler);
+	}
+	
+	static FileAttachment read(ModelCodec.Reader reader) throws IOException
+	{
+		FileAttachment attachment = new FileAttachment();
+		attachment.mFileUriString = reader.readString();
+		attachment.mThumbnailUriString = reader.readString();
+		attachment.mOriginalName = reader.readString();
+		attachment.mSize = reader.readInt();
+		attachment.mWidth = reader.readVarInt();
+		attachment.mHeight = reader.readVarInt();
+		attachment.mSpoiler = reader.readBoolean();
+		return attachment;
+	}
+	
 	public boolean contentEquals(FileAttachment o)
 	{
 		return StringUtils.equals(mFileUriString, o.mFileUriString) && StringUtils.equals(mThumbnailUriString,
@@ -16,6 +16,7 @@
 
 package chan.content.model;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 import android.net.Uri;
@@ -36,6 +37,12 @@ public class Icon implements Serializable
 		mTitle = title;
 	}
 	
+	private Icon(String uriString, String title)
+	{
+		mUriString = uriString;
+		mTitle = title;
+	}
+	
 	public Uri getRelativeUri()
 	{
 		return mUriString != null ? Uri.parse(mUriString) : null;
@@ -51,6 +58,17 @@ public class Icon implements Serializable
 		return mTitle;
 	}
 	
+	void write(ModelCodec.Writer writer) throws IOException
+	{
+		writer.writeString(mUriString);
+		writer.writeString(mTitle);
+	}
+	
+	static Icon read(ModelCodec.Reader reader) throws IOException
+	{
+		return new Icon(reader.readString(), reader.readString());
+	}
+	
 	public boolean contentEquals(Icon o)
 	{
 		return StringUtils.equals(mUriString, o.mUriString) && StringUtils.equals(mTitle, o.mTitle);
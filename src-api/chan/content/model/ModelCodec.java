@@ -0,0 +1,434 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package chan.content.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import com.mishiranu.dashchan.content.model.ParsedComments;
+import com.mishiranu.dashchan.content.model.ReplyGraph;
+
+public final class ModelCodec
+{
+	private static final int MAGIC = 0x44434d43; // "DCMC"
+	private static final int VERSION = 2;
+	
+	private static final int OBJECT_POSTS = 1;
+	private static final int OBJECT_THREADS = 2;
+	private static final int OBJECT_REPLY_GRAPH = 3;
+	private static final int OBJECT_PARSED_COMMENTS = 4;
+	
+	// Snapshots of thread objects may be followed by appended records, each with its own string table,
+	// length and checksum
+	private static final int RECORD_POSTS_DELTA = 1;
+	private static final int RECORD_REPLY_GRAPH_DELTA = 2;
+	private static final int RECORD_PARSED_COMMENTS_DELTA = 3;
+	private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+	
+	// Strings are written once and then referenced by index in string table built by both sides
+	private static final int STRING_NULL = 0;
+	private static final int STRING_NEW = 1;
+	private static final int STRING_REFERENCE_START = 2;
+	
+	private ModelCodec()
+	{
+		
+	}
+	
+	public static boolean isSupported(Object object)
+	{
+		return object instanceof Threads || isDeltaSupported(object);
+	}
+	
+	public static boolean isDeltaSupported(Object object)
+	{
+		return object instanceof Posts || object instanceof ReplyGraph || object instanceof ParsedComments;
+	}
+	
+	public static void write(OutputStream output, Object object) throws IOException
+	{
+		if (isSupported(object))
+		{
+			Writer writer = new Writer(output);
+			writer.writeInt(MAGIC);
+			writer.writeVarInt(VERSION);
+			if (object instanceof Posts)
+			{
+				writer.writeVarInt(OBJECT_POSTS);
+				((Posts) object).write(writer);
+			}
+			else if (object instanceof Threads)
+			{
+				writer.writeVarInt(OBJECT_THREADS);
+				((Threads) object).write(writer);
+			}
+			else if (object instanceof ReplyGraph)
+			{
+				writer.writeVarInt(OBJECT_REPLY_GRAPH);
+				((ReplyGraph) object).write(writer);
+			}
+			else
+			{
+				writer.writeVarInt(OBJECT_PARSED_COMMENTS);
+				((ParsedComments) object).write(writer);
+			}
+			writer.flush();
+		}
+		else
+		{
+			ObjectOutputStream objectOutput = new ObjectOutputStream(new BufferedOutputStream(output));
+			objectOutput.writeObject(object);
+			objectOutput.flush();
+		}
+	}
+	
+	/*
+	 * Appends record to stream with snapshot of the same object. Posts records are built from handle posts
+	 * and merge actions, other objects keep their changes themselves. Every record is framed with its length
+	 * and checksum, so torn record can be detected and skipped.
+	 */
+	public static void writeDelta(OutputStream output, Object object, Post[] handlePosts,
+			Posts.MergeAction[] actions) throws IOException
+	{
+		int recordType;
+		ByteArrayOutputStream payloadOutput = new ByteArrayOutputStream();
+		Writer writer = new Writer(payloadOutput);
+		if (object instanceof Posts)
+		{
+			recordType = RECORD_POSTS_DELTA;
+			((Posts) object).writeDelta(writer, handlePosts, actions);
+		}
+		else if (object instanceof ReplyGraph)
+		{
+			recordType = RECORD_REPLY_GRAPH_DELTA;
+			((ReplyGraph) object).writeDelta(writer);
+		}
+		else if (object instanceof ParsedComments)
+		{
+			recordType = RECORD_PARSED_COMMENTS_DELTA;
+			((ParsedComments) object).write(writer);
+		}
+		else throw new IllegalArgumentException();
+		writer.flush();
+		byte[] payload = payloadOutput.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		DataOutputStream dataOutput = new DataOutputStream(new BufferedOutputStream(output));
+		dataOutput.writeByte(recordType);
+		dataOutput.writeInt(payload.length);
+		dataOutput.writeInt((int) crc.getValue());
+		dataOutput.write(payload);
+		dataOutput.flush();
+	}
+	
+	public static Object read(InputStream input) throws IOException, ClassNotFoundException
+	{
+		return read(input, null);
+	}
+	
+	/*
+	 * Returns lengths of snapshot and of snapshot with all valid appended records or null if stream doesn't
+	 * contain snapshot which supports appending. Data after valid records should be truncated before appending.
+	 */
+	public static long[] readAppendLengths(InputStream input) throws IOException, ClassNotFoundException
+	{
+		long[] lengths = new long[2];
+		read(input, lengths);
+		return lengths[0] > 0 ? lengths : null;
+	}
+	
+	private static Object read(InputStream input, long[] lengths) throws IOException, ClassNotFoundException
+	{
+		BufferedInputStream bufferedInput = new BufferedInputStream(input);
+		bufferedInput.mark(4);
+		CountingInputStream countingInput = new CountingInputStream(bufferedInput);
+		Reader reader = new Reader(countingInput);
+		int magic;
+		try
+		{
+			magic = reader.readInt();
+		}
+		catch (IOException e)
+		{
+			magic = 0;
+		}
+		if (magic != MAGIC)
+		{
+			// Legacy Java serialization stream
+			bufferedInput.reset();
+			return new ObjectInputStream(bufferedInput).readObject();
+		}
+		int version = reader.readVarInt();
+		if (version != VERSION) throw new IOException("Unsupported version " + version);
+		int objectType = reader.readVarInt();
+		Object object;
+		int recordType;
+		switch (objectType)
+		{
+			case OBJECT_POSTS:
+			{
+				object = Posts.read(reader);
+				recordType = RECORD_POSTS_DELTA;
+				break;
+			}
+			case OBJECT_THREADS: return Threads.read(reader);
+			case OBJECT_REPLY_GRAPH:
+			{
+				object = ReplyGraph.read(reader);
+				recordType = RECORD_REPLY_GRAPH_DELTA;
+				break;
+			}
+			case OBJECT_PARSED_COMMENTS:
+			{
+				object = ParsedComments.read(reader);
+				recordType = RECORD_PARSED_COMMENTS_DELTA;
+				break;
+			}
+			default: throw new IOException("Unknown object type " + objectType);
+		}
+		long validLength = countingInput.mCount;
+		if (lengths != null) lengths[0] = validLength;
+		// Reading stops at the first incomplete or damaged record, it and everything after it will be
+		// truncated before the next record is appended
+		byte[] payload;
+		while ((payload = readRecord(reader.mInput, recordType)) != null)
+		{
+			// Record is decoded into a new object, so the last valid state is kept if record is invalid
+			Reader recordReader = new Reader(new ByteArrayInputStream(payload));
+			try
+			{
+				switch (objectType)
+				{
+					case OBJECT_POSTS: object = ((Posts) object).readDelta(recordReader); break;
+					case OBJECT_REPLY_GRAPH: object = ((ReplyGraph) object).readDelta(recordReader); break;
+					case OBJECT_PARSED_COMMENTS: ((ParsedComments) object).readDelta(recordReader); break;
+				}
+			}
+			catch (IOException | RuntimeException e)
+			{
+				break;
+			}
+			validLength = countingInput.mCount;
+		}
+		if (lengths != null) lengths[1] = validLength;
+		return object;
+	}
+	
+	// Returns record payload or null if stream has no more valid records
+	private static byte[] readRecord(DataInputStream input, int recordType) throws IOException
+	{
+		if (input.read() != recordType) return null;
+		try
+		{
+			int length = input.readInt();
+			int checksum = input.readInt();
+			if (length < 0 || length > MAX_RECORD_LENGTH) return null;
+			byte[] payload = new byte[length];
+			input.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			return (int) crc.getValue() == checksum ? payload : null;
+		}
+		catch (EOFException e)
+		{
+			return null;
+		}
+	}
+	
+	private static final class CountingInputStream extends FilterInputStream
+	{
+		private long mCount = 0;
+		
+		public CountingInputStream(InputStream input)
+		{
+			super(input);
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			int result = super.read();
+			if (result >= 0) mCount++;
+			return result;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException
+		{
+			int result = super.read(buffer, offset, count);
+			if (result > 0) mCount += result;
+			return result;
+		}
+		
+		@Override
+		public long skip(long count) throws IOException
+		{
+			long result = super.skip(count);
+			if (result > 0) mCount += result;
+			return result;
+		}
+		
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
+	
+	public static final class Writer
+	{
+		private final DataOutputStream mOutput;
+		private final HashMap<String, Integer> mStrings = new HashMap<>();
+		
+		private Writer(OutputStream output)
+		{
+			mOutput = new DataOutputStream(new BufferedOutputStream(output));
+		}
+		
+		public void writeBoolean(boolean value) throws IOException
+		{
+			mOutput.writeBoolean(value);
+		}
+		
+		public void writeByte(int value) throws IOException
+		{
+			mOutput.writeByte(value);
+		}
+		
+		public void writeInt(int value) throws IOException
+		{
+			mOutput.writeInt(value);
+		}
+		
+		public void writeLong(long value) throws IOException
+		{
+			mOutput.writeLong(value);
+		}
+		
+		public void writeVarInt(int value) throws IOException
+		{
+			while ((value & ~0x7f) != 0)
+			{
+				mOutput.writeByte(value & 0x7f | 0x80);
+				value >>>= 7;
+			}
+			mOutput.writeByte(value);
+		}
+		
+		public void writeString(String value) throws IOException
+		{
+			if (value == null) writeVarInt(STRING_NULL); else
+			{
+				Integer index = mStrings.get(value);
+				if (index != null) writeVarInt(STRING_REFERENCE_START + index); else
+				{
+					mStrings.put(value, mStrings.size());
+					writeVarInt(STRING_NEW);
+					byte[] bytes = value.getBytes("UTF-8");
+					writeVarInt(bytes.length);
+					mOutput.write(bytes);
+				}
+			}
+		}
+		
+		private void flush() throws IOException
+		{
+			mOutput.flush();
+		}
+	}
+	
+	public static final class Reader
+	{
+		private final DataInputStream mInput;
+		private final ArrayList<String> mStrings = new ArrayList<>();
+		
+		private Reader(InputStream input)
+		{
+			mInput = new DataInputStream(input);
+		}
+		
+		public boolean readBoolean() throws IOException
+		{
+			return mInput.readBoolean();
+		}
+		
+		public int readByte() throws IOException
+		{
+			return mInput.readByte();
+		}
+		
+		public int readInt() throws IOException
+		{
+			return mInput.readInt();
+		}
+		
+		public long readLong() throws IOException
+		{
+			return mInput.readLong();
+		}
+		
+		public int readVarInt() throws IOException
+		{
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7)
+			{
+				int b = mInput.readUnsignedByte();
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+			throw new IOException("Malformed variable-length integer");
+		}
+		
+		public int readLength() throws IOException
+		{
+			int length = readVarInt();
+			if (length < 0) throw new IOException("Invalid length " + length);
+			return length;
+		}
+		
+		public String readString() throws IOException
+		{
+			int code = readVarInt();
+			if (code == STRING_NULL) return null;
+			if (code == STRING_NEW)
+			{
+				byte[] bytes = new byte[readLength()];
+				mInput.readFully(bytes);
+				String value = new String(bytes, "UTF-8");
+				mStrings.add(value);
+				return value;
+			}
+			int index = code - STRING_REFERENCE_START;
+			if (index < 0 || index >= mStrings.size()) throw new IOException("Invalid string reference " + index);
+			return mStrings.get(index);
+		}
+	}
+}
\ No newline at end of file
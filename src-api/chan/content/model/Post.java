@@ -16,6 +16,7 @@
 
 package chan.content.model;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collection;
 
@@ -105,6 +106,7 @@ public final class Post implements Serializable, Comparable<Post>
 	public Post setPostNumber(String postNumber)
 	{
 		mPostNumber = postNumber;
+		mPostKeyValid = false;
 		return this;
 	}
 	
@@ -422,58 +424,160 @@ public final class Post implements Serializable, Comparable<Post>
 		return this;
 	}
 	
-	private static class NumbersPair
+	public static final long POST_KEY_INVALID = -1L;
+	
+	// Post number and variation are packed in a single value, so posts can be compared and indexed without strings
+	public static long makePostKey(int postNumber, int variation)
 	{
-		public final int postNumber;
-		public final int variation;
-		
-		public NumbersPair(String postNumber, String variation)
+		return (long) postNumber << 32 | variation & 0xffffffffL;
+	}
+	
+	public static long parsePostKey(String postNumber)
+	{
+		if (postNumber == null) return POST_KEY_INVALID;
+		int number = 0;
+		int variation = 0;
+		int length = postNumber.length();
+		int i = 0;
+		for (; i < length; i++)
 		{
-			this.postNumber = Integer.parseInt(postNumber);
-			this.variation = variation != null ? Integer.parseInt(variation) : 0;
+			char c = postNumber.charAt(i);
+			if (c < '0' || c > '9') break;
+			if (number > (Integer.MAX_VALUE - (c - '0')) / 10) return POST_KEY_INVALID;
+			number = number * 10 + c - '0';
+		}
+		if (i == 0) return POST_KEY_INVALID;
+		if (i < length)
+		{
+			int start = ++i;
+			for (; i < length; i++)
+			{
+				char c = postNumber.charAt(i);
+				if (c < '0' || c > '9') break;
+				if (variation > (Integer.MAX_VALUE - (c - '0')) / 10) return POST_KEY_INVALID;
+				variation = variation * 10 + c - '0';
+			}
+			if (i == start) return POST_KEY_INVALID;
 		}
+		return makePostKey(number, variation);
 	}
 	
-	private transient volatile NumbersPair mNumbersPair;
+	private transient volatile long mPostKey;
+	private transient volatile boolean mPostKeyValid;
 	
-	private NumbersPair getNumbersPair()
+	public long getPostKey()
 	{
-		if (mNumbersPair == null)
+		if (!mPostKeyValid)
 		{
-			String postNumber = getPostNumber();
-			String variation = null;
-			int index1 = -1;
-			int index2 = -1;
-			for (int i = 0; i < postNumber.length(); i++)
+			mPostKey = parsePostKey(getPostNumber());
+			mPostKeyValid = true;
+		}
+		return mPostKey;
+	}
+	
+	@Override
+	public int compareTo(Post another)
+	{
+		long thisKey = getPostKey();
+		long anotherKey = another.getPostKey();
+		return thisKey < anotherKey ? -1 : thisKey > anotherKey ? 1 : 0;
+	}
+	
+	private static final int ATTACHMENT_FILE = 1;
+	private static final int ATTACHMENT_EMBEDDED = 2;
+	
+	void write(ModelCodec.Writer writer) throws IOException
+	{
+		writer.writeInt(mFlags);
+		writer.writeString(mThreadNumber);
+		writer.writeString(mParentPostNumber);
+		writer.writeString(mPostNumber);
+		writer.writeLong(mTimestamp);
+		writer.writeString(mSubject);
+		writer.writeString(mComment);
+		writer.writeString(mEditedComment);
+		writer.writeString(mCommentMarkup);
+		writer.writeString(mName);
+		writer.writeString(mIdentifier);
+		writer.writeString(mTripcode);
+		writer.writeString(mCapcode);
+		writer.writeString(mEmail);
+		Attachment[] attachments = mAttachments;
+		writer.writeVarInt(attachments != null ? attachments.length + 1 : 0);
+		if (attachments != null)
+		{
+			for (Attachment attachment : attachments)
 			{
-				char c = postNumber.charAt(i);
-				if (c < '0' || c > '9')
+				if (attachment instanceof FileAttachment)
 				{
-					if (index1 == -1) index1 = i; else if (index2 == -1)
-					{
-						index2 = i;
-						break;
-					}
+					writer.writeByte(ATTACHMENT_FILE);
+					((FileAttachment) attachment).write(writer);
 				}
+				else if (attachment instanceof EmbeddedAttachment)
+				{
+					writer.writeByte(ATTACHMENT_EMBEDDED);
+					((EmbeddedAttachment) attachment).write(writer);
+				}
+				else writer.writeByte(0);
 			}
-			if (index1 >= 0)
+		}
+		Icon[] icons = mIcons;
+		writer.writeVarInt(icons != null ? icons.length + 1 : 0);
+		if (icons != null)
+		{
+			for (Icon icon : icons)
 			{
-				variation = postNumber.substring(index1 + 1, index2 >= 0 ? index2 : postNumber.length());
-				postNumber = postNumber.substring(0, index1);
+				writer.writeBoolean(icon != null);
+				if (icon != null) icon.write(writer);
 			}
-			mNumbersPair = new NumbersPair(postNumber, variation);
 		}
-		return mNumbersPair;
 	}
 	
-	@Override
-	public int compareTo(Post another)
-	{
-		NumbersPair thisPair = getNumbersPair();
-		NumbersPair anotherPair = another.getNumbersPair();
-		int difference = thisPair.postNumber - anotherPair.postNumber;
-		if (difference != 0) return difference;
-		return thisPair.variation - anotherPair.variation;
+	static Post read(ModelCodec.Reader reader) throws IOException
+	{
+		Post post = new Post();
+		post.mFlags = reader.readInt();
+		post.mThreadNumber = reader.readString();
+		post.mParentPostNumber = reader.readString();
+		post.mPostNumber = reader.readString();
+		post.mTimestamp = reader.readLong();
+		post.mSubject = reader.readString();
+		post.mComment = reader.readString();
+		post.mEditedComment = reader.readString();
+		post.mCommentMarkup = reader.readString();
+		post.mName = reader.readString();
+		post.mIdentifier = reader.readString();
+		post.mTripcode = reader.readString();
+		post.mCapcode = reader.readString();
+		post.mEmail = reader.readString();
+		int attachmentsLength = reader.readLength() - 1;
+		if (attachmentsLength >= 0)
+		{
+			Attachment[] attachments = new Attachment[attachmentsLength];
+			for (int i = 0; i < attachmentsLength; i++)
+			{
+				int type = reader.readByte();
+				switch (type)
+				{
+					case 0: break;
+					case ATTACHMENT_FILE: attachments[i] = FileAttachment.read(reader); break;
+					case ATTACHMENT_EMBEDDED: attachments[i] = EmbeddedAttachment.read(reader); break;
+					default: throw new IOException("Unknown attachment type " + type);
+				}
+			}
+			post.mAttachments = attachments;
+		}
+		int iconsLength = reader.readLength() - 1;
+		if (iconsLength >= 0)
+		{
+			Icon[] icons = new Icon[iconsLength];
+			for (int i = 0; i < iconsLength; i++)
+			{
+				if (reader.readBoolean()) icons[i] = Icon.read(reader);
+			}
+			post.mIcons = icons;
+		}
+		return post;
 	}
 	
 	public boolean contentEquals(Post o)
@@ -16,17 +16,18 @@
 
 package chan.content.model;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 
 import android.net.Uri;
 import android.util.Pair;
 
 import chan.http.HttpValidator;
+import chan.util.StringUtils;
 
 public final class Posts implements Serializable
 {
@@ -207,14 +208,26 @@ public final class Posts implements Serializable
 	{
 		if (length() > 0)
 		{
-			LinkedHashMap<String, Post> posts = new LinkedHashMap<>();
-			for (Post post : mPosts)
+			Post[] posts = mPosts;
+			// Posts are usually sorted and unique already
+			boolean sorted = true;
+			for (int i = 1; i < posts.length && sorted; i++) sorted = posts[i - 1].compareTo(posts[i]) < 0;
+			if (sorted) return;
+			// Sorting is stable, so the last of repeating posts will be kept like before
+			Arrays.sort(posts);
+			int count = 1;
+			for (int i = 1; i < posts.length; i++)
 			{
-				String postNumber = post.getPostNumber();
-				posts.put(postNumber, post);
+				Post post = posts[i];
+				Post previousPost = posts[count - 1];
+				if (post.compareTo(previousPost) == 0 && StringUtils.equals(post.getPostNumber(),
+						previousPost.getPostNumber()))
+				{
+					posts[count - 1] = post;
+				}
+				else posts[count++] = post;
 			}
-			if (posts.size() != mPosts.length) mPosts = posts.values().toArray(new Post[posts.size()]);
-			Arrays.sort(mPosts);
+			if (count != posts.length) mPosts = Arrays.copyOf(posts, count);
 		}
 	}
 	
@@ -391,19 +404,185 @@ public final class Posts implements Serializable
 			}
 			if (handlePosts != null && actions != null)
 			{
-				ArrayList<Post> newPosts = new ArrayList<>();
-				if (mPosts != null) Collections.addAll(newPosts, mPosts);
-				for (int i = 0; i < handlePosts.length; i++)
+				Post[] newPosts = mergeOrdered(mPosts, handlePosts, actions);
+				if (newPosts == null)
 				{
-					if (actions[i].insert) newPosts.add(actions[i].index, handlePosts[i]);
-					else newPosts.set(actions[i].index, handlePosts[i]);
+					ArrayList<Post> newPostsList = new ArrayList<>();
+					if (mPosts != null) Collections.addAll(newPostsList, mPosts);
+					for (int i = 0; i < handlePosts.length; i++)
+					{
+						if (actions[i].insert) newPostsList.add(actions[i].index, handlePosts[i]);
+						else newPostsList.set(actions[i].index, handlePosts[i]);
+					}
+					newPosts = newPostsList.toArray(new Post[newPostsList.size()]);
 				}
-				mPosts = newPosts.toArray(new Post[newPosts.size()]);
+				mPosts = newPosts;
 			}
 			return handlePosts != null || fieldsUpdated;
 		}
 	}
 	
+	// Actions from pendingMerge have increasing indices, so the result can be built in a single pass.
+	// Returns null if actions are not ordered.
+	private static Post[] mergeOrdered(Post[] posts, Post[] handlePosts, MergeAction[] actions)
+	{
+		if (handlePosts.length != actions.length) return null;
+		int oldCount = posts != null ? posts.length : 0;
+		int insertCount = 0;
+		for (int i = 0; i < actions.length; i++)
+		{
+			if (i > 0 && actions[i].index <= actions[i - 1].index) return null;
+			if (actions[i].insert) insertCount++;
+		}
+		Post[] newPosts = new Post[oldCount + insertCount];
+		int source = 0;
+		int target = 0;
+		for (int i = 0; i < handlePosts.length; i++)
+		{
+			MergeAction action = actions[i];
+			int count = action.index - target;
+			if (count < 0 || source + count > oldCount) return null;
+			if (count > 0)
+			{
+				System.arraycopy(posts, source, newPosts, target, count);
+				source += count;
+				target += count;
+			}
+			if (!action.insert)
+			{
+				if (source >= oldCount) return null;
+				source++;
+			}
+			newPosts[target++] = handlePosts[i];
+		}
+		int count = oldCount - source;
+		if (target + count != newPosts.length) return null;
+		if (count > 0) System.arraycopy(posts, source, newPosts, target, count);
+		return newPosts;
+	}
+	
+	void write(ModelCodec.Writer writer) throws IOException
+	{
+		Post[] posts = mPosts;
+		writer.writeVarInt(posts != null ? posts.length + 1 : 0);
+		if (posts != null)
+		{
+			for (Post post : posts) post.write(writer);
+		}
+		writeFields(writer);
+	}
+	
+	static Posts read(ModelCodec.Reader reader) throws IOException
+	{
+		Posts posts = new Posts();
+		int postsLength = reader.readLength() - 1;
+		if (postsLength >= 0)
+		{
+			Post[] postsArray = new Post[postsLength];
+			for (int i = 0; i < postsLength; i++) postsArray[i] = Post.read(reader);
+			posts.mPosts = postsArray;
+		}
+		posts.readFields(reader);
+		return posts;
+	}
+	
+	void writeDelta(ModelCodec.Writer writer, Post[] handlePosts, MergeAction[] actions) throws IOException
+	{
+		int count = handlePosts != null && actions != null ? handlePosts.length : 0;
+		writer.writeVarInt(count);
+		for (int i = 0; i < count; i++)
+		{
+			writer.writeVarInt(actions[i].index);
+			writer.writeBoolean(actions[i].insert);
+			handlePosts[i].write(writer);
+		}
+		writeFields(writer);
+	}
+	
+	// Returns new model with record applied, so this one stays unchanged if record is invalid
+	Posts readDelta(ModelCodec.Reader reader) throws IOException
+	{
+		int count = reader.readLength();
+		Post[] handlePosts = new Post[count];
+		MergeAction[] actions = new MergeAction[count];
+		for (int i = 0; i < count; i++)
+		{
+			int index = reader.readVarInt();
+			boolean insert = reader.readBoolean();
+			actions[i] = new MergeAction(index, insert, false);
+			handlePosts[i] = Post.read(reader);
+		}
+		Posts posts = new Posts();
+		posts.readFields(reader);
+		posts.mPosts = mPosts;
+		if (count > 0)
+		{
+			try
+			{
+				// Merge doesn't change the old array, it only replaces reference in the new model
+				posts.merge(null, handlePosts, actions);
+			}
+			catch (IndexOutOfBoundsException e)
+			{
+				throw new IOException("Invalid merge action");
+			}
+		}
+		return posts;
+	}
+	
+	private void writeFields(ModelCodec.Writer writer) throws IOException
+	{
+		writer.writeString(mHttpValidator != null ? mHttpValidator.toString() : null);
+		writer.writeString(mArchivedThreadUriString);
+		writer.writeVarInt(mUniquePosters);
+		writer.writeInt(mPostsCount);
+		writer.writeInt(mFilesCount);
+		writer.writeInt(mPostsWithFilesCount);
+		String[][] localAutohide = mLocalAutohide;
+		writer.writeVarInt(localAutohide != null ? localAutohide.length + 1 : 0);
+		if (localAutohide != null)
+		{
+			for (String[] item : localAutohide)
+			{
+				writer.writeVarInt(item != null ? item.length + 1 : 0);
+				if (item != null)
+				{
+					for (String value : item) writer.writeString(value);
+				}
+			}
+		}
+		writer.writeBoolean(mAutoRefreshEnabled);
+		writer.writeVarInt(mAutoRefreshInterval);
+	}
+	
+	private void readFields(ModelCodec.Reader reader) throws IOException
+	{
+		mHttpValidator = HttpValidator.fromString(reader.readString());
+		mArchivedThreadUriString = reader.readString();
+		mUniquePosters = reader.readVarInt();
+		mPostsCount = reader.readInt();
+		mFilesCount = reader.readInt();
+		mPostsWithFilesCount = reader.readInt();
+		int localAutohideLength = reader.readLength() - 1;
+		if (localAutohideLength >= 0)
+		{
+			String[][] localAutohide = new String[localAutohideLength][];
+			for (int i = 0; i < localAutohideLength; i++)
+			{
+				int itemLength = reader.readLength() - 1;
+				if (itemLength >= 0)
+				{
+					String[] item = new String[itemLength];
+					for (int j = 0; j < itemLength; j++) item[j] = reader.readString();
+					localAutohide[i] = item;
+				}
+			}
+			mLocalAutohide = localAutohide;
+		}
+		mAutoRefreshEnabled = reader.readBoolean();
+		mAutoRefreshInterval = reader.readVarInt();
+	}
+	
 	public Posts()
 	{
 		
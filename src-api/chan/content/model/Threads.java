@@ -16,6 +16,7 @@
 
 package chan.content.model;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -156,6 +157,57 @@ public final class Threads implements Serializable
 		}
 	}
 	
+	void write(ModelCodec.Writer writer) throws IOException
+	{
+		Posts[][] threads = mThreads;
+		writer.writeVarInt(threads != null ? threads.length + 1 : 0);
+		if (threads != null)
+		{
+			for (Posts[] page : threads)
+			{
+				writer.writeVarInt(page != null ? page.length + 1 : 0);
+				if (page != null)
+				{
+					for (Posts posts : page)
+					{
+						writer.writeBoolean(posts != null);
+						if (posts != null) posts.write(writer);
+					}
+				}
+			}
+		}
+		writer.writeInt(mStartPage);
+		writer.writeInt(mBoardSpeed);
+	}
+	
+	static Threads read(ModelCodec.Reader reader) throws IOException
+	{
+		Posts[][] threads = null;
+		int threadsLength = reader.readLength() - 1;
+		if (threadsLength >= 0)
+		{
+			threads = new Posts[threadsLength][];
+			for (int i = 0; i < threadsLength; i++)
+			{
+				int pageLength = reader.readLength() - 1;
+				if (pageLength >= 0)
+				{
+					Posts[] page = new Posts[pageLength];
+					for (int j = 0; j < pageLength; j++)
+					{
+						if (reader.readBoolean()) page[j] = Posts.read(reader);
+					}
+					threads[i] = page;
+				}
+			}
+		}
+		Threads result = new Threads();
+		result.mThreads = threads;
+		result.mStartPage = reader.readInt();
+		result.mBoardSpeed = reader.readInt();
+		return result;
+	}
+	
 	public Threads(Posts... threads)
 	{
 		setThreads(threads);
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package chan.http;
+
+// New connections are counted when TLS socket is created, so secure requests which didn't cause socket creation
+// were sent over pooled connections. Plain HTTP sockets can't be observed, they are counted as requests only.
+public class ConnectionMetrics
+{
+	private int mRequestsCount;
+	private int mSecureRequestsCount;
+	private int mNewConnectionsCount;
+	private int mHandshakesCount;
+	private long mHandshakesTime;
+	private long mFirstByteTime;
+	private int mPermitsCount;
+	private long mQueueTime;
+	private long mMaxQueueTime;
+	
+	ConnectionMetrics()
+	{
+		
+	}
+	
+	ConnectionMetrics(ConnectionMetrics metrics)
+	{
+		synchronized (metrics)
+		{
+			mRequestsCount = metrics.mRequestsCount;
+			mSecureRequestsCount = metrics.mSecureRequestsCount;
+			mNewConnectionsCount = metrics.mNewConnectionsCount;
+			mHandshakesCount = metrics.mHandshakesCount;
+			mHandshakesTime = metrics.mHandshakesTime;
+			mFirstByteTime = metrics.mFirstByteTime;
+			mPermitsCount = metrics.mPermitsCount;
+			mQueueTime = metrics.mQueueTime;
+			mMaxQueueTime = metrics.mMaxQueueTime;
+		}
+	}
+	
+	synchronized void onNewConnection()
+	{
+		mNewConnectionsCount++;
+	}
+	
+	synchronized void onHandshake(long time)
+	{
+		mHandshakesCount++;
+		mHandshakesTime += time;
+	}
+	
+	// Time is measured from sending request to receiving response headers
+	synchronized void onResponse(boolean secure, long firstByteTime)
+	{
+		mRequestsCount++;
+		if (secure) mSecureRequestsCount++;
+		mFirstByteTime += firstByteTime;
+	}
+	
+	synchronized void onPermit(long queueTime)
+	{
+		mPermitsCount++;
+		mQueueTime += queueTime;
+		mMaxQueueTime = Math.max(mMaxQueueTime, queueTime);
+	}
+	
+	public synchronized int getRequestsCount()
+	{
+		return mRequestsCount;
+	}
+	
+	public synchronized int getNewConnectionsCount()
+	{
+		return mNewConnectionsCount;
+	}
+	
+	public synchronized int getReusedConnectionsCount()
+	{
+		return Math.max(mSecureRequestsCount - mNewConnectionsCount, 0);
+	}
+	
+	public synchronized long getAverageHandshakeTime()
+	{
+		return mHandshakesCount > 0 ? mHandshakesTime / mHandshakesCount : -1;
+	}
+	
+	public synchronized long getAverageFirstByteTime()
+	{
+		return mRequestsCount > 0 ? mFirstByteTime / mRequestsCount : -1;
+	}
+	
+	public synchronized long getAverageQueueTime()
+	{
+		return mPermitsCount > 0 ? mQueueTime / mPermitsCount : -1;
+	}
+	
+	public synchronized long getMaxQueueTime()
+	{
+		return mPermitsCount > 0 ? mMaxQueueTime : -1;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "requests: " + mRequestsCount + ", new: " + mNewConnectionsCount + ", reused: "
+				+ getReusedConnectionsCount() + ", handshake: " + getAverageHandshakeTime() + " ms, first byte: "
+				+ getAverageFirstByteTime() + " ms, queue: " + getAverageQueueTime() + " ms, max queue: "
+				+ getMaxQueueTime() + " ms";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package chan.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import android.net.Uri;
+
+import com.mishiranu.dashchan.content.CacheManager;
+import com.mishiranu.dashchan.util.IOUtils;
+
+// Responses are stored in pages cache by chan and URI together with validators, so after restart the request
+// is made conditional and 304 response is replayed from disk. Decoded body follows a small header in the same file.
+class HttpCache
+{
+	private static final int MAGIC = 0x44434831; // "DCH1"
+	private static final long MAX_LENGTH = 16 * 1024 * 1024;
+	
+	public static boolean isAllowed(HttpRequest request, String chanName)
+	{
+		return request.mCacheMode != HttpRequest.CACHE_BYPASS && chanName != null
+				&& request.mRequestMethod == HttpRequest.REQUEST_METHOD_GET && request.mRequestEntity == null
+				&& CacheManager.getInstance().allowPagesCache(chanName);
+	}
+	
+	public static class Entry
+	{
+		public final File file;
+		public final HttpValidator validator;
+		public final String contentType;
+		public final long offset;
+		public final long length;
+		
+		public Entry(File file, HttpValidator validator, String contentType, long offset, long length)
+		{
+			this.file = file;
+			this.validator = validator;
+			this.contentType = contentType;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		public InputStream openBody() throws IOException
+		{
+			InputStream input = new FileInputStream(file);
+			try
+			{
+				long skip = offset;
+				while (skip > 0)
+				{
+					long skipped = input.skip(skip);
+					if (skipped <= 0) throw new IOException("Unexpected end of file");
+					skip -= skipped;
+				}
+				return new BufferedInputStream(input, 4096);
+			}
+			catch (IOException e)
+			{
+				IOUtils.close(input);
+				throw e;
+			}
+		}
+	}
+	
+	public static Entry obtain(String chanName, Uri uri)
+	{
+		File file = CacheManager.getInstance().getHttpCacheFile(chanName, uri);
+		if (file == null) return null;
+		RandomAccessFile randomAccessFile = null;
+		try
+		{
+			randomAccessFile = new RandomAccessFile(file, "r");
+			if (randomAccessFile.readInt() != MAGIC) return null;
+			HttpValidator validator = HttpValidator.fromString(randomAccessFile.readUTF());
+			String contentType = randomAccessFile.readUTF();
+			long offset = randomAccessFile.getFilePointer();
+			long length = randomAccessFile.length() - offset;
+			if (validator == null) return null;
+			return new Entry(file, validator, contentType.length() > 0 ? contentType : null, offset, length);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			IOUtils.close(randomAccessFile);
+		}
+	}
+	
+	// Copies response body to temporary file while it is read, file replaces cached entry only if body was read
+	// completely
+	public static class Writer
+	{
+		private final String mChanName;
+		private final Uri mUri;
+		private final HttpValidator mValidator;
+		private final String mContentType;
+		
+		private File mFile;
+		private DataOutputStream mOutput;
+		private long mLength;
+		private boolean mEnd = false;
+		private boolean mFinished = false;
+		
+		private final byte[] mOneByteBuffer = new byte[1];
+		
+		public Writer(String chanName, Uri uri, HttpValidator validator, String contentType)
+		{
+			mChanName = chanName;
+			mUri = uri;
+			mValidator = validator;
+			mContentType = contentType;
+		}
+		
+		public InputStream wrap(final InputStream input)
+		{
+			mFile = CacheManager.getInstance().createHttpCachePartFile();
+			if (mFile == null)
+			{
+				mFinished = true;
+				return input;
+			}
+			try
+			{
+				mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile), 8192));
+				mOutput.writeInt(MAGIC);
+				mOutput.writeUTF(mValidator.toString());
+				mOutput.writeUTF(mContentType != null ? mContentType : "");
+			}
+			catch (IOException e)
+			{
+				abort();
+				return input;
+			}
+			return new InputStream()
+			{
+				@Override
+				public int read() throws IOException
+				{
+					int value = input.read();
+					if (value >= 0)
+					{
+						mOneByteBuffer[0] = (byte) value;
+						write(mOneByteBuffer, 0, 1);
+					}
+					else mEnd = true;
+					return value;
+				}
+				
+				@Override
+				public int read(byte[] buffer, int offset, int count) throws IOException
+				{
+					int read = input.read(buffer, offset, count);
+					if (read > 0) write(buffer, offset, read); else if (read < 0) mEnd = true;
+					return read;
+				}
+				
+				@Override
+				public int available() throws IOException
+				{
+					return input.available();
+				}
+				
+				@Override
+				public void close() throws IOException
+				{
+					input.close();
+				}
+			};
+		}
+		
+		private void write(byte[] buffer, int offset, int count)
+		{
+			if (mFinished) return;
+			mLength += count;
+			try
+			{
+				if (mLength > MAX_LENGTH) throw new IOException("Response is too large");
+				mOutput.write(buffer, offset, count);
+			}
+			catch (IOException e)
+			{
+				abort();
+			}
+		}
+		
+		// Parsers may stop before the end of stream, so the rest is read to make cached copy complete
+		public void commit(InputStream input) throws IOException
+		{
+			if (mFinished || mOutput == null) return;
+			if (!mEnd)
+			{
+				byte[] buffer = new byte[8192];
+				while (!mFinished && input.read(buffer) >= 0)
+				{
+					// Data is written by wrapping stream
+				}
+			}
+			if (mFinished) return;
+			mFinished = true;
+			try
+			{
+				mOutput.close();
+			}
+			catch (IOException e)
+			{
+				mFile.delete();
+				return;
+			}
+			CacheManager.getInstance().storeHttpCacheFile(mChanName, mUri, mFile);
+		}
+		
+		public void abort()
+		{
+			if (!mFinished)
+			{
+				mFinished = true;
+				IOUtils.close(mOutput);
+				if (mFile != null) mFile.delete();
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -23,7 +23,9 @@ import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.CookieHandler;
@@ -49,6 +51,8 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLException;
@@ -60,10 +64,15 @@ import javax.net.ssl.SSLSocketFactory;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.util.MalformedJsonException;
 import android.util.Pair;
 
+import chan.content.ChanConfiguration;
 import chan.content.ChanLocator;
 import chan.content.ChanManager;
+import chan.content.InvalidResponseException;
+import chan.text.ParseException;
 import chan.util.StringUtils;
 
 import com.mishiranu.dashchan.C;
@@ -78,6 +87,10 @@ public class HttpClient
 {
 	private static final int MAX_ATTEMPS_COUNT = 10;
 	
+	// Idle connections are kept in pool, so sequential requests to the same chan don't repeat TLS handshake
+	private static final int MAX_IDLE_CONNECTIONS_PER_CHAN = 2;
+	private static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+	
 	private static final HashMap<String, String> SHORT_RESPONSE_MESSAGES = new HashMap<>();
 	
 	private static final HostnameVerifier DEFAULT_HOSTNAME_VERIFIER = HttpsURLConnection.getDefaultHostnameVerifier();
@@ -87,8 +100,9 @@ public class HttpClient
 	
 	static
 	{
-		int poolSize = (ChanManager.getInstance().getAvailableChanNames().size() + 1) * 2;
+		int poolSize = (ChanManager.getInstance().getAvailableChanNames().size() + 1) * MAX_IDLE_CONNECTIONS_PER_CHAN;
 		System.setProperty("http.maxConnections", Integer.toString(poolSize));
+		System.setProperty("http.keepAliveDuration", Long.toString(KEEP_ALIVE_DURATION));
 		try
 		{
 			// http.maxConnections may do nothing because ConnectionPool inits earlier. Android bug?
@@ -97,6 +111,9 @@ public class HttpClient
 			Field maxIdleConnectionsField = connectionPool.getClass().getDeclaredField("maxIdleConnections");
 			maxIdleConnectionsField.setAccessible(true);
 			maxIdleConnectionsField.setInt(connectionPool, poolSize);
+			Field keepAliveDurationField = connectionPool.getClass().getDeclaredField("keepAliveDurationNs");
+			keepAliveDurationField.setAccessible(true);
+			keepAliveDurationField.setLong(connectionPool, KEEP_ALIVE_DURATION * 1000000L);
 		}
 		catch (Exception e)
 		{
@@ -121,6 +138,10 @@ public class HttpClient
 			
 		}
 		
+		// Pool is keyed by socket factory, so the same instance is used for all connections
+		HttpsURLConnection.setDefaultSSLSocketFactory(new MetricsSSLSocketFactory(HttpsURLConnection
+				.getDefaultSSLSocketFactory()));
+		
 		/*
 		 * MediaPlayer uses MediaHTTPConnection that uses its own CookieHandler instance.
 		 * This cause some bugs in application work.
@@ -166,6 +187,8 @@ public class HttpClient
 	}
 	
 	private final HashMap<String, Proxy> mProxies = new HashMap<>();
+	private final HashMap<String, ConnectionMetrics> mConnectionMetrics = new HashMap<>();
+	private final HashMap<String, ConnectionMetrics> mHostMetrics = new HashMap<>();
 	private boolean mUseNoSSLv3SSLSocketFactory = false;
 	
 	private HttpClient()
@@ -220,6 +243,36 @@ public class HttpClient
 		return true;
 	}
 	
+	private static ConnectionMetrics obtainConnectionMetrics(HashMap<String, ConnectionMetrics> map, String key)
+	{
+		synchronized (map)
+		{
+			ConnectionMetrics metrics = map.get(key);
+			if (metrics == null)
+			{
+				metrics = new ConnectionMetrics();
+				map.put(key, metrics);
+			}
+			return metrics;
+		}
+	}
+	
+	ConnectionMetrics obtainConnectionMetrics(String chanName)
+	{
+		return obtainConnectionMetrics(mConnectionMetrics, chanName);
+	}
+	
+	public ConnectionMetrics getConnectionMetrics(String chanName)
+	{
+		return new ConnectionMetrics(obtainConnectionMetrics(chanName));
+	}
+	
+	// Only request pacing is measured per host
+	public ConnectionMetrics getHostMetrics(String host)
+	{
+		return new ConnectionMetrics(obtainConnectionMetrics(mHostMetrics, host));
+	}
+	
 	private static class AllowAllHostnameVerifier implements HostnameVerifier
 	{
 		@Override
@@ -315,6 +368,17 @@ public class HttpClient
 			{
 				throw new HttpException(ErrorItem.TYPE_UNSUPPORTED_SCHEME, false, false);
 			}
+			boolean cacheAllowed = HttpCache.isAllowed(request, holder.mChanName);
+			if (request.mCacheMode == HttpRequest.CACHE_ONLY)
+			{
+				HttpCache.Entry cacheEntry = cacheAllowed ? HttpCache.obtain(holder.mChanName, request.mUri)
+						: null;
+				if (cacheEntry == null) throw new HttpException(HttpURLConnection.HTTP_GATEWAY_TIMEOUT, "Not Cached");
+				holder.setConnection(null);
+				holder.mCacheEntry = cacheEntry;
+				holder.mValidator = cacheEntry.validator;
+				return;
+			}
 			URL url = encodeUri(requestedUri);
 			connection = (HttpURLConnection) (holder.mProxy != null ? url.openConnection(holder.mProxy)
 					: url.openConnection());
@@ -350,7 +414,13 @@ public class HttpClient
 			}
 			if (cookieBuilder != null) connection.setRequestProperty("Cookie", cookieBuilder.build());
 			HttpValidator validator = request.mValidator;
-			if (validator != null) validator.write(connection);
+			HttpCache.Entry cacheEntry = null;
+			if (validator != null) validator.write(connection); else if (cacheAllowed)
+			{
+				// Request is made conditional, so stored response can be used if it wasn't modified
+				cacheEntry = HttpCache.obtain(holder.mChanName, request.mUri);
+				if (cacheEntry != null) cacheEntry.validator.write(connection);
+			}
 			
 			boolean forceGet = holder.mForceGet;
 			int method = forceGet ? HttpRequest.REQUEST_METHOD_GET : request.mRequestMethod;
@@ -366,7 +436,7 @@ public class HttpClient
 				default: throw new RuntimeException();
 			}
 			connection.setRequestMethod(methodString);
-			onConnect(connection, request.mDelay);
+			onConnect(holder, connection, request.mDelay);
 			if (entity != null)
 			{
 				connection.setDoOutput(true);
@@ -385,7 +455,10 @@ public class HttpClient
 				holder.checkDisconnected();
 			}
 			
+			long requestTime = SystemClock.elapsedRealtime();
 			int responseCode = connection.getResponseCode();
+			obtainConnectionMetrics(chanName).onResponse(connection instanceof HttpsURLConnection,
+					SystemClock.elapsedRealtime() - requestTime);
 			HttpRequest.RedirectHandler redirectHandler = request.mRedirectHandler;
 			switch (responseCode)
 			{
@@ -478,14 +551,28 @@ public class HttpClient
 				}
 			}
 			
+			if (cacheEntry != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+			{
+				HttpValidator newValidator = HttpValidator.obtain(connection);
+				holder.mCacheEntry = cacheEntry;
+				holder.mValidator = newValidator != null ? newValidator : cacheEntry.validator;
+				holder.checkDisconnected();
+				return;
+			}
 			if (validator != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
 			{
 				String responseMessage = connection.getResponseMessage();
-				holder.disconnectAndClear();
+				// Response has no body, so connection can be reused
+				holder.releaseAndClear();
 				throw new HttpException(responseCode, responseMessage);
 			}
 			if (request.mSuccessOnly) checkResponseCode(holder);
 			holder.mValidator = HttpValidator.obtain(connection);
+			if (cacheAllowed && responseCode == HttpURLConnection.HTTP_OK && holder.mValidator != null)
+			{
+				holder.mCacheWriter = new HttpCache.Writer(holder.mChanName, request.mUri,
+						holder.mValidator, connection.getHeaderField("Content-Type"));
+			}
 			holder.checkDisconnected();
 		}
 		catch (DisconnectedIOException e)
@@ -533,62 +620,84 @@ public class HttpClient
 		}
 	}
 	
-	HttpResponse read(HttpHolder holder, HttpHolder.InputListener listener, OutputStream output)
-			throws HttpException
+	private InputStream openInput(HttpHolder holder, HttpHolder.InputListener listener) throws IOException
 	{
-		try
+		HttpCache.Entry cacheEntry = holder.mCacheEntry;
+		if (cacheEntry != null)
 		{
-			HttpURLConnection connection = holder.getConnection();
 			holder.checkDisconnected();
-			InputStream commonInput;
-			try
-			{
-				commonInput = connection.getInputStream();
-			}
-			catch (FileNotFoundException e)
-			{
-				commonInput = connection.getErrorStream();
-			}
-			commonInput = new BufferedInputStream(commonInput, 4096);
-			String encoding = connection.getContentEncoding();
-			int contentLength = connection.getContentLength();
-			if ("gzip".equals(encoding))
+			return new ClientInputStream(cacheEntry.openBody(), holder, listener, cacheEntry.length);
+		}
+		HttpURLConnection connection = holder.getConnection();
+		holder.checkDisconnected();
+		InputStream commonInput;
+		try
+		{
+			commonInput = connection.getInputStream();
+		}
+		catch (FileNotFoundException e)
+		{
+			commonInput = connection.getErrorStream();
+		}
+		commonInput = new BufferedInputStream(commonInput, 4096);
+		String encoding = connection.getContentEncoding();
+		int contentLength = connection.getContentLength();
+		if ("gzip".equals(encoding))
+		{
+			commonInput = new GZIPInputStream(commonInput);
+			contentLength = -1;
+		}
+		if (holder.mCacheWriter != null) commonInput = holder.mCacheWriter.wrap(commonInput);
+		return new ClientInputStream(commonInput, holder, listener, contentLength);
+	}
+	
+	private String obtainCharsetName(HttpHolder holder) throws IOException
+	{
+		HttpCache.Entry cacheEntry = holder.mCacheEntry;
+		String contentType = cacheEntry != null ? cacheEntry.contentType
+				: holder.getConnection().getHeaderField("Content-Type");
+		String charsetName = null;
+		if (contentType != null)
+		{
+			int index = contentType.indexOf("charset=");
+			if (index >= 0)
 			{
-				commonInput = new GZIPInputStream(commonInput);
-				contentLength = -1;
+				int end = contentType.indexOf(';', index);
+				charsetName = contentType.substring(index + 8, end >= 0 ? end : contentType.length());
+				try
+				{
+					Charset.forName(charsetName);
+				}
+				catch (UnsupportedCharsetException e)
+				{
+					charsetName = null;
+				}
 			}
-			ClientInputStream input = new ClientInputStream(commonInput, holder, listener, contentLength);
+		}
+		return charsetName;
+	}
+	
+	HttpResponse read(HttpHolder holder, HttpHolder.InputListener listener, OutputStream output)
+			throws HttpException
+	{
+		try
+		{
+			InputStream input = openInput(holder, listener);
 			ByteArrayOutputStream writeTo = output == null ? new ByteArrayOutputStream() : null;
 			if (output == null) output = writeTo;
 			try
 			{
 				IOUtils.copyStream(input, output);
+				commitCache(holder, input);
 			}
 			finally
 			{
 				IOUtils.close(input);
 				IOUtils.close(output);
 			}
-			String contentType = connection.getHeaderField("Content-Type");
-			String charsetName = null;
-			if (contentType != null)
-			{
-				int index = contentType.indexOf("charset=");
-				if (index >= 0)
-				{
-					int end = contentType.indexOf(';', index);
-					charsetName = contentType.substring(index + 8, end >= 0 ? end : contentType.length());
-					try
-					{
-						Charset.forName(charsetName);
-					}
-					catch (UnsupportedCharsetException e)
-					{
-						charsetName = null;
-					}
-				}
-			}
+			String charsetName = obtainCharsetName(holder);
 			holder.checkDisconnected();
+			holder.releaseAndClear();
 			if (writeTo != null)
 			{
 				HttpResponse httpResponse = new HttpResponse(writeTo.toByteArray());
@@ -608,10 +717,76 @@ public class HttpClient
 		}
 		finally
 		{
+			abortCache(holder);
+			holder.disconnectAndClear();
+		}
+	}
+	
+	// Response is decoded while bytes arrive, so neither the whole body nor its string copy are kept in memory
+	<T> T readStream(HttpHolder holder, HttpHolder.InputListener listener, String charsetName,
+			HttpHolder.StreamHandler<T> handler) throws HttpException, InvalidResponseException
+	{
+		try
+		{
+			InputStream input = openInput(holder, listener);
+			T result;
+			try
+			{
+				if (charsetName == null) charsetName = obtainCharsetName(holder);
+				if (charsetName == null) charsetName = "UTF-8";
+				Reader reader = new InputStreamReader(input, charsetName);
+				result = handler.onStream(reader);
+				commitCache(holder, input);
+				holder.checkDisconnected();
+			}
+			catch (MalformedJsonException | ParseException | IllegalStateException | NumberFormatException e)
+			{
+				holder.checkDisconnected();
+				throw new InvalidResponseException(e);
+			}
+			finally
+			{
+				IOUtils.close(input);
+			}
+			holder.releaseAndClear();
+			return result;
+		}
+		catch (DisconnectedIOException e)
+		{
+			throw new HttpException(0, false, false, e);
+		}
+		catch (IOException e)
+		{
+			checkExceptionAndThrow(e);
+			throw new HttpException(ErrorItem.TYPE_DOWNLOAD, false, true, e);
+		}
+		finally
+		{
+			abortCache(holder);
 			holder.disconnectAndClear();
 		}
 	}
 	
+	private static void commitCache(HttpHolder holder, InputStream input) throws IOException
+	{
+		HttpCache.Writer writer = holder.mCacheWriter;
+		if (writer != null)
+		{
+			writer.commit(input);
+			holder.mCacheWriter = null;
+		}
+	}
+	
+	private static void abortCache(HttpHolder holder)
+	{
+		HttpCache.Writer writer = holder.mCacheWriter;
+		if (writer != null)
+		{
+			holder.mCacheWriter = null;
+			writer.abort();
+		}
+	}
+	
 	void checkResponseCode(HttpHolder holder) throws HttpException
 	{
 		int responseCode = holder.getResponseCode();
@@ -845,137 +1020,61 @@ public class HttpClient
 		}
 	}
 	
-	/*private static class DelayLock
-	{
-		public HttpURLConnection active = null;
-	}
-	
-	private final HashMap<String, DelayLock> mDelayLocks = new HashMap<>();*/
+	private static final long PERMIT_WAIT_SLICE = 250;
 	
-	private static class DelayLock
-	{
-		public boolean locked = false;
-	}
-	
-	private final HashMap<String, DelayLock> mDelayLocks = new HashMap<>();
+	private final RequestPacer mRequestPacer = new RequestPacer();
 	
-	void onConnect(HttpURLConnection connection, int delay)
+	// Request delay keeps strict spacing between requests, otherwise chan configured rate is used
+	void onConnect(HttpHolder holder, HttpURLConnection connection, int delay) throws DisconnectedIOException
 	{
-		if (delay > 0)
+		long interval = delay;
+		int burst = 1;
+		if (interval <= 0 && holder.mChanName != null)
 		{
-			URL url = connection.getURL();
-			String key = url.getAuthority();
-			DelayLock delayLock;
-			synchronized (mDelayLocks)
-			{
-				delayLock = mDelayLocks.get(key);
-				if (delayLock == null)
-				{
-					delayLock = new DelayLock();
-					mDelayLocks.put(key, delayLock);
-				}
-			}
-			synchronized (delayLock)
-			{
-				try
-				{
-					while (delayLock.locked) delayLock.wait();
-				}
-				catch (InterruptedException e)
-				{
-					Thread.currentThread().interrupt();
-					return;
-				}
-				delayLock.locked = true;
-				try
-				{
-					Thread.sleep(delay);
-				}
-				catch (InterruptedException e)
-				{
-					Thread.currentThread().interrupt();
-					return;
-				}
-				finally
-				{
-					delayLock.locked = false;
-					delayLock.notifyAll();
-				}
-			}
+			ChanConfiguration configuration = ChanConfiguration.get(holder.mChanName);
+			interval = configuration.getRequestInterval();
+			burst = configuration.getRequestBurst();
 		}
-		/*if (delay > 0)
+		if (interval > 0)
 		{
-			URL url = connection.getURL();
-			String key = url.getAuthority();
-			DelayLock delayLock;
-			synchronized (mDelayLocks)
-			{
-				delayLock = mDelayLocks.get(key);
-				if (delayLock == null)
-				{
-					delayLock = new DelayLock();
-					mDelayLocks.put(key, delayLock);
-				}
-			}
-			synchronized (delayLock)
+			String host = connection.getURL().getAuthority();
+			long time = SystemClock.elapsedRealtime();
+			long waitTime = mRequestPacer.reserve(host, interval, burst, time);
+			obtainConnectionMetrics(mHostMetrics, host).onPermit(waitTime);
+			long permitTime = time + waitTime;
+			boolean success = false;
+			try
 			{
-				try
+				while (waitTime > 0)
 				{
-					while (delayLock.active != null) delayLock.wait();
+					// Request can be cancelled while waiting for permit
+					holder.checkDisconnected();
+					Thread.sleep(Math.min(waitTime, PERMIT_WAIT_SLICE));
+					waitTime = permitTime - SystemClock.elapsedRealtime();
 				}
-				catch (InterruptedException e)
-				{
-					Thread.currentThread().interrupt();
-				}
-				delayLock.active = connection;
-			}
-			try
-			{
-				Thread.sleep(delay);
+				success = true;
 			}
 			catch (InterruptedException e)
 			{
 				Thread.currentThread().interrupt();
 			}
-		}*/
-	}
-	
-	void onDisconnect(HttpURLConnection connection)
-	{
-		/*URL url = connection.getURL();
-		String key = url.getAuthority();
-		DelayLock delayLock;
-		synchronized (mDelayLocks)
-		{
-			delayLock = mDelayLocks.get(key);
-		}
-		if (delayLock != null)
-		{
-			synchronized (delayLock)
+			finally
 			{
-				if (delayLock.active == connection)
-				{
-					delayLock.active = null;
-					delayLock.notifyAll();
-				}
+				if (!success) mRequestPacer.release(host, interval, SystemClock.elapsedRealtime());
 			}
-		}*/
+		}
 	}
 	
-	private static class NoSSLv3SSLSocketFactory extends SSLSocketFactory
+	private static abstract class WrapSSLSocketFactory extends SSLSocketFactory
 	{
 		private final SSLSocketFactory mWrapped;
 		
-		public NoSSLv3SSLSocketFactory(SSLSocketFactory sslSocketFactory)
+		public WrapSSLSocketFactory(SSLSocketFactory sslSocketFactory)
 		{
 			mWrapped = sslSocketFactory;
 		}
 		
-		private Socket wrap(Socket socket)
-		{
-			if (socket instanceof SSLSocket) socket = new NoSSLv3SSLSocket((SSLSocket) socket);
-			return socket;
-		}
+		protected abstract Socket wrap(Socket socket, String host);
 		
 		@Override
 		public String[] getDefaultCipherSuites()
@@ -992,33 +1091,78 @@ public class HttpClient
 		@Override
 		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
 		{
-			return wrap(mWrapped.createSocket(s, host, port, autoClose));
+			return wrap(mWrapped.createSocket(s, host, port, autoClose), host);
 		}
 		
 		@Override
 		public Socket createSocket(String host, int port) throws IOException, UnknownHostException
 		{
-			return wrap(mWrapped.createSocket(host, port));
+			return wrap(mWrapped.createSocket(host, port), host);
 		}
 		
 		@Override
 		public Socket createSocket(InetAddress address, int port) throws IOException
 		{
-			return wrap(mWrapped.createSocket(address, port));
+			return wrap(mWrapped.createSocket(address, port), null);
 		}
 		
 		@Override
 		public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
 				throws IOException, UnknownHostException
 		{
-			return wrap(mWrapped.createSocket(host, port, localAddress, localPort));
+			return wrap(mWrapped.createSocket(host, port, localAddress, localPort), host);
 		}
 		
 		@Override
 		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
 				throws IOException
 		{
-			return wrap(mWrapped.createSocket(address, port, localAddress, localPort));
+			return wrap(mWrapped.createSocket(address, port, localAddress, localPort), null);
+		}
+	}
+	
+	private static class NoSSLv3SSLSocketFactory extends WrapSSLSocketFactory
+	{
+		public NoSSLv3SSLSocketFactory(SSLSocketFactory sslSocketFactory)
+		{
+			super(sslSocketFactory);
+		}
+		
+		@Override
+		protected Socket wrap(Socket socket, String host)
+		{
+			if (socket instanceof SSLSocket) socket = new NoSSLv3SSLSocket((SSLSocket) socket);
+			return socket;
+		}
+	}
+	
+	// Socket is created only when pool has no idle connection, handshake time is measured from this moment
+	private static class MetricsSSLSocketFactory extends WrapSSLSocketFactory
+	{
+		public MetricsSSLSocketFactory(SSLSocketFactory sslSocketFactory)
+		{
+			super(sslSocketFactory);
+		}
+		
+		@Override
+		protected Socket wrap(Socket socket, String host)
+		{
+			if (socket instanceof SSLSocket)
+			{
+				final ConnectionMetrics metrics = HttpClient.getInstance().obtainConnectionMetrics(ChanManager
+						.getInstance().getChanNameByHost(host));
+				final long startTime = SystemClock.elapsedRealtime();
+				metrics.onNewConnection();
+				((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener()
+				{
+					@Override
+					public void handshakeCompleted(HandshakeCompletedEvent event)
+					{
+						metrics.onHandshake(SystemClock.elapsedRealtime() - startTime);
+					}
+				});
+			}
+			return socket;
 		}
 	}
 	
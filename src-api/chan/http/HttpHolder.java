@@ -19,12 +19,18 @@ package chan.http;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.util.List;
 import java.util.Map;
 
 import android.net.Uri;
+import android.util.JsonReader;
+
+import chan.content.InvalidResponseException;
+import chan.text.GroupParser;
+import chan.text.ParseException;
 
 public class HttpHolder
 {
@@ -32,6 +38,7 @@ public class HttpHolder
 	Proxy mProxy;
 	String mChanName;
 	boolean mVerifyCertificate;
+	boolean mKeepAlive;
 	
 	private int mAttempt;
 	boolean mForceGet = false;
@@ -42,6 +49,7 @@ public class HttpHolder
 		mProxy = proxy;
 		mChanName = chanName;
 		mVerifyCertificate = verifyCertificate;
+		mKeepAlive = request.mKeepAlive;
 		mAttempt = maxAttempts;
 	}
 	
@@ -52,6 +60,8 @@ public class HttpHolder
 	
 	Uri mRedirectedUri;
 	HttpValidator mValidator;
+	HttpCache.Entry mCacheEntry;
+	HttpCache.Writer mCacheWriter;
 	private HttpResponse mResponse;
 	
 	private volatile Thread mRequestThread;
@@ -65,6 +75,16 @@ public class HttpHolder
 		public void onInputProgressChange(long progress, long progressMax);
 	}
 	
+	public static interface JsonHandler<T>
+	{
+		public T onReadJson(JsonReader reader) throws IOException;
+	}
+	
+	static interface StreamHandler<T>
+	{
+		public T onStream(Reader reader) throws IOException, ParseException;
+	}
+	
 	public void interrupt()
 	{
 		mInterrupted = true;
@@ -85,6 +105,8 @@ public class HttpHolder
 		mConnection = connection;
 		mRedirectedUri = null;
 		mValidator = null;
+		mCacheEntry = null;
+		mCacheWriter = null;
 		mResponse = null;
 		if (mInterrupted) throw new HttpClient.DisconnectedIOException();
 	}
@@ -121,14 +143,24 @@ public class HttpHolder
 	}
 	
 	void disconnectAndClear()
+	{
+		clear(true);
+	}
+	
+	// Response body must be consumed and closed, then connection returns to pool instead of closing the socket
+	void releaseAndClear()
+	{
+		clear(!mKeepAlive || mDisconnectRequested);
+	}
+	
+	private void clear(boolean disconnect)
 	{
 		HttpURLConnection connection = mConnection;
 		mConnection = null;
 		if (connection != null)
 		{
-			connection.disconnect();
+			if (disconnect) connection.disconnect();
 			mDeadConnection = connection;
-			HttpClient.getInstance().onDisconnect(connection);
 		}
 	}
 	
@@ -146,6 +178,35 @@ public class HttpHolder
 		return mResponse;
 	}
 	
+	public <T> T readJson(InputListener listener, final JsonHandler<T> handler) throws HttpException,
+			InvalidResponseException
+	{
+		mResponse = null;
+		return HttpClient.getInstance().readStream(this, listener, null, new StreamHandler<T>()
+		{
+			@Override
+			public T onStream(Reader reader) throws IOException
+			{
+				return handler.onReadJson(new JsonReader(reader));
+			}
+		});
+	}
+	
+	public void readHtml(InputListener listener, String charsetName, final GroupParser.Callback callback)
+			throws HttpException, InvalidResponseException
+	{
+		mResponse = null;
+		HttpClient.getInstance().readStream(this, listener, charsetName, new StreamHandler<Void>()
+		{
+			@Override
+			public Void onStream(Reader reader) throws IOException, ParseException
+			{
+				GroupParser.parse(reader, callback);
+				return null;
+			}
+		});
+	}
+	
 	public void checkResponseCode() throws HttpException
 	{
 		HttpClient.getInstance().checkResponseCode(this);
@@ -160,6 +221,7 @@ public class HttpHolder
 	
 	public int getResponseCode()
 	{
+		if (mCacheEntry != null) return HttpURLConnection.HTTP_OK;
 		HttpURLConnection connection = getConnectionForHeaders();
 		if (connection != null)
 		{
@@ -177,6 +239,7 @@ public class HttpHolder
 	
 	public String getResponseMessage()
 	{
+		if (mCacheEntry != null) return "OK";
 		HttpURLConnection connection = getConnectionForHeaders();
 		if (connection != null)
 		{
@@ -23,6 +23,9 @@ import java.util.ArrayList;
 import android.net.Uri;
 import android.util.Pair;
 
+import chan.content.InvalidResponseException;
+import chan.text.GroupParser;
+
 public class HttpRequest
 {
 	public static interface Preset
@@ -51,6 +54,11 @@ public class HttpRequest
 		public OutputStream getOutputStream();
 	}
 	
+	public static interface CachePreset extends Preset
+	{
+		public int getCacheMode();
+	}
+	
 	public static interface OutputListener
 	{
 		public void onOutputProgressChange(long progress, long progressMax);
@@ -127,6 +135,13 @@ public class HttpRequest
 	final HttpHolder mHolder;
 	final Uri mUri;
 	
+	// Response is loaded from network and never stored
+	public static final int CACHE_BYPASS = 0;
+	// Stored response is used when server answers that it wasn't modified
+	public static final int CACHE_REVALIDATE = 1;
+	// Stored response is used without request, request fails if there is no stored response
+	public static final int CACHE_ONLY = 2;
+	
 	static final int REQUEST_METHOD_GET = 0;
 	static final int REQUEST_METHOD_HEAD = 1;
 	static final int REQUEST_METHOD_POST = 2;
@@ -140,6 +155,7 @@ public class HttpRequest
 	RedirectHandler mRedirectHandler = RedirectHandler.BROWSER;
 	HttpValidator mValidator;
 	boolean mKeepAlive = true;
+	int mCacheMode = CACHE_BYPASS;
 
 	HttpHolder.InputListener mInputListener;
 	OutputListener mOutputListener;
@@ -180,6 +196,10 @@ public class HttpRequest
 		{
 			setOutputStream(((OutputStreamPreset) preset).getOutputStream());
 		}
+		if (preset instanceof CachePreset)
+		{
+			setCacheMode(((CachePreset) preset).getCacheMode());
+		}
 	}
 	
 	private HttpRequest setMethod(int method, RequestEntity entity)
@@ -239,6 +259,12 @@ public class HttpRequest
 		return this;
 	}
 	
+	public HttpRequest setCacheMode(int cacheMode)
+	{
+		mCacheMode = cacheMode;
+		return this;
+	}
+	
 	public HttpRequest setTimeouts(int connectTimeout, int readTimeout)
 	{
 		if (connectTimeout >= 0) mConnectTimeout = connectTimeout;
@@ -341,6 +367,7 @@ public class HttpRequest
 		request.setRedirectHandler(mRedirectHandler);
 		request.setValidator(mValidator);
 		request.setKeepAlive(mKeepAlive);
+		request.setCacheMode(mCacheMode);
 		request.setInputListener(mInputListener);
 		request.setOutputListener(mOutputListener);
 		request.setOutputStream(mOutputStream);
@@ -380,4 +407,40 @@ public class HttpRequest
 			throw e;
 		}
 	}
+	
+	public <T> T readJson(HttpHolder.JsonHandler<T> handler) throws HttpException, InvalidResponseException
+	{
+		HttpHolder holder = execute();
+		try
+		{
+			if (mRequestMethod == REQUEST_METHOD_HEAD) return null;
+			return holder.readJson(mInputListener, handler);
+		}
+		catch (HttpException e)
+		{
+			mHolder.disconnect();
+			throw e;
+		}
+	}
+	
+	public void readHtml(GroupParser.Callback callback) throws HttpException, InvalidResponseException
+	{
+		readHtml(null, callback);
+	}
+	
+	public void readHtml(String charsetName, GroupParser.Callback callback) throws HttpException,
+			InvalidResponseException
+	{
+		HttpHolder holder = execute();
+		try
+		{
+			if (mRequestMethod == REQUEST_METHOD_HEAD) return;
+			holder.readHtml(mInputListener, charsetName, callback);
+		}
+		catch (HttpException e)
+		{
+			mHolder.disconnect();
+			throw e;
+		}
+	}
 }
\ No newline at end of file
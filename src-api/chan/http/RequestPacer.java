@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package chan.http;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+// Token bucket in the form of generic cell rate algorithm: every permit moves theoretical arrival time forward
+// by interval, burst allows permits to be handed out ahead of it. Permit time is reserved under the lock
+// and the lock is released at once, so requests only wait for their own time and never for each other.
+class RequestPacer
+{
+	private static final int CLEANUP_SIZE = 50;
+	
+	private final HashMap<String, Long> mArrivalTimes = new HashMap<>();
+	
+	// Returns time to wait before request can be sent
+	public synchronized long reserve(String host, long interval, int burst, long time)
+	{
+		Long arrivalTimeValue = mArrivalTimes.get(host);
+		long arrivalTime = arrivalTimeValue != null ? Math.max(arrivalTimeValue, time) : time;
+		long permitTime = Math.max(time, arrivalTime - (Math.max(burst, 1) - 1) * interval);
+		if (mArrivalTimes.size() >= CLEANUP_SIZE && arrivalTimeValue == null)
+		{
+			// Bucket which arrival time is passed is full, so it can be removed
+			Iterator<Long> iterator = mArrivalTimes.values().iterator();
+			while (iterator.hasNext())
+			{
+				if (iterator.next() <= time) iterator.remove();
+			}
+		}
+		mArrivalTimes.put(host, arrivalTime + interval);
+		return permitTime - time;
+	}
+	
+	// Returns permit which was reserved but not used, so later requests don't wait for it
+	public synchronized void release(String host, long interval, long time)
+	{
+		Long arrivalTimeValue = mArrivalTimes.get(host);
+		if (arrivalTimeValue != null) mArrivalTimes.put(host, Math.max(arrivalTimeValue - interval, time));
+	}
+}
\ No newline at end of file
@@ -16,6 +16,8 @@
 
 package chan.text;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.Locale;
 
 import chan.util.StringUtils;
@@ -30,7 +32,11 @@ public class GroupParser
 		public void onGroupComplete(GroupParser parser, String text) throws ParseException;
 	}
 	
-	private final String mSource;
+	private static final int CHUNK_SIZE = 8192;
+	
+	private String mSource;
+	private Reader mReader;
+	private boolean mDiscarded = false;
 	private final Callback mCallback;
 	
 	private final StringBuilder mGroup = new StringBuilder();
@@ -44,13 +50,26 @@ public class GroupParser
 	
 	private boolean mMarkAvailable = false;
 	private int mMarkCalled = MARK_STATE_NONE;
-	private int mMark = 0;
+	private int mMark = -1;
 	
 	public static void parse(String source, Callback callback) throws ParseException
 	{
 		try
 		{
-			new GroupParser(source, callback).convert();
+			new GroupParser(source, null, callback).convert();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			throw new ParseException(e);
+		}
+	}
+	
+	// Source is read by chunks and parsed part is discarded, unless it was marked
+	public static void parse(Reader reader, Callback callback) throws ParseException, IOException
+	{
+		try
+		{
+			new GroupParser("", reader, callback).convert();
 		}
 		catch (RuntimeException e)
 		{
@@ -58,37 +77,102 @@ public class GroupParser
 		}
 	}
 	
-	private GroupParser(String source, Callback callback)
+	private GroupParser(String source, Reader reader, Callback callback)
 	{
 		mSource = source;
+		mReader = reader;
 		mCallback = callback;
 	}
 	
-	private void convert() throws ParseException
+	private boolean fill() throws IOException
+	{
+		if (mReader == null) return false;
+		char[] buffer = new char[Math.max(CHUNK_SIZE, mSource.length())];
+		int count = mReader.read(buffer);
+		if (count == -1)
+		{
+			mReader = null;
+			return false;
+		}
+		mSource = mSource.concat(new String(buffer, 0, count));
+		return true;
+	}
+	
+	private boolean ensure(int index) throws IOException
+	{
+		while (index >= mSource.length())
+		{
+			if (!fill()) return false;
+		}
+		return true;
+	}
+	
+	private int indexOf(char c, int from) throws IOException
 	{
-		String source = mSource;
-		int index = source.indexOf('<');
+		while (true)
+		{
+			int length = mSource.length();
+			int index = mSource.indexOf(c, from);
+			if (index >= 0 || !fill()) return index;
+			from = Math.max(from, length);
+		}
+	}
+	
+	private int indexOf(String string, int from) throws IOException
+	{
+		while (true)
+		{
+			int length = mSource.length();
+			int index = mSource.indexOf(string, from);
+			if (index >= 0 || !fill()) return index;
+			from = Math.max(from, length - string.length() + 1);
+		}
+	}
+	
+	private boolean startsWith(String string, int index) throws IOException
+	{
+		ensure(index + string.length() - 1);
+		return mSource.startsWith(string, index);
+	}
+	
+	private int discard(int index)
+	{
+		int count = mMark >= 0 ? Math.min(index, mMark) : index;
+		// Parsed part is kept until it grows large enough, so remaining source is not copied on every tag
+		if (count >= CHUNK_SIZE)
+		{
+			mSource = mSource.substring(count);
+			if (mMark >= 0) mMark -= count;
+			mDiscarded = true;
+		}
+		return count;
+	}
+	
+	private void convert() throws ParseException, IOException
+	{
+		int index = indexOf('<', 0);
 		char[] tagNameEndCharacters = {' ', '\r', '\n', '\t'};
 		while (index != -1)
 		{
-			char next = source.charAt(index + 1);
+			if (mReader != null) index -= discard(index);
+			ensure(index + 1);
+			char next = mSource.charAt(index + 1);
 			if (next == '!')
 			{
 				// Skip comment
-				if (source.startsWith("<!--", index)) index = source.indexOf("-->", index);
-				else index = source.indexOf(">", index);
-				index = source.indexOf('<', index);
+				if (startsWith("<!--", index)) index = indexOf("-->", index);
+				else index = indexOf(">", index);
+				if (index >= 0) index = indexOf('<', index);
 			}
 			else
 			{
-				int length = source.length();
 				int start = index;
 				boolean inQuotes1 = false;
 				boolean inQuotes2 = false;
 				int end = -1;
-				for (int i = index; i < length; i++)
+				for (int i = index; ensure(i); i++)
 				{
-					char c = source.charAt(i);
+					char c = mSource.charAt(i);
 					if (c == '"' && !inQuotes1) inQuotes2 = !inQuotes2;
 					else if (c == '\'' && !inQuotes2) inQuotes1 = !inQuotes1;
 					else if (c == '>' && !inQuotes1 && !inQuotes2)
@@ -97,6 +181,8 @@ public class GroupParser
 						break;
 					}
 				}
+				String source = mSource;
+				int length = source.length();
 				if (end == -1)
 				{
 					// HTML is malformed. Try to find possible end of tag.
@@ -127,7 +213,7 @@ public class GroupParser
 				tagName = tagName.toLowerCase(Locale.US);
 				if (!close && ("script".equals(tagName) || "style".equals(tagName)))
 				{
-					index = source.indexOf("</" + tagName, index + 1);
+					index = indexOf("</" + tagName, index + 1);
 					if (index == -1) throw new ParseException("Can't find " + tagName + " closing after " + start);
 					end = index + 3 + tagName.length();
 				}
@@ -143,14 +229,15 @@ public class GroupParser
 					}
 					else if (mMarkCalled == MARK_STATE_RESET)
 					{
-						index = mMark;
+						if (mMark == -1 && mDiscarded) throw new IllegalStateException("Mark was discarded");
+						index = Math.max(mMark, 0);
 						continue;
 					}
 				}
-				index = source.indexOf('<', end);
+				index = indexOf('<', end);
 				start = end + 1;
-				end = index >= 0 ? index : length;
-				if (start < end) onText(source, start, end);
+				end = index >= 0 ? index : mSource.length();
+				if (start < end) onText(mSource, start, end);
 			}
 		}
 	}
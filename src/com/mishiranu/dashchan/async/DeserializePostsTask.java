@@ -19,7 +19,9 @@ package com.mishiranu.dashchan.async;
 import chan.content.model.Posts;
 
 import com.mishiranu.dashchan.content.CacheManager;
+import com.mishiranu.dashchan.content.model.ParsedComments;
 import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.content.model.ReplyGraph;
 
 public class DeserializePostsTask extends CancellableTask<Void, Void, Boolean>
 {
@@ -29,19 +31,23 @@ public class DeserializePostsTask extends CancellableTask<Void, Void, Boolean>
 	private final String mThreadNumber;
 	private final boolean mFromCache;
 	private final Posts mCachedPosts;
+	private final ReplyGraph mCachedReplyGraph;
 	
 	private final CacheManager.StreamHolder mHolder = new CacheManager.StreamHolder();
 	
 	private Posts mPosts;
+	private ReplyGraph mReplyGraph;
+	private boolean mReplyGraphBuilt;
 	private PostItem[] mPostItems;
 	
 	public static interface Callback
 	{
-		public void onDeserializePostsComplete(boolean success, Posts posts, PostItem[] postItems, boolean fromCache);
+		public void onDeserializePostsComplete(boolean success, Posts posts, ReplyGraph replyGraph,
+				PostItem[] postItems, boolean fromCache);
 	}
 	
 	public DeserializePostsTask(Callback callback, String chanName, String boardName, String threadNumber,
-			boolean fromCache, Posts cachedPosts)
+			boolean fromCache, Posts cachedPosts, ReplyGraph cachedReplyGraph)
 	{
 		mCallback = callback;
 		mChanName = chanName;
@@ -49,24 +55,48 @@ public class DeserializePostsTask extends CancellableTask<Void, Void, Boolean>
 		mThreadNumber = threadNumber;
 		mFromCache = fromCache;
 		mCachedPosts = cachedPosts;
+		mCachedReplyGraph = cachedReplyGraph;
 	}
 	
 	@Override
 	protected Boolean doInBackground(Void... params)
 	{
+		ReplyGraph replyGraph;
 		if (mCachedPosts == null)
 		{
 			mPosts = CacheManager.getInstance().deserializePosts(mChanName, mBoardName, mThreadNumber, mHolder);
+			replyGraph = mPosts != null ? CacheManager.getInstance().deserializeReplyGraph(mChanName, mBoardName,
+					mThreadNumber, mHolder) : null;
+		}
+		else
+		{
+			mPosts = mCachedPosts;
+			replyGraph = mCachedReplyGraph;
+		}
+		if (mPosts != null && (replyGraph == null || !replyGraph.isValidFor(mPosts)))
+		{
+			replyGraph = ReplyGraph.build(mPosts.getPosts());
+			mReplyGraphBuilt = true;
+		}
+		mReplyGraph = replyGraph;
+		mPostItems = ReadPostsTask.wrapPosts(mPosts, mChanName, mBoardName, replyGraph);
+		if (mPostItems != null && mPostItems.length > 0 && !isCancelled())
+		{
+			ParsedComments parsedComments = CacheManager.getInstance().deserializeParsedComments(mChanName,
+					mBoardName, mThreadNumber, mHolder);
+			if (parsedComments != null) parsedComments.apply(mChanName, mPostItems);
 		}
-		else mPosts = mCachedPosts;
-		mPostItems = ReadPostsTask.wrapPosts(mPosts, mChanName, mBoardName);
 		return mPostItems != null && mPostItems.length > 0;
 	}
 	
 	@Override
 	public void onPostExecute(Boolean success)
 	{
-		mCallback.onDeserializePostsComplete(success, mPosts, mPostItems, mFromCache);
+		if (success && mReplyGraphBuilt)
+		{
+			CacheManager.getInstance().serializeReplyGraph(mChanName, mBoardName, mThreadNumber, mReplyGraph);
+		}
+		mCallback.onDeserializePostsComplete(success, mPosts, mReplyGraph, mPostItems, mFromCache);
 	}
 	
 	@Override
@@ -38,6 +38,7 @@ import chan.http.HttpValidator;
 
 import com.mishiranu.dashchan.content.model.ErrorItem;
 import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.content.model.ReplyGraph;
 import com.mishiranu.dashchan.net.YouTubeTitlesReader;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.text.HtmlParser;
@@ -51,6 +52,7 @@ public class ReadPostsTask extends CancellableTask<Void, Void, Boolean>
 	private final String mBoardName;
 	private final String mThreadNumber;
 	private final Posts mCachedPosts;
+	private final ReplyGraph mCachedReplyGraph;
 	private final HttpValidator mValidator;
 	private final boolean mForceLoadFullThread;
 	private final String mLastPostNumber;
@@ -62,6 +64,7 @@ public class ReadPostsTask extends CancellableTask<Void, Void, Boolean>
 	private PostItem[] mHandlePostItems;
 	private Post[] mHandlePosts;
 	private Posts.MergeAction[] mMergeActions;
+	private ReplyGraph mReplyGraph;
 	private Posts mReadPosts;
 	private String mRedirectBoardName;
 	private String mRedirectThreadNumber;
@@ -79,6 +82,7 @@ public class ReadPostsTask extends CancellableTask<Void, Void, Boolean>
 		public PostItem[] handlePostItems;
 		public Post[] handlePosts;
 		public Posts.MergeAction[] mergeActions;
+		public ReplyGraph replyGraph;
 		public Posts readPosts;
 		public int newCount;
 		public int deletedCount;
@@ -95,7 +99,7 @@ public class ReadPostsTask extends CancellableTask<Void, Void, Boolean>
 	}
 	
 	public ReadPostsTask(Callback callback, String chanName, String boardName, String threadNumber, Posts cachedPosts,
-			boolean useValidator, boolean forceLoadFullThread, String lastPostNumber,
+			ReplyGraph cachedReplyGraph, boolean useValidator, boolean forceLoadFullThread, String lastPostNumber,
 			ArrayList<UserPostPending> userPostPendings)
 	{
 		mCallback = callback;
@@ -103,6 +107,7 @@ public class ReadPostsTask extends CancellableTask<Void, Void, Boolean>
 		mBoardName = boardName;
 		mThreadNumber = threadNumber;
 		mCachedPosts = cachedPosts;
+		mCachedReplyGraph = cachedReplyGraph;
 		mValidator = useValidator && cachedPosts != null ? cachedPosts.getValidator() : null;
 		mForceLoadFullThread = forceLoadFullThread;
 		mLastPostNumber = lastPostNumber;
@@ -229,9 +234,21 @@ public class ReadPostsTask extends CancellableTask<Void, Void, Boolean>
 						}
 					}
 				}
-				YouTubeTitlesReader.getInstance().readAndApplyIfNecessary(handlePosts, mHolder);
+				// Missing titles are read after posts are displayed
+				YouTubeTitlesReader.getInstance().applyStoredIfNecessary(handlePosts);
+				if (mMergeActions != null)
+				{
+					// Only changed posts are parsed, the rest of references are taken from cached graph
+					ReplyGraph replyGraph = mCachedReplyGraph;
+					if (replyGraph == null || !replyGraph.isValidFor(mCachedPosts))
+					{
+						replyGraph = ReplyGraph.build(mCachedPosts.getPosts());
+					}
+					mReplyGraph = replyGraph.merge(handlePosts, mMergeActions);
+				}
+				else mReplyGraph = ReplyGraph.build(handlePosts);
 			}
-			PostItem[] handlePostItems = wrapPosts(handlePosts, mChanName, mBoardName);
+			PostItem[] handlePostItems = wrapPosts(handlePosts, mChanName, mBoardName, mReplyGraph);
 			if (handlePostItems != null) mCallback.onRequestPreloadPosts(handlePostItems);
 			if (fullPosts != null)
 			{
@@ -322,6 +339,7 @@ public class ReadPostsTask extends CancellableTask<Void, Void, Boolean>
 				resultItems.handlePostItems = mHandlePostItems;
 				resultItems.handlePosts = mHandlePosts;
 				resultItems.mergeActions = mMergeActions;
+				resultItems.replyGraph = mReplyGraph;
 				resultItems.readPosts = mReadPosts;
 				resultItems.newCount = mNewCount;
 				resultItems.deletedCount = mDeletedCount;
@@ -342,25 +360,30 @@ public class ReadPostsTask extends CancellableTask<Void, Void, Boolean>
 		mHolder.interrupt();
 	}
 	
-	static PostItem[] wrapPosts(Posts posts, String chanName, String boardName)
+	static PostItem[] wrapPosts(Posts posts, String chanName, String boardName, ReplyGraph replyGraph)
 	{
-		return posts != null ? wrapPosts(posts.getPosts(), chanName, boardName) : null;
+		return posts != null ? wrapPosts(posts.getPosts(), chanName, boardName, replyGraph) : null;
 	}
 	
 	static PostItem[] wrapPosts(Post[] posts, String chanName, String boardName)
+	{
+		return wrapPosts(posts, chanName, boardName, null);
+	}
+	
+	static PostItem[] wrapPosts(Post[] posts, String chanName, String boardName, ReplyGraph replyGraph)
 	{
 		if (posts == null || posts.length == 0) return null;
-		return wrapPosts(Arrays.asList(posts), chanName, boardName);
+		return wrapPosts(Arrays.asList(posts), chanName, boardName, replyGraph);
 	}
 	
-	static PostItem[] wrapPosts(List<Post> posts, String chanName, String boardName)
+	static PostItem[] wrapPosts(List<Post> posts, String chanName, String boardName, ReplyGraph replyGraph)
 	{
 		if (posts == null || posts.size() == 0) return null;
 		PostItem[] postItems = new PostItem[posts.size()];
 		Thread thread = Thread.currentThread();
 		for (int i = 0, length = posts.size(); i < length && !thread.isInterrupted(); i++)
 		{
-			postItems[i] = new PostItem(posts.get(i), chanName, boardName);
+			postItems[i] = new PostItem(posts.get(i), chanName, boardName, replyGraph);
 		}
 		return postItems;
 	}
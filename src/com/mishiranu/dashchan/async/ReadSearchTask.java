@@ -128,7 +128,7 @@ public class ReadSearchTask extends CancellableTask<Void, Void, PostItem[]> impl
 				Collections.sort(posts, this);
 				YouTubeTitlesReader.getInstance().readAndApplyIfNecessary(posts, mHolder);
 			}
-			PostItem[] postItems = ReadPostsTask.wrapPosts(posts, mChanName, mBoardName);
+			PostItem[] postItems = ReadPostsTask.wrapPosts(posts, mChanName, mBoardName, null);
 			if (postItems != null)
 			{
 				for (int i = 0; i < postItems.length; i++)
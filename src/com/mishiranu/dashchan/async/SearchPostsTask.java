@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.async;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import com.mishiranu.dashchan.content.PostsSearchIndex;
+
+public class SearchPostsTask extends CancellableTask<Void, Void, HashSet<String>>
+{
+	private final Callback mCallback;
+	private final PostsSearchIndex mSearchIndex;
+	private final ArrayList<String> mIncluded = new ArrayList<>();
+	private final ArrayList<String> mExcluded = new ArrayList<>();
+	
+	public static interface Callback
+	{
+		public void onSearchPostsComplete(HashSet<String> postNumbers);
+	}
+	
+	public SearchPostsTask(Callback callback, PostsSearchIndex searchIndex, Iterable<String> included,
+			Iterable<String> excluded)
+	{
+		mCallback = callback;
+		mSearchIndex = searchIndex;
+		for (String part : included) mIncluded.add(part);
+		for (String part : excluded) mExcluded.add(part);
+	}
+	
+	@Override
+	protected HashSet<String> doInBackground(Void... params)
+	{
+		return mSearchIndex.search(mIncluded, mExcluded);
+	}
+	
+	@Override
+	public void onPostExecute(HashSet<String> postNumbers)
+	{
+		if (postNumbers != null) mCallback.onSearchPostsComplete(postNumbers);
+	}
+	
+	@Override
+	public void cancel()
+	{
+		cancel(true);
+	}
+}
\ No newline at end of file
@@ -16,23 +16,25 @@
 
 package com.mishiranu.dashchan.content;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -56,13 +58,18 @@ import android.webkit.MimeTypeMap;
 
 import chan.content.ChanConfiguration;
 import chan.content.ChanManager;
+import chan.content.model.ModelCodec;
+import chan.content.model.Post;
 import chan.content.model.Posts;
 import chan.content.model.Threads;
 import chan.util.StringUtils;
 
 import com.mishiranu.dashchan.app.MainApplication;
+import com.mishiranu.dashchan.content.model.ParsedComments;
+import com.mishiranu.dashchan.content.model.ReplyGraph;
 import com.mishiranu.dashchan.content.storage.FavoritesStorage;
 import com.mishiranu.dashchan.preference.Preferences;
+import com.mishiranu.dashchan.util.BitmapLruCache;
 import com.mishiranu.dashchan.util.IOUtils;
 import com.mishiranu.dashchan.util.Log;
 import com.mishiranu.dashchan.util.LruCache;
@@ -77,6 +84,9 @@ public class CacheManager implements Runnable
 	
 	private static final float TRIM_FACTOR = 0.3f;
 	
+	// Rewrite posts snapshot when appended records take more space than snapshot itself
+	private static final int PAGES_COMPACT_FACTOR = 2;
+	
 	private static final CacheManager INSTANCE = new CacheManager();
 	
 	public static CacheManager getInstance()
@@ -87,6 +97,7 @@ public class CacheManager implements Runnable
 	private CacheManager()
 	{
 		handleGalleryShareFiles();
+		handleBufferFiles();
 		syncCache();
 		IntentFilter intentFilter = new IntentFilter(Intent.ACTION_MEDIA_MOUNTED);
 		intentFilter.addDataScheme("file");
@@ -118,6 +129,7 @@ public class CacheManager implements Runnable
 				case CacheItem.TYPE_THUMBNAILS:
 				{
 					file = new File(getThumbnailsDirectory(), cacheItem.name);
+					onThumbnailsFileDeleted(cacheItem.name);
 					break;
 				}
 				case CacheItem.TYPE_MEDIA:
@@ -160,10 +172,15 @@ public class CacheManager implements Runnable
 		
 		public CacheItem(File file, int type)
 		{
-			name = file.getName();
+			this(file.getName(), file.length(), file.lastModified(), type);
+		}
+		
+		public CacheItem(String name, long length, long lastModified, int type)
+		{
+			this.name = name;
 			nameLc = name.toLowerCase(Locale.US);
-			length = file.length();
-			lastModified = file.lastModified();
+			this.length = length;
+			this.lastModified = lastModified;
 			this.type = type;
 		}
 		
@@ -242,30 +259,390 @@ public class CacheManager implements Runnable
 			@Override
 			public void run()
 			{
-				synchronized (mThumbnailsCache)
+				boolean indexLoaded;
+				try
 				{
-					mThumbnailsCacheSize = fillCache(mThumbnailsCache, getThumbnailsDirectory(),
-							CacheItem.TYPE_THUMBNAILS);
+					indexLoaded = loadIndex();
+					if (!indexLoaded)
+					{
+						synchronized (mThumbnailsCache)
+						{
+							mThumbnailsCacheSize = fillCache(mThumbnailsCache, getThumbnailsDirectory(),
+									CacheItem.TYPE_THUMBNAILS);
+						}
+						synchronized (mMediaCache)
+						{
+							mMediaCacheSize = fillCache(mMediaCache, getMediaDirectory(), CacheItem.TYPE_MEDIA);
+						}
+						synchronized (mPagesCache)
+						{
+							mPagesCacheSize = fillCache(mPagesCache, getPagesDirectory(), CacheItem.TYPE_PAGES);
+						}
+						compactIndex();
+					}
+					cleanupAsync(true, true, true);
 				}
-				synchronized (mMediaCache)
+				finally
 				{
-					mMediaCacheSize = fillCache(mMediaCache, getMediaDirectory(), CacheItem.TYPE_MEDIA);
+					latch.countDown();
 				}
-				synchronized (mPagesCache)
+				if (indexLoaded)
 				{
-					mPagesCacheSize = fillCache(mPagesCache, getPagesDirectory(), CacheItem.TYPE_PAGES);
+					// Cache is already available, so index can be checked against directories in background
+					verifyIndex(mThumbnailsCache, getThumbnailsDirectory(), CacheItem.TYPE_THUMBNAILS);
+					verifyIndex(mMediaCache, getMediaDirectory(), CacheItem.TYPE_MEDIA);
+					verifyIndex(mPagesCache, getPagesDirectory(), CacheItem.TYPE_PAGES);
+					compactIndexIfNecessary();
 				}
-				cleanupAsync(true, true, true);
-				try
+			}
+		}).start();
+	}
+	
+	private static final String INDEX_FILE_NAME = "cache-index";
+	private static final int INDEX_MAGIC = 0x44434931; // "DCI1"
+	
+	private static final int INDEX_RECORD_PUT = 1;
+	private static final int INDEX_RECORD_REMOVE = 2;
+	
+	private static final int INDEX_MIN_COMPACT_RECORDS = 1000;
+	private static final long INDEX_TOUCH_THRESHOLD = 60 * 1000; // 1 minute
+	
+	// Lock order: cache items first, then index file, index last
+	private final Object mIndexLock = new Object();
+	private final Object mIndexFileLock = new Object();
+	private DataOutputStream mIndexOutput;
+	private final ByteArrayOutputStream mIndexPendingBuffer = new ByteArrayOutputStream();
+	private final DataOutputStream mIndexPending = new DataOutputStream(mIndexPendingBuffer);
+	private int mIndexRecords;
+	private boolean mIndexFlushQueued = false;
+	private boolean mIndexCompactQueued = false;
+	private boolean mIndexCompacting = false;
+	
+	private File getIndexFile()
+	{
+		File directory = getExternalCacheDirectory();
+		return directory != null ? new File(directory, INDEX_FILE_NAME) : null;
+	}
+	
+	private boolean loadIndex()
+	{
+		File file = getIndexFile();
+		if (file == null || !file.exists()) return false;
+		ArrayList<ArrayList<CacheItem>> cacheItemsLists = new ArrayList<>();
+		ArrayList<LinkedHashMap<String, CacheItem>> cacheItemsMaps = new ArrayList<>();
+		for (int i = 0; i < 3; i++) cacheItemsMaps.add(new LinkedHashMap<String, CacheItem>());
+		int records = 0;
+		DataInputStream input = null;
+		try
+		{
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (input.readInt() != INDEX_MAGIC) return false;
+			while (true)
+			{
+				int operation = input.read();
+				if (operation == -1) break;
+				int type = input.readByte();
+				String name = input.readUTF();
+				if (type < CacheItem.TYPE_THUMBNAILS || type > CacheItem.TYPE_PAGES) return false;
+				LinkedHashMap<String, CacheItem> cacheItems = cacheItemsMaps.get(type);
+				if (operation == INDEX_RECORD_PUT)
 				{
-					
+					long length = input.readLong();
+					long lastModified = input.readLong();
+					CacheItem cacheItem = new CacheItem(name, length, lastModified, type);
+					cacheItems.put(cacheItem.nameLc, cacheItem);
 				}
-				finally
+				else if (operation == INDEX_RECORD_REMOVE) cacheItems.remove(name.toLowerCase(Locale.US));
+				else return false;
+				records++;
+			}
+		}
+		catch (EOFException e)
+		{
+			// Last record may be incomplete if process was killed during writing
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		finally
+		{
+			IOUtils.close(input);
+		}
+		for (LinkedHashMap<String, CacheItem> cacheItems : cacheItemsMaps)
+		{
+			ArrayList<CacheItem> cacheItemsList = new ArrayList<>(cacheItems.values());
+			Collections.sort(cacheItemsList, SORT_BY_DATE_COMPARATOR);
+			cacheItemsLists.add(cacheItemsList);
+		}
+		synchronized (mThumbnailsCache)
+		{
+			mThumbnailsCacheSize = fillCache(mThumbnailsCache, cacheItemsLists.get(CacheItem.TYPE_THUMBNAILS));
+		}
+		synchronized (mMediaCache)
+		{
+			mMediaCacheSize = fillCache(mMediaCache, cacheItemsLists.get(CacheItem.TYPE_MEDIA));
+		}
+		synchronized (mPagesCache)
+		{
+			mPagesCacheSize = fillCache(mPagesCache, cacheItemsLists.get(CacheItem.TYPE_PAGES));
+		}
+		synchronized (mIndexFileLock)
+		{
+			synchronized (mIndexLock)
+			{
+				IOUtils.close(mIndexOutput);
+				mIndexOutput = null;
+				mIndexPendingBuffer.reset();
+				mIndexRecords = records;
+			}
+		}
+		return true;
+	}
+	
+	private long fillCache(LinkedHashMap<String, CacheItem> cacheItems, ArrayList<CacheItem> cacheItemsList)
+	{
+		cacheItems.clear();
+		long size = 0L;
+		for (CacheItem cacheItem : cacheItemsList)
+		{
+			cacheItems.put(cacheItem.nameLc, cacheItem);
+			size += cacheItem.length;
+		}
+		return size;
+	}
+	
+	private void verifyIndex(LinkedHashMap<String, CacheItem> cacheItems, File directory, int type)
+	{
+		if (directory == null) return;
+		long time = System.currentTimeMillis();
+		String[] names = directory.list();
+		if (names == null) return;
+		HashMap<String, String> existingNames = new HashMap<>();
+		for (String name : names) existingNames.put(name.toLowerCase(Locale.US), name);
+		synchronized (cacheItems)
+		{
+			long lengthDelta = 0L;
+			Iterator<CacheItem> iterator = cacheItems.values().iterator();
+			while (iterator.hasNext())
+			{
+				CacheItem cacheItem = iterator.next();
+				// Items added after directory listing are handled by their writers
+				if (existingNames.remove(cacheItem.nameLc) == null && cacheItem.lastModified < time)
 				{
-					latch.countDown();
+					iterator.remove();
+					lengthDelta -= cacheItem.length;
+					writeIndexRemove(cacheItem);
 				}
 			}
-		}).start();
+			// Files unknown to index were written without journal record, they are the newest ones
+			for (String name : existingNames.values())
+			{
+				CacheItem cacheItem = new CacheItem(new File(directory, name), type);
+				cacheItems.put(cacheItem.nameLc, cacheItem);
+				lengthDelta += cacheItem.length;
+				writeIndexPut(cacheItem);
+			}
+			modifyCacheSize(type, lengthDelta);
+		}
+	}
+	
+	private void writeIndexPut(CacheItem cacheItem)
+	{
+		writeIndexRecord(INDEX_RECORD_PUT, cacheItem);
+	}
+	
+	private void writeIndexRemove(CacheItem cacheItem)
+	{
+		writeIndexRecord(INDEX_RECORD_REMOVE, cacheItem);
+	}
+	
+	private void writeIndexRecord(int operation, CacheItem cacheItem)
+	{
+		// Callers hold cache items lock, so records are only buffered here and written to disk in background
+		boolean queueFlush = false;
+		synchronized (mIndexLock)
+		{
+			try
+			{
+				writeIndexRecord(mIndexPending, operation, cacheItem);
+				mIndexRecords++;
+			}
+			catch (IOException e)
+			{
+				// Not possible for byte array stream
+				throw new RuntimeException(e);
+			}
+			if (!mIndexFlushQueued)
+			{
+				mIndexFlushQueued = true;
+				queueFlush = true;
+			}
+		}
+		if (queueFlush)
+		{
+			AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					flushIndex();
+				}
+			});
+		}
+		compactIndexIfNecessary();
+	}
+	
+	private void flushIndex()
+	{
+		synchronized (mIndexFileLock)
+		{
+			byte[] records;
+			synchronized (mIndexLock)
+			{
+				mIndexFlushQueued = false;
+				// Records will be written by compaction after the new file replaces the old one
+				if (mIndexCompacting || mIndexPendingBuffer.size() == 0) return;
+				records = mIndexPendingBuffer.toByteArray();
+				mIndexPendingBuffer.reset();
+			}
+			try
+			{
+				if (mIndexOutput == null)
+				{
+					File file = getIndexFile();
+					if (file == null) return;
+					boolean exists = file.exists();
+					mIndexOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+					if (!exists) mIndexOutput.writeInt(INDEX_MAGIC);
+				}
+				mIndexOutput.write(records);
+				mIndexOutput.flush();
+			}
+			catch (IOException e)
+			{
+				IOUtils.close(mIndexOutput);
+				mIndexOutput = null;
+			}
+		}
+	}
+	
+	private static void writeIndexRecord(DataOutputStream output, int operation, CacheItem cacheItem)
+			throws IOException
+	{
+		output.writeByte(operation);
+		output.writeByte(cacheItem.type);
+		output.writeUTF(cacheItem.name);
+		if (operation == INDEX_RECORD_PUT)
+		{
+			output.writeLong(cacheItem.length);
+			output.writeLong(cacheItem.lastModified);
+		}
+	}
+	
+	private void compactIndexIfNecessary()
+	{
+		synchronized (mIndexLock)
+		{
+			int count = mThumbnailsCache.size() + mMediaCache.size() + mPagesCache.size();
+			if (mIndexCompactQueued || mIndexRecords <= Math.max(2 * count, INDEX_MIN_COMPACT_RECORDS)) return;
+			mIndexCompactQueued = true;
+		}
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				compactIndex();
+			}
+		});
+	}
+	
+	private void compactIndex()
+	{
+		File file = getIndexFile();
+		if (file == null)
+		{
+			synchronized (mIndexLock)
+			{
+				mIndexCompactQueued = false;
+			}
+			return;
+		}
+		File tempFile = new File(file.getParentFile(), INDEX_FILE_NAME + ".tmp");
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		int records = 0;
+		// Items are copied under locks, lock order must be the same as in other places: cache items first,
+		// index last. Records written after this point stay in pending buffer and will be appended to new file.
+		synchronized (mThumbnailsCache)
+		{
+			synchronized (mMediaCache)
+			{
+				synchronized (mPagesCache)
+				{
+					synchronized (mIndexLock)
+					{
+						try
+						{
+							DataOutputStream output = new DataOutputStream(snapshot);
+							output.writeInt(INDEX_MAGIC);
+							for (int i = CacheItem.TYPE_THUMBNAILS; i <= CacheItem.TYPE_PAGES; i++)
+							{
+								for (CacheItem cacheItem : getCacheItems(i).values())
+								{
+									writeIndexRecord(output, INDEX_RECORD_PUT, cacheItem);
+									records++;
+								}
+							}
+						}
+						catch (IOException e)
+						{
+							// Not possible for byte array stream
+							throw new RuntimeException(e);
+						}
+						// Pending records are already applied to copied cache items
+						mIndexPendingBuffer.reset();
+						mIndexRecords = records;
+						mIndexCompacting = true;
+					}
+				}
+			}
+		}
+		synchronized (mIndexFileLock)
+		{
+			IOUtils.close(mIndexOutput);
+			mIndexOutput = null;
+			FileOutputStream output = null;
+			boolean success = false;
+			try
+			{
+				output = new FileOutputStream(tempFile);
+				snapshot.writeTo(output);
+				output.flush();
+				success = true;
+			}
+			catch (IOException e)
+			{
+				
+			}
+			finally
+			{
+				IOUtils.close(output);
+			}
+			boolean renamed = success && tempFile.renameTo(file);
+			if (!renamed)
+			{
+				tempFile.delete();
+				file.delete();
+			}
+			synchronized (mIndexLock)
+			{
+				if (!renamed) mIndexRecords = 0;
+				mIndexCompactQueued = false;
+				mIndexCompacting = false;
+			}
+		}
+		flushIndex();
 	}
 	
 	private void cleanupAsync(boolean thumbnails, boolean media, boolean pages)
@@ -333,6 +710,7 @@ public class CacheManager implements Runnable
 				deleteAmount -= cacheItem.length;
 				size -= cacheItem.length;
 				iterator.remove();
+				writeIndexRemove(cacheItem);
 				cleanupCacheItems.add(cacheItem);
 			}
 		}
@@ -358,6 +736,10 @@ public class CacheManager implements Runnable
 				{
 					mFavoriteFiles.add(getPostsFileName(favoriteItem.chanName, favoriteItem.boardName,
 							favoriteItem.threadNumber).toLowerCase(Locale.US));
+					mFavoriteFiles.add(getReplyGraphFileName(favoriteItem.chanName, favoriteItem.boardName,
+							favoriteItem.threadNumber).toLowerCase(Locale.US));
+					mFavoriteFiles.add(getParsedCommentsFileName(favoriteItem.chanName, favoriteItem.boardName,
+							favoriteItem.threadNumber).toLowerCase(Locale.US));
 				}
 			}
 		}
@@ -418,6 +800,7 @@ public class CacheManager implements Runnable
 			if (cacheItem != null && !file.exists())
 			{
 				cacheItems.remove(cacheItem.nameLc);
+				writeIndexRemove(cacheItem);
 				modifyCacheSize(type, -cacheItem.length);
 				cacheItem = null;
 			}
@@ -439,10 +822,16 @@ public class CacheManager implements Runnable
 				{
 					long lastModified = System.currentTimeMillis();
 					file.setLastModified(lastModified);
+					boolean writeIndex = lastModified - cacheItem.lastModified >= INDEX_TOUCH_THRESHOLD;
 					cacheItem.lastModified = lastModified;
 					cacheItems.put(fileNameLc, cacheItem);
+					if (writeIndex) writeIndexPut(cacheItem);
+				}
+				else
+				{
+					modifyCacheSize(type, -cacheItem.length);
+					writeIndexRemove(cacheItem);
 				}
-				else modifyCacheSize(type, -cacheItem.length);
 			}
 		}
 	}
@@ -461,7 +850,9 @@ public class CacheManager implements Runnable
 				cacheItem = new CacheItem(file, type);
 				cacheItems.put(cacheItem.nameLc, cacheItem);
 				lengthDelta += cacheItem.length;
+				writeIndexPut(cacheItem);
 			}
+			else if (cacheItem != null) writeIndexRemove(cacheItem);
 			modifyCacheSize(type, lengthDelta);
 			if (success)
 			{
@@ -535,6 +926,7 @@ public class CacheManager implements Runnable
 				deleted += cacheItem.length;
 				new File(directory, cacheItem.name).delete();
 				iterator.remove();
+				writeIndexRemove(cacheItem);
 			}
 		}
 		return deleted;
@@ -546,6 +938,8 @@ public class CacheManager implements Runnable
 		{
 			eraseCache(mThumbnailsCache, getThumbnailsDirectory(), null);
 			mThumbnailsCacheSize = 0L;
+			ThumbnailsStore thumbnailsStore = getThumbnailsStore();
+			if (thumbnailsStore != null) thumbnailsStore.clear();
 		}
 	}
 	
@@ -667,34 +1061,56 @@ public class CacheManager implements Runnable
 		}
 	}
 	
-	private final LruCache<String, Bitmap> mBitmapCache = new LruCache<>(MainApplication.getInstance().isLowRam()
-			? 50 : 200);
+	private final BitmapLruCache mBitmapCache = new BitmapLruCache(Runtime.getRuntime().maxMemory() /
+			(MainApplication.getInstance().isLowRam() ? 16 : 8), 4);
 	
 	public boolean isThumbnailCachedMemory(String thumbnailKey)
 	{
-		synchronized (mBitmapCache)
-		{
-			return mBitmapCache.get(thumbnailKey) != null;
-		}
+		return mBitmapCache.contains(thumbnailKey);
 	}
 	
 	public Bitmap loadThumbnailMemory(String thumbnailKey)
 	{
-		synchronized (mBitmapCache)
+		return mBitmapCache.get(thumbnailKey);
+	}
+	
+	public void storeThumbnailMemory(String thumbnailKey, Bitmap data)
+	{
+		mBitmapCache.putIfAbsent(thumbnailKey, data);
+	}
+	
+	public BitmapLruCache.Statistics getThumbnailMemoryStatistics()
+	{
+		return mBitmapCache.getStatistics();
+	}
+	
+	private ThumbnailsStore mThumbnailsStore;
+	
+	private ThumbnailsStore getThumbnailsStore()
+	{
+		File directory = getThumbnailsDirectory();
+		if (directory == null) return null;
+		synchronized (this)
 		{
-			return mBitmapCache.get(thumbnailKey);
+			if (mThumbnailsStore == null || !directory.equals(mThumbnailsStore.getDirectory()))
+			{
+				mThumbnailsStore = new ThumbnailsStore(directory);
+			}
+			return mThumbnailsStore;
 		}
 	}
 	
-	public void storeThumbnailMemory(String thumbnailKey, Bitmap data)
+	private void onThumbnailsFileDeleted(String fileName)
 	{
-		synchronized (mBitmapCache)
+		int segment = ThumbnailsStore.getSegment(fileName);
+		if (segment >= 0)
 		{
-			if (isThumbnailCachedMemory(thumbnailKey)) return;
-			mBitmapCache.put(thumbnailKey, data);
+			ThumbnailsStore thumbnailsStore = getThumbnailsStore();
+			if (thumbnailsStore != null) thumbnailsStore.removeSegment(segment);
 		}
 	}
 	
+	// Returns file for thumbnails stored before packed store was introduced
 	public File getThumbnailFile(String thumbnailKey)
 	{
 		File directory = getThumbnailsDirectory();
@@ -705,8 +1121,26 @@ public class CacheManager implements Runnable
 	public Bitmap loadThumbnailExternal(String thumbnailKey)
 	{
 		if (!isCacheAvailable()) return null;
+		ThumbnailsStore thumbnailsStore = getThumbnailsStore();
+		if (thumbnailsStore == null) return null;
+		ThumbnailsStore.Entry entry = thumbnailsStore.find(thumbnailKey);
+		if (entry != null)
+		{
+			File file = thumbnailsStore.getSegmentFile(entry.segment);
+			String fileName = file.getName();
+			if (isFileExistsInCache(file, fileName, CacheItem.TYPE_THUMBNAILS))
+			{
+				byte[] data = thumbnailsStore.read(entry);
+				Bitmap bitmap = data != null ? BitmapFactory.decodeByteArray(data, 0, data.length) : null;
+				if (bitmap != null)
+				{
+					updateCachedFileLastModified(file, fileName, CacheItem.TYPE_THUMBNAILS);
+					return bitmap;
+				}
+			}
+			else thumbnailsStore.removeSegment(entry.segment);
+		}
 		File file = getThumbnailFile(thumbnailKey);
-		if (file == null) return null;
 		if (!isFileExistsInCache(file, thumbnailKey, CacheItem.TYPE_THUMBNAILS)) return null;
 		Bitmap bitmap = null;
 		FileInputStream fis = null;
@@ -735,26 +1169,14 @@ public class CacheManager implements Runnable
 	public void storeThumbnailExternal(String thumbnailKey, Bitmap data)
 	{
 		if (!isCacheAvailable()) return;
-		File directory = getThumbnailsDirectory();
-		if (directory == null) return;
-		boolean success = false;
-		OutputStream outputStream = null;
-		File file = new File(directory, thumbnailKey);
-		try
-		{
-			outputStream = new FileOutputStream(file);
-			data.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-			success = true;
-		}
-		catch (FileNotFoundException e)
-		{
-			
-		}
-		finally
-		{
-			IOUtils.close(outputStream);
-			validateNewCachedFile(file, thumbnailKey, CacheItem.TYPE_THUMBNAILS, success);
-		}
+		ThumbnailsStore thumbnailsStore = getThumbnailsStore();
+		if (thumbnailsStore == null) return;
+		// Lossless PNG is required only to keep transparency
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		if (data.hasAlpha()) data.compress(Bitmap.CompressFormat.PNG, 100, output);
+		else data.compress(Bitmap.CompressFormat.JPEG, 90, output);
+		File file = thumbnailsStore.write(thumbnailKey, output.toByteArray());
+		if (file != null) validateNewCachedFile(file, file.getName(), CacheItem.TYPE_THUMBNAILS, true);
 	}
 	
 	private final Object mSerializationQueueLock = new Object();
@@ -795,7 +1217,18 @@ public class CacheManager implements Runnable
 	
 	private final HashMap<File, Pair<FutureTask<Void>, SerializeCallback>> TASKS_MAP = new HashMap<>();
 	
+	// Lengths of snapshot and of snapshot with valid appended records
+	private final HashMap<File, long[]> mPagesAppendLengths = new HashMap<>();
+	// Files where the last append failed, so the next write must replace the whole file
+	private final HashSet<File> mPagesSnapshotRequired = new HashSet<>();
+	
 	private void serializeInternal(File file, String fileName, boolean pagesCache, Object object)
+	{
+		serializeInternal(file, fileName, pagesCache, object, false, null, null);
+	}
+	
+	private void serializeInternal(File file, String fileName, boolean pagesCache, Object object, boolean delta,
+			Post[] deltaPosts, Posts.MergeAction[] deltaActions)
 	{
 		if (pagesCache)
 		{
@@ -806,10 +1239,20 @@ public class CacheManager implements Runnable
 		Pair<FutureTask<Void>, SerializeCallback> pair = TASKS_MAP.get(file);
 		if (pair != null)
 		{
+			// Pending record will be lost, so the whole snapshot must be written instead
+			if (!pair.first.isDone())
+			{
+				delta = false;
+				if (object instanceof ParsedComments)
+				{
+					object = ((ParsedComments) object).mergeStored(pair.second.mObject);
+				}
+			}
 			pair.first.cancel(true);
 			pair.second.onCancel();
 		}
-		SerializeCallback callback = new SerializeCallback(file, fileName, pagesCache, object);
+		SerializeCallback callback = new SerializeCallback(file, fileName, pagesCache, object, delta,
+				deltaPosts, deltaActions);
 		FutureTask<Void> task = new FutureTask<>(callback);
 		TASKS_MAP.put(file, new Pair<>(task, callback));
 		AsyncTask.THREAD_POOL_EXECUTOR.execute(task);
@@ -828,12 +1271,11 @@ public class CacheManager implements Runnable
 		}
 		else if (!file.exists()) return null;
 		if (withPagesCache) updateCachedFileLastModified(file, fileName, CacheItem.TYPE_PAGES);
-		ObjectInputStream objectInputStream = null;
+		FileInputStream fileInputStream = null;
 		try
 		{
-			FileInputStream fileInputStream = new FileInputStream(file);
-			objectInputStream = new ObjectInputStream(fileInputStream);
-			return (T) objectInputStream.readObject();
+			fileInputStream = new FileInputStream(file);
+			return (T) ModelCodec.read(fileInputStream);
 		}
 		catch (Exception e)
 		{
@@ -841,7 +1283,7 @@ public class CacheManager implements Runnable
 		}
 		finally
 		{
-			IOUtils.close(objectInputStream);
+			IOUtils.close(fileInputStream);
 		}
 		return null;
 	}
@@ -852,14 +1294,98 @@ public class CacheManager implements Runnable
 		private final String mFileName;
 		private final boolean mWithPagesCache;
 		private final Object mObject;
+		private final boolean mDelta;
+		private final Post[] mDeltaPosts;
+		private final Posts.MergeAction[] mDeltaActions;
 		private final StreamHolder mHolder = new StreamHolder();
 		
-		public SerializeCallback(File file, String fileName, boolean withPagesCache, Object object)
+		public SerializeCallback(File file, String fileName, boolean withPagesCache, Object object, boolean delta,
+				Post[] deltaPosts, Posts.MergeAction[] deltaActions)
 		{
 			mFile = file;
 			mFileName = fileName;
 			mWithPagesCache = withPagesCache;
 			mObject = object;
+			mDelta = delta;
+			mDeltaPosts = deltaPosts;
+			mDeltaActions = deltaActions;
+		}
+		
+		// Returns length of valid data to append after or -1 if the whole snapshot must be written
+		private long getAppendOffset()
+		{
+			if (!mDelta) return -1;
+			long[] lengths;
+			synchronized (mPagesAppendLengths)
+			{
+				if (mPagesSnapshotRequired.contains(mFile)) return -1;
+				lengths = mPagesAppendLengths.get(mFile);
+			}
+			if (lengths == null)
+			{
+				// Lengths are not known after restart, so they are recovered from existing file
+				lengths = readAppendLengths();
+				if (lengths == null) return -1;
+				synchronized (mPagesAppendLengths)
+				{
+					mPagesAppendLengths.put(mFile, lengths);
+				}
+			}
+			long snapshotLength = lengths[0];
+			long validLength = lengths[1];
+			return validLength >= snapshotLength && validLength <= PAGES_COMPACT_FACTOR * snapshotLength
+					&& mFile.length() >= validLength ? validLength : -1;
+		}
+		
+		private Object readStored()
+		{
+			if (!mFile.exists()) return null;
+			FileInputStream fileInput = null;
+			try
+			{
+				fileInput = new FileInputStream(mFile);
+				return ModelCodec.read(fileInput);
+			}
+			catch (Exception e)
+			{
+				return null;
+			}
+			finally
+			{
+				IOUtils.close(fileInput);
+			}
+		}
+		
+		private void truncate(long length) throws IOException
+		{
+			RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+			try
+			{
+				randomAccessFile.setLength(length);
+			}
+			finally
+			{
+				IOUtils.close(randomAccessFile);
+			}
+		}
+		
+		private long[] readAppendLengths()
+		{
+			if (!mFile.exists()) return null;
+			FileInputStream fileInput = null;
+			try
+			{
+				fileInput = new FileInputStream(mFile);
+				return ModelCodec.readAppendLengths(fileInput);
+			}
+			catch (Exception e)
+			{
+				return null;
+			}
+			finally
+			{
+				IOUtils.close(fileInput);
+			}
 		}
 		
 		@Override
@@ -869,22 +1395,25 @@ public class CacheManager implements Runnable
 			{
 				boolean success = false;
 				FileOutputStream fileOutput = null;
+				long appendOffset = getAppendOffset();
+				boolean append = appendOffset >= 0;
+				Object object = mObject;
+				if (!append && object instanceof ParsedComments)
+				{
+					// Only new entries are kept in memory, so stored ones must be copied to the new snapshot
+					object = ((ParsedComments) object).mergeStored(readStored());
+				}
 				try
 				{
-					ByteArrayOutputStream output = new ByteArrayOutputStream();
-					ObjectOutputStream objectOutput = new ObjectOutputStream(output);
-					synchronized (mHolder)
-					{
-						mHolder.stream = objectOutput;
-					}
-					objectOutput.writeObject(mObject);
-					byte[] bytes = output.toByteArray();
-					fileOutput = new FileOutputStream(mFile);
+					// Damaged record left by failed write is removed, so the new one follows the last valid one
+					if (append && mFile.length() > appendOffset) truncate(appendOffset);
+					fileOutput = new FileOutputStream(mFile, append);
 					synchronized (mHolder)
 					{
 						mHolder.stream = fileOutput;
 					}
-					IOUtils.copyStream(new ByteArrayInputStream(bytes), fileOutput);
+					if (append) ModelCodec.writeDelta(fileOutput, mObject, mDeltaPosts, mDeltaActions);
+					else ModelCodec.write(fileOutput, object);
 					success = true;
 				}
 				catch (Exception e)
@@ -894,6 +1423,26 @@ public class CacheManager implements Runnable
 				finally
 				{
 					IOUtils.close(fileOutput);
+					synchronized (mPagesAppendLengths)
+					{
+						if (success)
+						{
+							long length = mFile.length();
+							long[] lengths = mPagesAppendLengths.get(mFile);
+							if (append && lengths != null) lengths[1] = length;
+							else if (!append && ModelCodec.isDeltaSupported(mObject))
+							{
+								mPagesAppendLengths.put(mFile, new long[] {length, length});
+							}
+							mPagesSnapshotRequired.remove(mFile);
+						}
+						else
+						{
+							// File may end with a torn record now
+							mPagesAppendLengths.remove(mFile);
+							mPagesSnapshotRequired.add(mFile);
+						}
+					}
 					if (mWithPagesCache) validateNewCachedFile(mFile, mFileName, CacheItem.TYPE_PAGES, success);
 				}
 				return null;
@@ -964,8 +1513,9 @@ public class CacheManager implements Runnable
 			CacheItem cacheItem = mPagesCache.get(fileName.toLowerCase(Locale.US));
 			if (cacheItem != null)
 			{
-				mPagesCache.remove(fileName);
+				mPagesCache.remove(cacheItem.nameLc);
 				mPagesCacheSize -= cacheItem.length;
+				writeIndexRemove(cacheItem);
 			}
 			File file = getPagesFile(fileName);
 			if (file != null) file.delete();
@@ -980,6 +1530,16 @@ public class CacheManager implements Runnable
 		}
 	}
 	
+	public void serializePostsDelta(String chanName, String boardName, String threadNumber, Posts posts,
+			Post[] handlePosts, Posts.MergeAction[] actions)
+	{
+		if (allowPagesCache(chanName))
+		{
+			serializeInternal(null, getPostsFileName(chanName, boardName, threadNumber), true, posts, true,
+					handlePosts, actions);
+		}
+	}
+	
 	public Posts deserializePosts(String chanName, String boardName, String threadNumber, StreamHolder holder)
 	{
 		if (allowPagesCache(chanName))
@@ -996,6 +1556,70 @@ public class CacheManager implements Runnable
 		else return null;
 	}
 	
+	public void serializeReplyGraph(String chanName, String boardName, String threadNumber, ReplyGraph replyGraph)
+	{
+		if (allowPagesCache(chanName))
+		{
+			serializeInternal(null, getReplyGraphFileName(chanName, boardName, threadNumber), true, replyGraph);
+		}
+	}
+	
+	public void serializeReplyGraphDelta(String chanName, String boardName, String threadNumber,
+			ReplyGraph replyGraph)
+	{
+		if (allowPagesCache(chanName))
+		{
+			serializeInternal(null, getReplyGraphFileName(chanName, boardName, threadNumber), true, replyGraph,
+					replyGraph.hasDelta(), null, null);
+		}
+	}
+	
+	public ReplyGraph deserializeReplyGraph(String chanName, String boardName, String threadNumber,
+			StreamHolder holder)
+	{
+		if (allowPagesCache(chanName))
+		{
+			try
+			{
+				return deserializeInternal(null, getReplyGraphFileName(chanName, boardName, threadNumber), true,
+						holder);
+			}
+			catch (ClassCastException e)
+			{
+				return null;
+			}
+		}
+		else return null;
+	}
+	
+	public void serializeParsedComments(String chanName, String boardName, String threadNumber,
+			ParsedComments parsedComments)
+	{
+		if (allowPagesCache(chanName))
+		{
+			serializeInternal(null, getParsedCommentsFileName(chanName, boardName, threadNumber), true,
+					parsedComments, true, null, null);
+		}
+	}
+	
+	public ParsedComments deserializeParsedComments(String chanName, String boardName, String threadNumber,
+			StreamHolder holder)
+	{
+		if (allowPagesCache(chanName))
+		{
+			try
+			{
+				return deserializeInternal(null, getParsedCommentsFileName(chanName, boardName, threadNumber), true,
+						holder);
+			}
+			catch (ClassCastException e)
+			{
+				return null;
+			}
+		}
+		else return null;
+	}
+	
 	private String getThreadsFileName(String chanName, String boardName)
 	{
 		return "threads_" + chanName + "_" + boardName;
@@ -1006,6 +1630,16 @@ public class CacheManager implements Runnable
 		return "posts_" + chanName + "_" + boardName + "_" + threadNumber;
 	}
 	
+	private String getReplyGraphFileName(String chanName, String boardName, String threadNumber)
+	{
+		return "replies_" + chanName + "_" + boardName + "_" + threadNumber;
+	}
+	
+	private String getParsedCommentsFileName(String chanName, String boardName, String threadNumber)
+	{
+		return "comments_" + chanName + "_" + boardName + "_" + threadNumber;
+	}
+	
 	private File getPagesFile(String fileName)
 	{
 		File directory = getPagesDirectory();
@@ -1096,4 +1730,81 @@ public class CacheManager implements Runnable
 		IOUtils.copyInternalFile(file, shareFile);
 		return new Pair<File, String>(shareFile, mimeType);
 	}
+	
+	private static final String VIDEO_BUFFER_FILE_NAME_START = "video-buffer-";
+	private static final String HTTP_CACHE_PART_FILE_NAME_START = "http-part-";
+	
+	private void handleBufferFiles()
+	{
+		// Buffers are deleted when streams are closed, so the remaining ones are left after process death
+		File tempDirectory = getExternalTempDirectory();
+		if (tempDirectory == null) return;
+		File[] files = tempDirectory.listFiles();
+		if (files != null)
+		{
+			for (File tempFile : files)
+			{
+				String name = tempFile.getName();
+				if (name.startsWith(VIDEO_BUFFER_FILE_NAME_START) || name.startsWith(HTTP_CACHE_PART_FILE_NAME_START))
+				{
+					tempFile.delete();
+				}
+			}
+		}
+	}
+	
+	public File createVideoBufferFile()
+	{
+		File tempDirectory = getExternalTempDirectory();
+		if (tempDirectory == null) return null;
+		try
+		{
+			return File.createTempFile(VIDEO_BUFFER_FILE_NAME_START, null, tempDirectory);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+	
+	private static final String HTTP_CACHE_FILE_NAME_START = "http_";
+	
+	private String getHttpCacheFileName(String chanName, Uri uri)
+	{
+		return HTTP_CACHE_FILE_NAME_START + chanName + "_" + getCachedFileKey(uri);
+	}
+	
+	public File getHttpCacheFile(String chanName, Uri uri)
+	{
+		String fileName = getHttpCacheFileName(chanName, uri);
+		File file = getPagesFile(fileName);
+		if (file == null || !isFileExistsInCache(file, fileName, CacheItem.TYPE_PAGES)) return null;
+		updateCachedFileLastModified(file, fileName, CacheItem.TYPE_PAGES);
+		return file;
+	}
+	
+	public File createHttpCachePartFile()
+	{
+		File tempDirectory = getExternalTempDirectory();
+		if (tempDirectory == null) return null;
+		try
+		{
+			return File.createTempFile(HTTP_CACHE_PART_FILE_NAME_START, null, tempDirectory);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+	
+	public void storeHttpCacheFile(String chanName, Uri uri, File partFile)
+	{
+		String fileName = getHttpCacheFileName(chanName, uri);
+		File file = getPagesFile(fileName);
+		if (file != null && partFile.renameTo(file))
+		{
+			validateNewCachedFile(file, fileName, CacheItem.TYPE_PAGES, true);
+		}
+		else partFile.delete();
+	}
 }
\ No newline at end of file
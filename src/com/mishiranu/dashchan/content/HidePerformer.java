@@ -27,6 +27,7 @@ import chan.util.StringUtils;
 import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.app.MainApplication;
 import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.content.storage.AutohideRules;
 import com.mishiranu.dashchan.content.storage.AutohideStorage;
 import com.mishiranu.dashchan.text.SimilarTextEstimator;
 import com.mishiranu.dashchan.util.ToastUtils;
@@ -41,6 +42,7 @@ public class HidePerformer
 	
 	private ArrayList<String> mNames;
 	private ArrayList<SimilarTextEstimator.WordsData> mWords;
+	private final SimilarTextEstimator.Index mWordsIndex = new SimilarTextEstimator.Index(mEstimator);
 	
 	public HidePerformer()
 	{
@@ -61,7 +63,11 @@ public class HidePerformer
 		if (mNames != null)
 		{
 			String name = postItem.getFullName().toString();
-			if (mNames.contains(name)) return "name " + name;
+			// Names are checked from preloading threads while rules can be changed
+			synchronized (this)
+			{
+				if (mNames != null && mNames.contains(name)) return "name " + name;
+			}
 		}
 		return null;
 	}
@@ -71,16 +77,8 @@ public class HidePerformer
 		if (mWords != null)
 		{
 			SimilarTextEstimator.WordsData wordsData = mEstimator.getWords(postItem.getComment().toString());
-			if (wordsData != null)
-			{
-				for (SimilarTextEstimator.WordsData similarWordsData : mWords)
-				{
-					if (mEstimator.checkSimiliar(wordsData, similarWordsData))
-					{
-						return "similar to " + similarWordsData.postNumber;
-					}
-				}
-			}
+			SimilarTextEstimator.WordsData similarWordsData = mWordsIndex.findSimilar(wordsData);
+			if (similarWordsData != null) return "similar to " + similarWordsData.postNumber;
 		}
 		return null;
 	}
@@ -95,40 +93,38 @@ public class HidePerformer
 		String subject = null;
 		String comment = null;
 		String name = null;
-		ArrayList<AutohideStorage.AutohideItem> autohideItems = mAutohideStorage.getItems();
-		for (int i = 0; i < autohideItems.size(); i++)
+		AutohideRules rules = mAutohideStorage.getRules();
+		AutohideRules.Session session = null;
+		for (int index : rules.getCandidates(chanName, boardName))
 		{
-			AutohideStorage.AutohideItem autohideItem = autohideItems.get(i);
+			AutohideStorage.AutohideItem autohideItem = rules.getItem(index);
 			// AND selection (only if chan, board, thread, op and sage matches to rule)
-			if (autohideItem.chanNames == null || autohideItem.chanNames.contains(chanName))
+			if (StringUtils.isEmpty(autohideItem.threadNumber) || autohideItem.boardName != null &&
+					autohideItem.threadNumber.equals(originalPostNumber))
 			{
-				if (StringUtils.isEmpty(autohideItem.boardName) || boardName == null
-						|| autohideItem.boardName.equals(boardName))
+				if ((!autohideItem.optionOriginalPost || autohideItem.optionOriginalPost == originalPost)
+						&& (!autohideItem.optionSage || autohideItem.optionSage == sage))
 				{
-					if (StringUtils.isEmpty(autohideItem.threadNumber) || autohideItem.boardName != null &&
-							autohideItem.threadNumber.equals(originalPostNumber))
+					String result = null;
+					if (session == null) session = rules.newSession();
+					// OR selection (hide if subj, exp or name matches to rule)
+					if (subject == null) subject = postItem.getSubject();
+					if (autohideItem.optionSubject && (result = session.find(index,
+							AutohideRules.FIELD_SUBJECT, subject)) != null)
 					{
-						if ((!autohideItem.optionOriginalPost || autohideItem.optionOriginalPost == originalPost)
-								&& (!autohideItem.optionSage || autohideItem.optionSage == sage))
-						{
-							String result = null;
-							// OR selection (hide if subj, exp or name matches to rule)
-							if (subject == null) subject = postItem.getSubject();
-							if (autohideItem.optionSubject && (result = autohideItem.find(subject)) != null)
-							{
-								return autohideItem.getReason(true, false, comment, result);
-							}
-							if (comment == null) comment = postItem.getComment().toString();
-							if (autohideItem.optionComment && (result = autohideItem.find(comment)) != null)
-							{
-								return autohideItem.getReason(false, false, comment, result);
-							}
-							if (name == null) name = postItem.getFullName().toString();
-							if (autohideItem.optionName && (result = autohideItem.find(name)) != null)
-							{
-								return autohideItem.getReason(false, true, name, result);
-							}
-						}
+						return autohideItem.getReason(true, false, comment, result);
+					}
+					if (comment == null) comment = postItem.getComment().toString();
+					if (autohideItem.optionComment && (result = session.find(index,
+							AutohideRules.FIELD_COMMENT, comment)) != null)
+					{
+						return autohideItem.getReason(false, false, comment, result);
+					}
+					if (name == null) name = postItem.getFullName().toString();
+					if (autohideItem.optionName && (result = session.find(index,
+							AutohideRules.FIELD_NAME, name)) != null)
+					{
+						return autohideItem.getReason(false, true, name, result);
 					}
 				}
 			}
@@ -143,11 +139,14 @@ public class HidePerformer
 			ToastUtils.show(MainApplication.getInstance(), R.string.message_hide_default_name_error);
 			return false;
 		}
-		if (mNames == null) mNames = new ArrayList<>();
 		String fullName = postItem.getFullName().toString();
-		// Remove repeats
-		mNames.remove(fullName);
-		mNames.add(fullName);
+		synchronized (this)
+		{
+			if (mNames == null) mNames = new ArrayList<>();
+			// Remove repeats
+			mNames.remove(fullName);
+			mNames.add(fullName);
+		}
 		return true;
 	}
 	
@@ -160,15 +159,19 @@ public class HidePerformer
 			ToastUtils.show(MainApplication.getInstance(), R.string.message_too_few_meaningful_words);
 			return true;
 		}
-		if (mWords == null) mWords = new ArrayList<>();
 		String postNumber = postItem.getPostNumber();
 		wordsData.postNumber = postNumber;
-		// Remove repeats
-		for (int i = mWords.size() - 1; i >= 0; i--)
+		synchronized (this)
 		{
-			if (postNumber.equals(mWords.get(i).postNumber)) mWords.remove(i);
+			if (mWords == null) mWords = new ArrayList<>();
+			// Remove repeats
+			for (int i = mWords.size() - 1; i >= 0; i--)
+			{
+				if (postNumber.equals(mWords.get(i).postNumber)) mWordsIndex.remove(mWords.remove(i));
+			}
+			mWords.add(wordsData);
+			mWordsIndex.add(wordsData);
 		}
-		mWords.add(wordsData);
 		return true;
 	}
 	
@@ -200,7 +203,7 @@ public class HidePerformer
 		return localAutohide;
 	}
 	
-	public void removeLocalAutohide(int index)
+	public synchronized void removeLocalAutohide(int index)
 	{
 		if (mNames != null)
 		{
@@ -213,7 +216,7 @@ public class HidePerformer
 		}
 		if (mWords != null)
 		{
-			mWords.remove(index);
+			mWordsIndex.remove(mWords.remove(index));
 			if (mWords.isEmpty()) mWords = null;
 		}
 	}
@@ -221,7 +224,7 @@ public class HidePerformer
 	private static final String TYPE_NAME = "name";
 	private static final String TYPE_SIMILAR = "similar";
 	
-	public void encodeLocalAutohide(Posts posts)
+	public synchronized void encodeLocalAutohide(Posts posts)
 	{
 		String[][] localAutohide = null;
 		int namesLength = mNames != null ? mNames.size() : 0;
@@ -245,7 +248,7 @@ public class HidePerformer
 		posts.setLocalAutohide(localAutohide);
 	}
 	
-	public void decodeLocalAutohide(Posts posts)
+	public synchronized void decodeLocalAutohide(Posts posts)
 	{
 		String[][] localAutohide = posts.getLocalAutohide();
 		if (localAutohide != null)
@@ -270,6 +273,7 @@ public class HidePerformer
 						SimilarTextEstimator.WordsData wordsData = new SimilarTextEstimator.WordsData(words, count);
 						wordsData.postNumber = postNumber;
 						mWords.add(wordsData);
+						mWordsIndex.add(wordsData);
 						break;
 					}
 				}
@@ -24,11 +24,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Process;
 import android.util.Base64;
@@ -71,16 +73,22 @@ public class ImageLoader
 	private final HashMap<String, LoaderTask> mLoaderTasks = new HashMap<>();
 	private final HashMap<String, Long> mNotFoundMap = new HashMap<>();
 	
+	private long mSequence = 0;
+	private int mPrefetchGeneration = 0;
+	
+	// Number of list positions after visible range to prefetch thumbnails for
+	public static final int PREFETCH_DISTANCE = 6;
+	
 	private static final HashMap<String, ThreadPoolExecutor> EXECUTORS = new HashMap<>();
 	
 	static
 	{
 		EXECUTORS.put(null, ConcurrentUtils.newThreadPool(3, 3, 0, "ImageLoader", "client",
-				Process.THREAD_PRIORITY_DEFAULT));
+				Process.THREAD_PRIORITY_DEFAULT, new PriorityBlockingQueue<Runnable>()));
 		for (String chanName : ChanManager.getInstance().getAvailableChanNames())
 		{
 			EXECUTORS.put(chanName, ConcurrentUtils.newThreadPool(3, 3, 0, "ImageLoader", chanName,
-					Process.THREAD_PRIORITY_DEFAULT));
+					Process.THREAD_PRIORITY_DEFAULT, new PriorityBlockingQueue<Runnable>()));
 		}
 	}
 	
@@ -171,6 +179,32 @@ public class ImageLoader
 		}
 	}
 	
+	// Queue order: distance from visible range of the list, then the most recent request
+	private static class QueuedTask implements Runnable, Comparable<QueuedTask>
+	{
+		public final LoaderTask task;
+		private final Runnable mRunnable;
+		
+		public QueuedTask(LoaderTask task, Runnable runnable)
+		{
+			this.task = task;
+			mRunnable = runnable;
+		}
+		
+		@Override
+		public void run()
+		{
+			mRunnable.run();
+		}
+		
+		@Override
+		public int compareTo(QueuedTask another)
+		{
+			if (task.distance != another.task.distance) return task.distance < another.task.distance ? -1 : 1;
+			return task.sequence > another.task.sequence ? -1 : task.sequence < another.task.sequence ? 1 : 0;
+		}
+	}
+	
 	private class LoaderTask extends CancellableTask<Void, Void, Bitmap>
 	{
 		private final HttpHolder mHolder = new HttpHolder();
@@ -183,6 +217,13 @@ public class ImageLoader
 		public final boolean fromCacheOnly;
 		public boolean fromCacheOnlyChecked;
 		
+		// Distance is changed only while task is out of queue
+		public int distance = 0;
+		public long sequence;
+		public int prefetchGeneration = -1;
+		public QueuedTask queuedTask;
+		private volatile boolean mStarted = false;
+		
 		private boolean mNotFound;
 		
 		public LoaderTask(Uri uri, String chanName, String key, ArrayList<Callback<?>> callbacks, boolean fromCacheOnly)
@@ -194,9 +235,24 @@ public class ImageLoader
 			this.fromCacheOnly = fromCacheOnly;
 		}
 		
+		public boolean isStarted()
+		{
+			return mStarted;
+		}
+		
+		public boolean hasBoundCallbacks()
+		{
+			for (Callback<?> callback : callbacks)
+			{
+				if (callback.checkKeys()) return true;
+			}
+			return false;
+		}
+		
 		@Override
 		protected Bitmap doInBackground(Void... params)
 		{
+			mStarted = true;
 			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 			String scheme = mUri.getScheme();
 			boolean chanScheme = "chan".equals(scheme);
@@ -217,6 +273,7 @@ public class ImageLoader
 				}
 				else if (!fromCacheOnly)
 				{
+					byte[] bytes = null;
 					if (chanScheme)
 					{
 						String chanName = mUri.getAuthority();
@@ -255,8 +312,7 @@ public class ImageLoader
 										{
 											IOUtils.close(input);
 										}
-										byte[] bytes = output.toByteArray();
-										bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+										bytes = output.toByteArray();
 									}
 								}
 							}
@@ -269,8 +325,7 @@ public class ImageLoader
 						if (index >= 0)
 						{
 							data = data.substring(index + 7);
-							byte[] bytes = Base64.decode(data, Base64.DEFAULT);
-							if (bytes != null) bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+							bytes = Base64.decode(data, Base64.DEFAULT);
 						}
 					}
 					else
@@ -285,7 +340,7 @@ public class ImageLoader
 							{
 								ChanPerformer.ReadContentResult result = performer.onReadContent(new ChanPerformer
 										.ReadContentData(mUri, connectTimeout, readTimeout, mHolder, null, null));
-								bitmap = result != null && result.response != null ? result.response.getBitmap() : null;
+								bytes = result != null && result.response != null ? result.response.getBytes() : null;
 							}
 							catch (LinkageError | RuntimeException e)
 							{
@@ -295,12 +350,13 @@ public class ImageLoader
 						}
 						else
 						{
-							bitmap = new HttpRequest(mUri, mHolder).setTimeouts(connectTimeout, readTimeout)
-									.read().getBitmap();
+							bytes = new HttpRequest(mUri, mHolder).setTimeouts(connectTimeout, readTimeout)
+									.read().getBytes();
 						}
 					}
 					if (isCancelled()) return null;
-					bitmap = GraphicsUtils.reduceThumbnailSize(MainApplication.getInstance().getResources(), bitmap);
+					bitmap = GraphicsUtils.decodeThumbnail(MainApplication.getInstance().getResources(), bytes);
+					if (bitmap == null) return null;
 					mCacheManager.storeThumbnailMemory(mKey, bitmap);
 					if (storeExternal) mCacheManager.storeThumbnailExternal(mKey, bitmap);
 				}
@@ -333,6 +389,7 @@ public class ImageLoader
 		{
 			cancel(true);
 			mHolder.interrupt();
+			if (queuedTask != null) EXECUTORS.get(mChanName).getQueue().remove(queuedTask);
 		}
 	}
 	
@@ -402,6 +459,42 @@ public class ImageLoader
 		view.setTag(R.id.thumbnail, null);
 	}
 	
+	private void execute(final LoaderTask loaderTask)
+	{
+		final ThreadPoolExecutor executor = EXECUTORS.get(loaderTask.mChanName);
+		loaderTask.sequence = mSequence++;
+		mLoaderTasks.put(loaderTask.mKey, loaderTask);
+		loaderTask.executeOnExecutor(new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				loaderTask.queuedTask = new QueuedTask(loaderTask, command);
+				executor.execute(loaderTask.queuedTask);
+			}
+		});
+	}
+	
+	private void updateDistance(LoaderTask loaderTask, int distance)
+	{
+		if (loaderTask.distance != distance)
+		{
+			// Task is reinserted, so queue order stays consistent
+			BlockingQueue<Runnable> queue = EXECUTORS.get(loaderTask.mChanName).getQueue();
+			QueuedTask queuedTask = loaderTask.queuedTask;
+			boolean removed = queuedTask != null && queue.remove(queuedTask);
+			loaderTask.distance = distance;
+			if (removed) queue.add(queuedTask);
+		}
+	}
+	
+	private boolean isNotFound(String key)
+	{
+		// Check "not found" images once per 5 minutes
+		Long value = mNotFoundMap.get(key);
+		return value != null && System.currentTimeMillis() - value < 5 * 60 * 1000;
+	}
+	
 	private <V extends View> void loadImage(Uri uri, String chanName, String key, ArrayList<Callback<?>> callbacks,
 			Callback<?> newCallback, boolean fromCacheOnly)
 	{
@@ -411,17 +504,13 @@ public class ImageLoader
 			for (Callback<?> callback : callbacks) callback.onSuccess(bitmap);
 			return;
 		}
-		// Check "not found" images once per 5 minutes
-		Long value = mNotFoundMap.get(key);
-		if (value != null && System.currentTimeMillis() - value < 5 * 60 * 1000)
+		if (isNotFound(key))
 		{
 			for (Callback<?> callback : callbacks) callback.onError();
 			return;
 		}
 		if (newCallback != null) newCallback.onPrepare();
-		LoaderTask loaderTask = new LoaderTask(uri, chanName, key, callbacks, fromCacheOnly);
-		mLoaderTasks.put(key, loaderTask);
-		loaderTask.executeOnExecutor(EXECUTORS.get(chanName));
+		execute(new LoaderTask(uri, chanName, key, callbacks, fromCacheOnly));
 	}
 	
 	public <V extends View> void loadImage(Uri uri, String chanName, String key, Callback<V> callback,
@@ -455,6 +544,7 @@ public class ImageLoader
 			{
 				callback.onPrepare();
 				loaderTask.callbacks.add(callback);
+				updateDistance(loaderTask, 0);
 			}
 		}
 		else
@@ -476,4 +566,43 @@ public class ImageLoader
 	{
 		loadImage(uri, chanName, key, new SimpleCallback(imageView), fromCacheOnly);
 	}
+	
+	// Loads image to cache without binding, so it will be displayed immediately when list is scrolled to it
+	public void prefetchImage(Uri uri, String chanName, String key, int distance)
+	{
+		if (key == null) key = mCacheManager.getCachedFileKey(uri);
+		if (mCacheManager.isThumbnailCachedMemory(key) || isNotFound(key)) return;
+		LoaderTask loaderTask = mLoaderTasks.get(key);
+		if (loaderTask != null)
+		{
+			if (loaderTask.fromCacheOnly) return;
+			loaderTask.prefetchGeneration = mPrefetchGeneration;
+			updateDistance(loaderTask, loaderTask.hasBoundCallbacks() ? 0 : distance);
+		}
+		else
+		{
+			loaderTask = new LoaderTask(uri, chanName, key, new ArrayList<Callback<?>>(), false);
+			loaderTask.distance = distance;
+			loaderTask.prefetchGeneration = mPrefetchGeneration;
+			execute(loaderTask);
+		}
+	}
+	
+	// Called when list stops scrolling after visible items are bound and prefetch window is requested.
+	// Queued tasks which views were bound to other items and prefetch tasks outside the window are cancelled.
+	public void onViewportChanged(String chanName)
+	{
+		Iterator<LoaderTask> iterator = mLoaderTasks.values().iterator();
+		while (iterator.hasNext())
+		{
+			LoaderTask loaderTask = iterator.next();
+			if (StringUtils.equals(chanName, loaderTask.mChanName) && !loaderTask.isStarted()
+					&& loaderTask.prefetchGeneration != mPrefetchGeneration && !loaderTask.hasBoundCallbacks())
+			{
+				iterator.remove();
+				loaderTask.cancel();
+			}
+		}
+		mPrefetchGeneration++;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+
+// Prepares comments and hidden state of posts on a shared pool sized by available cores. Workers claim small
+// chunks from a single list ordered by priority, so idle workers pick up the rest of work immediately and
+// nearest posts are handled first. Cancellation only marks the session, so it never waits for workers.
+public class PostsPreloader
+{
+	private static final int WORKERS_COUNT = Math.max(1, Math.min(4,
+			Runtime.getRuntime().availableProcessors() - 1));
+	private static final int CHUNK_SIZE = 4;
+	
+	private static final ThreadPoolExecutor EXECUTOR = ConcurrentUtils.newThreadPool(WORKERS_COUNT,
+			WORKERS_COUNT, 10000, "PostsPreloader", null, Process.THREAD_PRIORITY_BACKGROUND);
+	
+	static
+	{
+		EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+	
+	public static class Session
+	{
+		private final PostItem[] mPostItems;
+		private final HidePerformer mHidePerformer;
+		private final int mChunksCount;
+		private final AtomicInteger mIndex = new AtomicInteger();
+		private final AtomicInteger mCompletedChunks = new AtomicInteger();
+		
+		private volatile boolean mCancelled = false;
+		
+		private Session(PostItem[] postItems, HidePerformer hidePerformer)
+		{
+			mPostItems = postItems;
+			mHidePerformer = hidePerformer;
+			mChunksCount = (postItems.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		}
+		
+		private void preload()
+		{
+			PostItem[] postItems = mPostItems;
+			while (!mCancelled)
+			{
+				if (Thread.currentThread().isInterrupted())
+				{
+					cancel();
+					break;
+				}
+				int start = mIndex.getAndAdd(CHUNK_SIZE);
+				if (start >= postItems.length) break;
+				int end = Math.min(start + CHUNK_SIZE, postItems.length);
+				try
+				{
+					for (int i = start; i < end && !mCancelled; i++)
+					{
+						PostItem postItem = postItems[i];
+						postItem.getComment();
+						postItem.isHidden(mHidePerformer);
+					}
+				}
+				finally
+				{
+					if (mCompletedChunks.incrementAndGet() == mChunksCount) notifyCompleted();
+				}
+			}
+		}
+		
+		// Workers started after all chunks were claimed exit at once, so only claimed chunks are awaited
+		private void await() throws InterruptedException
+		{
+			synchronized (this)
+			{
+				while (!mCancelled && mCompletedChunks.get() < mChunksCount) wait();
+			}
+		}
+		
+		private void notifyCompleted()
+		{
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+		
+		private final Runnable mWorker = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				preload();
+			}
+		};
+		
+		public void cancel()
+		{
+			mCancelled = true;
+			notifyCompleted();
+		}
+	}
+	
+	private static Session start(PostItem[] postItems, HidePerformer hidePerformer, int extraWorkersCount)
+	{
+		Session session = new Session(postItems, hidePerformer);
+		int workersCount = Math.min(WORKERS_COUNT, Math.max(session.mChunksCount - extraWorkersCount, 0));
+		for (int i = 0; i < workersCount; i++) EXECUTOR.execute(session.mWorker);
+		return session;
+	}
+	
+	// Items must be ordered by priority, returned session can be cancelled from any thread
+	public static Session start(PostItem[] postItems, HidePerformer hidePerformer)
+	{
+		return start(postItems, hidePerformer, 0);
+	}
+	
+	// Calling thread takes part in preloading and waits until items claimed by other workers are handled
+	public static void preload(PostItem[] postItems, HidePerformer hidePerformer)
+	{
+		Session session = start(postItems, hidePerformer, 1);
+		session.preload();
+		try
+		{
+			session.await();
+		}
+		catch (InterruptedException e)
+		{
+			session.cancel();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
\ No newline at end of file
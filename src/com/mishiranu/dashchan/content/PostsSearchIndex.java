@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import android.os.Process;
+
+import com.mishiranu.dashchan.content.model.AttachmentItem;
+import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+
+// Trigram index of lowercased post texts. Every query part is looked up by its trigrams to get candidate posts,
+// then candidates are checked with String.contains, so results are the same as with full scan.
+// Posts are indexed incrementally on a background thread, changed posts get new ordinals.
+public class PostsSearchIndex
+{
+	public static final Executor EXECUTOR = ConcurrentUtils.newSingleThreadPool(20000, "PostsSearchIndex", null,
+			Process.THREAD_PRIORITY_BACKGROUND);
+	
+	private static final int GRAM_LENGTH = 3;
+	private static final int MIN_COMPACT_COUNT = 100;
+	
+	private static class Document
+	{
+		public final PostItem postItem;
+		public final int ordinal;
+		public final String comment;
+		public final String text;
+		
+		public Document(PostItem postItem, int ordinal, String comment, String text)
+		{
+			this.postItem = postItem;
+			this.ordinal = ordinal;
+			this.comment = comment;
+			this.text = text;
+		}
+	}
+	
+	private static class Postings
+	{
+		public int[] ordinals = new int[4];
+		public int count = 0;
+		
+		public void add(int ordinal)
+		{
+			// Ordinals are added in ascending order, so lists are sorted
+			if (count > 0 && ordinals[count - 1] == ordinal) return;
+			if (count == ordinals.length) ordinals = Arrays.copyOf(ordinals, count * 2);
+			ordinals[count++] = ordinal;
+		}
+	}
+	
+	private final HashMap<String, Document> mDocuments = new HashMap<>();
+	private final ArrayList<Document> mOrdinals = new ArrayList<>();
+	private final HashMap<Long, Postings> mPostings = new HashMap<>();
+	private Locale mLocale;
+	
+	public void updateAsync(Collection<PostItem> postItems)
+	{
+		final ArrayList<PostItem> postItemsCopy = new ArrayList<>(postItems);
+		EXECUTOR.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				update(postItemsCopy);
+			}
+		});
+	}
+	
+	public synchronized void update(Collection<PostItem> postItems)
+	{
+		Locale locale = Locale.getDefault();
+		if (!locale.equals(mLocale))
+		{
+			mDocuments.clear();
+			mOrdinals.clear();
+			mPostings.clear();
+			mLocale = locale;
+		}
+		HashSet<String> postNumbers = new HashSet<>();
+		for (PostItem postItem : postItems)
+		{
+			if (postItem == null) continue;
+			String postNumber = postItem.getPostNumber();
+			postNumbers.add(postNumber);
+			Document document = mDocuments.get(postNumber);
+			if (document == null || document.postItem != postItem)
+			{
+				if (document != null) mOrdinals.set(document.ordinal, null);
+				addDocument(postItem);
+			}
+		}
+		Iterator<Document> iterator = mDocuments.values().iterator();
+		while (iterator.hasNext())
+		{
+			Document document = iterator.next();
+			if (!postNumbers.contains(document.postItem.getPostNumber()))
+			{
+				mOrdinals.set(document.ordinal, null);
+				iterator.remove();
+			}
+		}
+		int removedCount = mOrdinals.size() - mDocuments.size();
+		if (removedCount >= MIN_COMPACT_COUNT && removedCount > mDocuments.size())
+		{
+			ArrayList<PostItem> documentPostItems = new ArrayList<>(mDocuments.size());
+			for (Document document : mOrdinals)
+			{
+				if (document != null) documentPostItems.add(document.postItem);
+			}
+			mDocuments.clear();
+			mOrdinals.clear();
+			mPostings.clear();
+			for (PostItem postItem : documentPostItems) addDocument(postItem);
+		}
+	}
+	
+	private void addDocument(PostItem postItem)
+	{
+		Locale locale = mLocale;
+		String comment = postItem.getComment().toString().toLowerCase(locale);
+		StringBuilder builder = new StringBuilder(comment);
+		builder.append('\n').append(postItem.getSubject().toLowerCase(locale));
+		builder.append('\n').append(postItem.getFullName().toString().toLowerCase(locale));
+		ArrayList<AttachmentItem> attachmentItems = postItem.getAttachmentItems();
+		if (attachmentItems != null)
+		{
+			for (AttachmentItem attachmentItem : attachmentItems)
+			{
+				String fileName = attachmentItem.getFileName();
+				if (fileName != null)
+				{
+					builder.append('\n').append(fileName.toLowerCase(locale));
+					String originalName = attachmentItem.getOriginalName();
+					if (originalName != null) builder.append('\n').append(originalName.toLowerCase(locale));
+				}
+			}
+		}
+		String text = builder.toString();
+		Document document = new Document(postItem, mOrdinals.size(), comment, text);
+		mOrdinals.add(document);
+		mDocuments.put(postItem.getPostNumber(), document);
+		for (int i = 0; i <= text.length() - GRAM_LENGTH; i++)
+		{
+			long gram = getGram(text, i);
+			Postings postings = mPostings.get(gram);
+			if (postings == null)
+			{
+				postings = new Postings();
+				mPostings.put(gram, postings);
+			}
+			postings.add(document.ordinal);
+		}
+	}
+	
+	private static long getGram(String text, int index)
+	{
+		return (long) text.charAt(index) << 32 | (long) text.charAt(index + 1) << 16 | text.charAt(index + 2);
+	}
+	
+	/*
+	 * Returns numbers of posts which contain at least one of included parts and whose comment
+	 * doesn't contain any of excluded parts. Parts must be lowercased with default locale.
+	 */
+	public synchronized HashSet<String> search(Collection<String> included, Collection<String> excluded)
+	{
+		HashSet<String> postNumbers = new HashSet<>();
+		if (mDocuments.isEmpty()) return postNumbers;
+		boolean[] candidates = null;
+		for (String part : included)
+		{
+			if (part.length() < GRAM_LENGTH)
+			{
+				candidates = null;
+				break;
+			}
+			if (candidates == null) candidates = new boolean[mOrdinals.size()];
+			int[] ordinals = findCandidates(part);
+			if (ordinals != null)
+			{
+				for (int ordinal : ordinals) candidates[ordinal] = true;
+			}
+		}
+		for (int i = 0; i < mOrdinals.size(); i++)
+		{
+			if (Thread.interrupted()) return null;
+			Document document = mOrdinals.get(i);
+			if (document == null || candidates != null && !candidates[i]) continue;
+			if (matches(document, included, excluded)) postNumbers.add(document.postItem.getPostNumber());
+		}
+		return postNumbers;
+	}
+	
+	private int[] findCandidates(String part)
+	{
+		int count = part.length() - GRAM_LENGTH + 1;
+		Postings[] postingsArray = new Postings[count];
+		for (int i = 0; i < count; i++)
+		{
+			Postings postings = mPostings.get(getGram(part, i));
+			if (postings == null) return null;
+			postingsArray[i] = postings;
+		}
+		// Start from the shortest list to keep intersections small
+		Postings shortest = postingsArray[0];
+		for (Postings postings : postingsArray)
+		{
+			if (postings.count < shortest.count) shortest = postings;
+		}
+		int[] result = Arrays.copyOf(shortest.ordinals, shortest.count);
+		int resultCount = shortest.count;
+		for (Postings postings : postingsArray)
+		{
+			if (postings == shortest) continue;
+			resultCount = intersect(result, resultCount, postings);
+			if (resultCount == 0) return null;
+		}
+		return Arrays.copyOf(result, resultCount);
+	}
+	
+	private static int intersect(int[] result, int resultCount, Postings postings)
+	{
+		int[] ordinals = postings.ordinals;
+		int count = 0;
+		for (int i = 0, j = 0; i < resultCount && j < postings.count;)
+		{
+			int a = result[i], b = ordinals[j];
+			if (a == b)
+			{
+				result[count++] = a;
+				i++;
+				j++;
+			}
+			else if (a < b) i++; else j++;
+		}
+		return count;
+	}
+	
+	private static boolean matches(Document document, Collection<String> included, Collection<String> excluded)
+	{
+		for (String part : excluded)
+		{
+			if (document.comment.contains(part)) return false;
+		}
+		if (included.isEmpty()) return true;
+		for (String part : included)
+		{
+			if (document.text.contains(part)) return true;
+		}
+		return false;
+	}
+}
\ No newline at end of file
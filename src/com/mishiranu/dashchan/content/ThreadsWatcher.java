@@ -19,11 +19,13 @@ package com.mishiranu.dashchan.content;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Random;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import android.os.Handler;
 import android.os.Message;
@@ -33,6 +35,7 @@ import chan.content.ChanConfiguration;
 import chan.content.ChanManager;
 import chan.content.ChanPerformer;
 import chan.content.ExtensionException;
+import chan.content.InvalidResponseException;
 import chan.http.HttpException;
 import chan.http.HttpHolder;
 import chan.http.HttpValidator;
@@ -41,32 +44,54 @@ import chan.util.StringUtils;
 import com.mishiranu.dashchan.content.storage.FavoritesStorage;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.util.ConcurrentUtils;
+import com.mishiranu.dashchan.util.TimingWheel;
 
+// Due items are collected by timing wheel and queued per chan. Every chan may run a limited number of requests
+// from the shared pool, items from the same board are requested together if chan supports it.
 public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callback
 {
-	private static final HashMap<String, ExecutorService> EXECUTORS = new HashMap<>();
+	private static final int MAX_THREADS = 4;
+	private static final int MAX_CHAN_TASKS = 2;
+	private static final int MAX_BATCH_SIZE = 50;
+	
+	private static final int TICK_DURATION = 1000;
+	private static final int WHEEL_SLOTS = 64;
+	private static final int MAX_BACKOFF = 30 * 60 * 1000;
+	private static final int MAX_ADAPTIVE_INTERVAL = 30 * 60 * 1000;
+	private static final int POSTS_RATE_TIME_CONSTANT = 60 * 60 * 1000;
+	
+	private static final HashSet<String> SUPPORTED_CHANS = new HashSet<>();
+	private static final HashSet<String> BATCH_UNSUPPORTED_CHANS = new HashSet<>();
+	private static final ThreadPoolExecutor EXECUTOR = ConcurrentUtils.newThreadPool(MAX_THREADS, MAX_THREADS, 60000,
+			"ThreadsWatcher", null, Process.THREAD_PRIORITY_BACKGROUND);
 	
 	static
 	{
+		EXECUTOR.allowCoreThreadTimeOut(true);
 		for (String chanName : ChanManager.getInstance().getAvailableChanNames())
 		{
 			ChanConfiguration configuration = ChanConfiguration.get(chanName);
-			if (configuration.getOption(ChanConfiguration.OPTION_READ_POSTS_COUNT))
-			{
-				EXECUTORS.put(chanName, ConcurrentUtils.newSingleThreadPool(60000, "ThreadsWatcher", chanName,
-						Process.THREAD_PRIORITY_BACKGROUND));
-			}
+			if (configuration.getOption(ChanConfiguration.OPTION_READ_POSTS_COUNT)) SUPPORTED_CHANS.add(chanName);
 		}
 	}
 	
 	private static final int MESSAGE_STOP = 0;
-	private static final int MESSAGE_UPDATE = 1;
+	private static final int MESSAGE_TICK = 1;
 	private static final int MESSAGE_RESULT = 2;
 
 	private final Handler mHandler = new Handler(this);
 	private final LinkedHashMap<String, WatcherItem> mWatching = new LinkedHashMap<>();
 	private final HashMap<String, WatcherTask> mTasks = new HashMap<>();
 	
+	private final TimingWheel<WatcherItem> mWheel = new TimingWheel<>(TICK_DURATION, WHEEL_SLOTS,
+			System.currentTimeMillis());
+	private final HashMap<String, ArrayList<WatcherItem>> mPending = new HashMap<>();
+	private final HashSet<WatcherTask> mRunningTasks = new HashSet<>();
+	private final HashMap<String, Integer> mRunningCounts = new HashMap<>();
+	private final HashMap<String, Backoff> mBackoffs = new HashMap<>();
+	private final Random mRandom = new Random();
+	private long mNextTickTime = Long.MAX_VALUE;
+	
 	private boolean mMergeChans = false;
 	private Callback mCallback;
 	private String mChanName;
@@ -93,19 +118,25 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 		private boolean mHasNewPosts;
 		private boolean mError;
 		private HttpValidator mValidator;
+		private float mPostsRate;
 
 		private long mLastUpdateTime;
+		private long mLastCountTime;
 		private boolean mLastWasAvailable;
 		private State mLastState = State.DISABLED;
 		
+		private boolean mQueued;
+		private boolean mSingle;
+		
 		public WatcherItem(FavoritesStorage.FavoriteItem favoriteItem)
 		{
 			this(favoriteItem.chanName, favoriteItem.boardName, favoriteItem.threadNumber, favoriteItem.postsCount,
-					favoriteItem.newPostsCount, favoriteItem.hasNewPosts, favoriteItem.watcherValidator);
+					favoriteItem.newPostsCount, favoriteItem.hasNewPosts, favoriteItem.watcherValidator,
+					favoriteItem.watcherPostsRate);
 		}
 		
 		public WatcherItem(String chanName, String boardName, String threadNumber, int postsCount, int newPostsCount,
-				boolean hasNewPosts, HttpValidator validator)
+				boolean hasNewPosts, HttpValidator validator, float postsRate)
 		{
 			this.chanName = chanName;
 			this.boardName = boardName;
@@ -115,6 +146,7 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 			mNewPostsCount = newPostsCount;
 			mHasNewPosts = hasNewPosts;
 			mValidator = validator;
+			mPostsRate = postsRate;
 		}
 		
 		public boolean compare(String chanName, String boardName, String threadNumber)
@@ -156,7 +188,7 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 		boolean available = isAvailable();
 		for (FavoritesStorage.FavoriteItem favoriteItem : favoriteItems)
 		{
-			if (favoriteItem.watcherEnabled && EXECUTORS.containsKey(favoriteItem.chanName))
+			if (favoriteItem.watcherEnabled && SUPPORTED_CHANS.contains(favoriteItem.chanName))
 			{
 				WatcherItem watcherItem = new WatcherItem(favoriteItem);
 				watcherItem.mLastState = available ? State.ENABLED : State.UNAVAILABLE;
@@ -206,11 +238,15 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 			case FavoritesStorage.ACTION_WATCHER_ENABLE:
 			{
 				if (favoriteItem.threadNumber == null) throw new IllegalArgumentException();
-				if (EXECUTORS.containsKey(favoriteItem.chanName))
+				if (SUPPORTED_CHANS.contains(favoriteItem.chanName))
 				{
 					WatcherItem watcherItem = new WatcherItem(favoriteItem);
 					mWatching.put(watcherItem.mKey, watcherItem);
-					if (mMergeChans || favoriteItem.chanName.equals(mChanName)) enqueue(watcherItem, true);
+					if (mMergeChans || favoriteItem.chanName.equals(mChanName))
+					{
+						enqueue(watcherItem, true);
+						dispatch(watcherItem.chanName);
+					}
 				}
 				break;
 			}
@@ -221,8 +257,14 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 				{
 					mWatching.remove(watcherItem.mKey);
 					WatcherTask task = mTasks.remove(watcherItem.mKey);
-					if (task != null) task.cancel(false);
-					mHandler.removeMessages(MESSAGE_UPDATE, watcherItem);
+					// Batch task is shared with other items, so its result is just ignored for this item
+					if (task != null && !task.batch) task.cancel(false);
+					if (watcherItem.mQueued)
+					{
+						watcherItem.mQueued = false;
+						mPending.get(watcherItem.chanName).remove(watcherItem);
+					}
+					mWheel.cancel(watcherItem);
 					if (mMergeChans || favoriteItem.chanName.equals(mChanName))
 					{
 						notifyUpdate(watcherItem, State.DISABLED);
@@ -349,17 +391,18 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 	
 	private void updateAll()
 	{
-		mHandler.removeMessages(MESSAGE_UPDATE);
+		mWheel.clear();
 		boolean mergeChans = mMergeChans;
 		for (WatcherItem watcherItem : mWatching.values())
 		{
 			if (mergeChans || watcherItem.chanName.equals(mChanName)) enqueue(watcherItem, true);
 		}
+		dispatchAll();
 	}
 	
 	private void updateAllSinceNow()
 	{
-		mHandler.removeMessages(MESSAGE_UPDATE);
+		mWheel.clear();
 		long time = System.currentTimeMillis();
 		boolean available = isAvailable();
 		boolean mergeChans = mMergeChans;
@@ -368,21 +411,53 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 			if (mergeChans || watcherItem.chanName.equals(mChanName))
 			{
 				long dt = time - watcherItem.mLastUpdateTime;
-				if (dt >= mInterval) enqueue(watcherItem, available);
-				else mHandler.sendMessageDelayed(mHandler.obtainMessage(MESSAGE_UPDATE, watcherItem), mInterval - dt);
+				long interval = getInterval(watcherItem);
+				if (dt >= interval) enqueue(watcherItem, available); else schedule(watcherItem, interval - dt);
 			}
 		}
+		dispatchAll();
+	}
+	
+	private void schedule(WatcherItem watcherItem, long delay)
+	{
+		long time = mWheel.schedule(watcherItem, System.currentTimeMillis() + delay);
+		if (time < mNextTickTime) postTick(time);
+	}
+	
+	// Main looper wakes up only when the earliest scheduled item becomes due
+	private void postTick(long time)
+	{
+		mHandler.removeMessages(MESSAGE_TICK);
+		mNextTickTime = time;
+		if (time != Long.MAX_VALUE)
+		{
+			mHandler.sendEmptyMessageDelayed(MESSAGE_TICK, Math.max(time - System.currentTimeMillis(), 0));
+		}
 	}
 	
 	private void enqueue(WatcherItem watcherItem, boolean available)
 	{
-		if (!mTasks.containsKey(watcherItem.mKey))
+		if (!mTasks.containsKey(watcherItem.mKey) && !watcherItem.mQueued)
 		{
+			mWheel.cancel(watcherItem);
 			if (available)
 			{
-				WatcherTask task = new WatcherTask(watcherItem);
-				mTasks.put(watcherItem.mKey, task);
-				EXECUTORS.get(watcherItem.chanName).execute(task);
+				Backoff backoff = mBackoffs.get(watcherItem.chanName);
+				long time = System.currentTimeMillis();
+				if (backoff != null && backoff.until > time)
+				{
+					// Chan is most likely down, wait until backoff ends
+					schedule(watcherItem, backoff.until - time);
+					return;
+				}
+				watcherItem.mQueued = true;
+				ArrayList<WatcherItem> pending = mPending.get(watcherItem.chanName);
+				if (pending == null)
+				{
+					pending = new ArrayList<>();
+					mPending.put(watcherItem.chanName, pending);
+				}
+				pending.add(watcherItem);
 				watcherItem.mLastWasAvailable = true;
 				notifyUpdate(watcherItem, State.BUSY);
 			}
@@ -400,21 +475,153 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 	
 	private void enqueueDelayed(WatcherItem watcherItem)
 	{
-		if (mRefreshPeriodically)
+		if (mRefreshPeriodically) schedule(watcherItem, getInterval(watcherItem));
+	}
+	
+	// Thread is checked when about one new post is expected, but not more often than user set
+	private long getInterval(WatcherItem watcherItem)
+	{
+		float postsRate = watcherItem.mPostsRate;
+		if (postsRate < 0) return mInterval;
+		long maxInterval = Math.max(mInterval, MAX_ADAPTIVE_INTERVAL);
+		long interval = postsRate > 0 ? (long) (60 * 60 * 1000 / postsRate) : maxInterval;
+		return Math.min(Math.max(interval, mInterval), maxInterval);
+	}
+	
+	// Exponential moving average of posts per hour, samples are weighted by their time span,
+	// so estimation doesn't depend on how often thread is checked
+	private void updatePostsRate(WatcherItem watcherItem, int newPostsCount, long time)
+	{
+		long lastCountTime = watcherItem.mLastCountTime;
+		watcherItem.mLastCountTime = time;
+		long elapsed = time - lastCountTime;
+		if (lastCountTime > 0 && elapsed > 0)
+		{
+			float postsRate = watcherItem.mPostsRate;
+			// Start from the rate which gives the regular interval
+			if (postsRate < 0) postsRate = 60f * 60 * 1000 / mInterval;
+			int postsCountDelta = Math.max(newPostsCount - watcherItem.mNewPostsCount, 0);
+			float sample = postsCountDelta * 60f * 60 * 1000 / elapsed;
+			float weight = 1f - (float) Math.exp(-(double) elapsed / POSTS_RATE_TIME_CONSTANT);
+			watcherItem.mPostsRate = postsRate + (sample - postsRate) * weight;
+		}
+	}
+	
+	private static boolean isBatchSupported(String chanName)
+	{
+		synchronized (BATCH_UNSUPPORTED_CHANS)
+		{
+			return !BATCH_UNSUPPORTED_CHANS.contains(chanName);
+		}
+	}
+	
+	private static void setBatchUnsupported(String chanName)
+	{
+		synchronized (BATCH_UNSUPPORTED_CHANS)
+		{
+			BATCH_UNSUPPORTED_CHANS.add(chanName);
+		}
+	}
+	
+	private int getRunningCount(String chanName)
+	{
+		Integer count = mRunningCounts.get(chanName);
+		return count != null ? count : 0;
+	}
+	
+	// Items are collected in pending queues first, so items from the same board can be requested together
+	private void dispatchAll()
+	{
+		for (String chanName : new ArrayList<>(mPending.keySet())) dispatch(chanName);
+	}
+	
+	private void dispatch(String chanName)
+	{
+		ArrayList<WatcherItem> pending = mPending.get(chanName);
+		if (pending == null) return;
+		int runningCount = getRunningCount(chanName);
+		boolean batchSupported = isBatchSupported(chanName);
+		while (runningCount < MAX_CHAN_TASKS && !pending.isEmpty())
 		{
-			mHandler.sendMessageDelayed(mHandler.obtainMessage(MESSAGE_UPDATE, watcherItem), mInterval);
+			WatcherItem watcherItem = pending.remove(0);
+			ArrayList<WatcherItem> watcherItems = new ArrayList<>();
+			watcherItems.add(watcherItem);
+			if (batchSupported && !watcherItem.mSingle)
+			{
+				Iterator<WatcherItem> iterator = pending.iterator();
+				while (iterator.hasNext() && watcherItems.size() < MAX_BATCH_SIZE)
+				{
+					WatcherItem nextWatcherItem = iterator.next();
+					if (!nextWatcherItem.mSingle && StringUtils.equals(nextWatcherItem.boardName,
+							watcherItem.boardName))
+					{
+						watcherItems.add(nextWatcherItem);
+						iterator.remove();
+					}
+				}
+			}
+			WatcherTask task = new WatcherTask(chanName, watcherItems.toArray(new WatcherItem[watcherItems.size()]));
+			for (WatcherItem taskWatcherItem : task.watcherItems)
+			{
+				taskWatcherItem.mQueued = false;
+				mTasks.put(taskWatcherItem.mKey, task);
+			}
+			mRunningTasks.add(task);
+			runningCount++;
+			EXECUTOR.execute(task);
 		}
+		mRunningCounts.put(chanName, runningCount);
+		if (pending.isEmpty()) mPending.remove(chanName);
 	}
 	
 	private void cancelAll()
 	{
 		boolean available = isAvailable();
-		for (WatcherTask task : mTasks.values())
+		for (WatcherTask task : mRunningTasks)
 		{
 			task.cancel(false);
-			notifyUpdate(task.watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+			for (WatcherItem watcherItem : task.watcherItems)
+			{
+				if (mTasks.get(watcherItem.mKey) == task)
+				{
+					notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+				}
+			}
+		}
+		for (ArrayList<WatcherItem> pending : mPending.values())
+		{
+			for (WatcherItem watcherItem : pending)
+			{
+				watcherItem.mQueued = false;
+				notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+			}
 		}
 		mTasks.clear();
+		mPending.clear();
+		mRunningTasks.clear();
+	}
+	
+	private static class Backoff
+	{
+		public int failures;
+		public long until;
+	}
+	
+	// Exponential backoff starting from regular interval with random factor in [0.5, 1.5) range,
+	// so clients don't return to the recovered chan all together
+	private long applyBackoff(String chanName, long time)
+	{
+		Backoff backoff = mBackoffs.get(chanName);
+		if (backoff == null)
+		{
+			backoff = new Backoff();
+			mBackoffs.put(chanName, backoff);
+		}
+		long delay = Math.max(Math.min((long) mInterval << Math.min(backoff.failures, 16), MAX_BACKOFF), mInterval);
+		delay = delay / 2 + (long) (mRandom.nextDouble() * delay);
+		backoff.failures++;
+		backoff.until = time + delay;
+		return delay;
 	}
 	
 	private static class Result
@@ -425,6 +632,7 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 		public boolean error = false;
 		public boolean interrupt = false;
 		public boolean notModified = false;
+		public boolean retry = false;
 		
 		public Result(WatcherItem watcherItem)
 		{
@@ -432,87 +640,284 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 		}
 	}
 	
-	private class WatcherRunnable implements Callable<Result>
+	private static class WatcherRunnable implements Callable<Result[]>
 	{
 		private final HttpHolder mHolder = new HttpHolder();
-		private final Result mResult;
+		private final String mChanName;
+		private final Result[] mResults;
 		
-		public WatcherRunnable(WatcherItem watcherItem)
+		public WatcherRunnable(String chanName, WatcherItem[] watcherItems)
 		{
-			mResult = new Result(watcherItem);
+			mChanName = chanName;
+			mResults = new Result[watcherItems.length];
+			for (int i = 0; i < watcherItems.length; i++) mResults[i] = new Result(watcherItems[i]);
 		}
 		
 		@Override
-		public Result call()
+		public Result[] call()
 		{
-			WatcherItem watcherItem = mResult.watcherItem;
+			if (mResults.length > 1) readBatch(); else read(mResults[0]);
+			return mResults;
+		}
+		
+		private void read(Result result)
+		{
+			WatcherItem watcherItem = result.watcherItem;
 			try
 			{
-				ChanPerformer performer = ChanPerformer.get(watcherItem.chanName);
-				ChanPerformer.ReadPostsCountResult result = performer.onReadPostsCount(new ChanPerformer
+				ChanPerformer performer = ChanPerformer.get(mChanName);
+				ChanPerformer.ReadPostsCountResult readResult = performer.onReadPostsCount(new ChanPerformer
 						.ReadPostsCountData(watcherItem.boardName, watcherItem.threadNumber, 5000, 5000, mHolder,
 						watcherItem.mValidator));
-				mResult.newPostsCount = result != null ? result.postsCount : 0;
-				HttpValidator validator = result != null ? result.validator : null;
+				result.newPostsCount = readResult != null ? readResult.postsCount : 0;
+				HttpValidator validator = readResult != null ? readResult.validator : null;
 				if (validator == null) validator = mHolder.getValidator();
-				mResult.validator = validator;
+				result.validator = validator;
 			}
 			catch (HttpException e)
 			{
 				int responseCode = e.getResponseCode();
 				if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
 				{
-					mResult.notModified = true;
+					result.notModified = true;
 				}
 				else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND)
 				{
-					mResult.newPostsCount = NEW_POSTS_COUNT_DELETED;
-					mResult.validator = null;
+					result.newPostsCount = NEW_POSTS_COUNT_DELETED;
+					result.validator = null;
 				}
 				else
 				{
 					// Interrupt on client or server error (most likely chan is down)
-					if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) mResult.interrupt = true;
-					mResult.error = true;
+					if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) result.interrupt = true;
+					result.error = true;
 				}
 			}
 			catch (LinkageError | RuntimeException e)
 			{
 				ExtensionException.logException(e);
-				mResult.error = true;
+				result.error = true;
 			}
 			catch (Exception e)
 			{
-				mResult.error = true;
+				result.error = true;
+			}
+		}
+		
+		private void readBatch()
+		{
+			String[] threadNumbers = new String[mResults.length];
+			for (int i = 0; i < mResults.length; i++) threadNumbers[i] = mResults[i].watcherItem.threadNumber;
+			int[] postsCounts = null;
+			try
+			{
+				ChanPerformer performer = ChanPerformer.get(mChanName);
+				ChanPerformer.ReadPostsCountsResult readResult = performer.onReadPostsCounts(new ChanPerformer
+						.ReadPostsCountsData(mResults[0].watcherItem.boardName, threadNumbers, 5000, 5000, mHolder));
+				postsCounts = readResult != null ? readResult.postsCounts : null;
+			}
+			catch (HttpException | InvalidResponseException e)
+			{
+				// Failed batch is not requested again thread by thread, the whole chan waits for backoff instead
+				failBatch();
+				return;
+			}
+			catch (UnsupportedOperationException e)
+			{
+				setBatchUnsupported(mChanName);
+			}
+			catch (LinkageError | RuntimeException e)
+			{
+				ExtensionException.logException(e);
+				setBatchUnsupported(mChanName);
+			}
+			// Threads missing in valid response will be requested separately
+			for (int i = 0; i < mResults.length; i++)
+			{
+				Result result = mResults[i];
+				int postsCount = postsCounts != null && i < postsCounts.length ? postsCounts[i]
+						: ChanPerformer.ReadPostsCountsResult.POSTS_COUNT_UNKNOWN;
+				if (postsCount >= 0)
+				{
+					result.newPostsCount = postsCount;
+					// Validator is kept, since it still describes the last loaded thread state
+					result.validator = result.watcherItem.mValidator;
+				}
+				else result.retry = true;
+			}
+		}
+		
+		private void failBatch()
+		{
+			for (Result result : mResults)
+			{
+				result.interrupt = true;
+				result.error = true;
 			}
-			return mResult;
 		}
 	}
 	
-	private class WatcherTask extends FutureTask<Result>
+	private class WatcherTask extends FutureTask<Result[]>
 	{
-		public final WatcherItem watcherItem;
+		public final String chanName;
+		public final WatcherItem[] watcherItems;
+		public final boolean batch;
 		
-		public WatcherTask(WatcherItem watcherItem)
+		public WatcherTask(String chanName, WatcherItem[] watcherItems)
 		{
-			super(new WatcherRunnable(watcherItem));
-			this.watcherItem = watcherItem;
+			super(new WatcherRunnable(chanName, watcherItems));
+			this.chanName = chanName;
+			this.watcherItems = watcherItems;
+			batch = watcherItems.length > 1;
 		}
 		
 		@Override
-		protected void done()
+		public void run()
 		{
 			try
 			{
-				mHandler.obtainMessage(MESSAGE_RESULT, get()).sendToTarget();
+				super.run();
+			}
+			finally
+			{
+				// Sent even if task was cancelled, but only when request is really finished,
+				// so cancelled requests still count against chan tasks limit
+				mHandler.obtainMessage(MESSAGE_RESULT, this).sendToTarget();
+			}
+		}
+		
+		public Result[] getResults()
+		{
+			try
+			{
+				return get();
 			}
 			catch (Exception e)
 			{
 				// Task cancelled
+				return null;
 			}
 		}
 	}
 	
+	private void handleResults(WatcherTask task, Result[] results)
+	{
+		long time = System.currentTimeMillis();
+		boolean available = isAvailable();
+		String chanName = task.chanName;
+		boolean interrupt = false;
+		boolean success = false;
+		for (Result result : results)
+		{
+			if (result.interrupt) interrupt = true; else if (!result.retry) success = true;
+		}
+		long backoffDelay = interrupt ? applyBackoff(chanName, time) : 0L;
+		if (success && !interrupt) mBackoffs.remove(chanName);
+		for (Result result : results)
+		{
+			WatcherItem watcherItem = result.watcherItem;
+			if (mTasks.get(watcherItem.mKey) != task) continue;
+			mTasks.remove(watcherItem.mKey);
+			if (result.retry)
+			{
+				// Batch request didn't return posts count, request it separately
+				watcherItem.mSingle = true;
+				watcherItem.mQueued = true;
+				ArrayList<WatcherItem> pending = mPending.get(chanName);
+				if (pending == null)
+				{
+					pending = new ArrayList<>();
+					mPending.put(chanName, pending);
+				}
+				pending.add(watcherItem);
+				continue;
+			}
+			watcherItem.mSingle = false;
+			watcherItem.mLastUpdateTime = time;
+			watcherItem.mLastWasAvailable = available;
+			if (result.interrupt)
+			{
+				watcherItem.mError = true;
+				if (mRefreshPeriodically) schedule(watcherItem, backoffDelay);
+				notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+				continue;
+			}
+			watcherItem.mError = result.error;
+			if (result.notModified)
+			{
+				float postsRate = watcherItem.mPostsRate;
+				updatePostsRate(watcherItem, watcherItem.mNewPostsCount, time);
+				if (watcherItem.mPostsRate != postsRate)
+				{
+					FavoritesStorage.getInstance().modifyWatcherData(watcherItem.chanName,
+							watcherItem.boardName, watcherItem.threadNumber, watcherItem.mNewPostsCount,
+							watcherItem.mHasNewPosts, watcherItem.mValidator, watcherItem.mPostsRate);
+				}
+			}
+			else
+			{
+				int newPostsCount = result.newPostsCount;
+				if (newPostsCount >= NEW_POSTS_COUNT_DELETED)
+				{
+					if (newPostsCount > watcherItem.mNewPostsCount && watcherItem.mNewPostsCount > 1
+							|| newPostsCount > watcherItem.mPostsCount)
+					{
+						watcherItem.mHasNewPosts = true;
+					}
+					if (newPostsCount > NEW_POSTS_COUNT_DELETED) updatePostsRate(watcherItem, newPostsCount, time);
+					watcherItem.mNewPostsCount = newPostsCount;
+					watcherItem.mValidator = result.validator;
+					FavoritesStorage.getInstance().modifyWatcherData(watcherItem.chanName,
+							watcherItem.boardName, watcherItem.threadNumber, watcherItem.mNewPostsCount,
+							watcherItem.mHasNewPosts, watcherItem.mValidator, watcherItem.mPostsRate);
+				}
+			}
+			enqueueDelayed(watcherItem);
+			notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+		}
+		if (interrupt) cancelChan(chanName, time, available, backoffDelay);
+	}
+	
+	private void cancelChan(String chanName, long time, boolean available, long delay)
+	{
+		ArrayList<WatcherItem> cancelItems = new ArrayList<>();
+		Iterator<WatcherTask> iterator = mRunningTasks.iterator();
+		while (iterator.hasNext())
+		{
+			WatcherTask task = iterator.next();
+			if (task.chanName.equals(chanName))
+			{
+				task.cancel(false);
+				iterator.remove();
+				for (WatcherItem watcherItem : task.watcherItems)
+				{
+					if (mTasks.get(watcherItem.mKey) == task)
+					{
+						mTasks.remove(watcherItem.mKey);
+						cancelItems.add(watcherItem);
+					}
+				}
+			}
+		}
+		ArrayList<WatcherItem> pending = mPending.remove(chanName);
+		if (pending != null)
+		{
+			for (WatcherItem watcherItem : pending)
+			{
+				watcherItem.mQueued = false;
+				cancelItems.add(watcherItem);
+			}
+		}
+		for (WatcherItem watcherItem : cancelItems)
+		{
+			watcherItem.mError = true;
+			watcherItem.mLastUpdateTime = time;
+			watcherItem.mLastWasAvailable = available;
+			if (mRefreshPeriodically) schedule(watcherItem, delay);
+			notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+		}
+	}
+	
 	@Override
 	public boolean handleMessage(Message msg)
 	{
@@ -521,69 +926,35 @@ public class ThreadsWatcher implements FavoritesStorage.Observer, Handler.Callba
 			case MESSAGE_STOP:
 			{
 				mStarted = false;
-				mHandler.removeMessages(MESSAGE_UPDATE);
+				mWheel.clear();
+				postTick(Long.MAX_VALUE);
 				cancelAll();
 				return true;
 			}
-			case MESSAGE_UPDATE:
+			case MESSAGE_TICK:
 			{
-				WatcherItem watcherItem = (WatcherItem) msg.obj;
-				enqueue(watcherItem, isAvailable());
+				mNextTickTime = Long.MAX_VALUE;
+				ArrayList<WatcherItem> watcherItems = mWheel.advance(System.currentTimeMillis());
+				if (!watcherItems.isEmpty())
+				{
+					boolean available = isAvailable();
+					for (WatcherItem watcherItem : watcherItems) enqueue(watcherItem, available);
+					dispatchAll();
+				}
+				postTick(mWheel.getNextTime());
 				return true;
 			}
 			case MESSAGE_RESULT:
 			{
-				Result result = (Result) msg.obj;
-				WatcherItem watcherItem = result.watcherItem;
-				mTasks.remove(watcherItem.mKey);
-				long time = System.currentTimeMillis();
-				boolean available = isAvailable();
-				watcherItem.mLastUpdateTime = time;
-				watcherItem.mLastWasAvailable = available;
-				if (result.interrupt)
-				{
-					String chanName = result.watcherItem.chanName;
-					watcherItem.mError = true;
-					Iterator<WatcherTask> iterator = mTasks.values().iterator();
-					while (iterator.hasNext())
-					{
-						WatcherTask task = iterator.next();
-						WatcherItem cancelItem = task.watcherItem;
-						if (cancelItem.chanName.equals(chanName))
-						{
-							task.cancel(false);
-							cancelItem.mError = true;
-							cancelItem.mLastUpdateTime = time;
-							cancelItem.mLastWasAvailable = available;
-							enqueueDelayed(cancelItem);
-							notifyUpdate(cancelItem, available ? State.ENABLED : State.UNAVAILABLE);
-							iterator.remove();
-						}
-					}
-				}
-				else 
+				WatcherTask task = (WatcherTask) msg.obj;
+				mRunningCounts.put(task.chanName, getRunningCount(task.chanName) - 1);
+				// Task may be already cancelled and forgotten
+				if (mRunningTasks.remove(task))
 				{
-					watcherItem.mError = result.error;
-					if (!result.notModified)
-					{
-						int newPostsCount = result.newPostsCount;
-						if (newPostsCount >= NEW_POSTS_COUNT_DELETED)
-						{
-							if (newPostsCount > watcherItem.mNewPostsCount && watcherItem.mNewPostsCount > 1
-									|| newPostsCount > watcherItem.mPostsCount)
-							{
-								watcherItem.mHasNewPosts = true;
-							}
-							watcherItem.mNewPostsCount = newPostsCount;
-							watcherItem.mValidator = result.validator;
-							FavoritesStorage.getInstance().modifyWatcherData(watcherItem.chanName,
-									watcherItem.boardName, watcherItem.threadNumber, watcherItem.mNewPostsCount,
-									watcherItem.mHasNewPosts, watcherItem.mValidator);
-						}
-					}
+					Result[] results = task.getResults();
+					if (results != null) handleResults(task, results);
 				}
-				enqueueDelayed(watcherItem);
-				notifyUpdate(watcherItem, available ? State.ENABLED : State.UNAVAILABLE);
+				dispatch(task.chanName);
 				return true;
 			}
 		}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import com.mishiranu.dashchan.util.IOUtils;
+
+// Thumbnails are appended to segment files, so cache contains a few large files instead of thousands of small ones.
+// Every record consists of key length, key, data length and encoded thumbnail data.
+class ThumbnailsStore
+{
+	private static final String SEGMENT_PREFIX = "pack-";
+	private static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+	private static final int MAX_DATA_SIZE = 4 * 1024 * 1024;
+	
+	public static class Entry
+	{
+		public final int segment;
+		public final long offset;
+		public final int length;
+		
+		public Entry(int segment, long offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	private final File mDirectory;
+	private final HashMap<String, Entry> mEntries = new HashMap<>();
+	
+	private boolean mInitialized = false;
+	private int mActiveSegment = -1;
+	
+	public ThumbnailsStore(File directory)
+	{
+		mDirectory = directory;
+	}
+	
+	public File getDirectory()
+	{
+		return mDirectory;
+	}
+	
+	public static boolean isSegmentName(String name)
+	{
+		return name.startsWith(SEGMENT_PREFIX);
+	}
+	
+	public static int getSegment(String name)
+	{
+		if (isSegmentName(name))
+		{
+			try
+			{
+				return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+			}
+			catch (NumberFormatException e)
+			{
+				
+			}
+		}
+		return -1;
+	}
+	
+	public File getSegmentFile(int segment)
+	{
+		return new File(mDirectory, SEGMENT_PREFIX + segment);
+	}
+	
+	private void initialize()
+	{
+		if (mInitialized) return;
+		mInitialized = true;
+		String[] names = mDirectory.list();
+		if (names == null) return;
+		ArrayList<Integer> segments = new ArrayList<>();
+		for (String name : names)
+		{
+			int segment = getSegment(name);
+			if (segment >= 0) segments.add(segment);
+		}
+		Collections.sort(segments);
+		for (int i = 0; i < segments.size(); i++)
+		{
+			int segment = segments.get(i);
+			scanSegment(segment, i == segments.size() - 1);
+			mActiveSegment = segment;
+		}
+	}
+	
+	private void scanSegment(int segment, boolean repair)
+	{
+		File file = getSegmentFile(segment);
+		long fileLength = file.length();
+		long offset = 0L;
+		DataInputStream input = null;
+		try
+		{
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			byte[] keyBytes = new byte[256];
+			while (true)
+			{
+				int keyLength = input.read();
+				if (keyLength == -1) break;
+				input.readFully(keyBytes, 0, keyLength);
+				int length = input.readInt();
+				if (length < 0 || length > MAX_DATA_SIZE) break;
+				long dataOffset = offset + 1 + keyLength + 4;
+				if (dataOffset + length > fileLength || !skip(input, length)) break;
+				String key = new String(keyBytes, 0, keyLength, "ISO-8859-1");
+				mEntries.put(key, new Entry(segment, dataOffset, length));
+				offset = dataOffset + length;
+			}
+		}
+		catch (EOFException e)
+		{
+			// Incomplete record
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+		finally
+		{
+			IOUtils.close(input);
+		}
+		if (repair && fileLength > offset)
+		{
+			// Remove incomplete record, so the next records will be appended right after the last valid one
+			RandomAccessFile randomAccessFile = null;
+			try
+			{
+				randomAccessFile = new RandomAccessFile(file, "rw");
+				randomAccessFile.setLength(offset);
+			}
+			catch (IOException e)
+			{
+				
+			}
+			finally
+			{
+				IOUtils.close(randomAccessFile);
+			}
+		}
+	}
+	
+	private static boolean skip(DataInputStream input, long count) throws IOException
+	{
+		while (count > 0)
+		{
+			long skipped = input.skip(count);
+			if (skipped <= 0)
+			{
+				if (input.read() == -1) return false;
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+		return true;
+	}
+	
+	public synchronized Entry find(String key)
+	{
+		initialize();
+		return mEntries.get(key);
+	}
+	
+	public byte[] read(Entry entry)
+	{
+		RandomAccessFile randomAccessFile = null;
+		try
+		{
+			randomAccessFile = new RandomAccessFile(getSegmentFile(entry.segment), "r");
+			randomAccessFile.seek(entry.offset);
+			byte[] data = new byte[entry.length];
+			randomAccessFile.readFully(data);
+			return data;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			IOUtils.close(randomAccessFile);
+		}
+	}
+	
+	public synchronized File write(String key, byte[] data)
+	{
+		initialize();
+		byte[] keyBytes;
+		try
+		{
+			keyBytes = key.getBytes("ISO-8859-1");
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		if (keyBytes.length > 255 || data.length > MAX_DATA_SIZE) return null;
+		File file = mActiveSegment >= 0 ? getSegmentFile(mActiveSegment) : null;
+		if (file == null || file.length() >= MAX_SEGMENT_SIZE)
+		{
+			mActiveSegment++;
+			file = getSegmentFile(mActiveSegment);
+		}
+		long offset = file.length();
+		DataOutputStream output = null;
+		boolean success = false;
+		try
+		{
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			output.writeByte(keyBytes.length);
+			output.write(keyBytes);
+			output.writeInt(data.length);
+			output.write(data);
+			output.flush();
+			success = true;
+		}
+		catch (IOException e)
+		{
+			
+		}
+		finally
+		{
+			IOUtils.close(output);
+		}
+		if (!success)
+		{
+			// Start new segment, because this one may end with incomplete record
+			mActiveSegment++;
+			return null;
+		}
+		mEntries.put(key, new Entry(mActiveSegment, offset + 1 + keyBytes.length + 4, data.length));
+		return file;
+	}
+	
+	public synchronized void removeSegment(int segment)
+	{
+		Iterator<Entry> iterator = mEntries.values().iterator();
+		while (iterator.hasNext())
+		{
+			if (iterator.next().segment == segment) iterator.remove();
+		}
+	}
+	
+	public synchronized void clear()
+	{
+		mEntries.clear();
+	}
+}
\ No newline at end of file
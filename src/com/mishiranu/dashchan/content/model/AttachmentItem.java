@@ -640,6 +640,15 @@ public abstract class AttachmentItem
 		return isHandled(getThumbnailKey());
 	}
 	
+	public void prefetchThumbnail(int distance)
+	{
+		String key = getThumbnailKey();
+		if (!isHandled(key) && Preferences.isLoadThumbnails())
+		{
+			ImageLoader.getInstance().prefetchImage(getThumbnailUri(), getChanName(), key, distance);
+		}
+	}
+	
 	public static boolean isHandled(String thumbnailKey)
 	{
 		return thumbnailKey == null || CacheManager.getInstance().isThumbnailCachedMemory(thumbnailKey);
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import chan.content.ChanManager;
+import chan.content.model.ModelCodec;
+
+import com.mishiranu.dashchan.app.MainApplication;
+import com.mishiranu.dashchan.text.style.GainedColorSpan;
+import com.mishiranu.dashchan.text.style.HeadingSpan;
+import com.mishiranu.dashchan.text.style.LinkSpan;
+import com.mishiranu.dashchan.text.style.LinkSuffixSpan;
+import com.mishiranu.dashchan.text.style.MonospaceSpan;
+import com.mishiranu.dashchan.text.style.OverlineSpan;
+import com.mishiranu.dashchan.text.style.QuoteSpan;
+import com.mishiranu.dashchan.text.style.ScriptSpan;
+import com.mishiranu.dashchan.text.style.SpoilerSpan;
+import com.mishiranu.dashchan.text.style.UnderlyingSpoilerSpan;
+
+// Parsed comments of thread stored next to posts. Every comment is kept as plain text and a table of spans,
+// entries are checked against hash of source comment, and the whole cache is dropped when markup version changes.
+// New entries are appended to stored ones and then forgotten by post items.
+public class ParsedComments
+{
+	private static final int FORMAT_VERSION = 1;
+	
+	private static final int TYPE_STYLE = 0;
+	private static final int TYPE_SCRIPT = 1;
+	private static final int TYPE_QUOTE = 2;
+	private static final int TYPE_UNDERLYING_SPOILER = 3;
+	private static final int TYPE_SPOILER = 4;
+	private static final int TYPE_UNDERLINE = 5;
+	private static final int TYPE_OVERLINE = 6;
+	private static final int TYPE_STRIKETHROUGH = 7;
+	private static final int TYPE_MONOSPACE = 8;
+	private static final int TYPE_HEADING = 9;
+	private static final int TYPE_LINK = 10;
+	private static final int TYPE_LINK_SUFFIX = 11;
+	private static final int TYPE_COLOR = 12;
+	private static final int TYPE_RELATIVE_SIZE = 13;
+	
+	private static final int[] EMPTY_SPANS = new int[0];
+	private static final String[] EMPTY_STRINGS = new String[0];
+	
+	private static final HashMap<String, Long> MARKUP_VERSIONS = new HashMap<>();
+	
+	private long mMarkupVersion;
+	private final HashMap<Long, Entry> mEntries;
+	
+	private ParsedComments(long markupVersion, HashMap<Long, Entry> entries)
+	{
+		mMarkupVersion = markupVersion;
+		mEntries = entries;
+	}
+	
+	public static class Entry
+	{
+		private final long mHash;
+		private final String mText;
+		private final int[] mSpans;
+		private final String[] mStrings;
+		private final boolean mStored;
+		
+		private Entry(long hash, String text, int[] spans, String[] strings, boolean stored)
+		{
+			mHash = hash;
+			mText = text;
+			mSpans = spans;
+			mStrings = strings;
+			mStored = stored;
+		}
+		
+		// Returns null if comment contains spans which can't be restored
+		public static Entry create(long hash, CharSequence comment)
+		{
+			String text = comment.toString();
+			if (!(comment instanceof Spanned)) return new Entry(hash, text, EMPTY_SPANS, EMPTY_STRINGS, false);
+			Spanned spanned = (Spanned) comment;
+			Object[] spans = spanned.getSpans(0, spanned.length(), Object.class);
+			if (spans == null || spans.length == 0)
+			{
+				return new Entry(hash, text, EMPTY_SPANS, EMPTY_STRINGS, false);
+			}
+			int[] table = new int[spans.length * 4];
+			ArrayList<String> strings = null;
+			for (int i = 0; i < spans.length; i++)
+			{
+				Object span = spans[i];
+				if (spanned.getSpanFlags(span) != Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) return null;
+				int type;
+				int extra = 0;
+				if (span instanceof StyleSpan)
+				{
+					type = TYPE_STYLE;
+					extra = ((StyleSpan) span).getStyle();
+				}
+				else if (span instanceof ScriptSpan)
+				{
+					type = TYPE_SCRIPT;
+					extra = ((ScriptSpan) span).isSuperscript() ? 1 : 0;
+				}
+				else if (span instanceof QuoteSpan) type = TYPE_QUOTE;
+				else if (span instanceof UnderlyingSpoilerSpan) type = TYPE_UNDERLYING_SPOILER;
+				else if (span instanceof SpoilerSpan) type = TYPE_SPOILER;
+				else if (span instanceof UnderlineSpan) type = TYPE_UNDERLINE;
+				else if (span instanceof OverlineSpan) type = TYPE_OVERLINE;
+				else if (span instanceof StrikethroughSpan) type = TYPE_STRIKETHROUGH;
+				else if (span instanceof MonospaceSpan)
+				{
+					type = TYPE_MONOSPACE;
+					extra = ((MonospaceSpan) span).isAsciiArt() ? 1 : 0;
+				}
+				else if (span instanceof HeadingSpan) type = TYPE_HEADING;
+				else if (span instanceof LinkSpan)
+				{
+					type = TYPE_LINK;
+					LinkSpan linkSpan = (LinkSpan) span;
+					if (strings == null) strings = new ArrayList<>();
+					strings.add(linkSpan.getUriString());
+					strings.add(linkSpan.getPostNumber());
+				}
+				else if (span instanceof LinkSuffixSpan)
+				{
+					type = TYPE_LINK_SUFFIX;
+					LinkSuffixSpan linkSuffixSpan = (LinkSuffixSpan) span;
+					extra = linkSuffixSpan.getSuffix();
+					if (strings == null) strings = new ArrayList<>();
+					strings.add(linkSuffixSpan.getPostNumber());
+				}
+				else if (span instanceof GainedColorSpan)
+				{
+					type = TYPE_COLOR;
+					extra = ((GainedColorSpan) span).getForegroundColor();
+				}
+				else if (span instanceof RelativeSizeSpan)
+				{
+					type = TYPE_RELATIVE_SIZE;
+					extra = Float.floatToIntBits(((RelativeSizeSpan) span).getSizeChange());
+				}
+				else return null;
+				int index = 4 * i;
+				table[index] = type;
+				table[index + 1] = spanned.getSpanStart(span);
+				table[index + 2] = spanned.getSpanEnd(span);
+				table[index + 3] = extra;
+			}
+			return new Entry(hash, text, table, strings != null ? strings.toArray(new String[strings.size()])
+					: EMPTY_STRINGS, false);
+		}
+		
+		public long getHash()
+		{
+			return mHash;
+		}
+		
+		// Creates new span objects, so spans state can be changed independently from other comment instances
+		public CharSequence build()
+		{
+			int[] table = mSpans;
+			if (table.length == 0) return mText;
+			SpannableString comment = new SpannableString(mText);
+			int stringIndex = 0;
+			for (int i = 0; i < table.length; i += 4)
+			{
+				int extra = table[i + 3];
+				Object span;
+				switch (table[i])
+				{
+					case TYPE_STYLE: span = new StyleSpan(extra); break;
+					case TYPE_SCRIPT: span = new ScriptSpan(extra != 0); break;
+					case TYPE_QUOTE: span = new QuoteSpan(); break;
+					case TYPE_UNDERLYING_SPOILER: span = new UnderlyingSpoilerSpan(); break;
+					case TYPE_SPOILER: span = new SpoilerSpan(); break;
+					case TYPE_UNDERLINE: span = new UnderlineSpan(); break;
+					case TYPE_OVERLINE: span = new OverlineSpan(); break;
+					case TYPE_STRIKETHROUGH: span = new StrikethroughSpan(); break;
+					case TYPE_MONOSPACE: span = new MonospaceSpan(extra != 0); break;
+					case TYPE_HEADING: span = new HeadingSpan(); break;
+					case TYPE_LINK:
+					{
+						span = new LinkSpan(mStrings[stringIndex], mStrings[stringIndex + 1]);
+						stringIndex += 2;
+						break;
+					}
+					case TYPE_LINK_SUFFIX: span = new LinkSuffixSpan(extra, mStrings[stringIndex++]); break;
+					case TYPE_COLOR: span = new GainedColorSpan(extra); break;
+					case TYPE_RELATIVE_SIZE: span = new RelativeSizeSpan(Float.intBitsToFloat(extra)); break;
+					default: throw new IllegalStateException();
+				}
+				comment.setSpan(span, table[i + 1], table[i + 2], SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
+			}
+			return comment;
+		}
+		
+		private static int getStringsCount(int type)
+		{
+			return type == TYPE_LINK ? 2 : type == TYPE_LINK_SUFFIX ? 1 : 0;
+		}
+	}
+	
+	public static long hash(String comment, String parentPostNumber)
+	{
+		// FNV-1a, parent post number affects link suffixes
+		long hash = 0xcbf29ce484222325L;
+		if (comment != null)
+		{
+			for (int i = 0; i < comment.length(); i++) hash = (hash ^ comment.charAt(i)) * 0x100000001b3L;
+		}
+		hash = (hash ^ 0xffff) * 0x100000001b3L;
+		if (parentPostNumber != null)
+		{
+			for (int i = 0; i < parentPostNumber.length(); i++)
+			{
+				hash = (hash ^ parentPostNumber.charAt(i)) * 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+	
+	// Parsing result depends on both application and extension code, so versions of both packages are used
+	private static long getMarkupVersion(String chanName)
+	{
+		synchronized (MARKUP_VERSIONS)
+		{
+			Long markupVersion = MARKUP_VERSIONS.get(chanName);
+			if (markupVersion == null)
+			{
+				long version = FORMAT_VERSION;
+				Context context = MainApplication.getInstance();
+				try
+				{
+					PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+					version = 31 * version + packageInfo.versionCode;
+					version = 31 * version + packageInfo.lastUpdateTime;
+				}
+				catch (PackageManager.NameNotFoundException e)
+				{
+					// Not possible for own package
+				}
+				ChanManager.ExtensionItem chanItem = ChanManager.getInstance().getChanItem(chanName);
+				if (chanItem != null && chanItem.packageInfo != null)
+				{
+					version = 31 * version + chanItem.packageInfo.versionCode;
+					version = 31 * version + chanItem.packageInfo.lastUpdateTime;
+				}
+				markupVersion = version;
+				MARKUP_VERSIONS.put(chanName, markupVersion);
+			}
+			return markupVersion;
+		}
+	}
+	
+	// Returns null if there is no new entries since last collection, collected entries are removed from post items
+	public static ParsedComments collect(String chanName, Collection<PostItem> postItems)
+	{
+		HashMap<Long, Entry> entries = null;
+		for (PostItem postItem : postItems)
+		{
+			Entry entry = postItem.getParsedComment();
+			if (entry != null && !entry.mStored)
+			{
+				if (entries == null) entries = new HashMap<>();
+				entries.put(postItem.getPostKey(), entry);
+				postItem.setParsedComment(null);
+			}
+		}
+		return entries != null ? new ParsedComments(getMarkupVersion(chanName), entries) : null;
+	}
+	
+	// Returns this entries appended to stored ones, used when stored file is rewritten
+	public ParsedComments mergeStored(Object stored)
+	{
+		if (stored instanceof ParsedComments)
+		{
+			ParsedComments parsedComments = (ParsedComments) stored;
+			if (parsedComments.mMarkupVersion == mMarkupVersion)
+			{
+				HashMap<Long, Entry> entries = new HashMap<>(parsedComments.mEntries);
+				entries.putAll(mEntries);
+				return new ParsedComments(mMarkupVersion, entries);
+			}
+		}
+		return this;
+	}
+	
+	public void apply(String chanName, PostItem[] postItems)
+	{
+		if (postItems == null || mMarkupVersion != getMarkupVersion(chanName)) return;
+		for (PostItem postItem : postItems)
+		{
+			Entry entry = mEntries.get(postItem.getPostKey());
+			if (entry != null && entry.mHash == hash(postItem.getRawComment(), postItem.getParentPostNumber()))
+			{
+				postItem.setParsedComment(entry);
+			}
+		}
+	}
+	
+	public void write(ModelCodec.Writer writer) throws IOException
+	{
+		writer.writeLong(mMarkupVersion);
+		writer.writeVarInt(mEntries.size());
+		for (Map.Entry<Long, Entry> mapEntry : mEntries.entrySet())
+		{
+			Entry entry = mapEntry.getValue();
+			writer.writeLong(mapEntry.getKey());
+			writer.writeLong(entry.mHash);
+			writer.writeString(entry.mText);
+			writer.writeVarInt(entry.mSpans.length / 4);
+			for (int i = 0; i < entry.mSpans.length; i += 4)
+			{
+				writer.writeVarInt(entry.mSpans[i]);
+				writer.writeVarInt(entry.mSpans[i + 1]);
+				writer.writeVarInt(entry.mSpans[i + 2]);
+				writer.writeInt(entry.mSpans[i + 3]);
+			}
+			for (String string : entry.mStrings) writer.writeString(string);
+		}
+	}
+	
+	public static ParsedComments read(ModelCodec.Reader reader) throws IOException
+	{
+		long markupVersion = reader.readLong();
+		int count = reader.readLength();
+		HashMap<Long, Entry> entries = new HashMap<>(count);
+		for (int i = 0; i < count; i++)
+		{
+			long postKey = reader.readLong();
+			long hash = reader.readLong();
+			String text = reader.readString();
+			if (text == null) throw new IOException("Invalid text");
+			int spansCount = reader.readLength();
+			int[] spans = spansCount > 0 ? new int[spansCount * 4] : EMPTY_SPANS;
+			int stringsCount = 0;
+			for (int j = 0; j < spans.length; j += 4)
+			{
+				int type = reader.readVarInt();
+				int start = reader.readVarInt();
+				int end = reader.readVarInt();
+				if (type < TYPE_STYLE || type > TYPE_RELATIVE_SIZE || start < 0 || end < start || end > text.length())
+				{
+					throw new IOException("Invalid span");
+				}
+				spans[j] = type;
+				spans[j + 1] = start;
+				spans[j + 2] = end;
+				spans[j + 3] = reader.readInt();
+				stringsCount += Entry.getStringsCount(type);
+			}
+			String[] strings = stringsCount > 0 ? new String[stringsCount] : EMPTY_STRINGS;
+			for (int j = 0; j < stringsCount; j++) strings[j] = reader.readString();
+			entries.put(postKey, new Entry(hash, text, spans, strings, true));
+		}
+		return new ParsedComments(markupVersion, entries);
+	}
+	
+	// Appended record has the same layout as snapshot, entries of older markup version are dropped
+	public void readDelta(ModelCodec.Reader reader) throws IOException
+	{
+		ParsedComments parsedComments = read(reader);
+		if (parsedComments.mMarkupVersion != mMarkupVersion)
+		{
+			mMarkupVersion = parsedComments.mMarkupVersion;
+			mEntries.clear();
+		}
+		mEntries.putAll(parsedComments.mEntries);
+	}
+}
\ No newline at end of file
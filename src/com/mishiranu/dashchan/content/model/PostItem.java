@@ -17,8 +17,6 @@
 package com.mishiranu.dashchan.content.model;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -40,6 +38,7 @@ import chan.util.StringUtils;
 
 import com.mishiranu.dashchan.C;
 import com.mishiranu.dashchan.R;
+import com.mishiranu.dashchan.content.CacheManager;
 import com.mishiranu.dashchan.content.HidePerformer;
 import com.mishiranu.dashchan.content.storage.HiddenThreadsDatabase;
 import com.mishiranu.dashchan.graphics.ColorScheme;
@@ -49,6 +48,7 @@ import com.mishiranu.dashchan.text.style.LinkSpan;
 import com.mishiranu.dashchan.text.style.LinkSuffixSpan;
 import com.mishiranu.dashchan.text.style.NameColorSpan;
 import com.mishiranu.dashchan.text.style.SpoilerSpan;
+import com.mishiranu.dashchan.util.LongHashSet;
 import com.mishiranu.dashchan.util.PostDateFormatter;
 
 public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra, Comparable<PostItem>
@@ -75,11 +75,12 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 	private ColorScheme.Span[] mFullNameSpans;
 	private LinkSpan[] mLinkSpans;
 	private LinkSuffixSpan[] mLinkSuffixSpans;
+	private volatile ParsedComments.Entry mParsedComment;
 	private PostDateFormatter.Holder mDateTimeHolder;
 	private boolean mUseDefaultName;
 	
-	private HashSet<String> mReferencesTo;
-	private LinkedHashSet<String> mReferencesFrom;
+	private LongHashSet mReferencesTo;
+	private LongHashSet mReferencesFrom;
 	
 	private boolean mExpanded = false;
 	
@@ -97,17 +98,25 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 		public GalleryItem.GallerySet gallerySet;
 	}
 	
+	// Hidden state has its own lock, so changing it never waits for comment parsing
+	private final Object mHiddenLock = new Object();
+	private int mHiddenVersion = 0;
 	private int mHidden = C.HIDDEN_UNKNOWN;
 	private String mHideReason;
 	private boolean mUnread = false;
 	
 	public PostItem(Post post, String chanName, String boardName)
+	{
+		this(post, chanName, boardName, null);
+	}
+	
+	public PostItem(Post post, String chanName, String boardName, ReplyGraph replyGraph)
 	{
 		mPost = post;
 		mThreadData = null;
 		mChanName = chanName;
 		mBoardName = boardName;
-		init();
+		init(replyGraph);
 	}
 	
 	public PostItem(Posts thread, String chanName, String boardName)
@@ -121,10 +130,10 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 		mThreadData.firstAndLastPosts = posts;
 		mChanName = chanName;
 		mBoardName = boardName;
-		init();
+		init(null);
 	}
 	
-	private void init()
+	private void init(ReplyGraph replyGraph)
 	{
 		mAttachmentItems = AttachmentItem.obtain(this);
 		if (isThreadItem())
@@ -142,8 +151,21 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 		}
 		else
 		{
-			String comment = mPost.getWorkComment();
-			mReferencesTo = parseReferencesTo(mReferencesTo, comment);
+			int ordinal = replyGraph != null ? replyGraph.indexOf(getPostKey()) : -1;
+			if (ordinal >= 0)
+			{
+				long[] referencesTo = replyGraph.getReferencesTo(ordinal);
+				if (referencesTo.length > 0)
+				{
+					mReferencesTo = new LongHashSet(referencesTo.length);
+					for (long postKey : referencesTo) mReferencesTo.add(postKey);
+				}
+			}
+			else
+			{
+				String comment = mPost.getWorkComment();
+				mReferencesTo = parseReferencesTo(mReferencesTo, comment);
+			}
 		}
 		ArrayList<Pair<Uri, String>> icons = null;
 		for (int i = 0, count = mPost.getIconsCount(); i < count; i++)
@@ -163,7 +185,7 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 		return mPost;
 	}
 	
-	public static HashSet<String> parseReferencesTo(HashSet<String> referencesTo, String comment)
+	public static LongHashSet parseReferencesTo(LongHashSet referencesTo, String comment)
 	{
 		if (referencesTo != null) referencesTo.clear();
 		if (comment != null)
@@ -197,8 +219,10 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 							}
 						}
 						if (!number) continue;
-						if (referencesTo == null) referencesTo = new HashSet<>();
-						referencesTo.add(text.substring(start));
+						long postKey = Post.parsePostKey(text.substring(start));
+						if (postKey == Post.POST_KEY_INVALID) continue;
+						if (referencesTo == null) referencesTo = new LongHashSet();
+						referencesTo.add(postKey);
 					}
 				}
 				else break;
@@ -207,17 +231,17 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 		return referencesTo;
 	}
 	
-	public void addReferenceFrom(String postNumber)
+	public void addReferenceFrom(long postKey)
 	{
-		if (mReferencesFrom == null) mReferencesFrom = new LinkedHashSet<>();
-		mReferencesFrom.add(postNumber);
+		if (mReferencesFrom == null) mReferencesFrom = new LongHashSet();
+		mReferencesFrom.add(postKey);
 	}
 	
-	public void removeReferenceFrom(String postNumber)
+	public void removeReferenceFrom(long postKey)
 	{
 		if (mReferencesFrom != null)
 		{
-			mReferencesFrom.remove(postNumber);
+			mReferencesFrom.remove(postKey);
 		}
 	}
 	
@@ -275,6 +299,11 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 		return mPost.getPostNumber();
 	}
 	
+	public long getPostKey()
+	{
+		return mPost.getPostKey();
+	}
+	
 	public String getOriginalPostNumber()
 	{
 		return mPost.getOriginalPostNumber();
@@ -492,27 +521,44 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 			{
 				if (mComment == null)
 				{
-					CharSequence comment = obtainComment(mPost.getWorkComment(), getChanName(), mBoardName,
-							getThreadNumber(), getParentPostNumber(), this);
-					// Make empty lines take less space
-					SpannableStringBuilder builder = null;
-					int linebreaks = 0;
-					for (int i = 0; i < comment.length(); i++)
+					CharSequence comment;
+					ParsedComments.Entry parsedComment = mParsedComment;
+					if (parsedComment != null)
+					{
+						comment = parsedComment.build();
+						// Entry is already stored and built comment is kept below, so it isn't needed anymore
+						mParsedComment = null;
+					}
+					else
 					{
-						char c = comment.charAt(i);
-						if (c == '\n') linebreaks++; else
+						comment = obtainComment(mPost.getWorkComment(), getChanName(), mBoardName,
+								getThreadNumber(), getParentPostNumber(), this);
+						// Make empty lines take less space
+						SpannableStringBuilder builder = null;
+						int linebreaks = 0;
+						for (int i = 0; i < comment.length(); i++)
 						{
-							if (linebreaks > 1)
+							char c = comment.charAt(i);
+							if (c == '\n') linebreaks++; else
 							{
-								if (builder == null)
+								if (linebreaks > 1)
 								{
-									builder = new SpannableStringBuilder(comment);
-									comment = builder;
+									if (builder == null)
+									{
+										builder = new SpannableStringBuilder(comment);
+										comment = builder;
+									}
+									builder.setSpan(new RelativeSizeSpan(0.75f), i - linebreaks, i,
+											SpannableStringBuilder.SPAN_EXCLUSIVE_EXCLUSIVE);
 								}
-								builder.setSpan(new RelativeSizeSpan(0.75f), i - linebreaks, i,
-										SpannableStringBuilder.SPAN_EXCLUSIVE_EXCLUSIVE);
+								linebreaks = 0;
 							}
-							linebreaks = 0;
+						}
+						// Spans state is changed later, so parsed comment is stored right after parsing
+						if (CacheManager.getInstance().allowPagesCache(getChanName()))
+						{
+							mParsedComment = ParsedComments.Entry.create(ParsedComments.hash(mPost.getWorkComment(),
+									getParentPostNumber()), comment);
 						}
 					}
 					mCommentSpans = ColorScheme.getSpans(comment);
@@ -551,6 +597,16 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 		return comment;
 	}
 	
+	public ParsedComments.Entry getParsedComment()
+	{
+		return mParsedComment;
+	}
+	
+	public void setParsedComment(ParsedComments.Entry parsedComment)
+	{
+		mParsedComment = parsedComment;
+	}
+	
 	public ColorScheme.Span[] getCommentSpans()
 	{
 		return mCommentSpans;
@@ -617,16 +673,16 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 	/*
 	 * Must be called only after getComment.
 	 */
-	public boolean hasUserRepliesAfterComment(HashSet<String> userPostNumbers)
+	public boolean hasUserRepliesAfterComment(LongHashSet userPostKeys)
 	{
 		LinkSuffixSpan[] linkSuffixSpans = mLinkSuffixSpans;
-		if (linkSuffixSpans != null && userPostNumbers != null)
+		if (linkSuffixSpans != null && userPostKeys != null)
 		{
-			synchronized (userPostNumbers)
+			synchronized (userPostKeys)
 			{
 				for (LinkSuffixSpan span : linkSuffixSpans)
 				{
-					if (userPostNumbers.contains(span.getPostNumber())) return true;
+					if (userPostKeys.contains(span.getPostKey())) return true;
 				}
 			}
 		}
@@ -678,7 +734,7 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 	/*
 	 * May return null set.
 	 */
-	public HashSet<String> getReferencesTo()
+	public LongHashSet getReferencesTo()
 	{
 		return mReferencesTo;
 	}
@@ -686,7 +742,7 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 	/*
 	 * May return null array.
 	 */
-	public LinkedHashSet<String> getReferencesFrom()
+	public LongHashSet getReferencesFrom()
 	{
 		return mReferencesFrom;
 	}
@@ -807,26 +863,33 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 	{
 		if (mHidden == C.HIDDEN_UNKNOWN)
 		{
-			synchronized (this)
+			int version;
+			synchronized (mHiddenLock)
+			{
+				version = mHiddenVersion;
+			}
+			int hidden;
+			String hideReason = null;
+			if (mThreadData == null) hidden = getHiddenStateFromModel(); else
 			{
-				int hidden = mHidden;
-				if (hidden == C.HIDDEN_UNKNOWN)
+				hidden = HiddenThreadsDatabase.getInstance().check(getChanName(), mBoardName, getPostNumber());
+			}
+			if (hidden == C.HIDDEN_UNKNOWN)
+			{
+				hideReason = hidePerformer.checkHidden(this);
+				if (hideReason != null) hidden = C.HIDDEN_TRUE;
+				else hidden = C.HIDDEN_FALSE;
+			}
+			synchronized (mHiddenLock)
+			{
+				// State computed with previous rules is not kept if state was changed during check
+				if (mHiddenVersion == version && mHidden == C.HIDDEN_UNKNOWN)
 				{
-					String hideReason = null;
-					if (mThreadData == null) hidden = getHiddenStateFromModel(); else
-					{
-						hidden = HiddenThreadsDatabase.getInstance().check(getChanName(), mBoardName, getPostNumber());
-					}
-					if (hidden == C.HIDDEN_UNKNOWN)
-					{
-						hideReason = hidePerformer.checkHidden(this);
-						if (hideReason != null) hidden = C.HIDDEN_TRUE;
-						else hidden = C.HIDDEN_FALSE;
-					}
 					mHideReason = hideReason;
 					mHidden = hidden;
 				}
 			}
+			return hidden == C.HIDDEN_TRUE;
 		}
 		return mHidden == C.HIDDEN_TRUE;
 	}
@@ -846,15 +909,41 @@ public class PostItem implements AttachmentItem.Binder, ChanMarkup.MarkupExtra,
 	
 	public void setHidden(boolean hidden)
 	{
-		mHidden = hidden ? C.HIDDEN_TRUE : C.HIDDEN_FALSE;
-		mHideReason = null;
+		synchronized (mHiddenLock)
+		{
+			mHiddenVersion++;
+			mHidden = hidden ? C.HIDDEN_TRUE : C.HIDDEN_FALSE;
+			mHideReason = null;
+		}
 		if (!isThreadItem()) mPost.setHidden(hidden);
 	}
 	
+	// Replacing item for the same post keeps computed state, so it's not checked again
+	public void copyHiddenState(PostItem postItem)
+	{
+		int hidden;
+		String hideReason;
+		synchronized (postItem.mHiddenLock)
+		{
+			hidden = postItem.mHidden;
+			hideReason = postItem.mHideReason;
+		}
+		synchronized (mHiddenLock)
+		{
+			mHiddenVersion++;
+			mHidden = hidden;
+			mHideReason = hideReason;
+		}
+	}
+	
 	public void invalidateHidden()
 	{
-		mHidden = C.HIDDEN_UNKNOWN;
-		mHideReason = null;
+		synchronized (mHiddenLock)
+		{
+			mHiddenVersion++;
+			mHidden = C.HIDDEN_UNKNOWN;
+			mHideReason = null;
+		}
 	}
 	
 	public void resetHidden()
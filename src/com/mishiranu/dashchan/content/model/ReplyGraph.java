@@ -0,0 +1,423 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import chan.content.model.ModelCodec;
+import chan.content.model.Post;
+import chan.content.model.Posts;
+
+import com.mishiranu.dashchan.util.LongHashSet;
+
+// Thread references index. Posts are addressed by ordinal in thread, replies are kept as post keys,
+// so they remain valid after merge and only replies of changed posts have to be updated.
+public class ReplyGraph
+{
+	private static final long[] EMPTY_KEYS = new long[0];
+	
+	private final long[] mKeys;
+	private final long[][] mReferencesTo;
+	private final long[][] mReplies;
+	
+	// Last merge, it is appended to stored graph instead of writing the whole graph
+	private long[] mDeltaKeys;
+	private long[][] mDeltaReferencesTo;
+	private int[] mDeltaIndexes;
+	private boolean[] mDeltaInserts;
+	
+	private ReplyGraph(long[] keys, long[][] referencesTo, long[][] replies)
+	{
+		mKeys = keys;
+		mReferencesTo = referencesTo;
+		mReplies = replies;
+	}
+	
+	private static ReplyGraph create(long[] keys, long[][] referencesTo)
+	{
+		ReplyGraph replyGraph = new ReplyGraph(keys, referencesTo, new long[keys.length][]);
+		replyGraph.buildReplies();
+		return replyGraph;
+	}
+	
+	public static ReplyGraph build(Post[] posts)
+	{
+		int count = posts != null ? posts.length : 0;
+		long[] keys = new long[count];
+		long[][] referencesTo = new long[count][];
+		for (int i = 0; i < count; i++)
+		{
+			keys[i] = posts[i].getPostKey();
+			referencesTo[i] = parseReferencesTo(posts[i]);
+		}
+		return create(keys, referencesTo);
+	}
+	
+	private static long[] parseReferencesTo(Post post)
+	{
+		LongHashSet referencesTo = PostItem.parseReferencesTo(null, post.getWorkComment());
+		if (referencesTo == null || referencesTo.isEmpty()) return EMPTY_KEYS;
+		long[] result = new long[referencesTo.size()];
+		for (int i = 0; i < result.length; i++) result[i] = referencesTo.get(i);
+		return result;
+	}
+	
+	// Only changed posts are parsed, references of other posts are taken from this graph
+	public ReplyGraph merge(Post[] handlePosts, Posts.MergeAction[] actions)
+	{
+		if (handlePosts == null || actions == null) return this;
+		int count = handlePosts.length;
+		long[] keys = new long[count];
+		long[][] referencesTo = new long[count][];
+		int[] indexes = new int[count];
+		boolean[] inserts = new boolean[count];
+		for (int i = 0; i < count; i++)
+		{
+			keys[i] = handlePosts[i].getPostKey();
+			referencesTo[i] = parseReferencesTo(handlePosts[i]);
+			indexes[i] = actions[i].index;
+			inserts[i] = actions[i].insert;
+		}
+		return merge(keys, referencesTo, indexes, inserts);
+	}
+	
+	private ReplyGraph merge(long[] changedKeys, long[][] changedReferencesTo, int[] indexes, boolean[] inserts)
+	{
+		int oldCount = mKeys.length;
+		int insertCount = 0;
+		boolean ordered = true;
+		for (int i = 0; i < indexes.length; i++)
+		{
+			if (i > 0 && indexes[i] <= indexes[i - 1]) ordered = false;
+			if (inserts[i]) insertCount++;
+		}
+		// References of replaced posts, replies to them must be removed from referenced posts
+		long[][] replacedReferencesTo = new long[indexes.length][];
+		ReplyGraph replyGraph;
+		if (ordered)
+		{
+			int newCount = oldCount + insertCount;
+			long[] keys = new long[newCount];
+			long[][] referencesTo = new long[newCount][];
+			long[][] replies = new long[newCount][];
+			int source = 0;
+			int target = 0;
+			for (int i = 0; i < indexes.length; i++)
+			{
+				int count = indexes[i] - target;
+				System.arraycopy(mKeys, source, keys, target, count);
+				System.arraycopy(mReferencesTo, source, referencesTo, target, count);
+				System.arraycopy(mReplies, source, replies, target, count);
+				source += count;
+				target += count;
+				if (inserts[i]) replies[target] = EMPTY_KEYS; else
+				{
+					replacedReferencesTo[i] = mReferencesTo[source];
+					replies[target] = mReplies[source];
+					source++;
+				}
+				keys[target] = changedKeys[i];
+				referencesTo[target] = changedReferencesTo[i];
+				target++;
+			}
+			int count = oldCount - source;
+			System.arraycopy(mKeys, source, keys, target, count);
+			System.arraycopy(mReferencesTo, source, referencesTo, target, count);
+			System.arraycopy(mReplies, source, replies, target, count);
+			replyGraph = new ReplyGraph(keys, referencesTo, replies);
+		}
+		else
+		{
+			ArrayList<Long> keys = new ArrayList<>(oldCount + insertCount);
+			ArrayList<long[]> referencesTo = new ArrayList<>(oldCount + insertCount);
+			ArrayList<long[]> replies = new ArrayList<>(oldCount + insertCount);
+			for (int i = 0; i < oldCount; i++)
+			{
+				keys.add(mKeys[i]);
+				referencesTo.add(mReferencesTo[i]);
+				replies.add(mReplies[i]);
+			}
+			for (int i = 0; i < indexes.length; i++)
+			{
+				int index = indexes[i];
+				if (inserts[i])
+				{
+					keys.add(index, changedKeys[i]);
+					referencesTo.add(index, changedReferencesTo[i]);
+					replies.add(index, EMPTY_KEYS);
+				}
+				else
+				{
+					keys.set(index, changedKeys[i]);
+					replacedReferencesTo[i] = referencesTo.set(index, changedReferencesTo[i]);
+				}
+			}
+			long[] keysArray = new long[keys.size()];
+			for (int i = 0; i < keysArray.length; i++) keysArray[i] = keys.get(i);
+			replyGraph = new ReplyGraph(keysArray, referencesTo.toArray(new long[referencesTo.size()][]),
+					replies.toArray(new long[replies.size()][]));
+		}
+		replyGraph.updateReplies(changedKeys, changedReferencesTo, replacedReferencesTo, inserts,
+				oldCount > 0 ? mKeys[oldCount - 1] : Long.MIN_VALUE);
+		replyGraph.mDeltaKeys = changedKeys;
+		replyGraph.mDeltaReferencesTo = changedReferencesTo;
+		replyGraph.mDeltaIndexes = indexes;
+		replyGraph.mDeltaInserts = inserts;
+		return replyGraph;
+	}
+	
+	private void updateReplies(long[] changedKeys, long[][] changedReferencesTo, long[][] replacedReferencesTo,
+			boolean[] inserts, long lastOldPostKey)
+	{
+		LongHashSet insertedKeys = null;
+		for (int i = 0; i < changedKeys.length; i++)
+		{
+			long postKey = changedKeys[i];
+			long[] oldReferencesTo = replacedReferencesTo[i];
+			long[] newReferencesTo = changedReferencesTo[i];
+			if (oldReferencesTo != null)
+			{
+				if (Arrays.equals(oldReferencesTo, newReferencesTo)) continue;
+				for (long targetPostKey : oldReferencesTo) removeReply(targetPostKey, postKey);
+			}
+			for (long targetPostKey : newReferencesTo) addReply(targetPostKey, postKey);
+			if (inserts[i] && postKey < lastOldPostKey)
+			{
+				if (insertedKeys == null) insertedKeys = new LongHashSet();
+				insertedKeys.add(postKey);
+			}
+		}
+		if (insertedKeys != null)
+		{
+			// Posts inserted before the end of thread might be already referenced by existing posts
+			for (int i = 0; i < mKeys.length; i++)
+			{
+				for (long targetPostKey : mReferencesTo[i])
+				{
+					if (insertedKeys.contains(targetPostKey)) addReply(targetPostKey, mKeys[i]);
+				}
+			}
+		}
+	}
+	
+	// Reply arrays may be shared with other graphs, so they are copied on change
+	private void addReply(long targetPostKey, long postKey)
+	{
+		int ordinal = indexOf(targetPostKey);
+		if (ordinal < 0) return;
+		long[] replies = mReplies[ordinal];
+		int index = Arrays.binarySearch(replies, postKey);
+		if (index >= 0) return;
+		index = -index - 1;
+		long[] newReplies = new long[replies.length + 1];
+		System.arraycopy(replies, 0, newReplies, 0, index);
+		newReplies[index] = postKey;
+		System.arraycopy(replies, index, newReplies, index + 1, replies.length - index);
+		mReplies[ordinal] = newReplies;
+	}
+	
+	private void removeReply(long targetPostKey, long postKey)
+	{
+		int ordinal = indexOf(targetPostKey);
+		if (ordinal < 0) return;
+		long[] replies = mReplies[ordinal];
+		int index = Arrays.binarySearch(replies, postKey);
+		if (index < 0) return;
+		long[] newReplies = replies.length > 1 ? new long[replies.length - 1] : EMPTY_KEYS;
+		System.arraycopy(replies, 0, newReplies, 0, index);
+		System.arraycopy(replies, index + 1, newReplies, index, replies.length - index - 1);
+		mReplies[ordinal] = newReplies;
+	}
+	
+	// Keeps references of remaining posts, used when posts were removed from thread
+	public ReplyGraph retain(Post[] posts)
+	{
+		int count = posts != null ? posts.length : 0;
+		long[] keys = new long[count];
+		long[][] referencesTo = new long[count][];
+		for (int i = 0; i < count; i++)
+		{
+			keys[i] = posts[i].getPostKey();
+			int ordinal = indexOf(keys[i]);
+			referencesTo[i] = ordinal >= 0 ? mReferencesTo[ordinal] : parseReferencesTo(posts[i]);
+		}
+		return create(keys, referencesTo);
+	}
+	
+	private void buildReplies()
+	{
+		long[] keys = mKeys;
+		long[][] referencesTo = mReferencesTo;
+		int count = keys.length;
+		// Count replies for every post first, then fill them in source order, so every array is sorted
+		int[] repliesCount = new int[count];
+		for (long[] references : referencesTo)
+		{
+			for (long postKey : references)
+			{
+				int target = indexOf(postKey);
+				if (target >= 0) repliesCount[target]++;
+			}
+		}
+		long[][] replies = mReplies;
+		for (int i = 0; i < count; i++)
+		{
+			replies[i] = repliesCount[i] > 0 ? new long[repliesCount[i]] : EMPTY_KEYS;
+			repliesCount[i] = 0;
+		}
+		for (int i = 0; i < count; i++)
+		{
+			for (long postKey : referencesTo[i])
+			{
+				int target = indexOf(postKey);
+				if (target >= 0) replies[target][repliesCount[target]++] = keys[i];
+			}
+		}
+	}
+	
+	public boolean isValidFor(Posts posts)
+	{
+		Post[] postsArray = posts != null ? posts.getPosts() : null;
+		int count = postsArray != null ? postsArray.length : 0;
+		if (count != mKeys.length) return false;
+		for (int i = 0; i < count; i++)
+		{
+			if (postsArray[i].getPostKey() != mKeys[i]) return false;
+		}
+		return true;
+	}
+	
+	public int getCount()
+	{
+		return mKeys.length;
+	}
+	
+	public int indexOf(long postKey)
+	{
+		// Posts are sorted, so keys are sorted too
+		int index = Arrays.binarySearch(mKeys, postKey);
+		return index >= 0 ? index : -1;
+	}
+	
+	public long getPostKey(int ordinal)
+	{
+		return mKeys[ordinal];
+	}
+	
+	public long[] getReferencesTo(int ordinal)
+	{
+		return mReferencesTo[ordinal];
+	}
+	
+	public int getReplyCount(int ordinal)
+	{
+		return mReplies[ordinal].length;
+	}
+	
+	public long getReplyPostKeyAt(int ordinal, int index)
+	{
+		return mReplies[ordinal][index];
+	}
+	
+	public boolean hasReferenceTo(int ordinal, LongHashSet postKeys)
+	{
+		for (long postKey : mReferencesTo[ordinal])
+		{
+			if (postKeys.contains(postKey)) return true;
+		}
+		return false;
+	}
+	
+	public boolean hasDelta()
+	{
+		return mDeltaKeys != null;
+	}
+	
+	private static void writeReferencesTo(ModelCodec.Writer writer, long[] references) throws IOException
+	{
+		writer.writeVarInt(references.length);
+		for (long postKey : references) writer.writeLong(postKey);
+	}
+	
+	private static long[] readReferencesTo(ModelCodec.Reader reader) throws IOException
+	{
+		int count = reader.readLength();
+		long[] references = count > 0 ? new long[count] : EMPTY_KEYS;
+		for (int i = 0; i < count; i++) references[i] = reader.readLong();
+		return references;
+	}
+	
+	public void write(ModelCodec.Writer writer) throws IOException
+	{
+		writer.writeVarInt(mKeys.length);
+		for (int i = 0; i < mKeys.length; i++)
+		{
+			writer.writeLong(mKeys[i]);
+			writeReferencesTo(writer, mReferencesTo[i]);
+		}
+	}
+	
+	public static ReplyGraph read(ModelCodec.Reader reader) throws IOException
+	{
+		int count = reader.readLength();
+		long[] keys = new long[count];
+		long[][] referencesTo = new long[count][];
+		for (int i = 0; i < count; i++)
+		{
+			keys[i] = reader.readLong();
+			if (i > 0 && keys[i] <= keys[i - 1]) throw new IOException("Unsorted post keys");
+			referencesTo[i] = readReferencesTo(reader);
+		}
+		return create(keys, referencesTo);
+	}
+	
+	public void writeDelta(ModelCodec.Writer writer) throws IOException
+	{
+		int count = mDeltaKeys != null ? mDeltaKeys.length : 0;
+		writer.writeVarInt(count);
+		for (int i = 0; i < count; i++)
+		{
+			writer.writeVarInt(mDeltaIndexes[i]);
+			writer.writeBoolean(mDeltaInserts[i]);
+			writer.writeLong(mDeltaKeys[i]);
+			writeReferencesTo(writer, mDeltaReferencesTo[i]);
+		}
+	}
+	
+	public ReplyGraph readDelta(ModelCodec.Reader reader) throws IOException
+	{
+		// Read the whole record before applying it, so incomplete record will not break the graph
+		int count = reader.readLength();
+		long[] keys = new long[count];
+		long[][] referencesTo = new long[count][];
+		int[] indexes = new int[count];
+		boolean[] inserts = new boolean[count];
+		int length = mKeys.length;
+		for (int i = 0; i < count; i++)
+		{
+			indexes[i] = reader.readVarInt();
+			inserts[i] = reader.readBoolean();
+			keys[i] = reader.readLong();
+			referencesTo[i] = readReferencesTo(reader);
+			if (inserts[i]) length++;
+			if (indexes[i] < 0 || indexes[i] >= length) throw new IOException("Invalid merge action");
+		}
+		return count > 0 ? merge(keys, referencesTo, indexes, inserts) : this;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import chan.util.StringUtils;
+
+import com.mishiranu.dashchan.text.MultiPatternMatcher;
+
+// Immutable compiled form of autohide rules. Rules are grouped by chan and board, rules with plain text values
+// are matched together with a single automaton and regular expressions are compiled only once.
+public class AutohideRules
+{
+	public static final int FIELD_SUBJECT = 0;
+	public static final int FIELD_COMMENT = 1;
+	public static final int FIELD_NAME = 2;
+	
+	private static final int FIELDS_COUNT = 3;
+	private static final int[] EMPTY_CANDIDATES = new int[0];
+	
+	private final AutohideStorage.AutohideItem[] mItems;
+	private final Pattern[] mPatterns;
+	private final int[] mLiteralIds;
+	private final MultiPatternMatcher mMatcher;
+	
+	private final int[] mAnyChanCandidates;
+	private final HashMap<String, int[]> mChanCandidates = new HashMap<>();
+	private final HashMap<String, int[]> mBoardCandidates = new HashMap<>();
+	
+	AutohideRules(List<AutohideStorage.AutohideItem> autohideItems)
+	{
+		int count = autohideItems.size();
+		mItems = autohideItems.toArray(new AutohideStorage.AutohideItem[count]);
+		mPatterns = new Pattern[count];
+		mLiteralIds = new int[count];
+		ArrayList<String> literals = new ArrayList<>();
+		ArrayList<Integer> anyChanCandidates = new ArrayList<>();
+		HashMap<String, ArrayList<Integer>> chanCandidates = new HashMap<>();
+		for (int i = 0; i < count; i++)
+		{
+			AutohideStorage.AutohideItem autohideItem = mItems[i];
+			String value = autohideItem.value;
+			mLiteralIds[i] = -1;
+			if (isLiteral(value))
+			{
+				mLiteralIds[i] = literals.size();
+				literals.add(value);
+			}
+			else
+			{
+				try
+				{
+					mPatterns[i] = AutohideStorage.AutohideItem.makePattern(value);
+				}
+				catch (Exception e)
+				{
+					// Invalid rules never match
+				}
+			}
+			if (autohideItem.chanNames == null) anyChanCandidates.add(i); else
+			{
+				for (String chanName : autohideItem.chanNames)
+				{
+					ArrayList<Integer> candidates = chanCandidates.get(chanName);
+					if (candidates == null)
+					{
+						candidates = new ArrayList<>();
+						chanCandidates.put(chanName, candidates);
+					}
+					candidates.add(i);
+				}
+			}
+		}
+		mMatcher = literals.size() > 0 ? new MultiPatternMatcher(literals.toArray(new String[literals.size()])) : null;
+		mAnyChanCandidates = toArray(anyChanCandidates);
+		for (Map.Entry<String, ArrayList<Integer>> entry : chanCandidates.entrySet())
+		{
+			mChanCandidates.put(entry.getKey(), toArray(entry.getValue()));
+		}
+	}
+	
+	private static int[] toArray(ArrayList<Integer> list)
+	{
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+		return array;
+	}
+	
+	private static boolean isLiteral(String value)
+	{
+		if (StringUtils.isEmpty(value)) return false;
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) return false;
+			// Only characters with trivial case folding, so automaton gives the same result as Pattern
+			if (c >= 0x80 && !(c >= 0xc0 && c <= 0xff && c != 0xdf && c != 0xd7 && c != 0xf7)
+					&& !(c >= 0x400 && c <= 0x4ff) && (Character.toUpperCase(c) != c
+					|| Character.toLowerCase(c) != c || Character.isSurrogate(c)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public int getCount()
+	{
+		return mItems.length;
+	}
+	
+	public AutohideStorage.AutohideItem getItem(int index)
+	{
+		return mItems[index];
+	}
+	
+	// Returns indexes of rules which can be applied to posts from this chan and board, in the original order
+	public int[] getCandidates(String chanName, String boardName)
+	{
+		String key = boardName != null ? chanName + "/" + boardName : chanName;
+		synchronized (mBoardCandidates)
+		{
+			int[] candidates = mBoardCandidates.get(key);
+			if (candidates != null) return candidates;
+		}
+		int[] chanCandidates = mChanCandidates.get(chanName);
+		if (chanCandidates == null) chanCandidates = EMPTY_CANDIDATES;
+		int[] candidates = new int[mAnyChanCandidates.length + chanCandidates.length];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < mAnyChanCandidates.length || j < chanCandidates.length)
+		{
+			int index;
+			if (j == chanCandidates.length || i < mAnyChanCandidates.length
+					&& mAnyChanCandidates[i] < chanCandidates[j])
+			{
+				index = mAnyChanCandidates[i++];
+			}
+			else index = chanCandidates[j++];
+			String itemBoardName = mItems[index].boardName;
+			if (StringUtils.isEmpty(itemBoardName) || boardName == null || itemBoardName.equals(boardName))
+			{
+				candidates[count++] = index;
+			}
+		}
+		if (count < candidates.length)
+		{
+			int[] newCandidates = new int[count];
+			System.arraycopy(candidates, 0, newCandidates, 0, count);
+			candidates = newCandidates;
+		}
+		synchronized (mBoardCandidates)
+		{
+			mBoardCandidates.put(key, candidates);
+		}
+		return candidates;
+	}
+	
+	public Session newSession()
+	{
+		return new Session();
+	}
+	
+	// Keeps automaton results for a single post, so every field is scanned at most once
+	public class Session
+	{
+		private final int[][] mLiteralStarts = new int[FIELDS_COUNT][];
+		
+		private Session()
+		{
+			
+		}
+		
+		public String find(int index, int field, String text)
+		{
+			if (text == null) return null;
+			int literalId = mLiteralIds[index];
+			if (literalId >= 0)
+			{
+				int[] starts = mLiteralStarts[field];
+				if (starts == null)
+				{
+					starts = mMatcher.find(text);
+					mLiteralStarts[field] = starts;
+				}
+				int start = starts[literalId];
+				return start >= 0 ? text.substring(start, start + mItems[index].value.length()) : null;
+			}
+			Pattern pattern = mPatterns[index];
+			if (pattern != null)
+			{
+				Matcher matcher = pattern.matcher(text);
+				if (matcher.find())
+				{
+					String result = matcher.group();
+					if (StringUtils.isEmpty(result)) result = mItems[index].value;
+					return result;
+				}
+			}
+			return null;
+		}
+	}
+}
\ No newline at end of file
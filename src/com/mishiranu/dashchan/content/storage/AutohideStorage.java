@@ -19,7 +19,6 @@ package com.mishiranu.dashchan.content.storage;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.json.JSONArray;
@@ -51,6 +50,7 @@ public class AutohideStorage extends StorageManager.Storage
 	}
 	
 	private final ArrayList<AutohideItem> mAutohideItems = new ArrayList<>();
+	private volatile AutohideRules mRules;
 	
 	private AutohideStorage()
 	{
@@ -100,6 +100,24 @@ public class AutohideStorage extends StorageManager.Storage
 	{
 		return mAutohideItems;
 	}
+	
+	public AutohideRules getRules()
+	{
+		AutohideRules rules = mRules;
+		if (rules == null)
+		{
+			synchronized (this)
+			{
+				rules = mRules;
+				if (rules == null)
+				{
+					rules = new AutohideRules(mAutohideItems);
+					mRules = rules;
+				}
+			}
+		}
+		return rules;
+	}
 
 	@Override
 	public Object onClone()
@@ -145,19 +163,32 @@ public class AutohideStorage extends StorageManager.Storage
 	
 	public void add(AutohideItem autohideItem)
 	{
-		mAutohideItems.add(autohideItem);
+		// Rules are built under the same lock, so stale rules can't be published after change
+		synchronized (this)
+		{
+			mAutohideItems.add(autohideItem);
+			mRules = null;
+		}
 		serialize();
 	}
 	
 	public void update(int index, AutohideItem autohideItem)
 	{
-		mAutohideItems.set(index, autohideItem);
+		synchronized (this)
+		{
+			mAutohideItems.set(index, autohideItem);
+			mRules = null;
+		}
 		serialize();
 	}
 	
 	public void delete(int index)
 	{
-		mAutohideItems.remove(index);
+		synchronized (this)
+		{
+			mAutohideItems.remove(index);
+			mRules = null;
+		}
 		serialize();
 	}
 	
@@ -177,9 +208,6 @@ public class AutohideStorage extends StorageManager.Storage
 		
 		public String value;
 		
-		private volatile boolean mReady = false;
-		private Pattern mPattern;
-		
 		public AutohideItem()
 		{
 			
@@ -219,43 +247,6 @@ public class AutohideStorage extends StorageManager.Storage
 			this.value = value;
 		}
 		
-		public String find(String data)
-		{
-			if (!mReady)
-			{
-				synchronized (this)
-				{
-					if (!mReady)
-					{
-						try
-						{
-							mPattern = makePattern(value);
-						}
-						catch (Exception e)
-						{
-							
-						}
-						mReady = true;
-					}
-				}
-			}
-			try
-			{
-				Matcher matcher = mPattern.matcher(data);
-				if (matcher.find())
-				{
-					String result = matcher.group();
-					if (StringUtils.isEmpty(result)) result = value;
-					return result;
-				}
-			}
-			catch (Exception e)
-			{
-				
-			}
-			return null;
-		}
-		
 		public String getReason(boolean subject, boolean name, String text, String findResult)
 		{
 			StringBuilder builder = new StringBuilder();
@@ -44,6 +44,7 @@ public class FavoritesStorage extends StorageManager.Storage
 	private static final String KEY_NEW_POSTS_COUNT = "newPostsCount";
 	private static final String KEY_HAS_NEW_POSTS = "hasNewPosts";
 	private static final String KEY_WATCHER_VALIDATOR = "watcherValidator";
+	private static final String KEY_WATCHER_POSTS_RATE = "watcherPostsRate";
 	
 	private static final FavoritesStorage INSTANCE = new FavoritesStorage();
 	
@@ -85,6 +86,7 @@ public class FavoritesStorage extends StorageManager.Storage
 							FavoriteItem favoriteItem = new FavoriteItem(chanName, boardName, threadNumber,
 									title, modifiedTitle, watcherEnabled, postsCount, newPostsCount,
 									hasNewPosts, watcherValidator);
+							favoriteItem.watcherPostsRate = (float) jsonObject.optDouble(KEY_WATCHER_POSTS_RATE, -1);
 							mFavoriteItemsMap.put(makeKey(chanName, boardName, threadNumber), favoriteItem);
 							mFavoriteItemsList.add(favoriteItem);
 						}
@@ -130,6 +132,10 @@ public class FavoritesStorage extends StorageManager.Storage
 				{
 					putJson(jsonObject, KEY_WATCHER_VALIDATOR, favoriteItem.watcherValidator.toString());
 				}
+				if (favoriteItem.watcherPostsRate >= 0)
+				{
+					jsonObject.put(KEY_WATCHER_POSTS_RATE, favoriteItem.watcherPostsRate);
+				}
 				jsonArray.put(jsonObject);
 			}
 			JSONObject jsonObject = new JSONObject();
@@ -286,7 +292,7 @@ public class FavoritesStorage extends StorageManager.Storage
 	}
 	
 	public void modifyWatcherData(String chanName, String boardName, String threadNumber,
-			int newPostsCount, boolean hasNewPosts, HttpValidator watcherValidator)
+			int newPostsCount, boolean hasNewPosts, HttpValidator watcherValidator, float watcherPostsRate)
 	{
 		FavoriteItem favoriteItem = getFavorite(chanName, boardName, threadNumber);
 		if (favoriteItem != null)
@@ -294,6 +300,7 @@ public class FavoritesStorage extends StorageManager.Storage
 			favoriteItem.newPostsCount = newPostsCount;
 			favoriteItem.hasNewPosts = hasNewPosts;
 			favoriteItem.watcherValidator = watcherValidator;
+			favoriteItem.watcherPostsRate = watcherPostsRate;
 			serialize();
 		}
 	}
@@ -424,6 +431,8 @@ public class FavoritesStorage extends StorageManager.Storage
 		public int newPostsCount;
 		public boolean hasNewPosts;
 		public HttpValidator watcherValidator;
+		// Estimated posts per hour, negative if unknown
+		public float watcherPostsRate = -1f;
 		
 		public FavoriteItem()
 		{
@@ -435,6 +444,7 @@ public class FavoritesStorage extends StorageManager.Storage
 			this(favoriteItem.chanName, favoriteItem.boardName, favoriteItem.threadNumber, favoriteItem.title,
 					favoriteItem.modifiedTitle, favoriteItem.watcherEnabled, favoriteItem.postsCount,
 					favoriteItem.newPostsCount, favoriteItem.hasNewPosts, favoriteItem.watcherValidator);
+			watcherPostsRate = favoriteItem.watcherPostsRate;
 		}
 		
 		public FavoriteItem(String chanName, String boardName, String threadNumber, String title, boolean modifiedTitle,
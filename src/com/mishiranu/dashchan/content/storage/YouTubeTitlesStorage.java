@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.content.storage;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mishiranu.dashchan.util.LruCache;
+
+// Titles are shared between all chans, least recently used titles are removed when limit is reached
+public class YouTubeTitlesStorage extends StorageManager.Storage implements Runnable
+{
+	private static final String KEY_ID = "id";
+	private static final String KEY_TITLE = "title";
+	
+	private static final int MAX_COUNT = 3000;
+	
+	private static final YouTubeTitlesStorage INSTANCE = new YouTubeTitlesStorage();
+	
+	public static YouTubeTitlesStorage getInstance()
+	{
+		return INSTANCE;
+	}
+	
+	private final LruCache<String, String> mTitles = new LruCache<>(MAX_COUNT);
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	
+	private YouTubeTitlesStorage()
+	{
+		super("youtube_titles", 10000, 60000);
+		JSONObject jsonObject = read();
+		if (jsonObject != null)
+		{
+			JSONArray jsonArray = jsonObject.optJSONArray("data");
+			if (jsonArray != null)
+			{
+				for (int i = 0; i < jsonArray.length(); i++)
+				{
+					jsonObject = jsonArray.optJSONObject(i);
+					if (jsonObject != null)
+					{
+						String id = jsonObject.optString(KEY_ID, null);
+						String title = jsonObject.optString(KEY_TITLE, null);
+						if (id != null && title != null) mTitles.put(id, title);
+					}
+				}
+			}
+		}
+	}
+	
+	public synchronized String get(String id)
+	{
+		return mTitles.get(id);
+	}
+	
+	public void put(Map<String, String> titles)
+	{
+		if (titles.isEmpty()) return;
+		synchronized (this)
+		{
+			mTitles.putAll(titles);
+		}
+		// Serialization is scheduled on main thread
+		mHandler.post(this);
+	}
+	
+	@Override
+	public void run()
+	{
+		serialize();
+	}
+	
+	@Override
+	public synchronized Object onClone()
+	{
+		ArrayList<String> data = new ArrayList<>(mTitles.size() * 2);
+		for (Map.Entry<String, String> entry : mTitles.entrySet())
+		{
+			data.add(entry.getKey());
+			data.add(entry.getValue());
+		}
+		return data;
+	}
+	
+	@Override
+	public JSONObject onSerialize(Object data) throws JSONException
+	{
+		@SuppressWarnings("unchecked")
+		ArrayList<String> titles = (ArrayList<String>) data;
+		if (titles.size() > 0)
+		{
+			// Entries are written from the least recently used one, so order is kept after reading
+			JSONArray jsonArray = new JSONArray();
+			for (int i = 0; i < titles.size(); i += 2)
+			{
+				JSONObject jsonObject = new JSONObject();
+				jsonObject.put(KEY_ID, titles.get(i));
+				jsonObject.put(KEY_TITLE, titles.get(i + 1));
+				jsonArray.put(jsonObject);
+			}
+			JSONObject jsonObject = new JSONObject();
+			jsonObject.put("data", jsonArray);
+			return jsonObject;
+		}
+		return null;
+	}
+}
\ No newline at end of file
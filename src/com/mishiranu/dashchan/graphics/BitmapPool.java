@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.graphics;
+
+import java.util.ArrayList;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.mishiranu.dashchan.C;
+
+// Keeps intermediate decoded bitmaps to use them as BitmapFactory.Options.inBitmap for the next decoding.
+// Before KitKat reused bitmap must have exactly the same size and can't be used with sampling.
+public class BitmapPool
+{
+	private static final int MAX_SIZE = 4 * 1024 * 1024;
+	
+	private final ArrayList<Bitmap> mBitmaps = new ArrayList<>();
+	private int mSize = 0;
+	
+	public synchronized Bitmap obtain(int width, int height, int sampleSize)
+	{
+		if (!C.API_KITKAT && sampleSize != 1) return null;
+		width = (width + sampleSize - 1) / sampleSize;
+		height = (height + sampleSize - 1) / sampleSize;
+		Bitmap result = null;
+		int resultIndex = -1;
+		for (int i = 0; i < mBitmaps.size(); i++)
+		{
+			Bitmap bitmap = mBitmaps.get(i);
+			if (isReusable(bitmap, width, height) && (result == null || getSize(bitmap) < getSize(result)))
+			{
+				result = bitmap;
+				resultIndex = i;
+			}
+		}
+		if (result != null)
+		{
+			mBitmaps.remove(resultIndex);
+			mSize -= getSize(result);
+		}
+		return result;
+	}
+	
+	public synchronized void release(Bitmap bitmap, int sampleSize)
+	{
+		if (bitmap == null || bitmap.isRecycled()) return;
+		int size = getSize(bitmap);
+		// Sampled bitmap can't be obtained from pool before KitKat
+		if (!bitmap.isMutable() || size > MAX_SIZE || !C.API_KITKAT && sampleSize != 1)
+		{
+			bitmap.recycle();
+			return;
+		}
+		while (mSize + size > MAX_SIZE && !mBitmaps.isEmpty())
+		{
+			Bitmap eldest = mBitmaps.remove(0);
+			mSize -= getSize(eldest);
+			eldest.recycle();
+		}
+		mBitmaps.add(bitmap);
+		mSize += size;
+	}
+	
+	private static boolean isReusable(Bitmap bitmap, int width, int height)
+	{
+		if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) return false;
+		if (C.API_KITKAT) return getSize(bitmap) >= width * height * 4;
+		return bitmap.getWidth() == width && bitmap.getHeight() == height;
+	}
+	
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static int getSize(Bitmap bitmap)
+	{
+		return C.API_KITKAT ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+	}
+}
\ No newline at end of file
@@ -16,34 +16,75 @@
 
 package com.mishiranu.dashchan.media;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import com.mishiranu.dashchan.content.CacheManager;
+import com.mishiranu.dashchan.util.IOUtils;
+
+// Downloaded data is appended to temporary file, split into fixed size segments. Reader maps a few recently used
+// segments into memory. If file can't be created, segments are kept in heap.
+// Writer never takes reader lock unless reader waits for data, position and count are published via volatile fields.
 public class CachingInputStream extends InputStream
 {
 	enum Whence {START, RELATIVE, END}
 	
-	private final Object mDataBufferLock = new Object();
-	private byte[] mDataBuffer = new byte[1024];
-	private boolean mDataBufferEnd = false;
-	private int mDataBufferCount = 0;
-	private int mDataBufferIndex = 0;
+	private static final int SEGMENT_SIZE = 256 * 1024;
+	private static final int MAX_MAPPED_SEGMENTS = 4;
+	
+	private final Object mReadLock = new Object();
+	private final Object mWriteLock = new Object();
+	
+	private volatile int mCount = 0;
+	private volatile boolean mEnd = false;
+	private volatile boolean mClosed = false;
+	private volatile boolean mWaiting = false;
+	
+	// Storage is chosen before the first byte is published
+	private volatile File mFile;
+	private final ArrayList<byte[]> mSegments = new ArrayList<>();
 	
+	private RandomAccessFile mWriteFile;
+	private boolean mStorageInitialized = false;
+	// Storage is released when stream is closed and no copying with writeTo is in progress
+	private int mStorageReferences = 0;
+	
+	private int mPosition = 0;
 	private boolean mAllowReadBeyondBuffer = true;
-	private boolean mClosed = false;
+	private RandomAccessFile mReadFile;
+	private boolean mMapFailed = false;
+	
+	private final LinkedHashMap<Integer, MappedByteBuffer> mMappedSegments =
+			new LinkedHashMap<Integer, MappedByteBuffer>(MAX_MAPPED_SEGMENTS, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest)
+		{
+			return size() > MAX_MAPPED_SEGMENTS;
+		}
+	};
 	
 	private final byte[] mOneByteBuffer = new byte[1];
 	
 	@Override
 	public int read() throws IOException
 	{
-		synchronized (mDataBufferLock)
+		synchronized (mReadLock)
 		{
 			int count = read(mOneByteBuffer, 0, 1);
-			return count == 1 ? mOneByteBuffer[0] : -1;
+			return count == 1 ? mOneByteBuffer[0] & 0xff : -1;
 		}
 	}
 	
@@ -56,60 +97,157 @@ public class CachingInputStream extends InputStream
 	@Override
 	public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException
 	{
-		synchronized (mDataBufferLock)
+		synchronized (mReadLock)
 		{
-			while (mDataBufferCount - mDataBufferIndex < byteCount && !mDataBufferEnd && !mClosed)
+			mWaiting = true;
+			try
 			{
-				if (!mAllowReadBeyondBuffer) return 0;
-				try
-				{
-					mDataBufferLock.wait();
-				}
-				catch (InterruptedException e)
+				while (mCount - mPosition < byteCount && !mEnd && !mClosed)
 				{
-					Thread.currentThread().interrupt();
-					throw new InterruptedIOException("Thread was interrupted during IO operation");
+					if (!mAllowReadBeyondBuffer) return 0;
+					try
+					{
+						mReadLock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Thread was interrupted during IO operation");
+					}
 				}
 			}
-			if (mDataBufferEnd && mDataBufferIndex >= mDataBufferCount || mClosed) return -1;
-			byteCount = Math.min(mDataBufferCount - mDataBufferIndex, byteCount);
+			finally
+			{
+				mWaiting = false;
+			}
+			boolean end = mEnd;
+			int count = mCount;
+			if (end && mPosition >= count || mClosed) return -1;
+			byteCount = Math.min(count - mPosition, byteCount);
 			if (byteCount < 0) byteCount = 0; else if (byteCount > 0)
 			{
-				System.arraycopy(mDataBuffer, mDataBufferIndex, buffer, byteOffset, byteCount);
-				mDataBufferIndex += byteCount;
+				readData(mPosition, buffer, byteOffset, byteCount, count);
+				mPosition += byteCount;
 			}
 			return byteCount;
 		}
 	}
 	
-	@Override
-	public void close() throws IOException
+	private void readData(int position, byte[] buffer, int offset, int count, int totalCount) throws IOException
 	{
-		synchronized (mDataBufferLock)
+		File file = mFile;
+		while (count > 0)
 		{
-			if (!mDataBufferEnd)
+			int segment = position / SEGMENT_SIZE;
+			int segmentOffset = position % SEGMENT_SIZE;
+			int length = Math.min(count, SEGMENT_SIZE - segmentOffset);
+			if (file == null)
 			{
-				mClosed = true;
-				mDataBufferEnd = true;
-				mDataBufferLock.notifyAll();
+				byte[] segmentData;
+				synchronized (mSegments)
+				{
+					segmentData = mSegments.get(segment);
+				}
+				System.arraycopy(segmentData, segmentOffset, buffer, offset, length);
 			}
+			else
+			{
+				if (mReadFile == null) mReadFile = new RandomAccessFile(file, "r");
+				MappedByteBuffer mappedBuffer = null;
+				// Only complete segments are mapped, because file grows
+				if (!mMapFailed && (segment + 1) * SEGMENT_SIZE <= totalCount)
+				{
+					mappedBuffer = mMappedSegments.get(segment);
+					if (mappedBuffer == null)
+					{
+						try
+						{
+							mappedBuffer = mReadFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+									(long) segment * SEGMENT_SIZE, SEGMENT_SIZE);
+							mMappedSegments.put(segment, mappedBuffer);
+						}
+						catch (IOException e)
+						{
+							mMapFailed = true;
+						}
+					}
+				}
+				if (mappedBuffer != null)
+				{
+					mappedBuffer.position(segmentOffset);
+					mappedBuffer.get(buffer, offset, length);
+				}
+				else
+				{
+					FileChannel channel = mReadFile.getChannel();
+					ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+					long readPosition = position;
+					while (byteBuffer.hasRemaining())
+					{
+						int read = channel.read(byteBuffer, readPosition);
+						if (read < 0) throw new IOException("Unexpected end of file");
+						readPosition += read;
+					}
+				}
+			}
+			position += length;
+			offset += length;
+			count -= length;
+		}
+	}
+	
+	private void notifyReader()
+	{
+		synchronized (mReadLock)
+		{
+			mReadLock.notifyAll();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (mReadLock)
+		{
+			if (mClosed) return;
+			mClosed = true;
+			mReadLock.notifyAll();
+			IOUtils.close(mReadFile);
+			mReadFile = null;
+			mMappedSegments.clear();
+		}
+		synchronized (mWriteLock)
+		{
+			IOUtils.close(mWriteFile);
+			mWriteFile = null;
+			if (mStorageReferences == 0) releaseStorage();
+		}
+	}
+	
+	private void releaseStorage()
+	{
+		File file = mFile;
+		if (file != null) file.delete();
+		synchronized (mSegments)
+		{
+			mSegments.clear();
 		}
 	}
 	
 	public void setAllowReadBeyondBuffer(boolean allow)
 	{
-		synchronized (mDataBufferLock)
+		synchronized (mReadLock)
 		{
 			mAllowReadBeyondBuffer = allow;
-			mDataBufferLock.notifyAll();
+			mReadLock.notifyAll();
 		}
 	}
 	
 	public int seek(int position, Whence whence)
 	{
-		synchronized (mDataBufferLock)
+		synchronized (mReadLock)
 		{
-			int index = mDataBufferIndex;
+			int index = mPosition;
 			switch (whence)
 			{
 				case START:
@@ -124,42 +262,80 @@ public class CachingInputStream extends InputStream
 				}
 				case END:
 				{
-					if (mDataBufferEnd) index = mDataBufferCount + position; else return -1;
+					if (mEnd) index = mCount + position; else return -1;
 					break;
 				}
 			}
-			if (!mAllowReadBeyondBuffer && index >= mDataBufferCount) return -1;
-			mDataBufferIndex = index;
+			if (!mAllowReadBeyondBuffer && index >= mCount) return -1;
+			mPosition = index;
 			return index;
 		}
 	}
 	
 	public int getPosition()
 	{
-		synchronized (mDataBufferLock)
+		synchronized (mReadLock)
 		{
-			return mDataBufferIndex;
+			return mPosition;
 		}
 	}
 	
 	public int getTotalCount()
 	{
-		synchronized (mDataBufferLock)
+		return mEnd ? mCount : -1;
+	}
+	
+	private void initializeStorage()
+	{
+		mStorageInitialized = true;
+		File file = CacheManager.getInstance().createVideoBufferFile();
+		if (file != null)
 		{
-			return mDataBufferEnd ? mDataBufferCount : -1;
+			try
+			{
+				mWriteFile = new RandomAccessFile(file, "rw");
+				mFile = file;
+			}
+			catch (IOException e)
+			{
+				file.delete();
+			}
+		}
+	}
+	
+	private void writeData(byte[] buffer, int offset, int count) throws IOException
+	{
+		if (mWriteFile != null) mWriteFile.write(buffer, offset, count); else
+		{
+			int position = mCount;
+			while (count > 0)
+			{
+				int segment = position / SEGMENT_SIZE;
+				int segmentOffset = position % SEGMENT_SIZE;
+				int length = Math.min(count, SEGMENT_SIZE - segmentOffset);
+				byte[] segmentData;
+				synchronized (mSegments)
+				{
+					if (segment == mSegments.size()) mSegments.add(new byte[SEGMENT_SIZE]);
+					segmentData = mSegments.get(segment);
+				}
+				System.arraycopy(buffer, offset, segmentData, segmentOffset, length);
+				position += length;
+				offset += length;
+				count -= length;
+			}
 		}
 	}
 	
 	private final OutputStream mOutputStream = new OutputStream()
 	{
+		private final byte[] mOneByteBuffer = new byte[1];
+		
 		@Override
 		public void write(int oneByte) throws IOException
 		{
-			synchronized (mDataBufferLock)
-			{
-				mOneByteBuffer[0] = (byte) oneByte;
-				write(mOneByteBuffer, 0, 1);
-			}
+			mOneByteBuffer[0] = (byte) oneByte;
+			write(mOneByteBuffer, 0, 1);
 		}
 		
 		@Override
@@ -171,19 +347,15 @@ public class CachingInputStream extends InputStream
 		@Override
 		public void write(byte[] buffer, int offset, int count) throws IOException
 		{
-			synchronized (mDataBufferLock)
+			synchronized (mWriteLock)
 			{
-				if (mDataBufferEnd || mClosed) throw new IOException("Stream is closed");
+				if (mEnd || mClosed) throw new IOException("Stream is closed");
 				if (count > 0)
 				{
-					int newCount = mDataBufferCount + count;
-					if (newCount > mDataBuffer.length)
-					{
-						mDataBuffer = Arrays.copyOf(mDataBuffer, Math.max(mDataBuffer.length * 2, newCount));
-					}
-					System.arraycopy(buffer, offset, mDataBuffer, mDataBufferCount, count);
-					mDataBufferCount = newCount;
-					mDataBufferLock.notifyAll();
+					if (!mStorageInitialized) initializeStorage();
+					writeData(buffer, offset, count);
+					mCount += count;
+					if (mWaiting) notifyReader();
 				}
 			}
 		}
@@ -191,12 +363,12 @@ public class CachingInputStream extends InputStream
 		@Override
 		public void close() throws IOException
 		{
-			synchronized (mDataBufferLock)
+			synchronized (mWriteLock)
 			{
-				if (!mDataBufferEnd && !mClosed)
+				if (!mEnd && !mClosed)
 				{
-					mDataBufferEnd = true;
-					mDataBufferLock.notifyAll();
+					mEnd = true;
+					notifyReader();
 				}
 			}
 		}
@@ -209,6 +381,63 @@ public class CachingInputStream extends InputStream
 	
 	public void writeTo(OutputStream output) throws IOException
 	{
-		output.write(mDataBuffer, 0, mDataBufferCount);
+		synchronized (mWriteLock)
+		{
+			if (mClosed) throw new IOException("Stream is closed");
+			mStorageReferences++;
+		}
+		try
+		{
+			writeToInternal(output);
+		}
+		finally
+		{
+			synchronized (mWriteLock)
+			{
+				mStorageReferences--;
+				if (mStorageReferences == 0 && mClosed) releaseStorage();
+			}
+		}
+	}
+	
+	private void writeToInternal(OutputStream output) throws IOException
+	{
+		int count = mCount;
+		File file = mFile;
+		if (file != null)
+		{
+			RandomAccessFile randomAccessFile = null;
+			try
+			{
+				randomAccessFile = new RandomAccessFile(file, "r");
+				byte[] buffer = new byte[8192];
+				while (count > 0)
+				{
+					int read = randomAccessFile.read(buffer, 0, Math.min(buffer.length, count));
+					if (read < 0) throw new IOException("Unexpected end of file");
+					output.write(buffer, 0, read);
+					count -= read;
+				}
+			}
+			finally
+			{
+				IOUtils.close(randomAccessFile);
+			}
+		}
+		else
+		{
+			for (int i = 0; count > 0; i++)
+			{
+				byte[] segmentData;
+				synchronized (mSegments)
+				{
+					if (i >= mSegments.size()) throw new IOException("Stream is closed");
+					segmentData = mSegments.get(i);
+				}
+				int length = Math.min(count, SEGMENT_SIZE);
+				output.write(segmentData, 0, length);
+				count -= length;
+			}
+		}
 	}
 }
\ No newline at end of file
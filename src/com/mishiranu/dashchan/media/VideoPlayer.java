@@ -20,7 +20,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.concurrent.Semaphore;
 
@@ -115,9 +114,44 @@ public class VideoPlayer
 		}
 	});
 
-	private static final HashMap<String, Method> METHODS = new HashMap<>();
 	private static boolean sLoaded = false;
-	private static Class<?> sHolderClass;
+	private static volatile NativeLibrary sLibrary;
+	
+	// Implemented by Holder.Binding, which is loaded with native libraries by LibraryClassLoader.
+	// Interface is shared between both class loaders, so native calls are plain interface calls.
+	public static interface NativeLibrary
+	{
+		public long init(Object nativeBridge, boolean seekAnyFrame);
+		public void destroy(long pointer);
+		
+		public int getErrorCode(long pointer);
+		public void getSummary(long pointer, int[] output);
+		
+		public long getDuration(long pointer);
+		public long getPosition(long pointer);
+		public void setPosition(long pointer, long position);
+		
+		public void setSurface(long pointer, Surface surface);
+		public void setPlaying(long pointer, boolean playing);
+		
+		public int[] getCurrentFrame(long pointer);
+		public String[] getTechnicalInfo(long pointer);
+	}
+	
+	private static class LibraryClassLoader extends PathClassLoader
+	{
+		public LibraryClassLoader(String dexPath, String libraryPath, ClassLoader parent)
+		{
+			super(dexPath, libraryPath, parent);
+		}
+		
+		@Override
+		protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException
+		{
+			if (NativeLibrary.class.getName().equals(className)) return NativeLibrary.class;
+			return super.loadClass(className, resolve);
+		}
+	}
 	
 	public static boolean loadLibraries(Context context)
 	{
@@ -135,12 +169,14 @@ public class VideoPlayer
 					// containing all paths to native libraries (client + webm libraries package).
 					// Holder class is loaded from this class loader, so all libraries will load correctly.
 					ApplicationInfo applicationInfo = context.getApplicationInfo();
-					PathClassLoader classLoader = new PathClassLoader(applicationInfo.sourceDir, applicationInfo
+					PathClassLoader classLoader = new LibraryClassLoader(applicationInfo.sourceDir, applicationInfo
 							.nativeLibraryDir + File.pathSeparatorChar + dir, Context.class.getClassLoader());
 					try
 					{
 						// Initialize class (invoke static block)
-						sHolderClass = Class.forName(Holder.class.getName(), true, classLoader);
+						Class.forName(Holder.class.getName(), true, classLoader);
+						sLibrary = (NativeLibrary) Class.forName(Holder.Binding.class.getName(), true, classLoader)
+								.newInstance();
 						sLoaded = true;
 						return true;
 					}
@@ -162,89 +198,59 @@ public class VideoPlayer
 		}
 	}
 	
-	private static Object invoke(String methodName, Object... args)
-	{
-		Method method = null;
-		synchronized (METHODS)
-		{
-			method = METHODS.get(methodName);
-			if (method == null)
-			{
-				Method[] methods = sHolderClass.getMethods();
-				for (int i = 0; i < methods.length; i++)
-				{
-					if (methodName.equals(methods[i].getName()))
-					{
-						method = methods[i];
-						METHODS.put(methodName, method);
-						break;
-					}
-				}
-			}
-		}
-		try
-		{
-			return method.invoke(null, args);
-		}
-		catch (Exception e)
-		{
-			throw new RuntimeException(e);
-		}
-	}
-	
 	private static long init(Object nativeBridge, boolean seekAnyFrame)
 	{
-		return (long) invoke("init", nativeBridge, seekAnyFrame);
+		return sLibrary.init(nativeBridge, seekAnyFrame);
 	}
 	
 	private static void destroy(long pointer)
 	{
-		invoke("destroy", pointer);
+		sLibrary.destroy(pointer);
 	}
 
 	private static int getErrorCode(long pointer)
 	{
-		return (int) invoke("getErrorCode", pointer);
+		return sLibrary.getErrorCode(pointer);
 	}
 	
 	private static void getSummary(long pointer, int[] output)
 	{
-		invoke("getSummary", pointer, output);
+		sLibrary.getSummary(pointer, output);
 	}
 	
 	private static long getDuration(long pointer)
 	{
-		return (long) invoke("getDuration", pointer);
+		return sLibrary.getDuration(pointer);
 	}
 	
 	private static long getPosition(long pointer)
 	{
-		return (long) invoke("getPosition", pointer);
+		return sLibrary.getPosition(pointer);
 	}
 	
 	private static void setPosition(long pointer, long position)
 	{
-		invoke("setPosition", pointer, position);
+		sLibrary.setPosition(pointer, position);
 	}
 	
 	private static void setSurface(long pointer, Surface surface)
 	{
-		invoke("setSurface", pointer, surface);
+		sLibrary.setSurface(pointer, surface);
 	}
 	
 	private static void setPlaying(long pointer, boolean playing)
 	{
-		invoke("setPlaying", pointer, playing);
+		sLibrary.setPlaying(pointer, playing);
 	}
 	
 	private static int[] getCurrentFrame(long pointer)
 	{
-		return (int[]) invoke("getCurrentFrame", pointer);
+		return sLibrary.getCurrentFrame(pointer);
 	}
 	
 	private static String[] getTechnicalInfo(long pointer)
 	{
-		return (String[]) invoke("getTechnicalInfo", pointer);
+		return sLibrary.getTechnicalInfo(pointer);
 	}
 	
 	private final Object mInputLock = new Object();
@@ -900,6 +906,75 @@ public class VideoPlayer
 		public static native int[] getCurrentFrame(long pointer);
 		public static native String[] getTechnicalInfo(long pointer);
 		
+		public static class Binding implements NativeLibrary
+		{
+			@Override
+			public long init(Object nativeBridge, boolean seekAnyFrame)
+			{
+				return Holder.init(nativeBridge, seekAnyFrame);
+			}
+			
+			@Override
+			public void destroy(long pointer)
+			{
+				Holder.destroy(pointer);
+			}
+			
+			@Override
+			public int getErrorCode(long pointer)
+			{
+				return Holder.getErrorCode(pointer);
+			}
+			
+			@Override
+			public void getSummary(long pointer, int[] output)
+			{
+				Holder.getSummary(pointer, output);
+			}
+			
+			@Override
+			public long getDuration(long pointer)
+			{
+				return Holder.getDuration(pointer);
+			}
+			
+			@Override
+			public long getPosition(long pointer)
+			{
+				return Holder.getPosition(pointer);
+			}
+			
+			@Override
+			public void setPosition(long pointer, long position)
+			{
+				Holder.setPosition(pointer, position);
+			}
+			
+			@Override
+			public void setSurface(long pointer, Surface surface)
+			{
+				Holder.setSurface(pointer, surface);
+			}
+			
+			@Override
+			public void setPlaying(long pointer, boolean playing)
+			{
+				Holder.setPlaying(pointer, playing);
+			}
+			
+			@Override
+			public int[] getCurrentFrame(long pointer)
+			{
+				return Holder.getCurrentFrame(pointer);
+			}
+			
+			@Override
+			public String[] getTechnicalInfo(long pointer)
+			{
+				return Holder.getTechnicalInfo(pointer);
+			}
+		}
+		
 		static
 		{
 			System.loadLibrary("avutil");
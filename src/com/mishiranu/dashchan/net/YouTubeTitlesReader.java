@@ -18,13 +18,19 @@ package com.mishiranu.dashchan.net;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 
 import chan.content.ChanLocator;
 import chan.content.InvalidResponseException;
@@ -39,12 +45,21 @@ import chan.http.HttpRequest;
 import chan.util.StringUtils;
 
 import com.mishiranu.dashchan.C;
+import com.mishiranu.dashchan.content.storage.YouTubeTitlesStorage;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.text.HtmlParser;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+import com.mishiranu.dashchan.util.LruCache;
 
-public class YouTubeTitlesReader
+// Titles are kept in persistent storage. Posts loading only applies known titles, the rest are read
+// on a single background thread which joins codes of all pending requests into shared batches.
+public class YouTubeTitlesReader implements Runnable
 {
 	private static final YouTubeTitlesReader INSTANCE = new YouTubeTitlesReader();
+	private static final Executor EXECUTOR = ConcurrentUtils.newSingleThreadPool(20000, "YouTubeTitlesReader",
+			null, Process.THREAD_PRIORITY_BACKGROUND);
+	
+	private static final int MAX_REQUEST_COUNT = 50;
 	
 	private YouTubeTitlesReader()
 	{
@@ -92,33 +107,52 @@ public class YouTubeTitlesReader
 		}
 	}
 	
-	private final HashMap<String, String> mCachedYouTubeTitles = new HashMap<>();
+	// Codes which were requested but not returned, e.g. removed videos
+	private final LruCache<String, Boolean> mMissingCodes = new LruCache<>(500);
+	
+	private boolean isResolved(String embeddedCode)
+	{
+		if (YouTubeTitlesStorage.getInstance().get(embeddedCode) != null) return true;
+		synchronized (mMissingCodes)
+		{
+			return mMissingCodes.containsKey(embeddedCode);
+		}
+	}
 	
-	public final HashMap<String, String> readYouTubeTitles(ArrayList<String> embeddedCodes, HttpHolder holder)
+	private void readMissingYouTubeTitles(Collection<String> embeddedCodes, HttpHolder holder)
 			throws HttpException, InvalidResponseException
 	{
-		HashMap<String, String> result = new HashMap<>();
-		for (int i = embeddedCodes.size() - 1; i >= 0; i--)
+		ArrayList<String> missingCodes = new ArrayList<>();
+		for (String embeddedCode : embeddedCodes)
 		{
-			String id = embeddedCodes.get(i);
-			String title = mCachedYouTubeTitles.get(embeddedCodes.get(i));
-			if (title != null)
-			{
-				result.put(id, title);
-				embeddedCodes.remove(i);
-			}
+			if (!isResolved(embeddedCode)) missingCodes.add(embeddedCode);
 		}
-		final int maxCount = 50; // Max allowed count per request.
-		for (int i = 0; i < embeddedCodes.size(); i += maxCount)
+		for (int i = 0; i < missingCodes.size(); i += MAX_REQUEST_COUNT)
 		{
-			readYouTubeTitles(result, embeddedCodes, i, maxCount, holder);
+			HashMap<String, String> titles = new HashMap<>();
+			readYouTubeTitles(titles, missingCodes, i, MAX_REQUEST_COUNT, holder);
+			YouTubeTitlesStorage.getInstance().put(titles);
+			synchronized (mMissingCodes)
+			{
+				for (int j = i, size = Math.min(missingCodes.size(), i + MAX_REQUEST_COUNT); j < size; j++)
+				{
+					String embeddedCode = missingCodes.get(j);
+					if (!titles.containsKey(embeddedCode)) mMissingCodes.put(embeddedCode, true);
+				}
+			}
 		}
-		if (result.size() > 0)
+	}
+	
+	private static HashMap<String, String> getStoredYouTubeTitles(Collection<String> embeddedCodes)
+	{
+		HashMap<String, String> titles = new HashMap<>();
+		YouTubeTitlesStorage storage = YouTubeTitlesStorage.getInstance();
+		for (String embeddedCode : embeddedCodes)
 		{
-			for (String id : result.keySet()) mCachedYouTubeTitles.put(id, result.get(id));
-			return result;
+			String title = storage.get(embeddedCode);
+			if (title != null) titles.put(embeddedCode, title);
 		}
-		return null;
+		return titles;
 	}
 	
 	private static abstract class EmbeddedCodeData
@@ -134,6 +168,7 @@ public class YouTubeTitlesReader
 		
 		public abstract int applyTitle(String title);
 		public abstract void fixPositions(int shift);
+		public abstract boolean applyToPost();
 	}
 	
 	private static class LinkCodeData extends EmbeddedCodeData
@@ -169,11 +204,18 @@ public class YouTubeTitlesReader
 				end += shift;
 			}
 		}
+		
+		@Override
+		public boolean applyToPost()
+		{
+			return false;
+		}
 	}
 	
 	private static class FileCodeData extends EmbeddedCodeData
 	{
 		public EmbeddedAttachment attachment;
+		public String title;
 		
 		public FileCodeData(EmbeddedApplyHolder applyHolder, String embeddedCode, EmbeddedAttachment attachment)
 		{
@@ -184,7 +226,7 @@ public class YouTubeTitlesReader
 		@Override
 		public int applyTitle(String title)
 		{
-			attachment.setTitle(title);
+			this.title = title;
 			return 0;
 		}
 		
@@ -193,6 +235,17 @@ public class YouTubeTitlesReader
 		{
 			
 		}
+		
+		@Override
+		public boolean applyToPost()
+		{
+			if (title != null && !title.equals(attachment.getTitle()))
+			{
+				attachment.setTitle(title);
+				return true;
+			}
+			return false;
+		}
 	}
 	
 	private static class EmbeddedApplyHolder
@@ -201,6 +254,7 @@ public class YouTubeTitlesReader
 		public final ArrayList<EmbeddedCodeData> embeddedCodeDatas = new ArrayList<>();
 		
 		public StringBuilder commentBuilder;
+		public String editedComment;
 		
 		public EmbeddedApplyHolder(Post post)
 		{
@@ -285,22 +339,17 @@ public class YouTubeTitlesReader
 		return applyHolder;
 	}
 	
-	private void readYouTubeTitlesAndApplyChecked(List<Post> posts, HttpHolder holder)
-			throws HttpException, InvalidResponseException
+	private ArrayList<EmbeddedApplyHolder> getYouTubeApplyHolders(List<Post> posts,
+			Collection<String> embeddedCodes)
 	{
 		ChanLocator locator = ChanLocator.getDefault();
 		ArrayList<EmbeddedApplyHolder> applyHolders = null;
-		ArrayList<String> embeddedCodes = null;
 		for (Post post : posts)
 		{
 			EmbeddedApplyHolder applyHolder = getYouTubeApplyHolder(locator, post);
 			if (applyHolder != null)
 			{
-				if (applyHolders == null)
-				{
-					applyHolders = new ArrayList<>();
-					embeddedCodes = new ArrayList<>();
-				}
+				if (applyHolders == null) applyHolders = new ArrayList<>();
 				applyHolders.add(applyHolder);
 				for (EmbeddedCodeData embeddedCodeData : applyHolder.embeddedCodeDatas)
 				{
@@ -308,49 +357,79 @@ public class YouTubeTitlesReader
 				}
 			}
 		}
-		if (embeddedCodes != null)
+		return applyHolders;
+	}
+	
+	// Builds new comments and titles without changing posts, returns holders with known titles
+	private static ArrayList<EmbeddedApplyHolder> prepareYouTubeTitles(ArrayList<EmbeddedApplyHolder> applyHolders,
+			HashMap<String, String> titles)
+	{
+		ArrayList<EmbeddedApplyHolder> preparedHolders = new ArrayList<>();
+		if (applyHolders == null || titles.isEmpty()) return preparedHolders;
+		for (EmbeddedApplyHolder applyHolder : applyHolders)
 		{
-			HashMap<String, String> titles = readYouTubeTitles(embeddedCodes, holder);
-			if (titles != null)
+			int shift = 0;
+			boolean prepared = false;
+			for (EmbeddedCodeData embeddedCodeData : applyHolder.embeddedCodeDatas)
 			{
-				for (String embeddedCode : titles.keySet())
+				embeddedCodeData.fixPositions(shift);
+				String title = titles.get(embeddedCodeData.embeddedCode);
+				if (title != null)
 				{
-					for (EmbeddedApplyHolder applyHolder : applyHolders)
-					{
-						int shift = 0;
-						for (EmbeddedCodeData embeddedCodeData : applyHolder.embeddedCodeDatas)
-						{
-							embeddedCodeData.fixPositions(shift);
-							if (embeddedCodeData.embeddedCode.equals(embeddedCode))
-							{
-								shift += embeddedCodeData.applyTitle(titles.get(embeddedCode));
-							}
-						}
-					}
+					shift += embeddedCodeData.applyTitle(title);
+					prepared = true;
 				}
 			}
-			for (EmbeddedApplyHolder applyHolder : applyHolders)
+			if (applyHolder.commentBuilder != null)
 			{
-				if (applyHolder.commentBuilder != null)
-				{
-					Post post = applyHolder.post;
-					post.setEditedComment(applyHolder.commentBuilder.toString());
-				}
+				applyHolder.editedComment = applyHolder.commentBuilder.toString();
+				applyHolder.commentBuilder = null;
 			}
+			if (prepared) preparedHolders.add(applyHolder);
 		}
+		return preparedHolders;
 	}
 	
-	public final void readAndApplyIfNecessary(List<Post> posts, HttpHolder holder)
+	// Returns posts which were changed
+	private static ArrayList<Post> applyYouTubeTitles(ArrayList<EmbeddedApplyHolder> preparedHolders)
 	{
-		if (Preferences.isDownloadYouTubeTitles())
+		ArrayList<Post> changedPosts = new ArrayList<>();
+		for (EmbeddedApplyHolder applyHolder : preparedHolders)
 		{
-			try
+			Post post = applyHolder.post;
+			boolean changed = false;
+			// Comment is always built from original comment, so applying the same titles changes nothing
+			if (applyHolder.editedComment != null && !applyHolder.editedComment.equals(post.getEditedComment()))
 			{
-				readYouTubeTitlesAndApplyChecked(posts, holder);
+				post.setEditedComment(applyHolder.editedComment);
+				changed = true;
 			}
-			catch (HttpException | InvalidResponseException e)
+			for (EmbeddedCodeData embeddedCodeData : applyHolder.embeddedCodeDatas)
 			{
-				
+				changed |= embeddedCodeData.applyToPost();
+			}
+			if (changed) changedPosts.add(post);
+		}
+		return changedPosts;
+	}
+	
+	public final void readAndApplyIfNecessary(List<Post> posts, HttpHolder holder)
+	{
+		if (Preferences.isDownloadYouTubeTitles())
+		{
+			LinkedHashSet<String> embeddedCodes = new LinkedHashSet<>();
+			ArrayList<EmbeddedApplyHolder> applyHolders = getYouTubeApplyHolders(posts, embeddedCodes);
+			if (applyHolders != null)
+			{
+				try
+				{
+					readMissingYouTubeTitles(embeddedCodes, holder);
+				}
+				catch (HttpException | InvalidResponseException e)
+				{
+					
+				}
+				applyYouTubeTitles(prepareYouTubeTitles(applyHolders, getStoredYouTubeTitles(embeddedCodes)));
 			}
 		}
 	}
@@ -375,4 +454,138 @@ public class YouTubeTitlesReader
 			if (posts.size() > 0) readAndApplyIfNecessary(posts, holder);
 		}
 	}
+	
+	// Applies only stored titles without network requests
+	public final void applyStoredIfNecessary(Post[] posts)
+	{
+		if (Preferences.isDownloadYouTubeTitles())
+		{
+			LinkedHashSet<String> embeddedCodes = new LinkedHashSet<>();
+			ArrayList<EmbeddedApplyHolder> applyHolders = getYouTubeApplyHolders(Arrays.asList(posts),
+					embeddedCodes);
+			if (applyHolders != null)
+			{
+				applyYouTubeTitles(prepareYouTubeTitles(applyHolders, getStoredYouTubeTitles(embeddedCodes)));
+			}
+		}
+	}
+	
+	public static interface Callback
+	{
+		public void onYouTubeTitlesRead(Request request);
+	}
+	
+	public static class Request
+	{
+		private final Post[] mPosts;
+		private final Callback mCallback;
+		private LinkedHashSet<String> mEmbeddedCodes;
+		private ArrayList<EmbeddedApplyHolder> mApplyHolders;
+		private ArrayList<EmbeddedApplyHolder> mPreparedHolders;
+		
+		private volatile boolean mCancelled = false;
+		
+		private Request(Post[] posts, Callback callback)
+		{
+			mPosts = posts;
+			mCallback = callback;
+		}
+		
+		public void cancel()
+		{
+			mCancelled = true;
+		}
+		
+		/*
+		 * Must be called from callback on main thread. Returns posts which were changed.
+		 */
+		public ArrayList<Post> apply()
+		{
+			return applyYouTubeTitles(mPreparedHolders);
+		}
+	}
+	
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ArrayList<Request> mRequests = new ArrayList<>();
+	private boolean mReading = false;
+	
+	/*
+	 * Reads missing titles in background, callback is called on main thread if some titles are known.
+	 */
+	public final Request readAsyncIfNecessary(Post[] posts, Callback callback)
+	{
+		if (posts == null || posts.length == 0 || !Preferences.isDownloadYouTubeTitles()) return null;
+		Request request = new Request(posts, callback);
+		synchronized (mRequests)
+		{
+			mRequests.add(request);
+			if (!mReading)
+			{
+				mReading = true;
+				EXECUTOR.execute(this);
+			}
+		}
+		return request;
+	}
+	
+	@Override
+	public void run()
+	{
+		HttpHolder holder = new HttpHolder();
+		while (true)
+		{
+			ArrayList<Request> requests;
+			synchronized (mRequests)
+			{
+				if (mRequests.isEmpty())
+				{
+					mReading = false;
+					return;
+				}
+				requests = new ArrayList<>(mRequests);
+				mRequests.clear();
+			}
+			// Requests added while titles are read will be handled together on the next iteration
+			LinkedHashSet<String> embeddedCodes = new LinkedHashSet<>();
+			for (Request request : requests)
+			{
+				if (!request.mCancelled)
+				{
+					request.mEmbeddedCodes = new LinkedHashSet<>();
+					request.mApplyHolders = getYouTubeApplyHolders(Arrays.asList(request.mPosts),
+							request.mEmbeddedCodes);
+					embeddedCodes.addAll(request.mEmbeddedCodes);
+				}
+			}
+			try
+			{
+				readMissingYouTubeTitles(embeddedCodes, holder);
+			}
+			catch (HttpException | InvalidResponseException e)
+			{
+				
+			}
+			for (final Request request : requests)
+			{
+				if (!request.mCancelled)
+				{
+					// Only original comments and attachment uris are read here, posts are changed on main thread
+					request.mPreparedHolders = prepareYouTubeTitles(request.mApplyHolders,
+							getStoredYouTubeTitles(request.mEmbeddedCodes));
+					request.mApplyHolders = null;
+					if (!request.mPreparedHolders.isEmpty())
+					{
+						mHandler.post(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								if (!request.mCancelled) request.mCallback.onYouTubeTitlesRead(request);
+							}
+						});
+					}
+				}
+			}
+		}
+	}
 }
\ No newline at end of file
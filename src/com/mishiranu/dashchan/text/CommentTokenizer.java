@@ -0,0 +1,638 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.text;
+
+import java.util.Arrays;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+// Tokenizer for markup subset used in comments: well nested inline tags, simple blocks, line breaks and basic
+// entities. Events are the same as TagSoup produces for such input. Tokens are recorded first and passed
+// to handler only if the whole source is accepted, otherwise caller should fall back to TagSoup.
+class CommentTokenizer
+{
+	private static final int TYPE_INLINE = 0;
+	private static final int TYPE_BLOCK = 1;
+	private static final int TYPE_CONTAINER = 2;
+	private static final int TYPE_VOID = 3;
+	private static final int TYPE_VOID_BLOCK = 4;
+	
+	private static final String[] TAG_NAMES = {"html", "body", "a", "abbr", "acronym", "b", "big", "cite", "code",
+			"del", "dfn", "em", "font", "i", "ins", "kbd", "q", "s", "samp", "small", "span", "strike", "strong",
+			"sub", "sup", "tt", "u", "var", "p", "pre", "h1", "h2", "h3", "h4", "h5", "h6", "div", "blockquote",
+			"center", "br", "wbr", "hr"};
+	
+	private static final int[] TAG_TYPES = new int[TAG_NAMES.length];
+	
+	private static final int TAG_HTML = 0;
+	private static final int TAG_BODY = 1;
+	private static final int TAG_A = 2;
+	private static final int TAG_INS;
+	private static final int TAG_DEL;
+	private static final int TAG_BR;
+	
+	static
+	{
+		setTagType("p", TYPE_BLOCK);
+		setTagType("pre", TYPE_BLOCK);
+		for (int i = 1; i <= 6; i++) setTagType("h" + i, TYPE_BLOCK);
+		setTagType("div", TYPE_CONTAINER);
+		setTagType("blockquote", TYPE_CONTAINER);
+		setTagType("center", TYPE_CONTAINER);
+		setTagType("br", TYPE_VOID);
+		setTagType("wbr", TYPE_VOID);
+		setTagType("hr", TYPE_VOID_BLOCK);
+		TAG_INS = findTag("ins");
+		TAG_DEL = findTag("del");
+		TAG_BR = findTag("br");
+	}
+	
+	private static void setTagType(String tagName, int type)
+	{
+		TAG_TYPES[findTag(tagName)] = type;
+	}
+	
+	private static int findTag(String tagName)
+	{
+		return findTag(tagName, 0, tagName.length());
+	}
+	
+	private static int findTag(CharSequence source, int start, int end)
+	{
+		int length = end - start;
+		OUTER: for (int i = TAG_BODY + 1; i < TAG_NAMES.length; i++)
+		{
+			String tagName = TAG_NAMES[i];
+			if (tagName.length() == length)
+			{
+				for (int j = 0; j < length; j++)
+				{
+					char c = source.charAt(start + j);
+					if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+					if (c != tagName.charAt(j)) continue OUTER;
+				}
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private static final String[] ATTRIBUTE_NAMES = {"href", "class", "style", "id", "title", "color", "name",
+			"target", "rel", "onclick", "shape", "clear"};
+	
+	private static final int EVENT_TEXT = 0;
+	private static final int EVENT_START = 1;
+	private static final int EVENT_END = 2;
+	
+	private static final ThreadLocal<CommentTokenizer> INSTANCE = new ThreadLocal<CommentTokenizer>()
+	{
+		@Override
+		protected CommentTokenizer initialValue()
+		{
+			return new CommentTokenizer();
+		}
+	};
+	
+	public static boolean parse(String source, ContentHandler handler)
+	{
+		CommentTokenizer tokenizer = INSTANCE.get();
+		// Handler callbacks may parse other markup during replay, so busy tokenizer can't be reused
+		if (tokenizer.mBusy) tokenizer = new CommentTokenizer();
+		tokenizer.mBusy = true;
+		try
+		{
+			if (!tokenizer.tokenize(source)) return false;
+			tokenizer.replay(handler);
+			return true;
+		}
+		finally
+		{
+			tokenizer.reset();
+			tokenizer.mBusy = false;
+		}
+	}
+	
+	private boolean mBusy = false;
+	
+	private char[] mText = new char[256];
+	private int mTextLength;
+	private int mTextStart;
+	private int mChunkStart;
+	private boolean mContentStarted;
+	
+	private int[] mEvents = new int[96];
+	private int mEventsLength;
+	
+	private String[] mAttributeNames = new String[8];
+	private String[] mAttributeValues = new String[8];
+	private int mAttributesLength;
+	
+	private int[] mStack = new int[16];
+	private int mStackLength;
+	
+	private final StringBuilder mValueBuilder = new StringBuilder();
+	private final TagAttributes mAttributes = new TagAttributes();
+	
+	private void reset()
+	{
+		mTextLength = 0;
+		mTextStart = 0;
+		mChunkStart = 0;
+		mContentStarted = false;
+		mEventsLength = 0;
+		Arrays.fill(mAttributeNames, 0, mAttributesLength, null);
+		Arrays.fill(mAttributeValues, 0, mAttributesLength, null);
+		mAttributesLength = 0;
+		mStackLength = 0;
+		// Don't keep large buffers after unusually long comments
+		if (mText.length > 16384) mText = new char[256];
+	}
+	
+	private boolean tokenize(String source)
+	{
+		addEvent(EVENT_START, TAG_HTML, 0, 0);
+		addEvent(EVENT_START, TAG_BODY, 0, 0);
+		int length = source.length();
+		int i = 0;
+		while (i < length)
+		{
+			char c = source.charAt(i);
+			if (c == '<')
+			{
+				endChunk();
+				i = parseTag(source, i + 1, length);
+				if (i < 0) return false;
+			}
+			else if (c == '&')
+			{
+				endChunk();
+				i = parseEntity(source, i + 1, length, false);
+				if (i < 0) return false;
+			}
+			else if (c == '\r')
+			{
+				appendText('\n');
+				i++;
+				if (i < length && source.charAt(i) == '\n') i++;
+			}
+			else if (c < ' ' && c != '\n' && c != '\t' || c >= '\u007f' && c <= '\u009f' || c >= '\ufffe')
+			{
+				return false;
+			}
+			else
+			{
+				appendText(c);
+				i++;
+			}
+		}
+		endChunk();
+		flushText();
+		while (mStackLength > 0) addEvent(EVENT_END, mStack[--mStackLength], 0, 0);
+		addEvent(EVENT_END, TAG_BODY, 0, 0);
+		addEvent(EVENT_END, TAG_HTML, 0, 0);
+		return true;
+	}
+	
+	private static boolean isLetter(char c)
+	{
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+	}
+	
+	private static boolean isNameCharacter(char c)
+	{
+		return isLetter(c) || c >= '0' && c <= '9';
+	}
+	
+	private static boolean isWhitespace(char c)
+	{
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+	
+	private static int skipWhitespace(String source, int i, int length)
+	{
+		while (i < length && isWhitespace(source.charAt(i))) i++;
+		return i;
+	}
+	
+	// Returns index after the tag or -1 if tag is not supported
+	private int parseTag(String source, int i, int length)
+	{
+		if (i >= length) return -1;
+		char c = source.charAt(i);
+		if (c == '/')
+		{
+			int start = ++i;
+			while (i < length && isNameCharacter(source.charAt(i))) i++;
+			int tag = findTag(source, start, i);
+			if (tag < 0) return -1;
+			i = skipWhitespace(source, i, length);
+			if (i >= length || source.charAt(i) != '>') return -1;
+			// End tag must close the last opened element, otherwise TagSoup would restructure the tree
+			if (mStackLength == 0 || mStack[mStackLength - 1] != tag) return -1;
+			flushText();
+			mStackLength--;
+			addEvent(EVENT_END, tag, 0, 0);
+			return i + 1;
+		}
+		else if (c == '!')
+		{
+			if (!source.startsWith("!--", i)) return -1;
+			int end = source.indexOf("-->", i + 3);
+			return end >= 0 ? end + 3 : -1;
+		}
+		else if (isLetter(c))
+		{
+			int start = i;
+			while (i < length && isNameCharacter(source.charAt(i))) i++;
+			int tag = findTag(source, start, i);
+			if (tag < 0 || !canOpen(tag)) return -1;
+			int attributesStart = mAttributesLength;
+			if (tag == TAG_A) addAttribute("shape", "rect");
+			else if (tag == TAG_BR) addAttribute("clear", "none");
+			int defaultAttributesEnd = mAttributesLength;
+			boolean closed = false;
+			while (true)
+			{
+				int nameStart = skipWhitespace(source, i, length);
+				if (nameStart >= length) return -1;
+				c = source.charAt(nameStart);
+				if (c == '>')
+				{
+					i = nameStart + 1;
+					break;
+				}
+				else if (c == '/')
+				{
+					if (nameStart + 1 >= length || source.charAt(nameStart + 1) != '>') return -1;
+					closed = true;
+					i = nameStart + 2;
+					break;
+				}
+				// Attributes must be separated with whitespace
+				if (nameStart == i || !isLetter(c)) return -1;
+				i = nameStart;
+				while (i < length && (isNameCharacter(c = source.charAt(i)) || c == '-' || c == '_')) i++;
+				int nameEnd = i;
+				i = skipWhitespace(source, i, length);
+				if (i >= length || source.charAt(i) != '=') return -1;
+				i = skipWhitespace(source, i + 1, length);
+				if (i >= length) return -1;
+				StringBuilder valueBuilder = mValueBuilder;
+				valueBuilder.setLength(0);
+				c = source.charAt(i);
+				if (c == '"' || c == '\'')
+				{
+					char quote = c;
+					i++;
+					while (true)
+					{
+						if (i >= length) return -1;
+						c = source.charAt(i);
+						if (c == quote)
+						{
+							i++;
+							break;
+						}
+						if (c == '&')
+						{
+							i = parseEntity(source, i + 1, length, true);
+							if (i < 0) return -1;
+						}
+						else if (c < ' ' || c >= '\u007f' && c <= '\u009f' || c >= '\ufffe') return -1; else
+						{
+							valueBuilder.append(c);
+							i++;
+						}
+					}
+				}
+				else
+				{
+					while (i < length && (isNameCharacter(c = source.charAt(i)) || c == '-' || c == '_' || c == '.'
+							|| c == '#' || c == '/' || c == ':'))
+					{
+						valueBuilder.append(c);
+						i++;
+					}
+					if (valueBuilder.length() == 0) return -1;
+				}
+				String name = obtainAttributeName(source, nameStart, nameEnd);
+				int index = -1;
+				for (int j = attributesStart; j < mAttributesLength; j++)
+				{
+					if (name.equals(mAttributeNames[j]))
+					{
+						index = j;
+						break;
+					}
+				}
+				if (index >= defaultAttributesEnd) return -1;
+				if (index >= 0) mAttributeValues[index] = valueBuilder.toString();
+				else addAttribute(name, valueBuilder.toString());
+			}
+			int type = TAG_TYPES[tag];
+			boolean isVoid = type == TYPE_VOID || type == TYPE_VOID_BLOCK;
+			if (closed && !isVoid) return -1;
+			flushText();
+			mContentStarted = true;
+			addEvent(EVENT_START, tag, attributesStart, mAttributesLength - attributesStart);
+			if (isVoid) addEvent(EVENT_END, tag, 0, 0); else
+			{
+				if (mStackLength == mStack.length) mStack = Arrays.copyOf(mStack, mStack.length * 2);
+				mStack[mStackLength++] = tag;
+			}
+			return i;
+		}
+		return -1;
+	}
+	
+	private boolean canOpen(int tag)
+	{
+		int type = TAG_TYPES[tag];
+		if (type == TYPE_INLINE)
+		{
+			// Links can't contain other links, insertions and deletions
+			if (tag == TAG_A || tag == TAG_INS || tag == TAG_DEL)
+			{
+				for (int i = 0; i < mStackLength; i++)
+				{
+					if (mStack[i] == TAG_A) return false;
+				}
+			}
+			return true;
+		}
+		else if (type == TYPE_VOID) return true;
+		// Block elements are allowed only inside elements which may contain blocks
+		for (int i = 0; i < mStackLength; i++)
+		{
+			if (TAG_TYPES[mStack[i]] != TYPE_CONTAINER) return false;
+		}
+		return true;
+	}
+	
+	private static String obtainAttributeName(String source, int start, int end)
+	{
+		int length = end - start;
+		OUTER: for (String name : ATTRIBUTE_NAMES)
+		{
+			if (name.length() == length)
+			{
+				for (int j = 0; j < length; j++)
+				{
+					char c = source.charAt(start + j);
+					if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+					if (c != name.charAt(j)) continue OUTER;
+				}
+				return name;
+			}
+		}
+		char[] chars = new char[length];
+		for (int j = 0; j < length; j++)
+		{
+			char c = source.charAt(start + j);
+			chars[j] = c >= 'A' && c <= 'Z' ? (char) (c + 'a' - 'A') : c;
+		}
+		return new String(chars);
+	}
+	
+	// Returns index after the entity or -1 if entity is not supported
+	private int parseEntity(String source, int i, int length, boolean attribute)
+	{
+		int end = i;
+		while (end < length && end - i <= 8 && source.charAt(end) != ';') end++;
+		if (end >= length || source.charAt(end) != ';')
+		{
+			// Single ampersand is kept as is
+			if (i < length && (isNameCharacter(source.charAt(i)) || source.charAt(i) == '#')) return -1;
+			appendEntity('&', attribute);
+			return i;
+		}
+		int count = end - i;
+		char c;
+		if (count >= 2 && source.charAt(i) == '#')
+		{
+			int value = 0;
+			boolean hex = source.charAt(i + 1) == 'x' || source.charAt(i + 1) == 'X';
+			int start = hex ? i + 2 : i + 1;
+			if (start == end) return -1;
+			for (int j = start; j < end; j++)
+			{
+				int digit = Character.digit(source.charAt(j), hex ? 16 : 10);
+				if (digit < 0) return -1;
+				value = value * (hex ? 16 : 10) + digit;
+			}
+			if (value < ' ' || value >= 0x7f && value <= 0x9f || value >= 0xd800 && value <= 0xdfff
+					|| value >= 0xfffe) return -1;
+			c = (char) value;
+		}
+		else if (source.regionMatches(i, "amp", 0, count) && count == 3) c = '&';
+		else if (source.regionMatches(i, "lt", 0, count) && count == 2) c = '<';
+		else if (source.regionMatches(i, "gt", 0, count) && count == 2) c = '>';
+		else if (source.regionMatches(i, "quot", 0, count) && count == 4) c = '"';
+		else if (source.regionMatches(i, "apos", 0, count) && count == 4) c = '\'';
+		else if (source.regionMatches(i, "nbsp", 0, count) && count == 4) c = ' ';
+		else return -1;
+		appendEntity(c, attribute);
+		return end + 1;
+	}
+	
+	private void appendEntity(char c, boolean attribute)
+	{
+		if (attribute) mValueBuilder.append(c); else appendText(c);
+	}
+	
+	private void appendText(char c)
+	{
+		if (mTextLength == mText.length) mText = Arrays.copyOf(mText, mText.length * 2);
+		mText[mTextLength++] = c;
+	}
+	
+	// TagSoup splits text into chunks by markup and entities and skips whitespace chunks before document content
+	private void endChunk()
+	{
+		if (!mContentStarted)
+		{
+			for (int i = mChunkStart; i < mTextLength; i++)
+			{
+				char c = mText[i];
+				if (c != ' ' && c != '\n' && c != '\t')
+				{
+					mContentStarted = true;
+					break;
+				}
+			}
+			if (!mContentStarted) mTextLength = mChunkStart;
+			mChunkStart = mTextLength;
+		}
+	}
+	
+	private void flushText()
+	{
+		if (mTextLength > mTextStart)
+		{
+			addEvent(EVENT_TEXT, mTextStart, mTextLength - mTextStart, 0);
+			mTextStart = mTextLength;
+		}
+	}
+	
+	private void addEvent(int type, int first, int second, int third)
+	{
+		if (mEventsLength + 4 > mEvents.length) mEvents = Arrays.copyOf(mEvents, mEvents.length * 2);
+		int[] events = mEvents;
+		events[mEventsLength++] = type;
+		events[mEventsLength++] = first;
+		events[mEventsLength++] = second;
+		events[mEventsLength++] = third;
+	}
+	
+	private void addAttribute(String name, String value)
+	{
+		if (mAttributesLength == mAttributeNames.length)
+		{
+			mAttributeNames = Arrays.copyOf(mAttributeNames, mAttributeNames.length * 2);
+			mAttributeValues = Arrays.copyOf(mAttributeValues, mAttributeValues.length * 2);
+		}
+		mAttributeNames[mAttributesLength] = name;
+		mAttributeValues[mAttributesLength++] = value;
+	}
+	
+	private void replay(ContentHandler handler)
+	{
+		int[] events = mEvents;
+		TagAttributes attributes = mAttributes;
+		try
+		{
+			for (int i = 0; i < mEventsLength; i += 4)
+			{
+				switch (events[i])
+				{
+					case EVENT_TEXT:
+					{
+						handler.characters(mText, events[i + 1], events[i + 2]);
+						break;
+					}
+					case EVENT_START:
+					{
+						String tagName = TAG_NAMES[events[i + 1]];
+						attributes.set(events[i + 2], events[i + 3]);
+						handler.startElement("", tagName, tagName, attributes);
+						break;
+					}
+					case EVENT_END:
+					{
+						String tagName = TAG_NAMES[events[i + 1]];
+						handler.endElement("", tagName, tagName);
+						break;
+					}
+				}
+			}
+		}
+		catch (SAXException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private class TagAttributes implements Attributes
+	{
+		private int mStart;
+		private int mLength;
+		
+		public void set(int start, int length)
+		{
+			mStart = start;
+			mLength = length;
+		}
+		
+		@Override
+		public int getLength()
+		{
+			return mLength;
+		}
+		
+		@Override
+		public String getURI(int index)
+		{
+			return index >= 0 && index < mLength ? "" : null;
+		}
+		
+		@Override
+		public String getLocalName(int index)
+		{
+			return index >= 0 && index < mLength ? mAttributeNames[mStart + index] : null;
+		}
+		
+		@Override
+		public String getQName(int index)
+		{
+			return getLocalName(index);
+		}
+		
+		@Override
+		public String getType(int index)
+		{
+			return index >= 0 && index < mLength ? "CDATA" : null;
+		}
+		
+		@Override
+		public String getValue(int index)
+		{
+			return index >= 0 && index < mLength ? mAttributeValues[mStart + index] : null;
+		}
+		
+		@Override
+		public int getIndex(String uri, String localName)
+		{
+			return "".equals(uri) ? getIndex(localName) : -1;
+		}
+		
+		@Override
+		public int getIndex(String qName)
+		{
+			for (int i = 0; i < mLength; i++)
+			{
+				if (mAttributeNames[mStart + i].equals(qName)) return i;
+			}
+			return -1;
+		}
+		
+		@Override
+		public String getType(String uri, String localName)
+		{
+			return getType(getIndex(uri, localName));
+		}
+		
+		@Override
+		public String getType(String qName)
+		{
+			return getType(getIndex(qName));
+		}
+		
+		@Override
+		public String getValue(String uri, String localName)
+		{
+			return getValue(getIndex(uri, localName));
+		}
+		
+		@Override
+		public String getValue(String qName)
+		{
+			return getValue(getIndex(qName));
+		}
+	}
+}
\ No newline at end of file
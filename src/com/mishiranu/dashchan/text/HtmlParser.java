@@ -28,8 +28,6 @@ import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
-import org.xml.sax.SAXNotRecognizedException;
-import org.xml.sax.SAXNotSupportedException;
 
 import android.graphics.Color;
 
@@ -134,21 +132,18 @@ public class HtmlParser implements ContentHandler
 	
 	public CharSequence convert()
 	{
-		Parser parser = new Parser();
-		try
-		{
-			parser.setProperty("http://www.ccil.org/~cowan/tagsoup/properties/schema", HTML_SCHEMA);
-		}
-		catch (SAXNotRecognizedException | SAXNotSupportedException e)
-		{
-			throw new RuntimeException(e);
-		}
-		parser.setContentHandler(this);
 		StringBuilder builder = mBuilder;
 		mMarkup.onStartEnd(this, builder, false);
 		try
 		{
-			parser.parse(new InputSource(new StringReader(mSource)));
+			// TagSoup is used only when tokenizer can't guarantee the same result
+			if (!CommentTokenizer.parse(mSource, this))
+			{
+				Parser parser = new Parser();
+				parser.setProperty("http://www.ccil.org/~cowan/tagsoup/properties/schema", HTML_SCHEMA);
+				parser.setContentHandler(this);
+				parser.parse(new InputSource(new StringReader(mSource)));
+			}
 		}
 		catch (Exception e)
 		{
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.text;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Aho-Corasick automaton which finds all literal patterns in text in a single pass.
+// Characters are compared using simple case folding, like case insensitive Pattern on Android does.
+public class MultiPatternMatcher
+{
+	private final int mPatternsCount;
+	private final int[] mLengths;
+	
+	private final char[][] mLabels;
+	private final int[][] mChildren;
+	private final int[] mFail;
+	private final int[][] mOutputs;
+	
+	public MultiPatternMatcher(String[] patterns)
+	{
+		mPatternsCount = patterns.length;
+		mLengths = new int[patterns.length];
+		ArrayList<TreeMap<Character, Integer>> trie = new ArrayList<>();
+		ArrayList<int[]> outputs = new ArrayList<>();
+		trie.add(new TreeMap<Character, Integer>());
+		outputs.add(null);
+		for (int i = 0; i < patterns.length; i++)
+		{
+			String pattern = patterns[i];
+			mLengths[i] = pattern.length();
+			int node = 0;
+			for (int j = 0; j < pattern.length(); j++)
+			{
+				char c = foldCase(pattern.charAt(j));
+				Integer child = trie.get(node).get(c);
+				if (child == null)
+				{
+					child = trie.size();
+					trie.get(node).put(c, child);
+					trie.add(new TreeMap<Character, Integer>());
+					outputs.add(null);
+				}
+				node = child;
+			}
+			outputs.set(node, append(outputs.get(node), i));
+		}
+		int count = trie.size();
+		mLabels = new char[count][];
+		mChildren = new int[count][];
+		for (int i = 0; i < count; i++)
+		{
+			TreeMap<Character, Integer> children = trie.get(i);
+			char[] labels = new char[children.size()];
+			int[] nodes = new int[children.size()];
+			int j = 0;
+			for (Map.Entry<Character, Integer> entry : children.entrySet())
+			{
+				labels[j] = entry.getKey();
+				nodes[j++] = entry.getValue();
+			}
+			mLabels[i] = labels;
+			mChildren[i] = nodes;
+		}
+		// Breadth-first traversal, so fail links of shorter prefixes are ready before they are used
+		mFail = new int[count];
+		mOutputs = new int[count][];
+		mOutputs[0] = outputs.get(0);
+		int[] queue = new int[count];
+		int head = 0;
+		int tail = 0;
+		for (int child : mChildren[0]) queue[tail++] = child;
+		while (head < tail)
+		{
+			int node = queue[head++];
+			int[] nodeOutputs = outputs.get(node);
+			int[] failOutputs = mOutputs[mFail[node]];
+			if (failOutputs != null)
+			{
+				for (int output : failOutputs) nodeOutputs = append(nodeOutputs, output);
+			}
+			mOutputs[node] = nodeOutputs;
+			char[] labels = mLabels[node];
+			int[] children = mChildren[node];
+			for (int i = 0; i < labels.length; i++)
+			{
+				int child = children[i];
+				int fail = mFail[node];
+				int next;
+				while ((next = getChild(fail, labels[i])) == -1 && fail != 0) fail = mFail[fail];
+				mFail[child] = next != -1 && next != child ? next : 0;
+				queue[tail++] = child;
+			}
+		}
+	}
+	
+	private static int[] append(int[] array, int value)
+	{
+		if (array == null) return new int[] {value};
+		int[] result = Arrays.copyOf(array, array.length + 1);
+		result[array.length] = value;
+		return result;
+	}
+	
+	public static char foldCase(char c)
+	{
+		if (c < 0x80) return c >= 'A' && c <= 'Z' ? (char) (c + 'a' - 'A') : c;
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+	
+	private int getChild(int node, char c)
+	{
+		int index = Arrays.binarySearch(mLabels[node], c);
+		return index >= 0 ? mChildren[node][index] : -1;
+	}
+	
+	public int getPatternsCount()
+	{
+		return mPatternsCount;
+	}
+	
+	// Returns start index of the first occurrence for every pattern or -1 if pattern wasn't found
+	public int[] find(String text)
+	{
+		int[] result = new int[mPatternsCount];
+		Arrays.fill(result, -1);
+		int node = 0;
+		for (int i = 0, length = text.length(); i < length; i++)
+		{
+			char c = foldCase(text.charAt(i));
+			int next;
+			while ((next = getChild(node, c)) == -1 && node != 0) node = mFail[node];
+			node = next != -1 ? next : 0;
+			int[] outputs = mOutputs[node];
+			if (outputs != null)
+			{
+				for (int output : outputs)
+				{
+					if (result[output] == -1) result[output] = i + 1 - mLengths[output];
+				}
+			}
+		}
+		return result;
+	}
+}
\ No newline at end of file
@@ -16,7 +16,11 @@
 
 package com.mishiranu.dashchan.text;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 
 public class SimilarTextEstimator
@@ -58,74 +62,230 @@ public class SimilarTextEstimator
 		if (text == null) return null;
 		HashSet<String> words = null;
 		int count = 0;
-		if (text.length() > mMaxLength) text = text.substring(0, mMaxLength);
-		text = text.toLowerCase(Locale.getDefault());
-		StringBuilder builder = new StringBuilder(text);
-		if (mRemovePostLinks)
+		Locale locale = Locale.getDefault();
+		StringBuilder word = null;
+		// Words are collected in a single pass, post links are skipped, other characters split words
+		for (int i = 0, length = Math.min(text.length(), mMaxLength); i <= length; i++)
 		{
-			int index = 0;
-			while (true)
+			char c = i < length ? text.charAt(i) : ' ';
+			if (mRemovePostLinks && c == '>' && i + 2 < length && text.charAt(i + 1) == '>'
+					&& Character.isDigit(text.charAt(i + 2)))
 			{
-				index = builder.indexOf(">>", index);
-				if (index == -1) break;
-				int charCount = 0;
-				for (int i = index + 2; i < builder.length(); i++)
-				{
-					if (Character.isDigit(builder.charAt(i))) charCount++; else break;
-				}
-				if (charCount > 0)
-				{
-					builder.delete(index, index + 2 + charCount);
-					index++;
-				}
-				else index += 2;
+				i += 2;
+				while (i + 1 < length && Character.isDigit(text.charAt(i + 1))) i++;
+				continue;
 			}
-		}
-		// Remove not letter characters
-		for (int i = 0; i < builder.length(); i++)
-		{
-			char c = builder.charAt(i);
-			if (c != ' ' && !Character.isLetterOrDigit(c)) builder.setCharAt(i, ' ');
-		}
-		// Fast String.split(" +")
-		boolean inWord = false;
-		int wordStart = 0;
-		for (int i = 0, length = builder.length(); i <= length; i++)
-		{
-			char c = i < length ? builder.charAt(i) : ' ';
-			if (inWord)
+			if (Character.isLetterOrDigit(c))
 			{
-				if (c == ' ')
-				{
-					inWord = false;
-					String word = builder.substring(wordStart, i);
-					if (words == null) words = new HashSet<>();
-					words.add(word);
-					count++;
-				}
+				if (word == null) word = new StringBuilder();
+				word.append(c);
 			}
-			else
+			else if (word != null && word.length() > 0)
 			{
-				if (c != ' ')
-				{
-					inWord = true;
-					wordStart = i;
-				}
+				if (words == null) words = new HashSet<>();
+				words.add(word.toString().toLowerCase(locale));
+				word.setLength(0);
+				count++;
 			}
 		}
 		return count >= MIN_WORDS_COUNT ? new WordsData(words, count) : null;
 	}
 	
+	// MinHash signature consists of BANDS_COUNT bands of BAND_ROWS values. Similar texts share at least one band
+	// with high probability, so only texts from the same buckets should be compared.
+	// checkSimiliar accepts Jaccard index down to 0.3 when the second set has at least INDEXED_MIN_WORDS words,
+	// 64 bands of 2 rows find such pairs in 99.7% of cases. Smaller sets may be accepted at lower index,
+	// so they are always checked directly.
+	private static final int BANDS_COUNT = 64;
+	private static final int BAND_ROWS = 2;
+	private static final int SIGNATURE_LENGTH = BANDS_COUNT * BAND_ROWS;
+	private static final int INDEXED_MIN_WORDS = 20;
+	
+	// Scanning a few rules is cheaper than building signatures
+	private static final int LINEAR_SCAN_LIMIT = 50;
+	
+	private static int mix(int hash)
+	{
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		return hash ^ hash >>> 16;
+	}
+	
+	private static int[] computeSignature(HashSet<String> words)
+	{
+		int[] signature = new int[SIGNATURE_LENGTH];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		for (String word : words)
+		{
+			int hash1 = mix(word.hashCode());
+			int hash2 = mix(hash1 ^ 0x9e3779b9) | 1;
+			for (int i = 0; i < SIGNATURE_LENGTH; i++)
+			{
+				int value = mix(hash1 + i * hash2) & Integer.MAX_VALUE;
+				if (value < signature[i]) signature[i] = value;
+			}
+		}
+		return signature;
+	}
+	
 	public static class WordsData
 	{
 		public final HashSet<String> words;
 		public final int count;
 		public String postNumber;
 		
+		private int[] mSignature;
+		
 		public WordsData(HashSet<String> words, int count)
 		{
 			this.words = words;
 			this.count = count;
 		}
+		
+		private int[] getSignature()
+		{
+			if (mSignature == null) mSignature = computeSignature(words);
+			return mSignature;
+		}
+	}
+	
+	public static class Index
+	{
+		private final SimilarTextEstimator mEstimator;
+		@SuppressWarnings("unchecked")
+		private final HashMap<Long, ArrayList<Entry>>[] mBands = new HashMap[BANDS_COUNT];
+		private final LinkedHashMap<WordsData, Entry> mEntries = new LinkedHashMap<>();
+		private final ArrayList<Entry> mSmallEntries = new ArrayList<>();
+		private int mSequence = 0;
+		private int mQuery = 0;
+		
+		private static class Entry
+		{
+			public final WordsData wordsData;
+			public final int sequence;
+			public int query = -1;
+			
+			public Entry(WordsData wordsData, int sequence)
+			{
+				this.wordsData = wordsData;
+				this.sequence = sequence;
+			}
+		}
+		
+		public Index(SimilarTextEstimator estimator)
+		{
+			mEstimator = estimator;
+			for (int i = 0; i < BANDS_COUNT; i++) mBands[i] = new HashMap<>();
+		}
+		
+		private static long getBandKey(int[] signature, int band)
+		{
+			int start = band * BAND_ROWS;
+			return (long) signature[start] << 32 | signature[start + 1] & 0xffffffffL;
+		}
+		
+		private static boolean isIndexed(WordsData wordsData)
+		{
+			return wordsData.words.size() >= INDEXED_MIN_WORDS;
+		}
+		
+		public synchronized void add(WordsData wordsData)
+		{
+			if (mEntries.containsKey(wordsData)) return;
+			Entry entry = new Entry(wordsData, mSequence++);
+			mEntries.put(wordsData, entry);
+			if (!isIndexed(wordsData))
+			{
+				mSmallEntries.add(entry);
+				return;
+			}
+			int[] signature = wordsData.getSignature();
+			for (int i = 0; i < BANDS_COUNT; i++)
+			{
+				long key = getBandKey(signature, i);
+				ArrayList<Entry> entries = mBands[i].get(key);
+				if (entries == null)
+				{
+					entries = new ArrayList<>(1);
+					mBands[i].put(key, entries);
+				}
+				entries.add(entry);
+			}
+		}
+		
+		public synchronized void remove(WordsData wordsData)
+		{
+			Entry entry = mEntries.remove(wordsData);
+			if (entry == null) return;
+			if (!isIndexed(wordsData))
+			{
+				mSmallEntries.remove(entry);
+				return;
+			}
+			int[] signature = wordsData.getSignature();
+			for (int i = 0; i < BANDS_COUNT; i++)
+			{
+				long key = getBandKey(signature, i);
+				ArrayList<Entry> entries = mBands[i].get(key);
+				if (entries != null)
+				{
+					entries.remove(entry);
+					if (entries.isEmpty()) mBands[i].remove(key);
+				}
+			}
+		}
+		
+		public synchronized void clear()
+		{
+			for (HashMap<Long, ArrayList<Entry>> band : mBands) band.clear();
+			mEntries.clear();
+			mSmallEntries.clear();
+		}
+		
+		// Returns the earliest added words data which is similar to given one
+		public synchronized WordsData findSimilar(WordsData wordsData)
+		{
+			if (wordsData == null || mEntries.isEmpty()) return null;
+			if (mEntries.size() <= LINEAR_SCAN_LIMIT)
+			{
+				for (Entry entry : mEntries.values())
+				{
+					if (mEstimator.checkSimiliar(wordsData, entry.wordsData)) return entry.wordsData;
+				}
+				return null;
+			}
+			Entry result = null;
+			for (Entry entry : mSmallEntries)
+			{
+				if (mEstimator.checkSimiliar(wordsData, entry.wordsData))
+				{
+					result = entry;
+					break;
+				}
+			}
+			int[] signature = wordsData.getSignature();
+			int query = mQuery++;
+			for (int i = 0; i < BANDS_COUNT; i++)
+			{
+				ArrayList<Entry> entries = mBands[i].get(getBandKey(signature, i));
+				if (entries != null)
+				{
+					for (Entry entry : entries)
+					{
+						// Entry may be found in several bands, but it should be checked only once
+						if (entry.query == query) continue;
+						entry.query = query;
+						if ((result == null || entry.sequence < result.sequence)
+								&& mEstimator.checkSimiliar(wordsData, entry.wordsData))
+						{
+							result = entry;
+						}
+					}
+				}
+			}
+			return result != null ? result.wordsData : null;
+		}
 	}
 }
\ No newline at end of file
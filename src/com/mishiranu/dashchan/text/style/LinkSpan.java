@@ -21,6 +21,7 @@ import android.text.TextPaint;
 import android.text.style.CharacterStyle;
 import android.text.style.UpdateAppearance;
 
+import chan.content.model.Post;
 import chan.util.StringUtils;
 
 import com.mishiranu.dashchan.graphics.ColorScheme;
@@ -32,6 +33,7 @@ public class LinkSpan extends CharacterStyle implements UpdateAppearance, Commen
 {
 	private final String mUriString;
 	private final String mPostNumber;
+	private final long mPostKey;
 	
 	private int mForegroundColor, mClickedColor;
 	
@@ -42,6 +44,7 @@ public class LinkSpan extends CharacterStyle implements UpdateAppearance, Commen
 	{
 		mUriString = StringUtils.fixParsedUriString(uriString);
 		mPostNumber = postNumber;
+		mPostKey = Post.parsePostKey(postNumber);
 	}
 	
 	@Override
@@ -91,4 +94,9 @@ public class LinkSpan extends CharacterStyle implements UpdateAppearance, Commen
 	{
 		return mPostNumber;
 	}
+	
+	public long getPostKey()
+	{
+		return mPostKey;
+	}
 }
\ No newline at end of file
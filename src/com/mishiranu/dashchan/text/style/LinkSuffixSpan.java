@@ -20,6 +20,8 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.text.style.ReplacementSpan;
 
+import chan.content.model.Post;
+
 import com.mishiranu.dashchan.graphics.ColorScheme;
 import com.mishiranu.dashchan.util.FlagUtils;
 import com.mishiranu.dashchan.util.GraphicsUtils;
@@ -28,6 +30,7 @@ public class LinkSuffixSpan extends ReplacementSpan implements ColorScheme.Span
 {
 	private int mSuffix;
 	private final String mPostNumber;
+	private final long mPostKey;
 	
 	public static final int SUFFIX_ORIGINAL_POSTER = 0x00000001;
 	public static final int SUFFIX_DIFFERENT_THREAD = 0x00000002;
@@ -38,6 +41,7 @@ public class LinkSuffixSpan extends ReplacementSpan implements ColorScheme.Span
 	public LinkSuffixSpan(int suffix, String postNumber)
 	{
 		mPostNumber = postNumber;
+		mPostKey = Post.parsePostKey(postNumber);
 		mSuffix = suffix;
 	}
 	
@@ -51,11 +55,21 @@ public class LinkSuffixSpan extends ReplacementSpan implements ColorScheme.Span
 		mSuffix = FlagUtils.set(mSuffix, suffix, present);
 	}
 	
+	public int getSuffix()
+	{
+		return mSuffix;
+	}
+	
 	public String getPostNumber()
 	{
 		return mPostNumber;
 	}
 	
+	public long getPostKey()
+	{
+		return mPostKey;
+	}
+	
 	private String getSuffixText()
 	{
 		if (isSuffixPresent(SUFFIX_ORIGINAL_POSTER)) return "OP";
@@ -18,9 +18,7 @@ package com.mishiranu.dashchan.ui;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 
 import android.animation.ObjectAnimator;
@@ -82,6 +80,7 @@ import com.mishiranu.dashchan.content.storage.FavoritesStorage;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.util.AnimationUtils;
 import com.mishiranu.dashchan.util.GraphicsUtils;
+import com.mishiranu.dashchan.util.LongHashSet;
 import com.mishiranu.dashchan.util.NavigationUtils;
 import com.mishiranu.dashchan.util.ResourceUtils;
 import com.mishiranu.dashchan.util.ToastUtils;
@@ -142,13 +141,13 @@ public class DialogUnit implements DialogStack.Callback
 					boolean notify = position != ListView.INVALID_POSITION;
 					if (!notify)
 					{
-						LinkedHashSet<String> referencesFrom = postItem.getReferencesFrom();
+						LongHashSet referencesFrom = postItem.getReferencesFrom();
 						if (referencesFrom != null)
 						{
 							for (int i = 0; i < adapter.getCount(); i++)
 							{
 								PostItem adapterPostItem = adapter.getItem(i);
-								if (adapterPostItem != null && referencesFrom.contains(adapterPostItem.getPostNumber()))
+								if (adapterPostItem != null && referencesFrom.contains(adapterPostItem.getPostKey()))
 								{
 									// Must notify adapter to update links to shown/hidden posts 
 									notify = true;
@@ -335,9 +334,9 @@ public class DialogUnit implements DialogStack.Callback
 		}
 		
 		@Override
-		public PostItem findPostItem(String postNumber)
+		public PostItem findPostItem(long postKey)
 		{
-			return provider.findPostItem(postNumber);
+			return provider.findPostItem(postKey);
 		}
 		
 		@Override
@@ -393,17 +392,18 @@ public class DialogUnit implements DialogStack.Callback
 				{
 					postItem = postItems[i];
 					mPostItems.add(postItem);
-					HashSet<String> referencesTo = postItem.getReferencesTo();
+					LongHashSet referencesTo = postItem.getReferencesTo();
 					if (referencesTo != null)
 					{
-						for (String postNumber : referencesTo)
+						for (int k = 0; k < referencesTo.size(); k++)
 						{
+							long postKey = referencesTo.get(k);
 							for (int j = 0; j < i + 1; j++)
 							{
 								PostItem foundPostItem = mPostItems.get(j);
-								if (postNumber.equals(foundPostItem.getPostNumber()))
+								if (postKey == foundPostItem.getPostKey())
 								{
-									foundPostItem.addReferenceFrom(postItem.getPostNumber());
+									foundPostItem.addReferenceFrom(postItem.getPostKey());
 								}
 							}
 						}
@@ -466,11 +466,11 @@ public class DialogUnit implements DialogStack.Callback
 		}
 		
 		@Override
-		public PostItem findPostItem(String postNumber)
+		public PostItem findPostItem(long postKey)
 		{
 			for (PostItem postItem : mPostItems)
 			{
-				if (postNumber.equals(postItem.getPostNumber())) return postItem;
+				if (postKey == postItem.getPostKey()) return postItem;
 			}
 			return null;
 		}
@@ -512,12 +512,12 @@ public class DialogUnit implements DialogStack.Callback
 		{
 			super.onRequestUpdate();
 			mPosts.clear();
-			LinkedHashSet<String> referencesFrom = mPostItem.getReferencesFrom();
+			LongHashSet referencesFrom = mPostItem.getReferencesFrom();
 			if (referencesFrom != null)
 			{
 				for (PostItem postItem : configurationSet.postsProvider)
 				{
-					if (referencesFrom.contains(postItem.getPostNumber())) mPosts.add(postItem);
+					if (referencesFrom.contains(postItem.getPostKey())) mPosts.add(postItem);
 				}
 			}
 		}
@@ -17,7 +17,6 @@
 package com.mishiranu.dashchan.ui;
 
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -43,6 +42,7 @@ import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.text.style.LinkSuffixSpan;
 import com.mishiranu.dashchan.util.DialogMenu;
 import com.mishiranu.dashchan.util.ListViewUtils;
+import com.mishiranu.dashchan.util.LongHashSet;
 import com.mishiranu.dashchan.util.NavigationUtils;
 import com.mishiranu.dashchan.widget.AttachmentView;
 import com.mishiranu.dashchan.widget.CommentTextView;
@@ -532,7 +532,7 @@ public class InteractionUnit
 						}
 						case MENU_HIDE:
 						{
-							LinkedHashSet<String> referencesFrom = postItem.getReferencesFrom();
+							LongHashSet referencesFrom = postItem.getReferencesFrom();
 							DialogMenu dialogMenu = new DialogMenu(context, this);
 							dialogMenu.addItem(MENU_HIDE_POST, R.string.action_hide_post);
 							if (referencesFrom != null && referencesFrom.size() > 0)
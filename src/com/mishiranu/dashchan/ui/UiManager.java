@@ -16,8 +16,6 @@
 
 package com.mishiranu.dashchan.ui;
 
-import java.util.HashSet;
-
 import android.content.Context;
 import android.view.View;
 
@@ -27,6 +25,7 @@ import com.mishiranu.dashchan.content.model.GalleryItem;
 import com.mishiranu.dashchan.content.model.PostItem;
 import com.mishiranu.dashchan.graphics.ColorScheme;
 import com.mishiranu.dashchan.util.ListViewUtils;
+import com.mishiranu.dashchan.util.LongHashSet;
 import com.mishiranu.dashchan.util.WeakObservable;
 import com.mishiranu.dashchan.widget.AttachmentView;
 import com.mishiranu.dashchan.widget.CommentTextView;
@@ -123,7 +122,7 @@ public class UiManager
 	
 	public static interface PostsProvider extends Iterable<PostItem>
 	{
-		public PostItem findPostItem(String postNumber);
+		public PostItem findPostItem(long postKey);
 	}
 	
 	public static final int SELECTION_DISABLED = 0;
@@ -146,7 +145,7 @@ public class UiManager
 		public final HidePerformer hidePerformer;
 		public final GalleryItem.GallerySet gallerySet;
 		public final CommentTextView.LinkListener linkListener;
-		public final HashSet<String> userPostNumbers;
+		public final LongHashSet userPostKeys;
 		
 		public final boolean mayCollapse;
 		public final boolean isDialog;
@@ -156,7 +155,7 @@ public class UiManager
 		
 		public ConfigurationSet(Replyable replyable, PostsProvider postsProvider, HidePerformer hidePerformer,
 				GalleryItem.GallerySet gallerySet, CommentTextView.LinkListener linkListener,
-				HashSet<String> userPostNumbers, boolean mayCollapse, boolean isDialog, boolean allowMyMarkEdit,
+				LongHashSet userPostKeys, boolean mayCollapse, boolean isDialog, boolean allowMyMarkEdit,
 				boolean allowHiding, String repliesToPost)
 		{
 			this.replyable = replyable;
@@ -164,7 +163,7 @@ public class UiManager
 			this.hidePerformer = hidePerformer;
 			this.gallerySet = gallerySet;
 			this.linkListener = linkListener;
-			this.userPostNumbers = userPostNumbers;
+			this.userPostKeys = userPostKeys;
 			
 			this.mayCollapse = mayCollapse;
 			this.isDialog = isDialog;
@@ -176,7 +175,7 @@ public class UiManager
 		public ConfigurationSet copyEdit(boolean mayCollapse, boolean isDialog, String repliesToPost)
 		{
 			return new ConfigurationSet(replyable, postsProvider, hidePerformer, gallerySet, linkListener,
-					userPostNumbers, mayCollapse, isDialog, allowMyMarkEdit, allowHiding, repliesToPost);
+					userPostKeys, mayCollapse, isDialog, allowMyMarkEdit, allowHiding, repliesToPost);
 		}
 	}
 	
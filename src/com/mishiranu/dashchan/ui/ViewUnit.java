@@ -19,7 +19,6 @@ package com.mishiranu.dashchan.ui;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 
@@ -49,6 +48,7 @@ import android.widget.TextView;
 
 import chan.content.ChanConfiguration;
 import chan.content.ChanLocator;
+import chan.content.model.Post;
 import chan.util.StringUtils;
 
 import com.mishiranu.dashchan.R;
@@ -65,6 +65,7 @@ import com.mishiranu.dashchan.text.style.LinkSuffixSpan;
 import com.mishiranu.dashchan.util.AnimationUtils;
 import com.mishiranu.dashchan.util.GraphicsUtils;
 import com.mishiranu.dashchan.util.ListViewUtils;
+import com.mishiranu.dashchan.util.LongHashSet;
 import com.mishiranu.dashchan.util.PostDateFormatter;
 import com.mishiranu.dashchan.util.ResourceUtils;
 import com.mishiranu.dashchan.util.ViewUtils;
@@ -566,32 +567,32 @@ public class ViewUnit implements SingleLayerLinearLayout.OnTemporaryDetatchListe
 				? postItem.getComment(configurationSet.repliesToPost) : postItem.getComment();
 				colorScheme.apply(postItem.getCommentSpans());
 		LinkSuffixSpan[] linkSuffixSpans = postItem.getLinkSuffixSpansAfterComment();
-		if (linkSuffixSpans != null && configurationSet.userPostNumbers != null)
+		if (linkSuffixSpans != null && configurationSet.userPostKeys != null)
 		{
 			boolean showMyPosts = Preferences.isShowMyPosts();
-			synchronized (configurationSet.userPostNumbers)
+			synchronized (configurationSet.userPostKeys)
 			{
 				for (LinkSuffixSpan span : linkSuffixSpans)
 				{
-					span.setSuffix(LinkSuffixSpan.SUFFIX_USER_POST, showMyPosts && configurationSet.userPostNumbers
-							.contains(span.getPostNumber()));
+					span.setSuffix(LinkSuffixSpan.SUFFIX_USER_POST, showMyPosts && configurationSet.userPostKeys
+							.contains(span.getPostKey()));
 				}
 			}
 		}
 		LinkSpan[] linkSpans = postItem.getLinkSpansAfterComment();
 		if (linkSpans != null)
 		{
-			HashSet<String> referencesTo = postItem.getReferencesTo();
+			LongHashSet referencesTo = postItem.getReferencesTo();
 			for (LinkSpan linkSpan : linkSpans)
 			{
-				String linkPostNumber = linkSpan.getPostNumber();
-				if (linkPostNumber != null)
+				long linkPostKey = linkSpan.getPostKey();
+				if (linkPostKey != Post.POST_KEY_INVALID)
 				{
 					boolean hidden = false;
-					if (referencesTo != null && referencesTo.contains(linkPostNumber)
+					if (referencesTo != null && referencesTo.contains(linkPostKey)
 							&& holder.configurationSet.postsProvider != null)
 					{
-						PostItem linkPostItem = holder.configurationSet.postsProvider.findPostItem(linkPostNumber);
+						PostItem linkPostItem = holder.configurationSet.postsProvider.findPostItem(linkPostKey);
 						hidden = linkPostItem != null && linkPostItem.isHidden(configurationSet.hidePerformer);
 					}
 					linkSpan.setHidden(hidden);
@@ -1011,6 +1012,15 @@ public class ViewUnit implements SingleLayerLinearLayout.OnTemporaryDetatchListe
 		}
 	}
 	
+	public void prefetchThumbnails(List<AttachmentItem> attachmentItems, int maxCount, int distance)
+	{
+		if (attachmentItems != null)
+		{
+			int count = Math.min(attachmentItems.size(), maxCount);
+			for (int i = 0; i < count; i++) attachmentItems.get(i).prefetchThumbnail(distance);
+		}
+	}
+	
 	public void displayThumbnail(ListView listView, int position, List<AttachmentItem> attachmentItems, boolean force)
 	{
 		if (position != ListView.INVALID_POSITION)
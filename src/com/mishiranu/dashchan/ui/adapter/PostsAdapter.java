@@ -17,15 +17,14 @@
 package com.mishiranu.dashchan.ui.adapter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.Process;
+import android.util.LongSparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
@@ -40,10 +39,13 @@ import chan.util.StringUtils;
 
 import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.content.HidePerformer;
+import com.mishiranu.dashchan.content.ImageLoader;
+import com.mishiranu.dashchan.content.PostsPreloader;
 import com.mishiranu.dashchan.content.model.GalleryItem;
 import com.mishiranu.dashchan.content.model.PostItem;
 import com.mishiranu.dashchan.ui.Replyable;
 import com.mishiranu.dashchan.ui.UiManager;
+import com.mishiranu.dashchan.util.LongHashSet;
 import com.mishiranu.dashchan.util.ResourceUtils;
 import com.mishiranu.dashchan.util.ToastUtils;
 import com.mishiranu.dashchan.widget.CommentTextView;
@@ -56,10 +58,11 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 	private static final int ITEM_VIEW_TYPE_HIDDEN_POST = 1;
 	
 	private final ArrayList<PostItem> mPostItems = new ArrayList<>();
-	private final HashMap<String, PostItem> mPostItemsMap = new HashMap<>();
+	private final LongSparseArray<PostItem> mPostItemsMap = new LongSparseArray<>();
 	private final HashSet<PostItem> mSelected = new HashSet<>();
 	
 	private final Context mContext;
+	private final String mChanName;
 	private final UiManager mUiManager;
 	private final UiManager.DemandSet mDemandSet = new UiManager.DemandSet();
 	private final UiManager.ConfigurationSet mConfigurationSet;
@@ -69,14 +72,16 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 	private final int mBumpLimit;
 	
 	private boolean mSelection = false;
+	private int mLastFirstVisiblePosition = 0;
 	
 	public PostsAdapter(Context context, String chanName, String boardName, UiManager uiManager,
-			Replyable replyable, HidePerformer hidePerformer, HashSet<String> userPostNumbers, ListView listView)
+			Replyable replyable, HidePerformer hidePerformer, LongHashSet userPostKeys, ListView listView)
 	{
 		mContext = context;
+		mChanName = chanName;
 		mUiManager = uiManager;
 		mConfigurationSet = new UiManager.ConfigurationSet(replyable, this, hidePerformer,
-				new GalleryItem.GallerySet(true), this, userPostNumbers, true, false, true, true, null);
+				new GalleryItem.GallerySet(true), this, userPostKeys, true, false, true, true, null);
 		mListSelectionKeeper = new CommentTextView.ListSelectionKeeper(listView);
 		float density = ResourceUtils.obtainDensity(context);
 		FrameLayout frameLayout = new FrameLayout(context);
@@ -205,9 +210,9 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 	}
 	
 	@Override
-	public PostItem findPostItem(String postNumber)
+	public PostItem findPostItem(long postKey)
 	{
-		return mPostItemsMap.get(postNumber);
+		return mPostItemsMap.get(postKey);
 	}
 	
 	@Override
@@ -315,7 +320,7 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 			{
 				boolean append = index == mPostItems.size();
 				mPostItems.add(index, postItem);
-				mPostItemsMap.put(postItem.getPostNumber(), postItem);
+				mPostItemsMap.put(postItem.getPostKey(), postItem);
 				if (append)
 				{
 					if (startAppendIndex == -1)
@@ -338,7 +343,7 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 			{
 				PostItem existingPostItem = mPostItems.get(index);
 				mPostItems.set(index, postItem);
-				mPostItemsMap.put(postItem.getPostNumber(), postItem);
+				mPostItemsMap.put(postItem.getPostKey(), postItem);
 				postItem.setExpanded(existingPostItem.isExpanded());
 				invalidateImages = true;
 				if (!invalidateReferences && !StringUtils.equals(postItem.getRawComment(),
@@ -349,10 +354,13 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 				}
 				else
 				{
-					LinkedHashSet<String> referencesFrom = existingPostItem.getReferencesFrom();
+					LongHashSet referencesFrom = existingPostItem.getReferencesFrom();
 					if (referencesFrom != null)
 					{
-						for (String postNumber : referencesFrom) postItem.addReferenceFrom(postNumber);
+						for (int j = 0; j < referencesFrom.size(); j++)
+						{
+							postItem.addReferenceFrom(referencesFrom.get(j));
+						}
 					}
 				}
 			}
@@ -385,21 +393,18 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 			for (int i = referencesStartHandleIndex; i < mPostItems.size(); i++)
 			{
 				PostItem postItem = mPostItems.get(i);
-				HashSet<String> referencesTo = postItem.getReferencesTo();
+				LongHashSet referencesTo = postItem.getReferencesTo();
 				if (referencesTo != null)
 				{
-					for (String postNumber : referencesTo)
+					for (int j = 0; j < referencesTo.size(); j++)
 					{
-						PostItem foundPostItem = mPostItemsMap.get(postNumber);
-						if (foundPostItem != null) foundPostItem.addReferenceFrom(postItem.getPostNumber());
+						PostItem foundPostItem = mPostItemsMap.get(referencesTo.get(j));
+						if (foundPostItem != null) foundPostItem.addReferenceFrom(postItem.getPostKey());
 					}
 				}
 			}
 		}
 		
-		mPreloadList.ensureCapacity(mPostItems.size());
-		for (PostItem postItem : mPostItems) mPreloadList.add(postItem);
-		
 		int ordinalIndex = 0;
 		boolean appendBumpLimitDelimiter = false;
 		for (int i = 0; i < mPostItems.size(); i++)
@@ -418,9 +423,8 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 			}
 		}
 		
-		preparePreloading(0);
 		notifyDataSetChanged();
-		startPreloading();
+		startPreloading(0);
 	}
 	
 	public ArrayList<PostItem> clearDeletedPosts()
@@ -433,17 +437,17 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 			{
 				if (postItem.isDeleted())
 				{
-					HashSet<String> referencesTo = postItem.getReferencesTo();
+					LongHashSet referencesTo = postItem.getReferencesTo();
 					if (referencesTo != null)
 					{
-						for (String postNumber : referencesTo)
+						for (int j = 0; j < referencesTo.size(); j++)
 						{
-							PostItem foundPostItem = mPostItemsMap.get(postNumber);
-							if (foundPostItem != null) foundPostItem.removeReferenceFrom(postItem.getPostNumber());
+							PostItem foundPostItem = mPostItemsMap.get(referencesTo.get(j));
+							if (foundPostItem != null) foundPostItem.removeReferenceFrom(postItem.getPostKey());
 						}
 					}
 					mPostItems.remove(i);
-					mPostItemsMap.remove(postItem.getPostNumber());
+					mPostItemsMap.remove(postItem.getPostKey());
 					if (deletedPostItems == null) deletedPostItems = new ArrayList<>();
 					deletedPostItems.add(postItem);
 				}
@@ -509,85 +513,41 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 	public void preloadPosts(int from)
 	{
 		cancelPreloading();
-		preparePreloading(from);
-		startPreloading();
+		startPreloading(from);
 	}
 	
-	private void preparePreloading(int from)
+	private void startPreloading(int from)
 	{
-		ArrayList<PostItem> preloadList = mPreloadList;
 		ArrayList<PostItem> postItems = mPostItems;
 		int size = postItems.size();
 		from = Math.max(0, Math.min(size, from));
-		preloadList.ensureCapacity(size);
-		// Ordered preloading
+		PostItem[] preloadItems = new PostItem[size];
+		int count = 0;
+		// Visible and following posts first, then previous posts starting from the nearest
 		for (int i = from; i < size; i++)
 		{
 			PostItem postItem = postItems.get(i);
-			if (postItem != null) preloadList.add(postItem);
+			if (postItem != null) preloadItems[count++] = postItem;
 		}
-		for (int i = 0; i < from; i++)
+		for (int i = from - 1; i >= 0; i--)
 		{
 			PostItem postItem = postItems.get(i);
-			if (postItem != null) preloadList.add(postItem);
+			if (postItem != null) preloadItems[count++] = postItem;
 		}
-	}
-	
-	private void startPreloading()
-	{
-		// Ensure that cancelPreloading was called before!
-		mPreloadThread = new Thread(mPreloadRunnable);
-		mPreloadThread.start();
+		if (count < size) preloadItems = Arrays.copyOf(preloadItems, count);
+		mPreloadSession = PostsPreloader.start(preloadItems, mConfigurationSet.hidePerformer);
 	}
 	
 	public void cancelPreloading()
 	{
-		Thread thread = mPreloadThread;
-		if (thread != null)
+		if (mPreloadSession != null)
 		{
-			// Also will set mPreloadThread field to null
-			thread.interrupt();
-			try
-			{
-				thread.join();
-			}
-			catch (InterruptedException e)
-			{
-				Thread.currentThread().interrupt();
-				return;
-			}
+			mPreloadSession.cancel();
+			mPreloadSession = null;
 		}
-		mPreloadList.clear();
 	}
 	
-	private volatile Thread mPreloadThread;
-	private final ArrayList<PostItem> mPreloadList = new ArrayList<>();
-	
-	private final Runnable mPreloadRunnable = new Runnable()
-	{
-		@Override
-		public void run()
-		{
-			Thread thread = Thread.currentThread();
-			try
-			{
-				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-				ArrayList<PostItem> preloadList = mPreloadList;
-				HidePerformer hidePerformer = mConfigurationSet.hidePerformer;
-				for (int i = 0; i < preloadList.size(); i++)
-				{
-					PostItem postItem = preloadList.get(i);
-					postItem.getComment();
-					postItem.isHidden(hidePerformer);
-					if (thread.isInterrupted()) break;
-				}
-			}
-			finally
-			{
-				mPreloadThread = null;
-			}
-		}
-	};
+	private PostsPreloader.Session mPreloadSession;
 	
 	public void invalidateHidden()
 	{
@@ -613,6 +573,21 @@ public class PostsAdapter extends BaseAdapter implements CommentTextView.LinkLis
 				PostItem postItem = getItem(position);
 				if (postItem != null) mUiManager.view().displayThumbnail(v, postItem.getAttachmentItems(), false);
 			}
+			// Thumbnails are prefetched in the direction of the last scroll
+			int first = view.getFirstVisiblePosition();
+			boolean forward = first >= mLastFirstVisiblePosition;
+			mLastFirstVisiblePosition = first;
+			for (int i = 1; i <= ImageLoader.PREFETCH_DISTANCE; i++)
+			{
+				int position = forward ? first + count - 1 + i : first - i;
+				if (position < 0 || position >= getCount()) break;
+				PostItem postItem = getItem(position);
+				if (postItem != null && !postItem.isHiddenUnchecked())
+				{
+					mUiManager.view().prefetchThumbnails(postItem.getAttachmentItems(), Integer.MAX_VALUE, i);
+				}
+			}
+			ImageLoader.getInstance().onViewportChanged(mChanName);
 		}
 		mDemandSet.isBusy = isBusy;
 	}
@@ -47,6 +47,7 @@ import chan.util.StringUtils;
 import com.mishiranu.dashchan.C;
 import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.content.HidePerformer;
+import com.mishiranu.dashchan.content.ImageLoader;
 import com.mishiranu.dashchan.content.model.PostItem;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.ui.UiManager;
@@ -86,6 +87,7 @@ public class ThreadsAdapter extends BaseAdapter implements BusyScrollListener.Ca
 	private Threads mHeaderThreads;
 	private boolean mHeaderExpanded = false;
 	private boolean mBusy = false;
+	private int mLastFirstVisiblePosition = 0;
 
 	private String mFilterText;
 	private boolean mGridMode = false;
@@ -882,6 +884,35 @@ public class ThreadsAdapter extends BaseAdapter implements BusyScrollListener.Ca
 					}
 				}
 			}
+			// Thumbnails are prefetched in the direction of the last scroll
+			int first = view.getFirstVisiblePosition();
+			boolean forward = first >= mLastFirstVisiblePosition;
+			mLastFirstVisiblePosition = first;
+			for (int i = 1; i <= ImageLoader.PREFETCH_DISTANCE; i++)
+			{
+				int position = forward ? first + count - 1 + i : first - i;
+				if (position < 0 || position >= getCount()) break;
+				Object item = getItem(position);
+				if (item instanceof PostItem)
+				{
+					PostItem postItem = (PostItem) item;
+					if (!postItem.isHiddenUnchecked())
+					{
+						mUiManager.view().prefetchThumbnails(postItem.getAttachmentItems(), 1, i);
+					}
+				}
+				else if (item instanceof PostItem[])
+				{
+					for (PostItem postItem : (PostItem[]) item)
+					{
+						if (postItem != null && !postItem.isHiddenUnchecked())
+						{
+							mUiManager.view().prefetchThumbnails(postItem.getAttachmentItems(), 1, i);
+						}
+					}
+				}
+			}
+			ImageLoader.getInstance().onViewportChanged(mChanName);
 		}
 		mBusy = isBusy;
 	}
@@ -67,6 +67,7 @@ public class PagerInstance
 		
 		public boolean fullLoaded;
 		public Object decodeBitmapTask;
+		public Object loadThumbnailTask;
 		
 		public void recyclePhotoView()
 		{
@@ -18,6 +18,7 @@ package com.mishiranu.dashchan.ui.gallery;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 import android.content.Context;
 import android.content.res.Configuration;
@@ -30,6 +31,7 @@ import android.graphics.Rect;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.Shape;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -41,11 +43,11 @@ import chan.util.StringUtils;
 import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.content.CacheManager;
 import com.mishiranu.dashchan.content.ImageLoader;
-import com.mishiranu.dashchan.content.model.FileHolder;
 import com.mishiranu.dashchan.content.model.GalleryItem;
 import com.mishiranu.dashchan.graphics.SimpleBitmapDrawable;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.util.AnimationUtils;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
 import com.mishiranu.dashchan.util.NavigationUtils;
 import com.mishiranu.dashchan.util.ResourceUtils;
 import com.mishiranu.dashchan.widget.CircularProgressBar;
@@ -360,28 +362,97 @@ public class PagerUnit implements PagerInstance.Callback
 			boolean keepScale, boolean unbind)
 	{
 		if (unbind) ImageLoader.getInstance().unbind(holder.photoView);
+		if (holder.loadThumbnailTask != null)
+		{
+			((LoadThumbnailTask) holder.loadThumbnailTask).cancel(true);
+			holder.loadThumbnailTask = null;
+		}
 		Uri uri = galleryItem.getThumbnailUri(mGalleryInstance.locator);
 		if (uri != null && galleryItem.width > 0 && galleryItem.height > 0)
 		{
+			// Called from UI thread, packed store may be not loaded yet, so it is read in background
 			CacheManager cacheManager = CacheManager.getInstance();
-			File file = cacheManager.getThumbnailFile(cacheManager.getCachedFileKey(uri));
-			if (file != null && file.exists())
+			String thumbnailKey = cacheManager.getCachedFileKey(uri);
+			Bitmap bitmap = cacheManager.loadThumbnailMemory(thumbnailKey);
+			if (bitmap != null && !bitmap.isRecycled())
 			{
-				Bitmap bitmap = FileHolder.obtain(file).readImageBitmap();
-				if (bitmap != null)
-				{
-					holder.recyclePhotoView();
-					holder.simpleBitmapDrawable = new SimpleBitmapDrawable(bitmap, galleryItem.width,
-							galleryItem.height);
-					holder.photoView.setImage(holder.simpleBitmapDrawable, bitmap.hasAlpha(), false, keepScale);
-					holder.photoViewThumbnail = true;
-					return true;
-				}
+				// Drawable recycles its bitmap, so cached one must be copied
+				bitmap = bitmap.copy(bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888, false);
 			}
+			else bitmap = null;
+			if (bitmap != null)
+			{
+				setThumbnail(holder, galleryItem, bitmap, keepScale);
+				return true;
+			}
+			LoadThumbnailTask loadThumbnailTask = new LoadThumbnailTask(holder, galleryItem, thumbnailKey, keepScale);
+			loadThumbnailTask.executeOnExecutor(LOAD_THUMBNAIL_EXECUTOR);
+			holder.loadThumbnailTask = loadThumbnailTask;
 		}
 		return false;
 	}
 	
+	private void setThumbnail(PagerInstance.ViewHolder holder, GalleryItem galleryItem, Bitmap bitmap,
+			boolean keepScale)
+	{
+		holder.recyclePhotoView();
+		holder.simpleBitmapDrawable = new SimpleBitmapDrawable(bitmap, galleryItem.width, galleryItem.height);
+		holder.photoView.setImage(holder.simpleBitmapDrawable, bitmap.hasAlpha(), false, keepScale);
+		holder.photoViewThumbnail = true;
+	}
+	
+	private static final Executor LOAD_THUMBNAIL_EXECUTOR = ConcurrentUtils.newSingleThreadPool(20000,
+			"LoadThumbnailTask", null, 0);
+	
+	private class LoadThumbnailTask extends AsyncTask<Void, Void, Bitmap>
+	{
+		private final PagerInstance.ViewHolder mHolder;
+		private final GalleryItem mGalleryItem;
+		private final String mThumbnailKey;
+		private final boolean mKeepScale;
+		
+		public LoadThumbnailTask(PagerInstance.ViewHolder holder, GalleryItem galleryItem, String thumbnailKey,
+				boolean keepScale)
+		{
+			mHolder = holder;
+			mGalleryItem = galleryItem;
+			mThumbnailKey = thumbnailKey;
+			mKeepScale = keepScale;
+		}
+		
+		@Override
+		protected Bitmap doInBackground(Void... params)
+		{
+			try
+			{
+				return CacheManager.getInstance().loadThumbnailExternal(mThumbnailKey);
+			}
+			catch (OutOfMemoryError e)
+			{
+				return null;
+			}
+		}
+		
+		@Override
+		protected void onPostExecute(Bitmap result)
+		{
+			if (mHolder.loadThumbnailTask == this) mHolder.loadThumbnailTask = null;
+			if (result == null) return;
+			// Full image or another item could be shown while thumbnail was loading
+			if (mHolder.galleryItem == mGalleryItem && !mHolder.photoView.hasImage())
+			{
+				setThumbnail(mHolder, mGalleryItem, result, mKeepScale);
+			}
+			else result.recycle();
+		}
+		
+		@Override
+		protected void onCancelled(Bitmap result)
+		{
+			if (result != null) result.recycle();
+		}
+	}
+	
 	@Override
 	public void showError(PagerInstance.ViewHolder holder, String message)
 	{
@@ -17,9 +17,10 @@
 package com.mishiranu.dashchan.ui.page;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.IdentityHashMap;
 import java.util.Locale;
 
 import android.app.Activity;
@@ -50,6 +51,7 @@ import android.widget.TextView;
 import chan.content.ChanConfiguration;
 import chan.content.ChanLocator;
 import chan.content.ChanManager;
+import chan.content.model.Post;
 import chan.content.model.Posts;
 import chan.util.StringUtils;
 
@@ -57,23 +59,30 @@ import com.mishiranu.dashchan.C;
 import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.async.DeserializePostsTask;
 import com.mishiranu.dashchan.async.ReadPostsTask;
+import com.mishiranu.dashchan.async.SearchPostsTask;
 import com.mishiranu.dashchan.content.CacheManager;
 import com.mishiranu.dashchan.content.HidePerformer;
 import com.mishiranu.dashchan.content.ImageLoader;
+import com.mishiranu.dashchan.content.PostsPreloader;
+import com.mishiranu.dashchan.content.PostsSearchIndex;
 import com.mishiranu.dashchan.content.StatisticsManager;
 import com.mishiranu.dashchan.content.ThreadshotPerformer;
 import com.mishiranu.dashchan.content.model.AttachmentItem;
 import com.mishiranu.dashchan.content.model.ErrorItem;
 import com.mishiranu.dashchan.content.model.GalleryItem;
+import com.mishiranu.dashchan.content.model.ParsedComments;
 import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.content.model.ReplyGraph;
 import com.mishiranu.dashchan.content.storage.FavoritesStorage;
 import com.mishiranu.dashchan.content.storage.HistoryDatabase;
+import com.mishiranu.dashchan.net.YouTubeTitlesReader;
 import com.mishiranu.dashchan.preference.Preferences;
 import com.mishiranu.dashchan.preference.SeekBarPreference;
 import com.mishiranu.dashchan.ui.DrawerManager;
 import com.mishiranu.dashchan.ui.Replyable;
 import com.mishiranu.dashchan.ui.UiManager;
 import com.mishiranu.dashchan.ui.adapter.PostsAdapter;
+import com.mishiranu.dashchan.util.LongHashSet;
 import com.mishiranu.dashchan.util.NavigationUtils;
 import com.mishiranu.dashchan.util.ResourceUtils;
 import com.mishiranu.dashchan.util.SearchHelper;
@@ -85,10 +94,12 @@ import com.mishiranu.dashchan.widget.PullableListView;
 import com.mishiranu.dashchan.widget.PullableWrapper;
 
 public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorage.Observer, UiManager.Observer,
-		DeserializePostsTask.Callback, ReadPostsTask.Callback, ActionMode.Callback
+		DeserializePostsTask.Callback, ReadPostsTask.Callback, SearchPostsTask.Callback, ActionMode.Callback,
+		YouTubeTitlesReader.Callback
 {
 	private DeserializePostsTask mDeserializeTask;
 	private ReadPostsTask mReadTask;
+	private final ArrayList<YouTubeTitlesReader.Request> mYouTubeTitlesRequests = new ArrayList<>();
 	
 	private Replyable mReplyable;
 	private HidePerformer mHidePerformer;
@@ -102,6 +113,9 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 	private ArrayList<Integer> mSearchFoundPosts = new ArrayList<>();
 	private boolean mSearching = false;
 	private int mSearchLastPosition;
+	private SearchPostsTask mSearchTask;
+	private SearchHelper mSearchHelper;
+	private HashSet<String> mSearchQueries;
 	
 	private int mAutoRefreshInterval = 30;
 	private boolean mAutoRefreshEnabled = false;
@@ -152,7 +166,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 			};
 		}
 		PostsAdapter adapter = new PostsAdapter(activity, pageHolder.chanName, pageHolder.boardName, uiManager,
-				mReplyable, mHidePerformer, extra.userPostNumbers, listView);
+				mReplyable, mHidePerformer, extra.userPostKeys, listView);
 		initAdapter(adapter);
 		listView.getWrapper().setPullSides(PullableWrapper.Side.BOTH);
 		uiManager.observable().register(this);
@@ -225,7 +239,8 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 		else
 		{
 			mDeserializeTask = new DeserializePostsTask(this, pageHolder.chanName, pageHolder.boardName,
-					pageHolder.threadNumber, pageHolder.initialFromCache && !forceLoad, extra.cachedPosts);
+					pageHolder.threadNumber, pageHolder.initialFromCache && !forceLoad, extra.cachedPosts,
+					extra.replyGraph);
 			mDeserializeTask.executeOnExecutor(DeserializePostsTask.THREAD_POOL_EXECUTOR);
 			getListView().getWrapper().startBusyState(PullableWrapper.Side.BOTH);
 			switchView(ViewType.PROGRESS, null);
@@ -243,6 +258,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 	protected void onPause()
 	{
 		stopRefresh();
+		serializeParsedComments();
 	}
 	
 	@Override
@@ -261,6 +277,9 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 			mReadTask.cancel();
 			mReadTask = null;
 		}
+		cancelSearchTask();
+		for (YouTubeTitlesReader.Request request : mYouTubeTitlesRequests) request.cancel();
+		mYouTubeTitlesRequests.clear();
 		ImageLoader.getInstance().clearTasks(getPageHolder().chanName);
 		FavoritesStorage.getInstance().getObservable().unregister(this);
 	}
@@ -560,22 +579,28 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 						PostsExtra extra = getExtra();
 						Posts cachedPosts = extra.cachedPosts;
 						cachedPosts.clearDeletedPosts();
+						if (extra.replyGraph != null)
+						{
+							extra.replyGraph = extra.replyGraph.retain(cachedPosts.getPosts());
+						}
 						PostsAdapter adapter = getAdapter();
 						ArrayList<PostItem> deletedPostItems = adapter.clearDeletedPosts();
 						if (deletedPostItems != null)
 						{
 							extra.cachedPostItems.removeAll(deletedPostItems);
-							synchronized (extra.userPostNumbers)
+							extra.searchIndex.updateAsync(extra.cachedPostItems);
+							synchronized (extra.userPostKeys)
 							{
 								for (PostItem postItem : deletedPostItems)
 								{
-									extra.userPostNumbers.remove(postItem.getPostNumber());
+									extra.userPostKeys.remove(postItem.getPostKey());
 								}
 							}
 							notifyAllAdaptersChanged();
 						}
 						updateOptionsMenu(false);
 						serializePosts();
+						serializeReplyGraph();
 					}
 				}).setNegativeButton(android.R.string.cancel, null).show();
 				return true;
@@ -802,25 +827,48 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 	{
 		PostsAdapter adapter = getAdapter();
 		if (adapter.isEmpty()) return false;
+		cancelSearchTask();
+		SearchHelper helper = new SearchHelper();
+		helper.setFlags("m", "r", "a", "d", "e");
+		mSearchQueries = helper.handleQueries(Locale.getDefault(), query);
+		mSearchHelper = helper;
+		mSearchTask = new SearchPostsTask(this, getExtra().searchIndex, helper.getIncluded(), helper.getExcluded());
+		mSearchTask.executeOnExecutor(PostsSearchIndex.EXECUTOR);
+		return true;
+	}
+	
+	private void cancelSearchTask()
+	{
+		if (mSearchTask != null)
+		{
+			mSearchTask.cancel();
+			mSearchTask = null;
+		}
+	}
+	
+	@Override
+	public void onSearchPostsComplete(HashSet<String> postNumbers)
+	{
+		mSearchTask = null;
+		SearchHelper helper = mSearchHelper;
+		HashSet<String> queries = mSearchQueries;
+		mSearchHelper = null;
+		mSearchQueries = null;
+		PostsAdapter adapter = getAdapter();
 		mSearchFoundPosts.clear();
 		int listPosition = ListPosition.obtain(getListView()).position;
 		mSearchLastPosition = 0;
 		boolean positionDefined = false;
-		Locale locale = Locale.getDefault();
-		SearchHelper helper = new SearchHelper();
-		helper.setFlags("m", "r", "a", "d", "e");
-		HashSet<String> queries = helper.handleQueries(locale, query);
-		HashSet<String> fileNames = new HashSet<>();
 		PostsExtra extra = getExtra();
-		OUTER: for (int i = 0; i < adapter.getCount(); i++)
+		for (int i = 0; i < adapter.getCount(); i++)
 		{
 			PostItem postItem = adapter.getItem(i);
 			if (postItem != null && !postItem.isHidden(mHidePerformer))
 			{
 				String postNumber = postItem.getPostNumber();
-				String comment = postItem.getComment().toString().toLowerCase(locale);
+				if (!postNumbers.contains(postNumber)) continue;
 				boolean userPost = postItem.isUserPost();
-				boolean reply = postItem.hasUserRepliesAfterComment(extra.userPostNumbers);
+				boolean reply = postItem.hasUserRepliesAfterComment(extra.userPostKeys);
 				boolean hasAttachments = postItem.hasAttachments();
 				boolean deleted = postItem.isDeleted();
 				boolean edited = mLastEditedPostNumbers.contains(postNumber);
@@ -828,70 +876,12 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 				{
 					continue;
 				}
-				for (String lowQuery : helper.getExcluded())
+				if (!positionDefined && i > listPosition)
 				{
-					if (comment.contains(lowQuery)) continue OUTER;
-				}
-				String subject = postItem.getSubject().toString().toLowerCase(locale);
-				String name = postItem.getFullName().toString().toLowerCase(locale);
-				fileNames.clear();
-				ArrayList<AttachmentItem> attachmentItems = postItem.getAttachmentItems();
-				if (attachmentItems != null)
-				{
-					for (AttachmentItem attachmentItem : attachmentItems)
-					{
-						String fileName = attachmentItem.getFileName();
-						if (fileName != null)
-						{
-							fileNames.add(fileName.toLowerCase(locale));
-							String originalName = attachmentItem.getOriginalName();
-							if (originalName != null) fileNames.add(originalName.toLowerCase(locale));
-						}
-					}
-				}
-				boolean found = false;
-				if (helper.hasIncluded())
-				{
-					QUERIES: for (String lowQuery : helper.getIncluded())
-					{
-						if (comment.contains(lowQuery))
-						{
-							found = true;
-							break;
-						}
-						else if (subject.contains(lowQuery))
-						{
-							found = true;
-							break;
-						}
-						else if (name.contains(lowQuery))
-						{
-							found = true;
-							break;
-						}
-						else
-						{
-							for (String fileName : fileNames)
-							{
-								if (fileName.contains(lowQuery))
-								{
-									found = true;
-									break QUERIES;
-								}
-							}
-						}
-					}
-				}
-				else found = true;
-				if (found)
-				{
-					if (!positionDefined && i > listPosition)
-					{
-						mSearchLastPosition = mSearchFoundPosts.size();
-						positionDefined = true;
-					}
-					mSearchFoundPosts.add(i);
+					mSearchLastPosition = mSearchFoundPosts.size();
+					positionDefined = true;
 				}
+				mSearchFoundPosts.add(i);
 			}
 		}
 		boolean found = mSearchFoundPosts.size() > 0;
@@ -911,7 +901,6 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 			mSearchLastPosition = -1;
 			updateSearchTitle();
 		}
-		return true;
 	}
 	
 	@Override
@@ -922,6 +911,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 	
 	private boolean onStopSearchInternal()
 	{
+		cancelSearchTask();
 		if (mSearching)
 		{
 			mSearching = false;
@@ -1164,7 +1154,8 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 		boolean partialLoading = !adapter.isEmpty();
 		boolean useValidator = checkModified && partialLoading && !reload;
 		mReadTask = new ReadPostsTask(this, pageHolder.chanName, pageHolder.boardName, pageHolder.threadNumber,
-				extra.cachedPosts, useValidator, reload, adapter.getLastPostNumber(), extra.userPostPendings);
+				extra.cachedPosts, extra.replyGraph, useValidator, reload, adapter.getLastPostNumber(),
+				extra.userPostPendings);
 		mReadTask.executeOnExecutor(ReadPostsTask.THREAD_POOL_EXECUTOR);
 		if (showPull)
 		{
@@ -1186,25 +1177,21 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 		int threshold = ListScroller.getJumpThreshold(getActivity());
 		int handleNewCount = Math.min(threshold / 4, postItems.length);
 		int handleOldCount = Math.min(threshold, count);
-		for (int i = 0; i < handleNewCount; i++)
-		{
-			PostItem postItem = postItems[i];
-			postItem.getComment();
-			postItem.isHidden(mHidePerformer);
-		}
+		PostItem[] preloadItems = new PostItem[handleNewCount + handleOldCount];
+		System.arraycopy(postItems, 0, preloadItems, 0, handleNewCount);
+		int preloadCount = handleNewCount;
 		for (int i = 0; i < handleOldCount; i++)
 		{
 			PostItem postItem = adapter.getItem(count - i - 1);
-			if (postItem != null)
-			{
-				postItem.getComment();
-				postItem.isHidden(mHidePerformer);
-			}
+			if (postItem != null) preloadItems[preloadCount++] = postItem;
 		}
+		if (preloadCount < preloadItems.length) preloadItems = Arrays.copyOf(preloadItems, preloadCount);
+		PostsPreloader.preload(preloadItems, mHidePerformer);
 	}
 	
 	@Override
-	public void onDeserializePostsComplete(boolean success, Posts posts, PostItem[] postItems, boolean fromCache)
+	public void onDeserializePostsComplete(boolean success, Posts posts, ReplyGraph replyGraph, PostItem[] postItems,
+			boolean fromCache)
 	{
 		mDeserializeTask = null;
 		getListView().getWrapper().cancelBusyState();
@@ -1212,12 +1199,13 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 		if (success && postItems != null)
 		{
 			PostsExtra extra = getExtra();
-			synchronized (extra.userPostNumbers)
+			extra.replyGraph = replyGraph;
+			synchronized (extra.userPostKeys)
 			{
-				extra.userPostNumbers.clear();
+				extra.userPostKeys.clear();
 				for (PostItem postItem : postItems)
 				{
-					if (postItem.isUserPost()) extra.userPostNumbers.add(postItem.getPostNumber());
+					if (postItem.isUserPost()) extra.userPostKeys.add(postItem.getPostKey());
 				}
 			}
 		}
@@ -1236,7 +1224,9 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 			mHidePerformer.decodeLocalAutohide(posts);
 			extra.cachedPosts = posts;
 			Collections.addAll(extra.cachedPostItems, postItems);
+			extra.searchIndex.updateAsync(extra.cachedPostItems);
 			adapter.setItems(postItems, isLoadedExplicitly); 
+			readYouTubeTitles(posts.getPosts());
 			for (PostItem postItem : adapter)
 			{
 				if (extra.expandedPosts.contains(postItem.getPostNumber())) postItem.setExpanded(true);
@@ -1283,10 +1273,13 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 			{
 				PostItem[] postItems = resultItems.handlePostItems;
 				extra.cachedPosts = posts;
+				extra.replyGraph = resultItems.replyGraph;
 				extra.cachedPostItems.clear();
 				Collections.addAll(extra.cachedPostItems, postItems);
+				extra.searchIndex.updateAsync(extra.cachedPostItems);
 				adapter.setItems(postItems, false);
 				serializePosts();
+				serializeReplyGraph();
 				boolean allowCache = CacheManager.getInstance().allowPagesCache(pageHolder.chanName);
 				if (first)
 				{
@@ -1315,32 +1308,27 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 			boolean writeToCache = posts.merge(resultItems.readPosts, resultItems.handlePosts,
 					resultItems.mergeActions);
 			int repliesCount = 0;
+			if (resultItems.replyGraph != null) extra.replyGraph = resultItems.replyGraph;
 			if (resultItems.handlePostItems != null)
 			{
 				if (resultItems.mergeActions != null)
 				{
-					synchronized (extra.userPostNumbers)
+					ReplyGraph replyGraph = extra.replyGraph;
+					synchronized (extra.userPostKeys)
 					{
 						for (PostItem postItem : resultItems.handlePostItems)
 						{
-							if (postItem.isUserPost()) extra.userPostNumbers.add(postItem.getPostNumber());
+							if (postItem.isUserPost()) extra.userPostKeys.add(postItem.getPostKey());
 						}
 						for (int i = 0; i < resultItems.handlePostItems.length; i++)
 						{
 							PostItem postItem = resultItems.handlePostItems[i];
 							if (resultItems.mergeActions[i].newPost)
 							{
-								HashSet<String> referencesTo = postItem.getReferencesTo();
-								if (referencesTo != null)
+								int ordinal = replyGraph != null ? replyGraph.indexOf(postItem.getPostKey()) : -1;
+								if (ordinal >= 0 && replyGraph.hasReferenceTo(ordinal, extra.userPostKeys))
 								{
-									for (String postNumber : referencesTo)
-									{
-										if (extra.userPostNumbers.contains(postNumber))
-										{
-											repliesCount++;
-											break;
-										}
-									}
+									repliesCount++;
 								}
 							}
 						}
@@ -1350,10 +1338,15 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 				adapter.mergeItems(resultItems.handlePostItems, resultItems.mergeActions);
 				extra.cachedPostItems.clear();
 				for (PostItem postItem : adapter) extra.cachedPostItems.add(postItem);
+				extra.searchIndex.updateAsync(extra.cachedPostItems);
 				// Also mark changed posts as unread, it's ok
 				for (PostItem postItem : resultItems.handlePostItems) postItem.setUnread(true);
 			}
-			if (writeToCache) serializePosts();
+			if (writeToCache)
+			{
+				serializePostsDelta(resultItems.handlePosts, resultItems.mergeActions);
+				if (resultItems.replyGraph != null) serializeReplyGraphDelta();
+			}
 			if (resultItems.newCount > 0 || repliesCount > 0 || resultItems.deletedCount > 0 || resultItems.hasEdited)
 			{
 				StringBuilder message = new StringBuilder();
@@ -1395,6 +1388,7 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 				else ClickableToast.show(getActivity(), message);
 			}
 		}
+		readYouTubeTitles(resultItems.handlePosts);
 		if (resultItems.hasEdited)
 		{
 			mLastEditedPostNumbers.clear();
@@ -1460,16 +1454,30 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 			postItem.setHidden(true);
 			postItemsToInvalidate.add(postItem);
 		}
-		LinkedHashSet<String> referencesFrom = postItem.getReferencesFrom();
-		if (referencesFrom != null)
+		PostsAdapter adapter = getAdapter();
+		ReplyGraph replyGraph = getExtra().replyGraph;
+		int ordinal = replyGraph != null ? replyGraph.indexOf(postItem.getPostKey()) : -1;
+		if (ordinal >= 0)
 		{
-			PostsAdapter adapter = getAdapter();
-			for (String postNumber : referencesFrom)
+			for (int i = 0, count = replyGraph.getReplyCount(ordinal); i < count; i++)
 			{
-				PostItem foundPostItem = adapter.findPostItem(postNumber);
+				long postKey = replyGraph.getReplyPostKeyAt(ordinal, i);
+				PostItem foundPostItem = adapter.findPostItem(postKey);
 				if (foundPostItem != null) hidePostAndReplies(foundPostItem, postItemsToInvalidate);
 			}
 		}
+		else
+		{
+			LongHashSet referencesFrom = postItem.getReferencesFrom();
+			if (referencesFrom != null)
+			{
+				for (int i = 0; i < referencesFrom.size(); i++)
+				{
+					PostItem foundPostItem = adapter.findPostItem(referencesFrom.get(i));
+					if (foundPostItem != null) hidePostAndReplies(foundPostItem, postItemsToInvalidate);
+				}
+			}
+		}
 	}
 	
 	@Override
@@ -1496,10 +1504,10 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 			case UiManager.MESSAGE_PERFORM_USER_MARK_UPDATE:
 			{
 				PostsExtra extra = getExtra();
-				synchronized (extra.userPostNumbers)
+				synchronized (extra.userPostKeys)
 				{
-					if (postItem.isUserPost()) extra.userPostNumbers.add(postItem.getPostNumber());
-					else extra.userPostNumbers.remove(postItem.getPostNumber());
+					if (postItem.isUserPost()) extra.userPostKeys.add(postItem.getPostKey());
+					else extra.userPostKeys.remove(postItem.getPostKey());
 				}
 				break;
 			}
@@ -1544,6 +1552,66 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 		}
 	}
 	
+	private void readYouTubeTitles(Post[] posts)
+	{
+		YouTubeTitlesReader.Request request = YouTubeTitlesReader.getInstance().readAsyncIfNecessary(posts, this);
+		if (request != null) mYouTubeTitlesRequests.add(request);
+	}
+	
+	@Override
+	public void onYouTubeTitlesRead(YouTubeTitlesReader.Request request)
+	{
+		mYouTubeTitlesRequests.remove(request);
+		PostsExtra extra = getExtra();
+		if (extra.cachedPosts == null) return;
+		ArrayList<Post> changedPosts = request.apply();
+		if (changedPosts.isEmpty()) return;
+		// Changed posts are replaced like edited ones, posts replaced by refresh are skipped
+		IdentityHashMap<Post, Boolean> changedPostsMap = new IdentityHashMap<>();
+		for (Post post : changedPosts) changedPostsMap.put(post, true);
+		Post[] posts = extra.cachedPosts.getPosts();
+		ArrayList<Post> handlePosts = new ArrayList<>();
+		ArrayList<Posts.MergeAction> mergeActions = new ArrayList<>();
+		for (int i = 0; i < posts.length; i++)
+		{
+			if (changedPostsMap.containsKey(posts[i]))
+			{
+				handlePosts.add(posts[i]);
+				mergeActions.add(new Posts.MergeAction(i, false, false));
+			}
+		}
+		if (handlePosts.isEmpty()) return;
+		PageHolder pageHolder = getPageHolder();
+		Post[] handlePostsArray = handlePosts.toArray(new Post[handlePosts.size()]);
+		Posts.MergeAction[] mergeActionsArray = mergeActions.toArray(new Posts.MergeAction[mergeActions.size()]);
+		PostsAdapter adapter = getAdapter();
+		IdentityHashMap<Post, PostItem> oldPostItems = new IdentityHashMap<>();
+		for (PostItem postItem : adapter)
+		{
+			if (changedPostsMap.containsKey(postItem.getPost())) oldPostItems.put(postItem.getPost(), postItem);
+		}
+		PostItem[] postItems = new PostItem[handlePostsArray.length];
+		for (int i = 0; i < postItems.length; i++)
+		{
+			PostItem postItem = new PostItem(handlePostsArray[i], pageHolder.chanName, pageHolder.boardName,
+					extra.replyGraph);
+			PostItem oldPostItem = oldPostItems.get(handlePostsArray[i]);
+			if (extra.expandedPosts.contains(postItem.getPostNumber()) || oldPostItem != null
+					&& oldPostItem.isExpanded())
+			{
+				postItem.setExpanded(true);
+			}
+			if (oldPostItem != null) postItem.copyHiddenState(oldPostItem);
+			postItems[i] = postItem;
+		}
+		adapter.mergeItems(postItems, mergeActionsArray);
+		extra.cachedPostItems.clear();
+		for (PostItem postItem : adapter) extra.cachedPostItems.add(postItem);
+		extra.searchIndex.updateAsync(extra.cachedPostItems);
+		serializePostsDelta(handlePostsArray, mergeActionsArray);
+		getUiManager().dialog().updateAdapters();
+	}
+	
 	private void serializePosts()
 	{
 		PageHolder pageHolder = getPageHolder();
@@ -1551,16 +1619,59 @@ public class PostsPage extends ListPage<PostsAdapter> implements FavoritesStorag
 				pageHolder.threadNumber, getExtra().cachedPosts);
 	}
 	
+	private void serializePostsDelta(Post[] handlePosts, Posts.MergeAction[] mergeActions)
+	{
+		PageHolder pageHolder = getPageHolder();
+		CacheManager.getInstance().serializePostsDelta(pageHolder.chanName, pageHolder.boardName,
+				pageHolder.threadNumber, getExtra().cachedPosts, handlePosts, mergeActions);
+	}
+	
+	private void serializeReplyGraph()
+	{
+		ReplyGraph replyGraph = getExtra().replyGraph;
+		if (replyGraph != null)
+		{
+			PageHolder pageHolder = getPageHolder();
+			CacheManager.getInstance().serializeReplyGraph(pageHolder.chanName, pageHolder.boardName,
+					pageHolder.threadNumber, replyGraph);
+		}
+	}
+	
+	private void serializeReplyGraphDelta()
+	{
+		ReplyGraph replyGraph = getExtra().replyGraph;
+		if (replyGraph != null)
+		{
+			PageHolder pageHolder = getPageHolder();
+			CacheManager.getInstance().serializeReplyGraphDelta(pageHolder.chanName, pageHolder.boardName,
+					pageHolder.threadNumber, replyGraph);
+		}
+	}
+	
+	private void serializeParsedComments()
+	{
+		PageHolder pageHolder = getPageHolder();
+		ParsedComments parsedComments = ParsedComments.collect(pageHolder.chanName, getExtra().cachedPostItems);
+		if (parsedComments != null)
+		{
+			CacheManager.getInstance().serializeParsedComments(pageHolder.chanName, pageHolder.boardName,
+					pageHolder.threadNumber, parsedComments);
+		}
+	}
+	
 	public static class PostsExtra implements PageHolder.ParcelableExtra
 	{
 		public Posts cachedPosts;
+		public ReplyGraph replyGraph;
 		public final ArrayList<PostItem> cachedPostItems = new ArrayList<>();
-		public final HashSet<String> userPostNumbers = new HashSet<String>();
+		public final LongHashSet userPostKeys = new LongHashSet();
 		
 		public final ArrayList<ReadPostsTask.UserPostPending> userPostPendings = new ArrayList<>();
 		public final HashSet<String> expandedPosts = new HashSet<>();
 		public boolean isAddedToHistory = false;
 		
+		public final PostsSearchIndex searchIndex = new PostsSearchIndex();
+		
 		@Override
 		public void writeToParcel(Parcel dest)
 		{
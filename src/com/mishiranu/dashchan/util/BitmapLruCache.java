@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+
+public class BitmapLruCache
+{
+	private final Segment[] mSegments;
+	private final long mMaxBytes;
+	
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mPuts = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+	
+	public BitmapLruCache(long maxBytes, int segmentsCount)
+	{
+		// Every segment has its own lock and its own part of budget, so loader threads rarely wait for each other
+		mSegments = new Segment[segmentsCount];
+		for (int i = 0; i < segmentsCount; i++) mSegments[i] = new Segment(maxBytes / segmentsCount);
+		mMaxBytes = maxBytes;
+	}
+	
+	private Segment getSegment(String key)
+	{
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return mSegments[(hash & 0x7fffffff) % mSegments.length];
+	}
+	
+	public boolean contains(String key)
+	{
+		Segment segment = getSegment(key);
+		synchronized (segment)
+		{
+			return segment.map.containsKey(key);
+		}
+	}
+	
+	public Bitmap get(String key)
+	{
+		Segment segment = getSegment(key);
+		Bitmap bitmap;
+		synchronized (segment)
+		{
+			bitmap = segment.map.get(key);
+		}
+		if (bitmap != null) mHits.incrementAndGet(); else mMisses.incrementAndGet();
+		return bitmap;
+	}
+	
+	public boolean putIfAbsent(String key, Bitmap bitmap)
+	{
+		int size = bitmap.getByteCount();
+		Segment segment = getSegment(key);
+		int evictions = 0;
+		synchronized (segment)
+		{
+			if (size > segment.maxSize || segment.map.containsKey(key)) return false;
+			segment.map.put(key, bitmap);
+			segment.size += size;
+			Iterator<Bitmap> iterator = segment.map.values().iterator();
+			while (segment.size > segment.maxSize && iterator.hasNext())
+			{
+				Bitmap eldest = iterator.next();
+				if (eldest == bitmap) break;
+				segment.size -= eldest.getByteCount();
+				iterator.remove();
+				evictions++;
+			}
+		}
+		mPuts.incrementAndGet();
+		if (evictions > 0) mEvictions.addAndGet(evictions);
+		return true;
+	}
+	
+	public void clear()
+	{
+		for (Segment segment : mSegments)
+		{
+			synchronized (segment)
+			{
+				segment.map.clear();
+				segment.size = 0L;
+			}
+		}
+	}
+	
+	public Statistics getStatistics()
+	{
+		long size = 0L;
+		int count = 0;
+		for (Segment segment : mSegments)
+		{
+			synchronized (segment)
+			{
+				size += segment.size;
+				count += segment.map.size();
+			}
+		}
+		return new Statistics(mMaxBytes, size, count, mHits.get(), mMisses.get(), mPuts.get(), mEvictions.get());
+	}
+	
+	private static class Segment
+	{
+		public final LinkedHashMap<String, Bitmap> map = new LinkedHashMap<>(0, 0.75f, true);
+		public final long maxSize;
+		public long size;
+		
+		public Segment(long maxSize)
+		{
+			this.maxSize = maxSize;
+		}
+	}
+	
+	public static class Statistics
+	{
+		public final long maxSize;
+		public final long size;
+		public final int count;
+		public final long hits;
+		public final long misses;
+		public final long puts;
+		public final long evictions;
+		
+		public Statistics(long maxSize, long size, int count, long hits, long misses, long puts, long evictions)
+		{
+			this.maxSize = maxSize;
+			this.size = size;
+			this.count = count;
+			this.hits = hits;
+			this.misses = misses;
+			this.puts = puts;
+			this.evictions = evictions;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "BitmapLruCache.Statistics [size=" + size + "/" + maxSize + ", count=" + count + ", hits=" + hits +
+					", misses=" + misses + ", puts=" + puts + ", evictions=" + evictions + "]";
+		}
+	}
+}
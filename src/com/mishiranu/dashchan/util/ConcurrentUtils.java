@@ -16,6 +16,7 @@
 
 package com.mishiranu.dashchan.util;
 
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -44,7 +45,14 @@ public class ConcurrentUtils
 	public static ThreadPoolExecutor newThreadPool(int from, int to, long lifeTimeMs,
 			String componentName, String componentPart, int threadPriority)
 	{
-		return new ThreadPoolExecutor(from, to, lifeTimeMs, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+		return newThreadPool(from, to, lifeTimeMs, componentName, componentPart, threadPriority,
+				new LinkedBlockingQueue<Runnable>());
+	}
+	
+	public static ThreadPoolExecutor newThreadPool(int from, int to, long lifeTimeMs,
+			String componentName, String componentPart, int threadPriority, BlockingQueue<Runnable> queue)
+	{
+		return new ThreadPoolExecutor(from, to, lifeTimeMs, TimeUnit.MILLISECONDS, queue,
 				new ComponentThreadFactory(componentName, componentPart, threadPriority));
 	}
 	
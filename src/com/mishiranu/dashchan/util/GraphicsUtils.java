@@ -27,6 +27,7 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.ColorMatrixColorFilter;
@@ -37,6 +38,7 @@ import android.util.Pair;
 import android.view.Gravity;
 
 import com.mishiranu.dashchan.content.model.FileHolder;
+import com.mishiranu.dashchan.graphics.BitmapPool;
 
 public class GraphicsUtils
 {
@@ -154,10 +156,55 @@ public class GraphicsUtils
 		}
 	}
 	
-	public static Bitmap reduceThumbnailSize(Resources resources, Bitmap bitmap)
+	private static final BitmapPool THUMBNAIL_POOL = new BitmapPool();
+	
+	// Image is decoded with the largest sample size which keeps it not smaller than thumbnail, so full resolution
+	// bitmap is never allocated. Sampled bitmap is scaled to exact size and returned to pool.
+	public static Bitmap decodeThumbnail(Resources resources, byte[] bytes)
 	{
+		if (bytes == null) return null;
 		int newSize = (int) (72f * ResourceUtils.obtainDensity(resources));
-		return reduceBitmapSize(bitmap, newSize, true);
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+		int width = options.outWidth;
+		int height = options.outHeight;
+		if (width <= 0 || height <= 0) return null;
+		int oldSize = Math.min(width, height);
+		int sampleSize = 1;
+		while (oldSize / (sampleSize * 2) >= newSize) sampleSize *= 2;
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		// Bitmap will be scaled, so it can be taken from pool
+		boolean intermediate = oldSize / sampleSize > newSize;
+		if (intermediate)
+		{
+			options.inMutable = true;
+			options.inBitmap = THUMBNAIL_POOL.obtain(width, height, sampleSize);
+		}
+		Bitmap bitmap;
+		try
+		{
+			bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Image format doesn't support reusing
+			THUMBNAIL_POOL.release(options.inBitmap, sampleSize);
+			options.inBitmap = null;
+			bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+		}
+		if (bitmap == null)
+		{
+			if (options.inBitmap != null) options.inBitmap.recycle();
+			return null;
+		}
+		Bitmap resizedBitmap = reduceBitmapSize(bitmap, newSize, false);
+		if (resizedBitmap != bitmap)
+		{
+			if (intermediate) THUMBNAIL_POOL.release(bitmap, sampleSize); else bitmap.recycle();
+		}
+		return resizedBitmap;
 	}
 	
 	public static Bitmap reduceBitmapSize(Bitmap bitmap, int newSize, boolean recycleOld)
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.util;
+
+import java.util.Arrays;
+
+// Set of primitive values which keeps insertion order, values can be iterated with size and get methods
+public class LongHashSet
+{
+	private static final int EMPTY = -1;
+	
+	private long[] mValues;
+	private int[] mTable;
+	private int mSize;
+	
+	public LongHashSet()
+	{
+		this(4);
+	}
+	
+	public LongHashSet(int capacity)
+	{
+		mValues = new long[Math.max(capacity, 1)];
+		mTable = createTable(mValues.length);
+	}
+	
+	private static int[] createTable(int capacity)
+	{
+		int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+		int[] table = new int[tableSize];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+	
+	private static int hash(long value)
+	{
+		int hash = (int) (value ^ value >>> 32);
+		hash *= 0x9e3779b9;
+		return hash ^ hash >>> 16;
+	}
+	
+	private int findSlot(long value)
+	{
+		int[] table = mTable;
+		int mask = table.length - 1;
+		int slot = hash(value) & mask;
+		while (true)
+		{
+			int index = table[slot];
+			if (index == EMPTY || mValues[index] == value) return slot;
+			slot = slot + 1 & mask;
+		}
+	}
+	
+	private void rebuildTable(int capacity)
+	{
+		mTable = createTable(capacity);
+		for (int i = 0; i < mSize; i++) mTable[findSlot(mValues[i])] = i;
+	}
+	
+	public int size()
+	{
+		return mSize;
+	}
+	
+	public boolean isEmpty()
+	{
+		return mSize == 0;
+	}
+	
+	public long get(int index)
+	{
+		if (index < 0 || index >= mSize) throw new IndexOutOfBoundsException();
+		return mValues[index];
+	}
+	
+	public boolean contains(long value)
+	{
+		return mTable[findSlot(value)] != EMPTY;
+	}
+	
+	public boolean add(long value)
+	{
+		int slot = findSlot(value);
+		if (mTable[slot] != EMPTY) return false;
+		if (mSize == mValues.length)
+		{
+			mValues = Arrays.copyOf(mValues, mSize * 2);
+			mValues[mSize] = value;
+			mSize++;
+			rebuildTable(mValues.length);
+		}
+		else
+		{
+			mValues[mSize] = value;
+			mTable[slot] = mSize++;
+		}
+		return true;
+	}
+	
+	public void addAll(LongHashSet set)
+	{
+		for (int i = 0; i < set.mSize; i++) add(set.mValues[i]);
+	}
+	
+	public boolean remove(long value)
+	{
+		int slot = findSlot(value);
+		int index = mTable[slot];
+		if (index == EMPTY) return false;
+		// Removing is rare, so the order is kept by shifting values and rebuilding the table
+		System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+		mSize--;
+		rebuildTable(mValues.length);
+		return true;
+	}
+	
+	public void clear()
+	{
+		if (mSize > 0)
+		{
+			mSize = 0;
+			Arrays.fill(mTable, EMPTY);
+		}
+	}
+}
\ No newline at end of file
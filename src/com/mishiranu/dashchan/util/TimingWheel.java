@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Hashed timing wheel. Items are put to slots by due tick, so scheduling and cancelling take constant time
+// and every tick only visits a single slot. Items scheduled further than one turn stay in slot for several turns.
+// Every slot is an intrusive doubly linked list, so entries are unlinked without searching.
+public class TimingWheel<T>
+{
+	private static class Entry<T>
+	{
+		public final T item;
+		public final long tick;
+		
+		public Entry<T> previous;
+		public Entry<T> next;
+		
+		public Entry(T item, long tick)
+		{
+			this.item = item;
+			this.tick = tick;
+		}
+	}
+	
+	private static class Slot<T>
+	{
+		public Entry<T> first;
+		public Entry<T> last;
+		
+		public void add(Entry<T> entry)
+		{
+			entry.previous = last;
+			if (last != null) last.next = entry; else first = entry;
+			last = entry;
+		}
+		
+		public void remove(Entry<T> entry)
+		{
+			if (entry.previous != null) entry.previous.next = entry.next; else first = entry.next;
+			if (entry.next != null) entry.next.previous = entry.previous; else last = entry.previous;
+			entry.previous = null;
+			entry.next = null;
+		}
+	}
+	
+	private final long mTickDuration;
+	private final Slot<T>[] mSlots;
+	private final HashMap<T, Entry<T>> mEntries = new HashMap<>();
+	
+	private long mLastTick;
+	
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long tickDuration, int slotsCount, long startTime)
+	{
+		mTickDuration = tickDuration;
+		mLastTick = startTime / tickDuration;
+		mSlots = new Slot[slotsCount];
+		for (int i = 0; i < slotsCount; i++) mSlots[i] = new Slot<>();
+	}
+	
+	public long getTickDuration()
+	{
+		return mTickDuration;
+	}
+	
+	private Slot<T> getSlot(long tick)
+	{
+		return mSlots[(int) (tick % mSlots.length)];
+	}
+	
+	// Returns time when item becomes due
+	public long schedule(T item, long time)
+	{
+		cancel(item);
+		long tick = (time + mTickDuration - 1) / mTickDuration;
+		if (tick <= mLastTick) tick = mLastTick + 1;
+		Entry<T> entry = new Entry<>(item, tick);
+		mEntries.put(item, entry);
+		getSlot(tick).add(entry);
+		return tick * mTickDuration;
+	}
+	
+	public boolean cancel(T item)
+	{
+		Entry<T> entry = mEntries.remove(item);
+		if (entry != null)
+		{
+			getSlot(entry.tick).remove(entry);
+			return true;
+		}
+		return false;
+	}
+	
+	public boolean contains(T item)
+	{
+		return mEntries.containsKey(item);
+	}
+	
+	public boolean isEmpty()
+	{
+		return mEntries.isEmpty();
+	}
+	
+	public void clear()
+	{
+		for (Slot<T> slot : mSlots)
+		{
+			slot.first = null;
+			slot.last = null;
+		}
+		mEntries.clear();
+	}
+	
+	// Returns time when the earliest item becomes due or Long.MAX_VALUE if wheel is empty
+	public long getNextTime()
+	{
+		if (mEntries.isEmpty()) return Long.MAX_VALUE;
+		// Items due in the current turn are found in their slots, otherwise all items are checked
+		for (int i = 1; i <= mSlots.length; i++)
+		{
+			long tick = mLastTick + i;
+			for (Entry<T> entry = getSlot(tick).first; entry != null; entry = entry.next)
+			{
+				if (entry.tick <= tick) return entry.tick * mTickDuration;
+			}
+		}
+		long tick = Long.MAX_VALUE;
+		for (Entry<T> entry : mEntries.values()) tick = Math.min(tick, entry.tick);
+		return tick * mTickDuration;
+	}
+	
+	// Returns items which are due to this time in scheduling order
+	public ArrayList<T> advance(long time)
+	{
+		ArrayList<T> result = new ArrayList<>();
+		long tick = time / mTickDuration;
+		if (tick <= mLastTick) return result;
+		int count = (int) Math.min(tick - mLastTick, mSlots.length);
+		for (int i = 1; i <= count; i++)
+		{
+			Slot<T> slot = getSlot(mLastTick + i);
+			Entry<T> entry = slot.first;
+			while (entry != null)
+			{
+				Entry<T> next = entry.next;
+				if (entry.tick <= tick)
+				{
+					slot.remove(entry);
+					mEntries.remove(entry.item);
+					result.add(entry.item);
+				}
+				entry = next;
+			}
+		}
+		mLastTick = tick;
+		return result;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.text;
+
+import java.util.ArrayList;
+
+import org.xml.sax.helpers.DefaultHandler;
+
+// Compares tokenizer with TagSoup fallback against TagSoup only on comments corpus.
+// Not a unit test, run it with main method.
+public class CommentTokenizerBenchmark
+{
+	private static final int WARMUP_ROUNDS = 50;
+	private static final int ROUNDS = 200;
+	
+	public static void main(String[] args) throws Exception
+	{
+		ArrayList<String> comments = CommentTokenizerTest.readCorpus();
+		DefaultHandler handler = new DefaultHandler();
+		int accepted = 0;
+		for (String comment : comments)
+		{
+			if (CommentTokenizer.parse(comment, handler)) accepted++;
+		}
+		System.out.println("Comments: " + comments.size() + ", accepted by tokenizer: " + accepted);
+		for (int i = 0; i < WARMUP_ROUNDS; i++)
+		{
+			runTokenizer(comments, handler);
+			runTagSoup(comments, handler);
+		}
+		long tokenizerTime = runTokenizer(comments, handler);
+		long tagSoupTime = runTagSoup(comments, handler);
+		long count = (long) ROUNDS * comments.size();
+		System.out.println("Tokenizer with fallback: " + tokenizerTime / count + " ns per comment");
+		System.out.println("TagSoup: " + tagSoupTime / count + " ns per comment");
+	}
+	
+	private static long runTokenizer(ArrayList<String> comments, DefaultHandler handler) throws Exception
+	{
+		long time = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+		{
+			for (String comment : comments)
+			{
+				if (!CommentTokenizer.parse(comment, handler)) CommentTokenizerTest.parseTagSoup(comment, handler);
+			}
+		}
+		return System.nanoTime() - time;
+	}
+	
+	private static long runTagSoup(ArrayList<String> comments, DefaultHandler handler) throws Exception
+	{
+		long time = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+		{
+			for (String comment : comments) CommentTokenizerTest.parseTagSoup(comment, handler);
+		}
+		return System.nanoTime() - time;
+	}
+}
\ No newline at end of file
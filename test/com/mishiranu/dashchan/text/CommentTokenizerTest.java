@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014-2016 Fukurou Mishiranu
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mishiranu.dashchan.text;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.ccil.cowan.tagsoup.HTMLSchema;
+import org.ccil.cowan.tagsoup.Parser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class CommentTokenizerTest
+{
+	private static final String CORPUS_SEPARATOR = "----";
+	
+	private static final HTMLSchema HTML_SCHEMA = new HTMLSchema();
+	
+	// Comments are separated with lines which contain only separator
+	static ArrayList<String> readCorpus() throws IOException
+	{
+		ArrayList<String> comments = new ArrayList<>();
+		InputStream input = CommentTokenizerTest.class.getResourceAsStream("comments.txt");
+		Assert.assertNotNull("Corpus not found", input);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		try
+		{
+			StringBuilder builder = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (CORPUS_SEPARATOR.equals(line))
+				{
+					comments.add(builder.toString());
+					builder.setLength(0);
+				}
+				else
+				{
+					if (builder.length() > 0) builder.append('\n');
+					builder.append(line);
+				}
+			}
+			if (builder.length() > 0) comments.add(builder.toString());
+		}
+		finally
+		{
+			reader.close();
+		}
+		return comments;
+	}
+	
+	static void parseTagSoup(String source, ContentHandler handler) throws Exception
+	{
+		Parser parser = new Parser();
+		parser.setProperty("http://www.ccil.org/~cowan/tagsoup/properties/schema", HTML_SCHEMA);
+		parser.setContentHandler(handler);
+		parser.parse(new InputSource(new StringReader(source)));
+	}
+	
+	// Handlers don't depend on how text is split into chunks and on attributes order, so adjacent text chunks
+	// are joined and attributes are sorted
+	private static class EventRecorder extends DefaultHandler
+	{
+		private final StringBuilder mEvents = new StringBuilder();
+		private final StringBuilder mText = new StringBuilder();
+		
+		private void flushText()
+		{
+			if (mText.length() > 0)
+			{
+				mEvents.append("text \"").append(mText).append("\"\n");
+				mText.setLength(0);
+			}
+		}
+		
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+		{
+			flushText();
+			ArrayList<String> list = new ArrayList<>();
+			for (int i = 0; i < attributes.getLength(); i++)
+			{
+				list.add(attributes.getLocalName(i) + "=\"" + attributes.getValue(i) + "\"");
+			}
+			Collections.sort(list);
+			mEvents.append("start ").append(localName);
+			for (String attribute : list) mEvents.append(' ').append(attribute);
+			mEvents.append('\n');
+		}
+		
+		@Override
+		public void endElement(String uri, String localName, String qName)
+		{
+			flushText();
+			mEvents.append("end ").append(localName).append('\n');
+		}
+		
+		@Override
+		public void characters(char[] ch, int start, int length)
+		{
+			mText.append(ch, start, length);
+		}
+		
+		public String getEvents()
+		{
+			flushText();
+			return mEvents.toString();
+		}
+	}
+	
+	private static String recordTagSoup(String source) throws Exception
+	{
+		EventRecorder recorder = new EventRecorder();
+		parseTagSoup(source, recorder);
+		return recorder.getEvents();
+	}
+	
+	// Returns null if tokenizer doesn't accept the source
+	private static String recordTokenizer(String source)
+	{
+		EventRecorder recorder = new EventRecorder();
+		return CommentTokenizer.parse(source, recorder) ? recorder.getEvents() : null;
+	}
+	
+	private static boolean assertSameEvents(String source) throws Exception
+	{
+		String events = recordTokenizer(source);
+		if (events == null) return false;
+		Assert.assertEquals(source, recordTagSoup(source), events);
+		return true;
+	}
+	
+	@Test
+	public void corpusMatchesTagSoup() throws Exception
+	{
+		ArrayList<String> comments = readCorpus();
+		int accepted = 0;
+		for (String comment : comments)
+		{
+			if (assertSameEvents(comment)) accepted++;
+		}
+		// Most comments use simple markup and shouldn't fall back to TagSoup
+		Assert.assertTrue("Accepted " + accepted + " of " + comments.size(), accepted >= comments.size() * 3 / 4);
+	}
+	
+	private static final String[] FRAGMENTS = {"text", " ", "\n", "\r\n", "\t", "юникод", "&amp;", "&lt;", "&gt;",
+			"&quot;", "&apos;", "&nbsp;", "&#8212;", "&#x2026;", "&copy;", "&", "& ", "&#;", "<", ">", "<br>",
+			"<br/>", "<br />", "<wbr>", "<hr>", "<b>", "</b>", "<i>", "</i>", "<strong>", "</strong>",
+			"<span class=\"spoiler\">", "<span class='quote'>", "</span>", "<a href=\"#p1\" class=\"quotelink\">",
+			"<a href=/b/res/1.html>", "</a>", "<p>", "</p>", "<div>", "</div>", "<pre>", "</pre>", "<blockquote>",
+			"</blockquote>", "<ul>", "<li>", "</ul>", "<!-- c -->", "<!--", "<font color=\"#789922\">", "</font>",
+			"<s>", "</s>", "<del>", "</del>", "<ins>", "</ins>", "<h2>", "</h2>", "<center>", "</center>",
+			"<BR>", "<B>", "</B>", "<b title=\"a &amp; b\">", "<span class=\"a\" class=\"b\">", "<a shape=\"x\">",
+			"<unknown>", "</unknown>", "\u0001", "\u0085"};
+	
+	@Test
+	public void randomInputsMatchTagSoup() throws Exception
+	{
+		Random random = new Random(22);
+		StringBuilder builder = new StringBuilder();
+		int accepted = 0;
+		for (int i = 0; i < 20000; i++)
+		{
+			builder.setLength(0);
+			int count = 1 + random.nextInt(12);
+			for (int j = 0; j < count; j++) builder.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+			if (assertSameEvents(builder.toString())) accepted++;
+		}
+		Assert.assertTrue("Accepted " + accepted, accepted > 0);
+	}
+	
+	@Test
+	public void unsupportedMarkupFallsBack()
+	{
+		Assert.assertNull(recordTokenizer("<ul><li>item</li></ul>"));
+		Assert.assertNull(recordTokenizer("<b><i>misnested</b></i>"));
+		Assert.assertNull(recordTokenizer("<p>outer<p>inner</p></p>"));
+		Assert.assertNull(recordTokenizer("&copy;"));
+		Assert.assertNull(recordTokenizer("a < b"));
+	}
+	
+	@Test
+	public void nestedParseKeepsOuterEvents() throws Exception
+	{
+		final String outer = "<span class=\"quote\">&gt;first</span><br><b>second &amp; third</b>";
+		final String inner = "<a href=\"#p2\">&gt;&gt;2</a> nested <i>text</i>";
+		final EventRecorder innerRecorder = new EventRecorder();
+		// Markup callbacks may clear or unescape other strings while outer comment is replayed
+		EventRecorder outerRecorder = new EventRecorder()
+		{
+			@Override
+			public void startElement(String uri, String localName, String qName, Attributes attributes)
+			{
+				super.startElement(uri, localName, qName, attributes);
+				if ("span".equals(localName)) Assert.assertTrue(CommentTokenizer.parse(inner, innerRecorder));
+			}
+		};
+		Assert.assertTrue(CommentTokenizer.parse(outer, outerRecorder));
+		Assert.assertEquals(recordTagSoup(outer), outerRecorder.getEvents());
+		Assert.assertEquals(recordTagSoup(inner), innerRecorder.getEvents());
+		// Cached tokenizer must stay usable after nested parsing
+		Assert.assertEquals(recordTagSoup(outer), recordTokenizer(outer));
+	}
+}
\ No newline at end of file